@@ -0,0 +1,368 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2022 University of Massachusetts Medical School
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package edu.umms.garberlab.slam;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import htsjdk.samtools.AlignmentBlock;
+import htsjdk.samtools.SAMRecord;
+
+/**
+ * Exons and gene spans of a GTF compiled into a binary file the splitter memory maps, so
+ * fragments can be told apart by where they align: in exons (mature RNA), in introns (nascent
+ * RNA), across both, or outside of any gene.
+ *
+ * For each contig the file holds the union of the exons of all transcripts, as disjoint
+ * sorted intervals searched by bisection, and the gene spans sorted by start. Gene spans
+ * overlap so they are searched as an implicit interval tree: the node of a range of the
+ * sorted array is its middle element, which also stores the largest end of the range.
+ * Loading only reads the contig directory.
+ *
+ * <pre>
+ * java -cp slamsplitter.jar edu.umms.garberlab.slam.AnnotationIndex genes.gtf genes.slai
+ * </pre>
+ *
+ * @author mgarber
+ *
+ */
+public class AnnotationIndex {
+
+	static final byte [] MAGIC = "SLAI".getBytes(StandardCharsets.US_ASCII);
+	static final int VERSION = 1;
+
+	public static final String EXTENSION = ".slai";
+	/** Transient attribute the feature of the fragment is stored in, see {@link PartitionedOutputWriter} */
+	public static final String FEATURE_ATTRIBUTE = "slamFeature";
+
+	public enum Feature {
+		/** All aligned bases in exons, or spliced and partly in exons */
+		EXONIC,
+		/** Aligned in genes but not in their exons */
+		INTRONIC,
+		/** Unspliced, partly in exons and partly out */
+		MIXED,
+		/** No aligned base in a gene */
+		INTERGENIC;
+
+		public String getName() {
+			return name().toLowerCase();
+		}
+	}
+
+	private final Map<String, Contig> contigs = new HashMap<String, Contig>();
+
+	private static class Contig {
+		/** start, end pairs, 1-based inclusive */
+		IntBuffer exons;
+		/** start, end, largest end of the subtree triplets */
+		IntBuffer genes;
+		int exonCount;
+		int geneCount;
+	}
+
+	public AnnotationIndex(File indexFile) throws IOException {
+		MappedByteBuffer mapped;
+		try (FileChannel channel = FileChannel.open(indexFile.toPath(), StandardOpenOption.READ)) {
+			mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		}
+		byte [] magic = new byte[MAGIC.length];
+		mapped.get(magic);
+		if(!Arrays.equals(MAGIC, magic)) {
+			throw new IOException(indexFile.getAbsolutePath() + " is not an annotation index");
+		}
+		int version = mapped.getInt();
+		if(version != VERSION) {
+			throw new IOException("Unsupported annotation index version " + version + " in " + indexFile.getAbsolutePath());
+		}
+		int contigCount = mapped.getInt();
+		for (int i = 0; i < contigCount; i++) {
+			byte [] name = new byte[mapped.getShort()];
+			mapped.get(name);
+			Contig contig = new Contig();
+			contig.exonCount = mapped.getInt();
+			contig.geneCount = mapped.getInt();
+			contig.exons = slice(mapped, mapped.getLong());
+			contig.genes = slice(mapped, mapped.getLong());
+			contigs.put(new String(name, StandardCharsets.US_ASCII), contig);
+		}
+	}
+
+	private static IntBuffer slice(ByteBuffer mapped, long offset) {
+		ByteBuffer view = mapped.duplicate();
+		view.position((int) offset);
+		return view.slice().asIntBuffer();
+	}
+
+	/**
+	 * Compiles the exons and genes of a GTF file, genes are the gene features or, if there
+	 * are none, the span of the exons of each gene_id
+	 */
+	public static void compile(File gtfFile, File indexFile) throws IOException {
+		Map<String, List<int []>> exonsByContig = new LinkedHashMap<String, List<int []>>();
+		try (BufferedReader br = GeneAnnotation.open(gtfFile)) {
+			String line = null;
+			while ((line = br.readLine()) != null) {
+				if(line.isEmpty() || line.startsWith("#")) {
+					continue;
+				}
+				String [] fields = line.split("\t");
+				if(fields.length < 9) {
+					throw new IOException("GTF line has fewer than nine columns: " + line);
+				}
+				if("exon".equals(fields[2])) {
+					exonsByContig.computeIfAbsent(fields[0], c -> new ArrayList<int []>())
+						.add(new int [] {Integer.parseInt(fields[3]), Integer.parseInt(fields[4])});
+				}
+			}
+		}
+		Map<String, List<int []>> genesByContig = new LinkedHashMap<String, List<int []>>();
+		GeneAnnotation genes = GeneAnnotation.fromGtf(gtfFile);
+		for (int i = 0; i < genes.size(); i++) {
+			GeneAnnotation.Gene gene = genes.getGene(i);
+			genesByContig.computeIfAbsent(gene.getContig(), c -> new ArrayList<int []>()).add(new int [] {gene.getStart(), gene.getEnd()});
+		}
+
+		List<String> names = new ArrayList<String>(genesByContig.keySet());
+		for (String contig : exonsByContig.keySet()) {
+			if(!genesByContig.containsKey(contig)) {
+				names.add(contig);
+			}
+		}
+		List<int []> exonArrays = new ArrayList<int []>();
+		List<int []> geneArrays = new ArrayList<int []>();
+		long offset = MAGIC.length + 4 + 4;
+		for (String name : names) {
+			offset += 2 + name.getBytes(StandardCharsets.US_ASCII).length + 4 + 4 + 8 + 8;
+			exonArrays.add(mergeExons(exonsByContig.getOrDefault(name, new ArrayList<int []>())));
+			geneArrays.add(geneTree(genesByContig.getOrDefault(name, new ArrayList<int []>())));
+		}
+
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(indexFile.toPath())))) {
+			out.write(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(names.size());
+			for (int i = 0; i < names.size(); i++) {
+				byte [] name = names.get(i).getBytes(StandardCharsets.US_ASCII);
+				out.writeShort(name.length);
+				out.write(name);
+				out.writeInt(exonArrays.get(i).length / 2);
+				out.writeInt(geneArrays.get(i).length / 3);
+				out.writeLong(offset);
+				offset += 4L * exonArrays.get(i).length;
+				out.writeLong(offset);
+				offset += 4L * geneArrays.get(i).length;
+			}
+			for (int i = 0; i < names.size(); i++) {
+				for (int value : exonArrays.get(i)) {
+					out.writeInt(value);
+				}
+				for (int value : geneArrays.get(i)) {
+					out.writeInt(value);
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return The union of the exons as start, end pairs
+	 */
+	private static int [] mergeExons(List<int []> exons) {
+		exons.sort((e1, e2) -> Integer.compare(e1[0], e2[0]));
+		int [] merged = new int[exons.size() * 2];
+		int n = 0;
+		for (int [] exon : exons) {
+			if(n > 0 && exon[0] <= merged[n - 1] + 1) {
+				merged[n - 1] = Math.max(merged[n - 1], exon[1]);
+			} else {
+				merged[n++] = exon[0];
+				merged[n++] = exon[1];
+			}
+		}
+		return Arrays.copyOf(merged, n);
+	}
+
+	/**
+	 * @return start, end, largest end of the subtree triplets sorted by start
+	 */
+	private static int [] geneTree(List<int []> genes) {
+		genes.sort((g1, g2) -> Integer.compare(g1[0], g2[0]));
+		int [] tree = new int[genes.size() * 3];
+		for (int i = 0; i < genes.size(); i++) {
+			tree[3 * i] = genes.get(i)[0];
+			tree[3 * i + 1] = genes.get(i)[1];
+		}
+		fillMaxEnds(tree, 0, genes.size());
+		return tree;
+	}
+
+	private static int fillMaxEnds(int [] tree, int low, int high) {
+		if(low >= high) {
+			return Integer.MIN_VALUE;
+		}
+		int mid = (low + high) >>> 1;
+		int maxEnd = Math.max(tree[3 * mid + 1], Math.max(fillMaxEnds(tree, low, mid), fillMaxEnds(tree, mid + 1, high)));
+		tree[3 * mid + 2] = maxEnd;
+		return maxEnd;
+	}
+
+	/**
+	 * @param start 1-based first position
+	 * @param end 1-based last position, inclusive
+	 * @return Whether a gene overlaps the region
+	 */
+	public boolean overlapsGene(String contig, int start, int end) {
+		Contig index = contigs.get(contig);
+		return index != null && overlapsGene(index.genes, 0, index.geneCount, start, end);
+	}
+
+	private static boolean overlapsGene(IntBuffer genes, int low, int high, int start, int end) {
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			if(genes.get(3 * mid + 2) < start) {
+				// Nothing in this range reaches the region
+				return false;
+			}
+			if(genes.get(3 * mid) <= end && genes.get(3 * mid + 1) >= start) {
+				return true;
+			}
+			if(overlapsGene(genes, low, mid, start, end)) {
+				return true;
+			}
+			if(genes.get(3 * mid) > end) {
+				// The rest starts after the region
+				return false;
+			}
+			low = mid + 1;
+		}
+		return false;
+	}
+
+	/**
+	 * @return Number of bases of the region in exons
+	 */
+	public int exonicBases(String contig, int start, int end) {
+		Contig index = contigs.get(contig);
+		if(index == null) {
+			return 0;
+		}
+		// First exon ending at or after the start
+		int low = 0;
+		int high = index.exonCount;
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			if(index.exons.get(2 * mid + 1) < start) {
+				low = mid + 1;
+			} else {
+				high = mid;
+			}
+		}
+		int bases = 0;
+		for (int i = low; i < index.exonCount && index.exons.get(2 * i) <= end; i++) {
+			bases += Math.min(end, index.exons.get(2 * i + 1)) - Math.max(start, index.exons.get(2 * i)) + 1;
+		}
+		return bases;
+	}
+
+	/**
+	 * Feature of the fragment from the aligned blocks of its mapped mates
+	 */
+	public Feature classify(Hisat3nAlignedFragment fragment) {
+		long [] bases = new long[2];
+		boolean genic = count(fragment.getPair1(), bases);
+		if(fragment.getPair2() != null) {
+			genic = count(fragment.getPair2(), bases) || genic;
+		}
+		long exonic = bases[0];
+		long other = bases[1];
+		if(exonic == 0) {
+			return genic ? Feature.INTRONIC : Feature.INTERGENIC;
+		}
+		// A splice junction shows the RNA was processed, overhangs are unannotated exon ends
+		return other == 0 || fragment.isSpliced() ? Feature.EXONIC : Feature.MIXED;
+	}
+
+	/**
+	 * Adds the exonic and other aligned bases of the record to <code>bases</code>
+	 * @return Whether the record overlaps a gene
+	 */
+	private boolean count(Hisat3nSAMRecord record, long [] bases) {
+		if(!record.isMapped()) {
+			return false;
+		}
+		SAMRecord samRecord = record.getSAMRecord();
+		String contig = samRecord.getReferenceName();
+		boolean genic = false;
+		for (AlignmentBlock block : samRecord.getAlignmentBlocks()) {
+			int start = block.getReferenceStart();
+			int end = start + block.getLength() - 1;
+			int exonic = exonicBases(contig, start, end);
+			bases[0] += exonic;
+			bases[1] += block.getLength() - exonic;
+			genic = genic || exonic > 0 || overlapsGene(contig, start, end);
+		}
+		return genic;
+	}
+
+	/**
+	 * Stores the feature of the fragment on its records, for {@link PartitionedOutputWriter}
+	 */
+	public Feature annotate(Hisat3nAlignedFragment fragment) {
+		Feature feature = classify(fragment);
+		fragment.getPair1().getSAMRecord().setTransientAttribute(FEATURE_ATTRIBUTE, feature);
+		if(fragment.getPair2() != null) {
+			fragment.getPair2().getSAMRecord().setTransientAttribute(FEATURE_ATTRIBUTE, feature);
+		}
+		return feature;
+	}
+
+	public static void main(String[] args) throws IOException {
+		if(args.length < 2) {
+			System.err.println("Usage: AnnotationIndex <annotation.gtf[.gz]> <index" + EXTENSION + ">");
+			System.exit(1);
+		}
+		long start = System.currentTimeMillis();
+		compile(new File(args[0]), new File(args[1]));
+		System.out.println("Compiled " + args[0] + " into " + args[1] + " in " + (System.currentTimeMillis() - start) + "ms");
+	}
+
+}
@@ -0,0 +1,109 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2022 University of Massachusetts Medical School
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package edu.umms.garberlab.slam;
+
+/**
+ * Bulk scans of read bases against the reference base of each read offset, as stored by
+ * {@link Hisat3nSAMRecord}: the reference base where the read mismatches, 0 where it matches.
+ *
+ * These scalar loops are the Java 8 implementation. The jar is multi-release, on Java 17 and
+ * later {@link #get()} returns a subclass reverting conversions with the Vector API when the
+ * incubator module is available (<code>java --add-modules jdk.incubator.vector</code>), see
+ * BaseScannerFactory. BaseScannerBenchmark, with the tests, compares the throughput of both.
+ *
+ * @author mgarber
+ *
+ */
+public class BaseScanner {
+
+	/**
+	 * @return The fastest scanner available on this JVM
+	 */
+	public static BaseScanner get() {
+		return BaseScannerFactory.SCANNER;
+	}
+
+	/**
+	 * Compares <code>length</code> read bases, case insensitively, to the reference bases and
+	 * writes the reference base at the read offsets that mismatch
+	 * @param mismatches Reference base of the mismatches, by read offset
+	 * @return Number of mismatches
+	 */
+	public int markMismatches(byte [] read, int readOffset, byte [] reference, int referenceOffset, int length, byte [] mismatches) {
+		int found = 0;
+		for (int i = 0; i < length; i++) {
+			byte referenceBase = reference[referenceOffset + i];
+			byte readBase = read[readOffset + i];
+			if(readBase >= 'a' && readBase <= 'z') {
+				readBase -= 'a' - 'A';
+			}
+			if(readBase != referenceBase) {
+				mismatches[readOffset + i] = referenceBase;
+				found++;
+			}
+		}
+		return found;
+	}
+
+	/**
+	 * Sets the read base back to <code>referenceBase</code> where the read has <code>convertedBase</code>
+	 * and the reference <code>referenceBase</code>, i.e. C back to T
+	 * @return Number of reverted bases
+	 */
+	public int revert(byte [] read, byte [] mismatches, byte referenceBase, byte convertedBase) {
+		int length = Math.min(read.length, mismatches.length);
+		int reverted = 0;
+		for (int i = 0; i < length; i++) {
+			if(mismatches[i] == referenceBase && read[i] == convertedBase) {
+				read[i] = referenceBase;
+				reverted++;
+			}
+		}
+		return reverted;
+	}
+
+	/**
+	 * Read offsets of the conversions of <code>referenceBase</code> into <code>convertedBase</code>, in order
+	 * @param offsets Filled up to its length
+	 * @return Number of offsets written
+	 */
+	public int findConversions(byte [] read, byte [] mismatches, byte referenceBase, byte convertedBase, int [] offsets) {
+		int length = Math.min(read.length, mismatches.length);
+		int found = 0;
+		for (int i = 0; i < length && found < offsets.length; i++) {
+			if(mismatches[i] == referenceBase && read[i] == convertedBase) {
+				offsets[found++] = i;
+			}
+		}
+		return found;
+	}
+
+	@Override
+	public String toString() {
+		return "scalar";
+	}
+
+}
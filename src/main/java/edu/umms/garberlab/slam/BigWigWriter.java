@@ -0,0 +1,346 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2022 University of Massachusetts Medical School
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package edu.umms.garberlab.slam;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.zip.Deflater;
+
+/**
+ * Writes bigWig files (https://genome.ucsc.edu/goldenPath/help/bigWig.html) as the intervals
+ * come, sorted by contig and position, without going through bedGraph and bedGraphToBigWig.
+ *
+ * Intervals are buffered in primitive arrays and written as zlib compressed sections of
+ * {@value #ITEMS_PER_SECTION} bedGraph items. Only the position of each section is kept
+ * to build the R-tree index when the file is closed. The header, the summary, the contig
+ * B+ tree and the index are written after the sections, at the offsets the header points
+ * to. There are no zoom levels, readers summarize the sections themselves.
+ *
+ * @author mgarber
+ *
+ */
+public class BigWigWriter implements Closeable {
+
+	static final int MAGIC = 0x888FFC26;
+	static final int BPT_MAGIC = 0x78CA8C91;
+	static final int CIR_TREE_MAGIC = 0x2468ACE0;
+	static final int VERSION = 4;
+	static final int HEADER_BYTES = 64;
+	static final int SUMMARY_BYTES = 40;
+	static final int ITEMS_PER_SECTION = 1024;
+	static final int BLOCK_SIZE = 256;
+	private static final int SECTION_HEADER_BYTES = 24;
+	private static final int ITEM_BYTES = 12;
+	private static final byte BEDGRAPH_SECTION = 1;
+
+	private final FileChannel channel;
+	private final String [] contigs;
+	private final int [] contigLengths;
+	private final boolean [] hasData;
+	private final Deflater deflater = new Deflater();
+	private final ByteBuffer section = ByteBuffer.allocate(SECTION_HEADER_BYTES + ITEMS_PER_SECTION * ITEM_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+	private byte [] compressed = new byte[section.capacity() + 64];
+	private long position;
+
+	// Items of the current section
+	private final int [] starts = new int[ITEMS_PER_SECTION];
+	private final int [] ends = new int[ITEMS_PER_SECTION];
+	private final float [] values = new float[ITEMS_PER_SECTION];
+	private int items;
+	private int contig = -1;
+
+	// Written sections, for the index
+	private int sections;
+	private int [] sectionContigs = new int[64];
+	private int [] sectionStarts = new int[64];
+	private int [] sectionEnds = new int[64];
+	private long [] sectionOffsets = new long[64];
+	private long [] sectionSizes = new long[64];
+
+	private long basesCovered;
+	private double minValue = Double.POSITIVE_INFINITY;
+	private double maxValue = Double.NEGATIVE_INFINITY;
+	private double sumData;
+	private double sumSquares;
+
+	/**
+	 * @param contigs Names of the contigs, intervals refer to them by index
+	 * @param contigLengths Lengths of the contigs
+	 */
+	public BigWigWriter(File bigWigFile, String [] contigs, int [] contigLengths) throws IOException {
+		if(contigs.length != contigLengths.length) {
+			throw new IllegalArgumentException("There must be one length per contig");
+		}
+		this.contigs = contigs;
+		this.contigLengths = contigLengths;
+		this.hasData = new boolean[contigs.length];
+		this.channel = FileChannel.open(bigWigFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ);
+		// Header and summary are written last, the number of sections comes before them
+		position = HEADER_BYTES + SUMMARY_BYTES;
+		write(ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN).putLong(0, 0));
+	}
+
+	/**
+	 * Adds the value of the 0-based half open interval [start, end). Intervals must come
+	 * sorted by contig index and position and must not overlap.
+	 */
+	public void add(int contig, int start, int end, float value) throws IOException {
+		if(contig < 0 || contig < this.contig || (contig == this.contig && items > 0 && start < ends[items - 1]) || 
+				contig >= contigs.length || start >= end || end > contigLengths[contig]) {
+			throw new IllegalArgumentException("Interval " + start + "-" + end + " on contig " + contig + 
+					" is not sorted, overlaps the previous one or is not within the contig");
+		}
+		if(contig != this.contig || items == ITEMS_PER_SECTION) {
+			writeSection();
+			this.contig = contig;
+		}
+		hasData[contig] = true;
+		starts[items] = start;
+		ends[items] = end;
+		values[items] = value;
+		items++;
+		basesCovered += end - start;
+		minValue = Math.min(minValue, value);
+		maxValue = Math.max(maxValue, value);
+		sumData += (double) value * (end - start);
+		sumSquares += (double) value * value * (end - start);
+	}
+
+	private void writeSection() throws IOException {
+		if(items == 0) {
+			return;
+		}
+		section.clear();
+		section.putInt(contig).putInt(starts[0]).putInt(ends[items - 1]).putInt(0).putInt(0)
+			.put(BEDGRAPH_SECTION).put((byte) 0).putShort((short) items);
+		for (int i = 0; i < items; i++) {
+			section.putInt(starts[i]).putInt(ends[i]).putFloat(values[i]);
+		}
+		deflater.reset();
+		deflater.setInput(section.array(), 0, section.position());
+		deflater.finish();
+		int size = 0;
+		while (!deflater.finished()) {
+			if(size == compressed.length) {
+				compressed = Arrays.copyOf(compressed, compressed.length * 2);
+			}
+			size += deflater.deflate(compressed, size, compressed.length - size);
+		}
+
+		if(sections == sectionOffsets.length) {
+			int capacity = sections * 2;
+			sectionContigs = Arrays.copyOf(sectionContigs, capacity);
+			sectionStarts = Arrays.copyOf(sectionStarts, capacity);
+			sectionEnds = Arrays.copyOf(sectionEnds, capacity);
+			sectionOffsets = Arrays.copyOf(sectionOffsets, capacity);
+			sectionSizes = Arrays.copyOf(sectionSizes, capacity);
+		}
+		sectionContigs[sections] = contig;
+		sectionStarts[sections] = starts[0];
+		sectionEnds[sections] = ends[items - 1];
+		sectionOffsets[sections] = position;
+		sectionSizes[sections] = size;
+		sections++;
+		write(ByteBuffer.wrap(compressed, 0, size));
+		items = 0;
+	}
+
+	@Override
+	public void close() throws IOException {
+		try {
+			writeSection();
+			long dataOffset = HEADER_BYTES + SUMMARY_BYTES;
+			long chromTreeOffset = position;
+			writeContigTree();
+			long indexOffset = position;
+			writeIndex(chromTreeOffset);
+
+			ByteBuffer start = ByteBuffer.allocate(HEADER_BYTES + SUMMARY_BYTES + 8).order(ByteOrder.LITTLE_ENDIAN);
+			start.putInt(MAGIC).putShort((short) VERSION).putShort((short) 0)
+				.putLong(chromTreeOffset).putLong(dataOffset).putLong(indexOffset)
+				.putShort((short) 0).putShort((short) 0)
+				.putLong(0) // no autoSql
+				.putLong(HEADER_BYTES)
+				.putInt(section.capacity())
+				.putLong(0); // no extension
+			start.putLong(basesCovered)
+				.putDouble(basesCovered == 0 ? 0 : minValue)
+				.putDouble(basesCovered == 0 ? 0 : maxValue)
+				.putDouble(sumData)
+				.putDouble(sumSquares);
+			start.putLong(sections);
+			start.flip();
+			channel.write(start, 0);
+		} finally {
+			deflater.end();
+			channel.close();
+		}
+	}
+
+	/**
+	 * B+ tree of the contigs with data, keyed by name, to their index and length
+	 */
+	private void writeContigTree() throws IOException {
+		int [] withData = new int[contigs.length];
+		int count = 0;
+		int keySize = 1;
+		for (int i = 0; i < contigs.length; i++) {
+			if(hasData[i]) {
+				withData[count++] = i;
+				keySize = Math.max(keySize, contigs[i].getBytes(StandardCharsets.US_ASCII).length);
+			}
+		}
+		final Integer [] sorted = new Integer[count];
+		for (int i = 0; i < count; i++) {
+			sorted[i] = withData[i];
+		}
+		Arrays.sort(sorted, (a, b) -> contigs[a].compareTo(contigs[b]));
+		int blockSize = Math.max(1, Math.min(BLOCK_SIZE, count));
+
+		ByteBuffer header = ByteBuffer.allocate(32).order(ByteOrder.LITTLE_ENDIAN);
+		header.putInt(BPT_MAGIC).putInt(blockSize).putInt(keySize).putInt(8).putLong(count).putLong(0);
+		header.flip();
+		write(header);
+
+		// Non-leaf items are keyed by the first contig under them
+		final byte [] key = new byte[keySize];
+		writeTree(count, blockSize, keySize + 8, keySize, (leaf, first, last, out) -> {
+			Arrays.fill(key, (byte) 0);
+			byte [] name = contigs[sorted[first]].getBytes(StandardCharsets.US_ASCII);
+			System.arraycopy(name, 0, key, 0, name.length);
+			out.put(key);
+			if(leaf) {
+				out.putInt(sorted[first]).putInt(contigLengths[sorted[first]]);
+			}
+		});
+	}
+
+	/**
+	 * R-tree of the sections, by contig and position
+	 * @param endOfData Offset right after the last section
+	 */
+	private void writeIndex(long endOfData) throws IOException {
+		ByteBuffer header = ByteBuffer.allocate(48).order(ByteOrder.LITTLE_ENDIAN);
+		header.putInt(CIR_TREE_MAGIC).putInt(BLOCK_SIZE).putLong(sections)
+			.putInt(sections == 0 ? 0 : sectionContigs[0]).putInt(sections == 0 ? 0 : sectionStarts[0])
+			.putInt(sections == 0 ? 0 : sectionContigs[sections - 1]).putInt(sections == 0 ? 0 : sectionEnds[sections - 1])
+			.putLong(endOfData).putInt(ITEMS_PER_SECTION).putInt(0);
+		header.flip();
+		write(header);
+
+		// Sections are sorted, the bounds of a node item are those of its first and last sections
+		writeTree(sections, BLOCK_SIZE, 32, 16, (leaf, first, last, out) -> {
+			out.putInt(sectionContigs[first]).putInt(sectionStarts[first]);
+			out.putInt(sectionContigs[last]).putInt(sectionEnds[last]);
+			if(leaf) {
+				out.putLong(sectionOffsets[first]).putLong(sectionSizes[first]);
+			}
+		});
+	}
+
+	interface ItemWriter {
+		/**
+		 * Writes an item of a node, without the child offset of non-leaf items
+		 * @param first Index of the first leaf item under this item
+		 * @param last Index of the last leaf item under this item
+		 */
+		void write(boolean leaf, int first, int last, ByteBuffer out);
+	}
+
+	/**
+	 * Writes a tree the way UCSC readers expect it: the root first, then each level
+	 * down to the leaves, every node full but the last of its level. Non-leaf items
+	 * are followed by the file offset of their child node.
+	 * @param leafItemBytes Bytes of a leaf item
+	 * @param nodeItemBytes Bytes of a non-leaf item, without the child offset
+	 */
+	private void writeTree(int itemCount, int blockSize, int leafItemBytes, int nodeItemBytes, ItemWriter itemWriter) throws IOException {
+		// Levels from the leaves (0) up, each item of level l covers span[l] leaf items
+		int levels = 1;
+		while (itemsAt(itemCount, blockSize, levels - 1) > blockSize) {
+			levels++;
+		}
+		long [] nodeBytes = new long[levels];
+		long [] levelOffsets = new long[levels];
+		long offset = position;
+		for (int level = levels - 1; level >= 0; level--) {
+			nodeBytes[level] = 4 + (long) blockSize * (level == 0 ? leafItemBytes : nodeItemBytes + 8);
+			levelOffsets[level] = offset;
+			int items = itemsAt(itemCount, blockSize, level);
+			offset += 4L * nodes(items, blockSize) + (long) items * (level == 0 ? leafItemBytes : nodeItemBytes + 8);
+		}
+
+		ByteBuffer node = ByteBuffer.allocate((int) Math.max(nodeBytes[0], levels > 1 ? nodeBytes[1] : 0)).order(ByteOrder.LITTLE_ENDIAN);
+		for (int level = levels - 1; level >= 0; level--) {
+			long span = 1;
+			for (int l = 0; l < level; l++) {
+				span *= blockSize;
+			}
+			int items = itemsAt(itemCount, blockSize, level);
+			for (int n = 0; n < nodes(items, blockSize); n++) {
+				int count = Math.min(blockSize, items - n * blockSize);
+				node.clear();
+				node.put((byte) (level == 0 ? 1 : 0)).put((byte) 0).putShort((short) count);
+				for (int i = n * blockSize; i < n * blockSize + count; i++) {
+					int first = (int) (i * span);
+					int last = (int) Math.min(itemCount, first + span) - 1;
+					itemWriter.write(level == 0, first, last, node);
+					if(level > 0) {
+						// Child i of the level below, all the nodes before it are full
+						node.putLong(levelOffsets[level - 1] + i * nodeBytes[level - 1]);
+					}
+				}
+				node.flip();
+				write(node);
+			}
+		}
+	}
+
+	private static int itemsAt(int itemCount, int blockSize, int level) {
+		long items = itemCount;
+		for (int l = 0; l < level; l++) {
+			items = (items + blockSize - 1) / blockSize;
+		}
+		return (int) items;
+	}
+
+	private static int nodes(int items, int blockSize) {
+		return Math.max(1, (items + blockSize - 1) / blockSize);
+	}
+
+	private void write(ByteBuffer buffer) throws IOException {
+		while (buffer.hasRemaining()) {
+			position += channel.write(buffer, position);
+		}
+	}
+
+}
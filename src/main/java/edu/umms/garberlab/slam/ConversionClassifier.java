@@ -0,0 +1,105 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2022 University of Massachusetts Medical School
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package edu.umms.garberlab.slam;
+
+/**
+ * Decides whether a fragment goes to the converted or the unconverted output.
+ *
+ * Implementations only see primitive per-fragment values so that the same classifier
+ * works on fragments parsed from the BAM and on rows of a {@link ConversionSidecar}.
+ * Custom implementations can be plugged with <code>-classifier class:&lt;fully qualified name&gt;</code>,
+ * they need a public no argument constructor.
+ *
+ * @author mgarber
+ *
+ */
+public interface ConversionClassifier {
+
+	/**
+	 * The original rule: a fragment is converted if it has at least one conversion
+	 */
+	public static final ConversionClassifier DEFAULT = new ConversionClassifier() {
+		@Override
+		public boolean isConverted(int yf, int zf, int nh, int as, int nm, boolean spliced) {
+			return yf > 0;
+		}
+
+		@Override
+		public boolean needsAlignmentScores() {
+			return false;
+		}
+
+		@Override
+		public String toString() {
+			return "Yf > 0";
+		}
+	};
+
+	/**
+	 * @param yf Conversions in the fragment (sum of the Yf tags of its mates)
+	 * @param zf Convertible but unconverted bases (sum of the Zf tags)
+	 * @param nh Number of alignments of the read (NH)
+	 * @param as Alignment score (sum of the AS tags)
+	 * @param nm Edit distance (sum of the NM tags)
+	 * @param spliced Whether the fragment is spliced
+	 * @return true if the fragment should go to the converted output
+	 */
+	boolean isConverted(int yf, int zf, int nh, int as, int nm, boolean spliced);
+
+	default boolean isConverted(Hisat3nAlignedFragment fragment) {
+		Hisat3nSAMRecord pair1 = fragment.getPair1();
+		Hisat3nSAMRecord pair2 = fragment.getPair2();
+		return isConverted(fragment.getConvertedBases(),
+				fragment.getUnconvertedBases(),
+				pair1.getNhTag(),
+				pair1.getAsTag() + (pair2 == null ? 0 : pair2.getAsTag()),
+				pair1.getNmTag() + (pair2 == null ? 0 : pair2.getNmTag()),
+				fragment.isMapped() && fragment.isSpliced());
+	}
+
+	/**
+	 * @return Whether the classifier reads AS or NM, which are not stored in the sidecar
+	 */
+	default boolean needsAlignmentScores() {
+		return true;
+	}
+
+	/**
+	 * Builds a classifier from the command line specification
+	 * @param specification Either an expression (see {@link ExpressionConversionClassifier}) or class:&lt;name&gt;
+	 */
+	static ConversionClassifier fromSpecification(String specification) {
+		if(specification.startsWith("class:")) {
+			String className = specification.substring("class:".length());
+			try {
+				return (ConversionClassifier) Class.forName(className).getDeclaredConstructor().newInstance();
+			} catch (ReflectiveOperationException | ClassCastException e) {
+				throw new IllegalArgumentException("Could not instantiate conversion classifier " + className, e);
+			}
+		}
+		return ExpressionConversionClassifier.compile(specification);
+	}
+
+}
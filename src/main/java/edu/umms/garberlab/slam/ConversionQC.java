@@ -0,0 +1,238 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2022 University of Massachusetts Medical School
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package edu.umms.garberlab.slam;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+import htsjdk.samtools.AlignmentBlock;
+import htsjdk.samtools.SAMRecord;
+
+/**
+ * Labeling QC gathered while splitting, from the mismatches found for each read:
+ * <ul>
+ * <li>the reference to read base matrix (the 12 mismatch types and the matches) for each YZ strand,</li>
+ * <li>the conversion rate by read cycle and mate (M-bias): converted over convertible
+ * bases, where convertible bases are reference T for + reads and reference A for - reads,</li>
+ * <li>the histogram of conversions (Yf) per read.</li>
+ * </ul>
+ * Counts are plain arrays, accumulators filled separately (i.e. by shards) are added with {@link #merge}.
+ *
+ * @author mgarber
+ *
+ */
+public class ConversionQC {
+
+	public static final String EXTENSION = "_qc.tsv";
+
+	private static final char [] BASES = {'A', 'C', 'G', 'T', 'N'};
+	static final int MAX_CONVERSIONS = 50;
+
+	/** strand, reference base, read base */
+	private final long [][][] baseMatrix = new long[2][5][5];
+	/** mate, cycle */
+	private long [][] convertible = new long[2][0];
+	private long [][] converted = new long[2][0];
+	/** The last bin counts reads with MAX_CONVERSIONS or more */
+	private final long [] conversionsPerRead = new long[MAX_CONVERSIONS + 1];
+
+	public void add(Hisat3nSAMRecord record) {
+		if(!record.isMapped()) {
+			return;
+		}
+		SAMRecord samRecord = record.getSAMRecord();
+		byte [] readBases = samRecord.getReadBases();
+		int length = readBases.length;
+		ensureCycles(length);
+		byte [] referenceAt = record.getMismatchBases();
+
+		int strand = record.getYzTag() == '-' ? 1 : 0;
+		int convertibleBase = strand == 0 ? 3 : 0;
+		int convertedBase = strand == 0 ? 1 : 2;
+		int mate = samRecord.getReadPairedFlag() && samRecord.getSecondOfPairFlag() ? 1 : 0;
+		boolean reverse = samRecord.getReadNegativeStrandFlag();
+		long [][] matrix = baseMatrix[strand];
+		long [] mateConvertible = convertible[mate];
+		long [] mateConverted = converted[mate];
+		for (AlignmentBlock block : samRecord.getAlignmentBlocks()) {
+			int readStart = block.getReadStart() - 1;
+			int readEnd = readStart + block.getLength();
+			for (int position = readStart; position < readEnd; position++) {
+				int read = baseIndex(readBases[position]);
+				int reference = position >= referenceAt.length || referenceAt[position] == 0 ? read : baseIndex(referenceAt[position]);
+				matrix[reference][read]++;
+				if(reference == convertibleBase) {
+					int cycle = reverse ? length - 1 - position : position;
+					mateConvertible[cycle]++;
+					if(read == convertedBase) {
+						mateConverted[cycle]++;
+					}
+				}
+			}
+		}
+		conversionsPerRead[Math.min(record.getYfTag(), MAX_CONVERSIONS)]++;
+	}
+
+	private static int baseIndex(byte base) {
+		switch (base) {
+		case 'A': case 'a': return 0;
+		case 'C': case 'c': return 1;
+		case 'G': case 'g': return 2;
+		case 'T': case 't': return 3;
+		default: return 4;
+		}
+	}
+
+	private void ensureCycles(int cycles) {
+		for (int mate = 0; mate < 2; mate++) {
+			if(convertible[mate].length < cycles) {
+				convertible[mate] = Arrays.copyOf(convertible[mate], cycles);
+				converted[mate] = Arrays.copyOf(converted[mate], cycles);
+			}
+		}
+	}
+
+	/**
+	 * Adds the counts of another accumulator to this one
+	 */
+	public void merge(ConversionQC other) {
+		for (int strand = 0; strand < 2; strand++) {
+			for (int reference = 0; reference < 5; reference++) {
+				for (int read = 0; read < 5; read++) {
+					baseMatrix[strand][reference][read] += other.baseMatrix[strand][reference][read];
+				}
+			}
+		}
+		ensureCycles(other.convertible[0].length);
+		for (int mate = 0; mate < 2; mate++) {
+			for (int cycle = 0; cycle < other.convertible[mate].length; cycle++) {
+				convertible[mate][cycle] += other.convertible[mate][cycle];
+				converted[mate][cycle] += other.converted[mate][cycle];
+			}
+		}
+		for (int i = 0; i < conversionsPerRead.length; i++) {
+			conversionsPerRead[i] += other.conversionsPerRead[i];
+		}
+	}
+
+	public long getBaseCount(char strand, char referenceBase, char readBase) {
+		return baseMatrix[strand == '-' ? 1 : 0][baseIndex((byte) referenceBase)][baseIndex((byte) readBase)];
+	}
+
+	/**
+	 * @param mate 1 or 2
+	 * @param cycle 0-based cycle in the read as sequenced
+	 * @return Converted over convertible bases at that cycle, NaN if none was convertible
+	 */
+	public double getConversionRate(int mate, int cycle) {
+		long bases = cycle < convertible[mate - 1].length ? convertible[mate - 1][cycle] : 0;
+		return bases == 0 ? Double.NaN : converted[mate - 1][cycle] / (double) bases;
+	}
+
+	public long getReadsWithConversions(int conversions) {
+		return conversionsPerRead[Math.min(conversions, MAX_CONVERSIONS)];
+	}
+
+	/**
+	 * Writes the three tables as tab separated sections, each preceded by a # line
+	 */
+	public void write(File reportFile) throws IOException {
+		try (PrintWriter pw = new PrintWriter(Files.newBufferedWriter(reportFile.toPath()))) {
+			pw.println("#base_matrix");
+			pw.println("strand\treference\tread\tcount\tfraction_of_reference");
+			for (int strand = 0; strand < 2; strand++) {
+				for (int reference = 0; reference < 5; reference++) {
+					long total = 0;
+					for (long count : baseMatrix[strand][reference]) {
+						total += count;
+					}
+					for (int read = 0; read < 5; read++) {
+						long count = baseMatrix[strand][reference][read];
+						pw.println((strand == 0 ? '+' : '-') + "\t" + BASES[reference] + "\t" + BASES[read] + "\t" + count + "\t" +
+								(total == 0 ? "NA" : String.format("%.6g", count / (double) total)));
+					}
+				}
+			}
+			pw.println("#mbias");
+			pw.println("mate\tcycle\tconvertible\tconverted\trate");
+			for (int mate = 0; mate < 2; mate++) {
+				for (int cycle = 0; cycle < convertible[mate].length; cycle++) {
+					if(convertible[mate][cycle] > 0) {
+						pw.println((mate + 1) + "\t" + (cycle + 1) + "\t" + convertible[mate][cycle] + "\t" + converted[mate][cycle] + "\t" +
+								String.format("%.6g", converted[mate][cycle] / (double) convertible[mate][cycle]));
+					}
+				}
+			}
+			pw.println("#conversions_per_read");
+			pw.println("conversions\treads");
+			for (int i = 0; i < conversionsPerRead.length; i++) {
+				pw.println((i == MAX_CONVERSIONS ? i + "+" : String.valueOf(i)) + "\t" + conversionsPerRead[i]);
+			}
+		}
+	}
+
+	/**
+	 * Reads back the counts of a report written by {@link #write}
+	 */
+	public static ConversionQC read(File reportFile) throws IOException {
+		ConversionQC qc = new ConversionQC();
+		try (BufferedReader br = Files.newBufferedReader(reportFile.toPath())) {
+			String section = null;
+			String line = null;
+			boolean columnNames = false;
+			while ((line = br.readLine()) != null) {
+				if(line.startsWith("#")) {
+					section = line.substring(1);
+					columnNames = true;
+					continue;
+				}
+				if(columnNames || line.isEmpty()) {
+					columnNames = false;
+					continue;
+				}
+				String [] fields = line.split("\t");
+				if("base_matrix".equals(section)) {
+					qc.baseMatrix[fields[0].equals("-") ? 1 : 0][baseIndex((byte) fields[1].charAt(0))][baseIndex((byte) fields[2].charAt(0))] = Long.parseLong(fields[3]);
+				} else if("mbias".equals(section)) {
+					int mate = Integer.parseInt(fields[0]) - 1;
+					int cycle = Integer.parseInt(fields[1]) - 1;
+					qc.ensureCycles(cycle + 1);
+					qc.convertible[mate][cycle] = Long.parseLong(fields[2]);
+					qc.converted[mate][cycle] = Long.parseLong(fields[3]);
+				} else if("conversions_per_read".equals(section)) {
+					qc.conversionsPerRead[Integer.parseInt(fields[0].replace("+", ""))] = Long.parseLong(fields[1]);
+				} else {
+					throw new IOException("Unexpected line in QC report " + reportFile + ": " + line);
+				}
+			}
+		}
+		return qc;
+	}
+
+}
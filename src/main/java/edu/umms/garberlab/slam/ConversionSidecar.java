@@ -0,0 +1,139 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2022 University of Massachusetts Medical School
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package edu.umms.garberlab.slam;
+
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import htsjdk.samtools.BAMFileSpan;
+import htsjdk.samtools.SAMFileSource;
+import htsjdk.samtools.SAMFileSpan;
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.util.BlockCompressedInputStream;
+
+/**
+ * Reads the per fragment conversion table written by {@link ConversionSidecarWriter}.
+ *
+ * The file is BGZF compressed and made of chunks of up to {@link #CHUNK_ROWS} rows. Each chunk
+ * starts with its row count followed by one array per column, in this order:
+ * read name hash (long), contig index (int), alignment start (int), YZ strand (byte),
+ * Yf (int), Zf (int), NH (int), spliced (byte), virtual offset of the first mate (long)
+ * and virtual offset of the second mate (long, -1 if unpaired).
+ *
+ * @author mgarber
+ *
+ */
+public class ConversionSidecar implements Closeable {
+
+	static final byte [] MAGIC = "SLSC".getBytes(StandardCharsets.US_ASCII);
+	static final int VERSION = 1;
+	static final int CHUNK_ROWS = 1 << 16;
+
+	public static final String EXTENSION = ".slsc";
+
+	private final DataInputStream in;
+
+	public ConversionSidecar(File sidecarFile) throws IOException {
+		in = new DataInputStream(new BlockCompressedInputStream(sidecarFile));
+		byte [] magic = new byte[MAGIC.length];
+		in.readFully(magic);
+		if(!Arrays.equals(MAGIC, magic)) {
+			throw new IOException(sidecarFile.getAbsolutePath() + " is not a SlamSplitter sidecar file");
+		}
+		int version = in.readInt();
+		if(version != VERSION) {
+			throw new IOException("Unsupported sidecar version " + version + " in " + sidecarFile.getAbsolutePath());
+		}
+	}
+
+	/**
+	 * Reads the next chunk of rows into <code>chunk</code>, reusing its arrays
+	 * @return false once there are no more rows
+	 */
+	public boolean readChunk(Chunk chunk) throws IOException {
+		int rows;
+		try {
+			rows = in.readInt();
+		} catch (EOFException e) {
+			return false;
+		}
+		chunk.size = rows;
+		for (int i = 0; i < rows; i++) chunk.nameHash[i] = in.readLong();
+		for (int i = 0; i < rows; i++) chunk.contig[i] = in.readInt();
+		for (int i = 0; i < rows; i++) chunk.start[i] = in.readInt();
+		in.readFully(chunk.strand, 0, rows);
+		for (int i = 0; i < rows; i++) chunk.yf[i] = in.readInt();
+		for (int i = 0; i < rows; i++) chunk.zf[i] = in.readInt();
+		for (int i = 0; i < rows; i++) chunk.nh[i] = in.readInt();
+		in.readFully(chunk.spliced, 0, rows);
+		for (int i = 0; i < rows; i++) chunk.offset1[i] = in.readLong();
+		for (int i = 0; i < rows; i++) chunk.offset2[i] = in.readLong();
+		return true;
+	}
+
+	@Override
+	public void close() throws IOException {
+		in.close();
+	}
+
+	/**
+	 * @return The BGZF virtual offset of a record read with its source attached, -1 if unknown
+	 */
+	static long virtualOffset(SAMRecord record) {
+		SAMFileSource source = record.getFileSource();
+		if(source == null) {
+			return -1;
+		}
+		SAMFileSpan span = source.getFilePointer();
+		return span instanceof BAMFileSpan && !((BAMFileSpan) span).isEmpty() ? ((BAMFileSpan) span).getFirstOffset() : -1;
+	}
+
+	/**
+	 * Columns of a block of sidecar rows
+	 */
+	public static class Chunk {
+		int size;
+		final long [] nameHash = new long[CHUNK_ROWS];
+		final int [] contig = new int[CHUNK_ROWS];
+		final int [] start = new int[CHUNK_ROWS];
+		final byte [] strand = new byte[CHUNK_ROWS];
+		final int [] yf = new int[CHUNK_ROWS];
+		final int [] zf = new int[CHUNK_ROWS];
+		final int [] nh = new int[CHUNK_ROWS];
+		final byte [] spliced = new byte[CHUNK_ROWS];
+		final long [] offset1 = new long[CHUNK_ROWS];
+		final long [] offset2 = new long[CHUNK_ROWS];
+
+		public int size() {
+			return size;
+		}
+	}
+
+}
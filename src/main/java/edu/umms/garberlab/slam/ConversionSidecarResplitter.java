@@ -0,0 +1,130 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2022 University of Massachusetts Medical School
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package edu.umms.garberlab.slam;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+
+import htsjdk.samtools.BAMRecordCodec;
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.util.BlockCompressedInputStream;
+
+/**
+ * Splits a BAM again using the fragment table written on a previous run
+ * (see {@link ConversionSidecarWriter}). Routing is decided from the table
+ * alone and the records are fetched by their virtual offset, so no CIGAR or
+ * MD tag is parsed unless conversions have to be reverted. The table has no
+ * AS or NM so classifiers using them cannot be applied.
+ * 
+ * The outputs, FASTQ files, tags and classifier are those of the splitter
+ * writer the records are routed to.
+ *
+ * @author mgarber
+ *
+ */
+public class ConversionSidecarResplitter implements Closeable {
+
+	private final Hisat3nSplitterWriter writer;
+	private final BlockCompressedInputStream bamStream;
+	private final BAMRecordCodec codec;
+
+	private long fragments;
+	private long skippedFragments;
+
+	/**
+	 * @param inputBam The BAM file the sidecar was written from
+	 * @param header Its header
+	 * @param writer Where the records are routed, it is closed with the re-splitter
+	 */
+	public ConversionSidecarResplitter(File inputBam, SAMFileHeader header, Hisat3nSplitterWriter writer) throws IOException {
+		this.writer = writer;
+		this.bamStream = new BlockCompressedInputStream(inputBam);
+		this.codec = new BAMRecordCodec(header);
+		codec.setInputStream(bamStream, inputBam.getAbsolutePath());
+	}
+
+	/**
+	 * Routes every fragment of the sidecar
+	 * @return The number of fragments routed
+	 */
+	public long resplit(ConversionSidecar sidecar) throws IOException {
+		ConversionClassifier classifier = writer.getClassifier();
+		if(classifier.needsAlignmentScores()) {
+			throw new IllegalArgumentException("The sidecar does not store AS or NM, the classifier cannot use them: " + classifier);
+		}
+		ConversionSidecar.Chunk chunk = new ConversionSidecar.Chunk();
+		while (sidecar.readChunk(chunk)) {
+			for (int i = 0; i < chunk.size(); i++) {
+				if(chunk.offset1[i] < 0) {
+					skippedFragments++;
+					continue;
+				}
+				boolean converted = classifier.isConverted(chunk.yf[i], chunk.zf[i], chunk.nh[i], 0, 0, chunk.spliced[i] != 0);
+				writer.getMetrics().countFragment(converted, chunk.contig[i] >= 0, chunk.spliced[i] != 0);
+				writer.route(readAt(chunk.offset1[i]), converted);
+				if(chunk.offset2[i] >= 0) {
+					writer.route(readAt(chunk.offset2[i]), converted);
+				}
+				fragments++;
+			}
+		}
+		if(skippedFragments > 0) {
+			System.err.println("Warning: " + skippedFragments + " fragments had no BAM offset in the sidecar and were not written");
+		}
+		return fragments;
+	}
+
+	/**
+	 * @return The fragments of the sidecar without a BAM offset, they are not written
+	 */
+	public long getSkippedFragments() {
+		return skippedFragments;
+	}
+
+	public SplitterMetrics getMetrics() {
+		return writer.getMetrics();
+	}
+
+	@Override
+	public void close() throws IOException {
+		try {
+			writer.close();
+		} finally {
+			bamStream.close();
+		}
+	}
+
+	private SAMRecord readAt(long virtualOffset) throws IOException {
+		bamStream.seek(virtualOffset);
+		SAMRecord record = codec.decode();
+		if(record == null) {
+			throw new IOException("No record at virtual offset " + virtualOffset + ", was the sidecar written for this BAM?");
+		}
+		return record;
+	}
+
+}
@@ -0,0 +1,131 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2022 University of Massachusetts Medical School
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package edu.umms.garberlab.slam;
+
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.util.BlockCompressedOutputStream;
+
+/**
+ * Writes one row per fragment with what is needed to route it again without
+ * walking its CIGAR and MD tags. See {@link ConversionSidecar} for the layout.
+ *
+ * @author mgarber
+ *
+ */
+public class ConversionSidecarWriter implements Closeable {
+
+	private final DataOutputStream out;
+	private final ConversionSidecar.Chunk chunk = new ConversionSidecar.Chunk();
+	private long rows;
+	private long rowsWithoutOffset;
+
+	public ConversionSidecarWriter(File sidecarFile) throws IOException {
+		out = new DataOutputStream(new BlockCompressedOutputStream(sidecarFile));
+		out.write(ConversionSidecar.MAGIC);
+		out.writeInt(ConversionSidecar.VERSION);
+	}
+
+	public void add(Hisat3nAlignedFragment fragment) {
+		Hisat3nSAMRecord pair1 = fragment.getPair1();
+		SAMRecord record = pair1.getSAMRecord();
+		int i = chunk.size;
+		chunk.nameHash[i] = Hisat3nSplitterWriter.readNameHash(record.getReadName());
+		chunk.contig[i] = record.getReferenceIndex();
+		chunk.start[i] = record.getAlignmentStart();
+		chunk.strand[i] = (byte) pair1.getYzTag();
+		chunk.yf[i] = fragment.getConvertedBases();
+		chunk.zf[i] = fragment.getUnconvertedBases();
+		chunk.nh[i] = pair1.getNhTag();
+		chunk.spliced[i] = (byte) (fragment.isMapped() && fragment.isSpliced() ? 1 : 0);
+		chunk.offset1[i] = ConversionSidecar.virtualOffset(record);
+		chunk.offset2[i] = fragment.isUnpaired() ? -1 : ConversionSidecar.virtualOffset(fragment.getPair2().getSAMRecord());
+		if(chunk.offset1[i] < 0 || (!fragment.isUnpaired() && chunk.offset2[i] < 0)) {
+			rowsWithoutOffset++;
+		}
+		chunk.size++;
+		rows++;
+		if(chunk.size == ConversionSidecar.CHUNK_ROWS) {
+			flushChunk();
+		}
+	}
+
+	/**
+	 * Appends all the rows of another sidecar, i.e. the one of a shard
+	 */
+	public void addAll(ConversionSidecar sidecar) throws IOException {
+		flushChunk();
+		ConversionSidecar.Chunk shardChunk = new ConversionSidecar.Chunk();
+		while (sidecar.readChunk(shardChunk)) {
+			writeChunk(shardChunk);
+			rows += shardChunk.size();
+		}
+	}
+
+	public long getRows() {
+		return rows;
+	}
+
+	@Override
+	public void close() throws IOException {
+		flushChunk();
+		out.close();
+		if(rowsWithoutOffset > 0) {
+			System.err.println("Warning: " + rowsWithoutOffset + " sidecar rows have no BAM offset and cannot be re-split from the sidecar");
+		}
+	}
+
+	private void flushChunk() {
+		if(chunk.size == 0) {
+			return;
+		}
+		writeChunk(chunk);
+		chunk.size = 0;
+	}
+
+	private void writeChunk(ConversionSidecar.Chunk chunk) {
+		int rows = chunk.size;
+		try {
+			out.writeInt(rows);
+			for (int i = 0; i < rows; i++) out.writeLong(chunk.nameHash[i]);
+			for (int i = 0; i < rows; i++) out.writeInt(chunk.contig[i]);
+			for (int i = 0; i < rows; i++) out.writeInt(chunk.start[i]);
+			out.write(chunk.strand, 0, rows);
+			for (int i = 0; i < rows; i++) out.writeInt(chunk.yf[i]);
+			for (int i = 0; i < rows; i++) out.writeInt(chunk.zf[i]);
+			for (int i = 0; i < rows; i++) out.writeInt(chunk.nh[i]);
+			out.write(chunk.spliced, 0, rows);
+			for (int i = 0; i < rows; i++) out.writeLong(chunk.offset1[i]);
+			for (int i = 0; i < rows; i++) out.writeLong(chunk.offset2[i]);
+		} catch (IOException e) {
+			throw new RuntimeException("Could not write sidecar", e);
+		}
+	}
+
+}
@@ -0,0 +1,270 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2022 University of Massachusetts Medical School
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package edu.umms.garberlab.slam;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Reference positions where the fragments of the converted output were converted, with the
+ * number of such fragments, per contig and strand. Written by the splitter with -conversionSites
+ * (see {@link ConversionSiteIndexWriter}).
+ *
+ * Like a roaring bitmap, positions are grouped in containers of 2^16 bases keyed by their
+ * high bits. A container stores, for each site, the delta of its low bits to the previous
+ * site and its count, both as variable length integers. A directory at the end of the
+ * file gives the offset of each container so a region query only reads the containers it
+ * overlaps.
+ *
+ * <pre>
+ * java -cp slamsplitter.jar edu.umms.garberlab.slam.ConversionSiteIndex prefix_conversions.slci chr1:10000-20000
+ * </pre>
+ *
+ * @author mgarber
+ *
+ */
+public class ConversionSiteIndex implements Closeable {
+
+	static final byte [] MAGIC = "SLCI".getBytes(StandardCharsets.US_ASCII);
+	static final int VERSION = 1;
+	static final int CONTAINER_BITS = 16;
+	static final int CONTAINER_MASK = (1 << CONTAINER_BITS) - 1;
+
+	public static final String EXTENSION = "_conversions.slci";
+
+	private final FileChannel channel;
+	private final Map<String, Integer> contigs = new HashMap<String, Integer>();
+	private final int [] tableStart;
+	private final int [] keys;
+	private final long [] offsets;
+	private final int [] lengths;
+
+	public ConversionSiteIndex(File indexFile) throws IOException {
+		channel = FileChannel.open(indexFile.toPath(), StandardOpenOption.READ);
+		ByteBuffer magicAndVersion = read(0, MAGIC.length + 4);
+		byte [] magic = new byte[MAGIC.length];
+		magicAndVersion.get(magic);
+		if(!Arrays.equals(MAGIC, magic)) {
+			throw new IOException(indexFile.getAbsolutePath() + " is not a conversion site index");
+		}
+		int version = magicAndVersion.getInt();
+		if(version != VERSION) {
+			throw new IOException("Unsupported conversion site index version " + version + " in " + indexFile.getAbsolutePath());
+		}
+
+		long directoryOffset = read(channel.size() - 8, 8).getLong();
+		ByteBuffer directory = read(directoryOffset, (int) (channel.size() - 8 - directoryOffset));
+		int containers = directory.getInt();
+		keys = new int[containers];
+		offsets = new long[containers];
+		lengths = new int[containers];
+		int [] tables = new int[containers];
+		for (int i = 0; i < containers; i++) {
+			tables[i] = directory.getInt();
+			keys[i] = directory.getInt();
+			offsets[i] = directory.getLong();
+			lengths[i] = directory.getInt();
+			directory.getInt(); // sites
+		}
+
+		// The contig names go up to the first container
+		int headerLength = (int) (containers > 0 ? offsets[0] : directoryOffset) - magicAndVersion.limit();
+		ByteBuffer header = read(magicAndVersion.limit(), headerLength);
+		int contigCount = header.getInt();
+		for (int i = 0; i < contigCount; i++) {
+			byte [] name = new byte[header.getShort()];
+			header.get(name);
+			contigs.put(new String(name, StandardCharsets.US_ASCII), i);
+		}
+
+		tableStart = new int[contigCount * 2 + 1];
+		// Containers are written by table then key
+		int c = 0;
+		for (int table = 0; table <= contigCount * 2; table++) {
+			while (c < containers && tables[c] < table) {
+				c++;
+			}
+			tableStart[table] = c;
+		}
+	}
+
+	/**
+	 * Sites of both strands overlapping a region, sorted by position
+	 * @param contig Contig name as in the alignment header
+	 * @param start 1-based first position
+	 * @param end 1-based last position, inclusive
+	 */
+	public List<Site> query(String contig, int start, int end) throws IOException {
+		List<Site> sites = new ArrayList<Site>();
+		Integer contigIndex = contigs.get(contig);
+		if(contigIndex == null) {
+			return sites;
+		}
+		for (int strand = 0; strand < 2; strand++) {
+			int table = contigIndex * 2 + strand;
+			int c = Arrays.binarySearch(keys, tableStart[table], tableStart[table + 1], start >>> CONTAINER_BITS);
+			if(c < 0) {
+				c = -c - 1;
+			}
+			for (; c < tableStart[table + 1] && keys[c] <= end >>> CONTAINER_BITS; c++) {
+				ByteBuffer container = read(offsets[c], lengths[c]);
+				int high = keys[c] << CONTAINER_BITS;
+				int low = 0;
+				while (container.hasRemaining()) {
+					low += readVarint(container);
+					int count = readVarint(container);
+					int position = high | low;
+					if(position >= start && position <= end) {
+						sites.add(new Site(contig, position, strand == 0 ? '+' : '-', count));
+					}
+				}
+			}
+		}
+		sites.sort((s1, s2) -> s1.position != s2.position ? Integer.compare(s1.position, s2.position) : Character.compare(s1.strand, s2.strand));
+		return sites;
+	}
+
+	@Override
+	public void close() throws IOException {
+		channel.close();
+	}
+
+	private ByteBuffer read(long position, int length) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(length);
+		while (buffer.hasRemaining()) {
+			if(channel.read(buffer, position + buffer.position()) < 0) {
+				throw new EOFException("Truncated conversion site index");
+			}
+		}
+		buffer.flip();
+		return buffer;
+	}
+
+	static void writeVarint(ByteArrayOutputStream out, int value) {
+		while ((value & ~0x7f) != 0) {
+			out.write((value & 0x7f) | 0x80);
+			value >>>= 7;
+		}
+		out.write(value);
+	}
+
+	static int readVarint(ByteBuffer in) {
+		int value = 0;
+		int shift = 0;
+		byte b;
+		do {
+			b = in.get();
+			value |= (b & 0x7f) << shift;
+			shift += 7;
+		} while ((b & 0x80) != 0);
+		return value;
+	}
+
+	/**
+	 * A converted reference position
+	 */
+	public static class Site {
+		private final String contig;
+		private final int position;
+		private final char strand;
+		private final int count;
+
+		Site(String contig, int position, char strand, int count) {
+			this.contig = contig;
+			this.position = position;
+			this.strand = strand;
+			this.count = count;
+		}
+
+		public String getContig() {
+			return contig;
+		}
+
+		/**
+		 * @return 1-based reference position
+		 */
+		public int getPosition() {
+			return position;
+		}
+
+		/**
+		 * @return + for T&gt;C conversions, - for A&gt;G (T&gt;C on the reverse strand)
+		 */
+		public char getStrand() {
+			return strand;
+		}
+
+		/**
+		 * @return Number of fragments of the converted output with a conversion at the site
+		 */
+		public int getCount() {
+			return count;
+		}
+
+		@Override
+		public String toString() {
+			return contig + "\t" + position + "\t" + strand + "\t" + count;
+		}
+	}
+
+	public static void main(String[] args) throws IOException {
+		if(args.length < 2) {
+			System.err.println("Usage: ConversionSiteIndex <index" + EXTENSION + "> <contig[:start-end]> [minCount]");
+			System.exit(1);
+		}
+		String region = args[1];
+		String contig = region;
+		int start = 1;
+		int end = Integer.MAX_VALUE;
+		int colon = region.lastIndexOf(':');
+		if(colon > 0) {
+			contig = region.substring(0, colon);
+			String [] range = region.substring(colon + 1).replace(",", "").split("-");
+			start = Integer.parseInt(range[0]);
+			end = range.length > 1 ? Integer.parseInt(range[1]) : start;
+		}
+		int minCount = args.length > 2 ? Integer.parseInt(args[2]) : 1;
+		try (ConversionSiteIndex index = new ConversionSiteIndex(new File(args[0]))) {
+			for (Site site : index.query(contig, start, end)) {
+				if(site.getCount() >= minCount) {
+					System.out.println(site);
+				}
+			}
+		}
+	}
+
+}
@@ -0,0 +1,249 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2022 University of Massachusetts Medical School
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package edu.umms.garberlab.slam;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+
+import htsjdk.samtools.SAMSequenceDictionary;
+import htsjdk.samtools.SAMSequenceRecord;
+
+/**
+ * Counts the fragments converted at each reference position and strand while splitting,
+ * and writes them as a {@link ConversionSiteIndex} on close. The splitter only adds the
+ * fragments routed to the converted output, so sites of reads below the classifier
+ * threshold, i.e. sequencing errors, are left out.
+ *
+ * Counts are kept in one open addressing table per contig and strand, so memory grows
+ * with the number of distinct sites rather than with the number of conversions.
+ *
+ * @author mgarber
+ *
+ */
+public class ConversionSiteIndexWriter implements Closeable {
+
+	private final File indexFile;
+	private final SAMSequenceDictionary dictionary;
+	private final SiteCounts [] counts;
+
+	public ConversionSiteIndexWriter(File indexFile, SAMSequenceDictionary dictionary) {
+		this.indexFile = indexFile;
+		this.dictionary = dictionary;
+		this.counts = new SiteCounts[dictionary.size() * 2];
+	}
+
+	/**
+	 * Counts the conversions of a mapped record, before they are reverted
+	 */
+	public void add(Hisat3nSAMRecord record) {
+		add(record, null);
+	}
+
+	/**
+	 * Counts the conversions of the mapped records of a fragment, before they are reverted. A site
+	 * where the mates overlap is counted once.
+	 */
+	public void add(Hisat3nAlignedFragment fragment) {
+		int [] counted = add(fragment.getPair1(), null);
+		if(!fragment.isUnpaired()) {
+			boolean sameTable = fragment.getPair1().isMapped() && fragment.getPair2().isMapped() && 
+					table(fragment.getPair1()) == table(fragment.getPair2());
+			add(fragment.getPair2(), sameTable ? counted : null);
+		}
+	}
+
+	/**
+	 * @param skip Sites already counted for the fragment, or null
+	 * @return The sites counted
+	 */
+	private int [] add(Hisat3nSAMRecord record, int [] skip) {
+		if(!record.isMapped() || record.getYfTag() == 0) {
+			return null;
+		}
+		int table = table(record);
+		int [] positions = record.getConversionReferencePositions();
+		for (int position : positions) {
+			// 0 is returned for read positions that do not align, i.e. inside an insertion
+			if(position > 0 && !contains(skip, position)) {
+				add(table, position, 1);
+			}
+		}
+		return positions;
+	}
+
+	private static int table(Hisat3nSAMRecord record) {
+		return record.getSAMRecord().getReferenceIndex() * 2 + (record.getYzTag() == '-' ? 1 : 0);
+	}
+
+	/**
+	 * Reads have few conversions, a scan is enough
+	 */
+	private static boolean contains(int [] positions, int position) {
+		if(positions != null) {
+			for (int p : positions) {
+				if(p == position) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Adds the counts of another index, i.e. the one of a shard
+	 */
+	public void addAll(ConversionSiteIndex index) throws IOException {
+		for (SAMSequenceRecord contig : dictionary.getSequences()) {
+			List<ConversionSiteIndex.Site> sites = index.query(contig.getSequenceName(), 1, Integer.MAX_VALUE);
+			for (ConversionSiteIndex.Site site : sites) {
+				add(contig.getSequenceIndex() * 2 + (site.getStrand() == '-' ? 1 : 0), site.getPosition(), site.getCount());
+			}
+		}
+	}
+
+	private void add(int table, int position, int count) {
+		if(counts[table] == null) {
+			counts[table] = new SiteCounts();
+		}
+		counts[table].add(position, count);
+	}
+
+	@Override
+	public void close() throws IOException {
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(indexFile), 1 << 16))) {
+			out.write(ConversionSiteIndex.MAGIC);
+			out.writeInt(ConversionSiteIndex.VERSION);
+			out.writeInt(dictionary.size());
+			for (SAMSequenceRecord contig : dictionary.getSequences()) {
+				byte [] name = contig.getSequenceName().getBytes(StandardCharsets.US_ASCII);
+				out.writeShort(name.length);
+				out.write(name);
+			}
+
+			long offset = out.size();
+			ByteArrayOutputStream directoryBytes = new ByteArrayOutputStream();
+			DataOutputStream directory = new DataOutputStream(directoryBytes);
+			int containers = 0;
+			ByteArrayOutputStream container = new ByteArrayOutputStream();
+			for (int table = 0; table < counts.length; table++) {
+				if(counts[table] == null) {
+					continue;
+				}
+				long [] sites = counts[table].sorted();
+				int i = 0;
+				while (i < sites.length) {
+					int key = (int) (sites[i] >>> 32) >>> ConversionSiteIndex.CONTAINER_BITS;
+					int end = i;
+					while (end < sites.length && (int) (sites[end] >>> 32) >>> ConversionSiteIndex.CONTAINER_BITS == key) {
+						end++;
+					}
+					container.reset();
+					int previous = 0;
+					for (int s = i; s < end; s++) {
+						int low = (int) (sites[s] >>> 32) & ConversionSiteIndex.CONTAINER_MASK;
+						ConversionSiteIndex.writeVarint(container, low - previous);
+						ConversionSiteIndex.writeVarint(container, (int) sites[s]);
+						previous = low;
+					}
+					directory.writeInt(table);
+					directory.writeInt(key);
+					directory.writeLong(offset);
+					directory.writeInt(container.size());
+					directory.writeInt(end - i);
+					container.writeTo(out);
+					offset += container.size();
+					containers++;
+					i = end;
+				}
+			}
+			out.writeInt(containers);
+			directoryBytes.writeTo(out);
+			out.writeLong(offset);
+		}
+	}
+
+	/**
+	 * Open addressing position to count table
+	 */
+	private static final class SiteCounts {
+		private int [] positions = new int[1 << 10];
+		private int [] counts = new int[1 << 10];
+		private int size;
+
+		void add(int position, int count) {
+			if((size + 1) * 2 > positions.length) {
+				grow();
+			}
+			int mask = positions.length - 1;
+			int hash = position * 0x9E3779B9;
+			int slot = (hash ^ (hash >>> 16)) & mask;
+			while (positions[slot] != 0 && positions[slot] != position) {
+				slot = (slot + 1) & mask;
+			}
+			if(positions[slot] == 0) {
+				positions[slot] = position;
+				size++;
+			}
+			counts[slot] += count;
+		}
+
+		private void grow() {
+			int [] oldPositions = positions;
+			int [] oldCounts = counts;
+			positions = new int[oldPositions.length * 2];
+			counts = new int[oldCounts.length * 2];
+			size = 0;
+			for (int i = 0; i < oldPositions.length; i++) {
+				if(oldPositions[i] != 0) {
+					add(oldPositions[i], oldCounts[i]);
+				}
+			}
+		}
+
+		/**
+		 * @return position &lt;&lt; 32 | count, sorted by position
+		 */
+		long [] sorted() {
+			long [] sites = new long[size];
+			int n = 0;
+			for (int i = 0; i < positions.length; i++) {
+				if(positions[i] != 0) {
+					sites[n++] = ((long) positions[i] << 32) | (counts[i] & 0xffffffffL);
+				}
+			}
+			Arrays.sort(sites);
+			return sites;
+		}
+	}
+
+}
@@ -0,0 +1,345 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2022 University of Massachusetts Medical School
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package edu.umms.garberlab.slam;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+import htsjdk.samtools.AlignmentBlock;
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SAMSequenceDictionary;
+import htsjdk.samtools.SamReader;
+import htsjdk.samtools.SamReaderFactory;
+
+/**
+ * Positions whose conversions are SNPs rather than labeling: T>C for reads of the + strand
+ * (YZ tag), A>G for those of the - strand. Without a genotype for the cells, they are found
+ * as the positions where most of the covering reads are converted, in an unlabeled control
+ * or in the sample itself, and their conversions are then not counted.
+ *
+ * @author mgarber
+ *
+ */
+public class ConversionSnpMask {
+
+	public static final String EXTENSION = "_snps.bed";
+	public static final int DEFAULT_MIN_COVERAGE = 10;
+	public static final double DEFAULT_MIN_FREQUENCY = 0.8;
+
+	private static final int WINDOW = 1 << 16;
+
+	private final SAMSequenceDictionary dictionary;
+	/** Sorted 1-based positions, by contig * 2 + strand (0 for +, 1 for -) */
+	private final int [][] positions;
+	private final int [] sizes;
+
+	ConversionSnpMask(SAMSequenceDictionary dictionary) {
+		this.dictionary = dictionary;
+		positions = new int[dictionary.size() * 2][];
+		sizes = new int[positions.length];
+	}
+
+	/**
+	 * Finds the SNPs of a coordinate sorted BAM
+	 * @param dictionary Contigs of the input that is masked, the BAM must have the same
+	 * @param minCoverage Fewest reads of the strand covering the reference T (A for -) to call a SNP
+	 * @param minFrequency Smallest fraction of them that are converted at the position
+	 */
+	public static ConversionSnpMask discover(File bam, SamReaderFactory readerFactory, SAMSequenceDictionary dictionary, int minCoverage, double minFrequency) throws IOException {
+		try (SamReader reader = readerFactory.open(bam)) {
+			if(reader.getFileHeader().getSortOrder() != SAMFileHeader.SortOrder.coordinate) {
+				throw new IllegalArgumentException("Finding the SNPs of " + bam + " requires it to be coordinate sorted");
+			}
+			if(!reader.getFileHeader().getSequenceDictionary().isSameDictionary(dictionary)) {
+				throw new IllegalArgumentException(bam + " was not aligned to the same contigs as the input, its SNPs cannot be masked");
+			}
+			return discover(reader, dictionary, minCoverage, minFrequency);
+		}
+	}
+
+	/**
+	 * Finds the SNPs of coordinate sorted records, the counts are only kept for a window behind the
+	 * current record
+	 */
+	static ConversionSnpMask discover(Iterable<SAMRecord> records, SAMSequenceDictionary dictionary, int minCoverage, double minFrequency) {
+		Discovery discovery = new Discovery(new ConversionSnpMask(dictionary), minCoverage, minFrequency);
+		for (SAMRecord record : records) {
+			discovery.add(record);
+		}
+		discovery.flush(Integer.MAX_VALUE);
+		return discovery.mask;
+	}
+
+	/**
+	 * Reads the mask from a BED file, i.e. the one written by {@link #write}. Every base of
+	 * each interval is masked, for the strand of the sixth column or both strands without one.
+	 */
+	public static ConversionSnpMask fromBed(File bedFile, SAMSequenceDictionary dictionary) throws IOException {
+		ConversionSnpMask mask = new ConversionSnpMask(dictionary);
+		int skippedContigs = 0;
+		try (BufferedReader br = Files.newBufferedReader(bedFile.toPath())) {
+			String line = null;
+			while ((line = br.readLine()) != null) {
+				if(line.isEmpty() || line.startsWith("#") || line.startsWith("track") || line.startsWith("browser")) {
+					continue;
+				}
+				String [] fields = line.split("\t");
+				if(fields.length < 3) {
+					throw new IOException("BED line has fewer than three columns: " + line);
+				}
+				int contig = dictionary.getSequenceIndex(fields[0]);
+				if(contig < 0) {
+					skippedContigs++;
+					continue;
+				}
+				char strand = fields.length > 5 ? fields[5].charAt(0) : '.';
+				for (int position = Integer.parseInt(fields[1]) + 1; position <= Integer.parseInt(fields[2]); position++) {
+					if(strand != '-') {
+						mask.add(contig, '+', position);
+					}
+					if(strand != '+') {
+						mask.add(contig, '-', position);
+					}
+				}
+			}
+		}
+		if(skippedContigs > 0) {
+			System.err.println("Warning: " + skippedContigs + " SNPs are on contigs absent from the alignment header and were ignored");
+		}
+		for (int table = 0; table < mask.positions.length; table++) {
+			if(mask.positions[table] != null) {
+				Arrays.sort(mask.positions[table], 0, mask.sizes[table]);
+			}
+		}
+		return mask;
+	}
+
+	/**
+	 * Writes the SNPs as BED, one line per position with the strand of the reads it is masked for
+	 */
+	public void write(File bedFile) throws IOException {
+		try (BufferedWriter bw = Files.newBufferedWriter(bedFile.toPath())) {
+			for (int table = 0; table < positions.length; table++) {
+				String contig = dictionary.getSequence(table / 2).getSequenceName();
+				char strand = table % 2 == 0 ? '+' : '-';
+				for (int i = 0; i < sizes[table]; i++) {
+					int position = positions[table][i];
+					bw.write(contig + "\t" + (position - 1) + "\t" + position + "\t" + (strand == '+' ? "T>C" : "A>G") + "\t0\t" + strand);
+					bw.newLine();
+				}
+			}
+		}
+	}
+
+	public int size() {
+		int size = 0;
+		for (int tableSize : sizes) {
+			size += tableSize;
+		}
+		return size;
+	}
+
+	boolean contains(int contig, char strand, int position) {
+		int table = table(contig, strand);
+		return positions[table] != null && Arrays.binarySearch(positions[table], 0, sizes[table], position) >= 0;
+	}
+
+	/**
+	 * Stops counting the bases of the record at the SNPs: conversions there no longer count in
+	 * Yf and are no longer mismatches, so they are neither reverted nor tagged, and the
+	 * unconverted bases there no longer count in Zf. The Yf and Zf tags of the SAMRecord are
+	 * updated too.
+	 */
+	void mask(Hisat3nSAMRecord record) {
+		SAMRecord samRecord = record.getSAMRecord();
+		if(!record.isMapped() || samRecord.getReadLength() == 0) {
+			return;
+		}
+		char strand = record.getYzTag();
+		int table = table(samRecord.getReferenceIndex(), strand);
+		if(positions[table] == null) {
+			return;
+		}
+		byte convertible = (byte) ('+' == strand ? 'T' : 'A');
+		byte converted = (byte) ('+' == strand ? 'C' : 'G');
+		byte [] readBases = samRecord.getReadBases();
+		byte [] mismatchBases = null;
+		int yf = record.getYfTag();
+		int zf = record.getZfTag();
+		for (AlignmentBlock block : samRecord.getAlignmentBlocks()) {
+			int i = Arrays.binarySearch(positions[table], 0, sizes[table], block.getReferenceStart());
+			for (i = i < 0 ? -i - 1 : i; i < sizes[table] && positions[table][i] < block.getReferenceStart() + block.getLength(); i++) {
+				if(mismatchBases == null) {
+					mismatchBases = record.getMismatchBases();
+				}
+				int offset = block.getReadStart() - 1 + positions[table][i] - block.getReferenceStart();
+				byte reference = mismatchBases[offset] != 0 ? mismatchBases[offset] : readBases[offset];
+				if(reference != convertible) {
+					continue;
+				}
+				if(readBases[offset] == converted) {
+					mismatchBases[offset] = 0;
+					yf = Math.max(0, yf - 1);
+				} else if(readBases[offset] == convertible) {
+					zf = Math.max(0, zf - 1);
+				}
+			}
+		}
+		// The written tags agree with the classification
+		if(yf != record.getYfTag()) {
+			record.setYfTag(yf);
+			samRecord.setAttribute("Yf", yf);
+		}
+		if(zf != record.getZfTag()) {
+			record.setZfTag(zf);
+			samRecord.setAttribute("Zf", zf);
+		}
+	}
+
+	private void add(int contig, char strand, int position) {
+		int table = table(contig, strand);
+		if(positions[table] == null) {
+			positions[table] = new int[16];
+		} else if(sizes[table] == positions[table].length) {
+			positions[table] = Arrays.copyOf(positions[table], positions[table].length * 2);
+		}
+		positions[table][sizes[table]++] = position;
+	}
+
+	private static int table(int contig, char strand) {
+		return contig * 2 + ('-' == strand ? 1 : 0);
+	}
+
+	/**
+	 * Counts the reads covering the convertible bases and the converted ones, per strand, in
+	 * windows starting at the first position not yet called
+	 */
+	private static class Discovery {
+		final ConversionSnpMask mask;
+		final int minCoverage;
+		final double minFrequency;
+
+		int contig = -1;
+		/** 1-based position of the first element of the windows */
+		int windowStart = 1;
+		int [][] coverage = new int[2][WINDOW];
+		int [][] conversions = new int[2][WINDOW];
+
+		Discovery(ConversionSnpMask mask, int minCoverage, double minFrequency) {
+			this.mask = mask;
+			this.minCoverage = minCoverage;
+			this.minFrequency = minFrequency;
+		}
+
+		void add(SAMRecord samRecord) {
+			if(samRecord.getReadUnmappedFlag() || samRecord.isSecondaryOrSupplementary() || samRecord.getDuplicateReadFlag() ||
+					samRecord.getReadLength() == 0) {
+				return;
+			}
+			if(samRecord.getReferenceIndex() != contig) {
+				flush(Integer.MAX_VALUE);
+				contig = samRecord.getReferenceIndex();
+				windowStart = 1;
+			}
+			if(samRecord.getAlignmentStart() < windowStart) {
+				throw new IllegalArgumentException("Finding the SNPs requires coordinate sorted alignments, " + samRecord.getReadName() + " is out of order");
+			}
+			makeRoom(samRecord.getAlignmentStart(), samRecord.getAlignmentEnd());
+
+			Hisat3nSAMRecord record = new Hisat3nSAMRecord(samRecord);
+			char strand = record.getYzTag();
+			int s = '-' == strand ? 1 : 0;
+			byte convertible = (byte) ('+' == strand ? 'T' : 'A');
+			byte converted = (byte) ('+' == strand ? 'C' : 'G');
+			byte [] readBases = samRecord.getReadBases();
+			byte [] mismatchBases = record.getMismatchBases();
+			for (AlignmentBlock block : samRecord.getAlignmentBlocks()) {
+				int offset = block.getReadStart() - 1;
+				int window = block.getReferenceStart() - windowStart;
+				for (int j = 0; j < block.getLength(); j++) {
+					byte reference = mismatchBases[offset + j] != 0 ? mismatchBases[offset + j] : readBases[offset + j];
+					if(reference == convertible) {
+						coverage[s][window + j]++;
+						if(readBases[offset + j] == converted) {
+							conversions[s][window + j]++;
+						}
+					}
+				}
+			}
+		}
+
+		/**
+		 * Calls the positions before the start once the end falls outside the windows, growing
+		 * them if the record is longer than they are
+		 */
+		private void makeRoom(int start, int end) {
+			if(end - windowStart < coverage[0].length) {
+				return;
+			}
+			flush(start);
+			int span = end - windowStart + 1;
+			if(span > coverage[0].length) {
+				int length = Integer.highestOneBit(span) * 2;
+				for (int s = 0; s < 2; s++) {
+					coverage[s] = Arrays.copyOf(coverage[s], length);
+					conversions[s] = Arrays.copyOf(conversions[s], length);
+				}
+			}
+		}
+
+		/**
+		 * Calls the positions before this one, no record still to come covers them
+		 */
+		void flush(int position) {
+			if(contig < 0) {
+				return;
+			}
+			long distance = (long) position - windowStart;
+			if(distance <= 0) {
+				return;
+			}
+			int flushed = (int) Math.min(distance, coverage[0].length);
+			for (int s = 0; s < 2; s++) {
+				for (int i = 0; i < flushed; i++) {
+					if(coverage[s][i] >= minCoverage && conversions[s][i] >= minFrequency * coverage[s][i]) {
+						mask.add(contig, s == 0 ? '+' : '-', windowStart + i);
+					}
+				}
+				System.arraycopy(coverage[s], flushed, coverage[s], 0, coverage[s].length - flushed);
+				Arrays.fill(coverage[s], coverage[s].length - flushed, coverage[s].length, 0);
+				System.arraycopy(conversions[s], flushed, conversions[s], 0, conversions[s].length - flushed);
+				Arrays.fill(conversions[s], conversions[s].length - flushed, conversions[s].length, 0);
+			}
+			// Past the windows there were no reads
+			windowStart = distance > flushed ? position : windowStart + flushed;
+		}
+	}
+
+}
@@ -0,0 +1,364 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2022 University of Massachusetts Medical School
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package edu.umms.garberlab.slam;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+import htsjdk.samtools.BAMRecordCodec;
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMFileWriter;
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.util.ProgressLoggerInterface;
+import htsjdk.samtools.util.RuntimeIOException;
+
+/**
+ * Coordinate sorts the records written to it before passing them to a presorted writer.
+ *
+ * Records are kept BAM encoded in a single growing byte buffer with a small entry per
+ * record holding its sort key, so many more fit in the budget than as {@link SAMRecord}
+ * objects. A full buffer is sorted with {@link Arrays#parallelSort} and spilled as a run to
+ * a temporary file; on close the runs and the last buffer are k-way merged into the writer.
+ *
+ * Records are ordered by reference, start and strand, ties keep their write order.
+ *
+ * @author mgarber
+ *
+ */
+public class CoordinateSortingWriter implements SAMFileWriter {
+
+	/** Approximate heap used by the entry of a record, on top of its encoded bytes */
+	private static final int ENTRY_OVERHEAD = 40;
+	/** Largest buffer, arrays are indexed with int */
+	private static final long MAX_BUFFER = Integer.MAX_VALUE - (64L << 20);
+
+	private static final Comparator<Entry> BY_KEY = (e1, e2) -> Long.compare(e1.key, e2.key);
+
+	/**
+	 * Memory and temporary directory used to sort an output
+	 */
+	public static class Settings {
+		private final long memoryBytes;
+		private final File tmpDir;
+
+		/**
+		 * @param memoryBytes Memory for the buffers of all the sorted outputs
+		 * @param tmpDir Directory for the sorted runs
+		 */
+		public Settings(long memoryBytes, File tmpDir) {
+			this.memoryBytes = memoryBytes;
+			this.tmpDir = tmpDir;
+		}
+
+		public long getMemoryBytes() {
+			return memoryBytes;
+		}
+
+		public File getTmpDir() {
+			return tmpDir;
+		}
+	}
+
+	private final SAMFileWriter writer;
+	private final SAMFileHeader header;
+	private final long budget;
+	private final File tmpDir;
+
+	private final RecordBuffer buffer = new RecordBuffer();
+	private final BAMRecordCodec encoder;
+	private Entry [] entries = new Entry[1024];
+	private int count;
+	private final List<File> runs = new ArrayList<File>();
+
+	/**
+	 * @param writer Writer for the sorted records, it must accept presorted coordinate ordered input
+	 * @param budget Bytes of records and entries kept in memory before a run is spilled
+	 * @param tmpDir Directory for the runs
+	 */
+	public CoordinateSortingWriter(SAMFileWriter writer, long budget, File tmpDir) {
+		this.writer = writer;
+		this.header = writer.getFileHeader();
+		this.budget = Math.min(budget, MAX_BUFFER);
+		this.tmpDir = tmpDir;
+		this.encoder = new BAMRecordCodec(header);
+		encoder.setOutputStream(buffer);
+	}
+
+	@Override
+	public void addAlignment(SAMRecord alignment) {
+		int offset = buffer.size();
+		encoder.encode(alignment);
+		if(count == entries.length) {
+			entries = Arrays.copyOf(entries, count * 2);
+		}
+		entries[count++] = new Entry(sortKey(alignment), offset, buffer.size() - offset);
+		if(buffer.size() + (long) count * ENTRY_OVERHEAD >= budget) {
+			spill();
+		}
+	}
+
+	/**
+	 * Reference (unmapped last), start and strand packed in a long
+	 */
+	static long sortKey(SAMRecord record) {
+		long reference = record.getReferenceIndex() < 0 ? Integer.MAX_VALUE : record.getReferenceIndex();
+		long start = Math.max(0, record.getAlignmentStart());
+		return (reference << 32) | (start << 1) | (record.getReadNegativeStrandFlag() ? 1 : 0);
+	}
+
+	private void spill() {
+		Arrays.parallelSort(entries, 0, count, BY_KEY);
+		try {
+			File run = File.createTempFile("slamsplitter", ".run", tmpDir);
+			run.deleteOnExit();
+			try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(run), 1 << 16))) {
+				byte [] data = buffer.array();
+				for (int i = 0; i < count; i++) {
+					out.writeLong(entries[i].key);
+					out.writeInt(entries[i].length);
+					out.write(data, entries[i].offset, entries[i].length);
+				}
+			}
+			runs.add(run);
+		} catch (IOException e) {
+			throw new RuntimeIOException("Could not write a sorted run to " + tmpDir, e);
+		}
+		Arrays.fill(entries, 0, count, null);
+		count = 0;
+		buffer.reset();
+	}
+
+	@Override
+	public void close() {
+		Arrays.parallelSort(entries, 0, count, BY_KEY);
+		RecordDecoder decoder = new RecordDecoder(header);
+		try {
+			if(runs.isEmpty()) {
+				byte [] data = buffer.array();
+				for (int i = 0; i < count; i++) {
+					writer.addAlignment(decoder.decode(data, entries[i].offset, entries[i].length));
+				}
+			} else {
+				merge(decoder);
+			}
+		} catch (IOException e) {
+			throw new RuntimeIOException("Could not merge the sorted runs", e);
+		} finally {
+			for (File run : runs) {
+				run.delete();
+			}
+		}
+		writer.close();
+	}
+
+	private void merge(RecordDecoder decoder) throws IOException {
+		PriorityQueue<RunCursor> queue = new PriorityQueue<RunCursor>(runs.size() + 1, (c1, c2) -> {
+			int compare = Long.compare(c1.key, c2.key);
+			return compare != 0 ? compare : Integer.compare(c1.order, c2.order);
+		});
+		List<RunCursor> cursors = new ArrayList<RunCursor>();
+		try {
+			for (int i = 0; i < runs.size(); i++) {
+				cursors.add(new FileRunCursor(runs.get(i), i));
+			}
+			cursors.add(new MemoryRunCursor(runs.size()));
+			for (RunCursor cursor : cursors) {
+				if(cursor.advance()) {
+					queue.add(cursor);
+				}
+			}
+			while (!queue.isEmpty()) {
+				RunCursor cursor = queue.poll();
+				writer.addAlignment(decoder.decode(cursor.data, cursor.offset, cursor.length));
+				if(cursor.advance()) {
+					queue.add(cursor);
+				}
+			}
+		} finally {
+			for (RunCursor cursor : cursors) {
+				cursor.close();
+			}
+		}
+	}
+
+	@Override
+	public SAMFileHeader getFileHeader() {
+		return header;
+	}
+
+	@Override
+	public void setProgressLogger(ProgressLoggerInterface progress) {
+		writer.setProgressLogger(progress);
+	}
+
+	private static final class Entry {
+		final long key;
+		final int offset;
+		final int length;
+
+		Entry(long key, int offset, int length) {
+			this.key = key;
+			this.offset = offset;
+			this.length = length;
+		}
+	}
+
+	/**
+	 * Exposes the array of a ByteArrayOutputStream so records are not copied
+	 */
+	private static final class RecordBuffer extends ByteArrayOutputStream {
+		RecordBuffer() {
+			super(1 << 20);
+		}
+
+		byte [] array() {
+			return buf;
+		}
+	}
+
+	/**
+	 * Decodes BAM encoded records from a byte array through a single codec
+	 */
+	private static final class RecordDecoder extends InputStream {
+		private final BAMRecordCodec codec;
+		private byte [] data;
+		private int position;
+		private int end;
+
+		RecordDecoder(SAMFileHeader header) {
+			codec = new BAMRecordCodec(header);
+			codec.setInputStream(this);
+		}
+
+		SAMRecord decode(byte [] data, int offset, int length) {
+			this.data = data;
+			this.position = offset;
+			this.end = offset + length;
+			return codec.decode();
+		}
+
+		@Override
+		public int read() {
+			return position < end ? data[position++] & 0xff : -1;
+		}
+
+		@Override
+		public int read(byte [] b, int off, int len) {
+			if(position >= end) {
+				return -1;
+			}
+			int n = Math.min(len, end - position);
+			System.arraycopy(data, position, b, off, n);
+			position += n;
+			return n;
+		}
+	}
+
+	/**
+	 * Position in a sorted run during the merge
+	 */
+	private abstract static class RunCursor {
+		final int order;
+		long key;
+		byte [] data;
+		int offset;
+		int length;
+
+		RunCursor(int order) {
+			this.order = order;
+		}
+
+		abstract boolean advance() throws IOException;
+
+		void close() throws IOException {
+		}
+	}
+
+	private static final class FileRunCursor extends RunCursor {
+		private final DataInputStream in;
+
+		FileRunCursor(File run, int order) throws IOException {
+			super(order);
+			in = new DataInputStream(new BufferedInputStream(new FileInputStream(run), 1 << 16));
+			data = new byte[1024];
+		}
+
+		@Override
+		boolean advance() throws IOException {
+			try {
+				key = in.readLong();
+			} catch (EOFException e) {
+				return false;
+			}
+			length = in.readInt();
+			if(length > data.length) {
+				data = new byte[Math.max(length, data.length * 2)];
+			}
+			in.readFully(data, 0, length);
+			return true;
+		}
+
+		@Override
+		void close() throws IOException {
+			in.close();
+		}
+	}
+
+	private final class MemoryRunCursor extends RunCursor {
+		private int next;
+
+		MemoryRunCursor(int order) {
+			super(order);
+			data = buffer.array();
+		}
+
+		@Override
+		boolean advance() {
+			if(next == count) {
+				return false;
+			}
+			Entry entry = entries[next++];
+			key = entry.key;
+			offset = entry.offset;
+			length = entry.length;
+			return true;
+		}
+	}
+
+}
@@ -0,0 +1,285 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2022 University of Massachusetts Medical School
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package edu.umms.garberlab.slam;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+import htsjdk.samtools.AlignmentBlock;
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SAMSequenceDictionary;
+
+/**
+ * Accumulates the coverage of the converted records and of all the records, per strand,
+ * while they are split, and writes it as bigWig or bedGraph tracks:
+ * <outPrefix>_converted_plus.bw, _converted_minus.bw, _total_plus.bw and _total_minus.bw.
+ *
+ * The strand is the one of the YZ tag, the strand hisat-3n aligned the fragment to. Each
+ * aligned block of a record adds one to its bases, secondary alignments are not counted.
+ * The records must come coordinate sorted: coverage is kept as run-length deltas in a
+ * window that is flushed to the tracks up to the start of the current record when the
+ * window is full or the contig changes, so memory does not grow with the genome.
+ *
+ * @author mgarber
+ *
+ */
+public class CoverageTracks implements Closeable {
+
+	public enum Format {
+		BIGWIG(".bw"), BEDGRAPH(".bedGraph");
+
+		private final String extension;
+
+		Format(String extension) {
+			this.extension = extension;
+		}
+
+		public String getExtension() {
+			return extension;
+		}
+	}
+
+	static final int WINDOW = 1 << 16;
+
+	private static final int CONVERTED_PLUS = 0;
+	private static final int CONVERTED_MINUS = 1;
+	private static final int TOTAL_PLUS = 2;
+	private static final int TOTAL_MINUS = 3;
+	private static final String [] TRACKS = {"_converted_plus", "_converted_minus", "_total_plus", "_total_minus"};
+
+	private final Track [] tracks = new Track[TRACKS.length];
+	private int contig = -1;
+	private long outOfOrder;
+
+	public CoverageTracks(File outDirFile, String outPrefix, SAMSequenceDictionary dictionary, Format format) throws IOException {
+		String [] contigs = new String[dictionary.size()];
+		int [] contigLengths = new int[dictionary.size()];
+		for (int i = 0; i < contigs.length; i++) {
+			contigs[i] = dictionary.getSequence(i).getSequenceName();
+			contigLengths[i] = dictionary.getSequence(i).getSequenceLength();
+		}
+		for (int t = 0; t < tracks.length; t++) {
+			File trackFile = trackFile(outDirFile, outPrefix, TRACKS[t], format);
+			tracks[t] = new Track(format == Format.BIGWIG ? new BigWigOutput(trackFile, contigs, contigLengths) : new BedGraphOutput(trackFile, contigs));
+		}
+	}
+
+	static File trackFile(File outDirFile, String outPrefix, String track, Format format) {
+		return new File(outDirFile, outPrefix + track + format.getExtension());
+	}
+
+	/**
+	 * Adds the coverage of a record written to the converted or the unconverted output
+	 */
+	public void add(SAMRecord record, boolean converted) throws IOException {
+		if(record.getReadUnmappedFlag() || record.isSecondaryAlignment()) {
+			return;
+		}
+		int recordContig = record.getReferenceIndex();
+		int start = record.getAlignmentStart() - 1;
+		if(recordContig < contig || (recordContig == contig && start < tracks[0].flushed)) {
+			// i.e. a mate outside -regions written with the one inside
+			outOfOrder++;
+			return;
+		}
+		if(recordContig != contig) {
+			for (Track track : tracks) {
+				track.finish(contig);
+				track.startContig();
+			}
+			contig = recordContig;
+		}
+		// All the tracks move their windows together, so that they have all been written up to the same position
+		int end = record.getAlignmentEnd();
+		for (Track track : tracks) {
+			track.makeRoom(contig, start, end);
+		}
+		Character yz = record.getCharacterAttribute("YZ");
+		boolean minus = yz != null && yz == '-';
+		Track total = tracks[minus ? TOTAL_MINUS : TOTAL_PLUS];
+		Track convertedTrack = converted ? tracks[minus ? CONVERTED_MINUS : CONVERTED_PLUS] : null;
+		for (AlignmentBlock block : record.getAlignmentBlocks()) {
+			int blockStart = block.getReferenceStart() - 1;
+			int blockEnd = blockStart + block.getLength();
+			total.add(blockStart, blockEnd);
+			if(convertedTrack != null) {
+				convertedTrack.add(blockStart, blockEnd);
+			}
+		}
+	}
+
+	/**
+	 * @return Records left out of the tracks because they came before positions already written
+	 */
+	public long getOutOfOrder() {
+		return outOfOrder;
+	}
+
+	@Override
+	public void close() throws IOException {
+		IOException error = null;
+		for (Track track : tracks) {
+			try {
+				track.finish(contig);
+				track.output.close();
+			} catch (IOException e) {
+				error = e;
+			}
+		}
+		if(error != null) {
+			throw error;
+		}
+	}
+
+	/**
+	 * Depth changes of a window of the current contig, flushed as runs of equal depth
+	 */
+	private static final class Track {
+		private final Output output;
+		private int [] deltas = new int[WINDOW + 1];
+		/** Contig position of deltas[0], everything before is written */
+		private int flushed;
+		private int depth;
+		private int runStart;
+
+		Track(Output output) {
+			this.output = output;
+		}
+
+		void startContig() {
+			flushed = 0;
+			depth = 0;
+			runStart = 0;
+		}
+
+		/**
+		 * Makes sure the window reaches <code>end</code>, flushing it up to the start of the record
+		 */
+		void makeRoom(int contig, int recordStart, int end) throws IOException {
+			if(end - flushed >= deltas.length) {
+				// Sorted input, nothing changes before the start of the record anymore
+				flush(contig, recordStart);
+				if(end - flushed >= deltas.length) {
+					deltas = Arrays.copyOf(deltas, Integer.highestOneBit(end - flushed) * 2 + 1);
+				}
+			}
+		}
+
+		void add(int start, int end) {
+			deltas[start - flushed]++;
+			deltas[end - flushed]--;
+		}
+
+		/**
+		 * Writes the runs that end before <code>position</code> and moves the window there
+		 */
+		private void flush(int contig, int position) throws IOException {
+			int length = position - flushed;
+			if(length <= 0) {
+				return;
+			}
+			int window = Math.min(length, deltas.length);
+			for (int i = 0; i < window; i++) {
+				if(deltas[i] != 0) {
+					if(depth > 0) {
+						output.add(contig, runStart, flushed + i, depth);
+					}
+					depth += deltas[i];
+					runStart = flushed + i;
+				}
+			}
+			if(window < deltas.length) {
+				System.arraycopy(deltas, window, deltas, 0, deltas.length - window);
+				Arrays.fill(deltas, deltas.length - window, deltas.length, 0);
+			} else {
+				// Past the window, the depth is 0 up to the position
+				Arrays.fill(deltas, 0);
+			}
+			flushed = position;
+		}
+
+		void finish(int contig) throws IOException {
+			if(contig >= 0) {
+				flush(contig, flushed + deltas.length);
+			}
+		}
+	}
+
+	private interface Output extends Closeable {
+		void add(int contig, int start, int end, int depth) throws IOException;
+	}
+
+	private static final class BigWigOutput implements Output {
+		private final BigWigWriter writer;
+		private final int [] contigLengths;
+
+		BigWigOutput(File trackFile, String [] contigs, int [] contigLengths) throws IOException {
+			this.contigLengths = contigLengths;
+			this.writer = new BigWigWriter(trackFile, contigs, contigLengths);
+		}
+
+		public void add(int contig, int start, int end, int depth) throws IOException {
+			// Alignments can run past the end of circular contigs
+			end = Math.min(end, contigLengths[contig]);
+			if(start < end) {
+				writer.add(contig, start, end, depth);
+			}
+		}
+
+		public void close() throws IOException {
+			writer.close();
+		}
+	}
+
+	private static final class BedGraphOutput implements Output {
+		private final String [] contigs;
+		private final BufferedWriter writer;
+
+		BedGraphOutput(File trackFile, String [] contigs) throws IOException {
+			this.contigs = contigs;
+			this.writer = Files.newBufferedWriter(trackFile.toPath());
+		}
+
+		public void add(int contig, int start, int end, int depth) throws IOException {
+			writer.write(contigs[contig]);
+			writer.write('\t');
+			writer.write(Integer.toString(start));
+			writer.write('\t');
+			writer.write(Integer.toString(end));
+			writer.write('\t');
+			writer.write(Integer.toString(depth));
+			writer.write('\n');
+		}
+
+		public void close() throws IOException {
+			writer.close();
+		}
+	}
+
+}
@@ -0,0 +1,199 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2022 University of Massachusetts Medical School
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package edu.umms.garberlab.slam;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.PriorityQueue;
+
+import htsjdk.samtools.SAMRecord;
+
+/**
+ * Removes or marks duplicates from a coordinate sorted stream of single-end alignments.
+ *
+ * Reads are duplicates when they share the 5' unclipped position, the strand and, in UMI mode,
+ * the UB and CB tags. The key is hashed into a long so that only one record (the best one by AS)
+ * is kept per key while the stream is within <code>window</code> bases of its 5' position.
+ *
+ * @author mgarber
+ *
+ */
+public class DuplicateFilter {
+
+	public enum Mode { POSITION, UMI }
+
+	public static final String UMI_TAG = "UB";
+	public static final String CELL_BARCODE_TAG = "CB";
+	public static final int DEFAULT_WINDOW = 500;
+
+	private final Mode mode;
+	private final boolean removeDuplicates;
+	private final int window;
+
+	private final HashMap<Long, Candidate> candidates = new HashMap<Long, Candidate>();
+	private final PriorityQueue<Candidate> candidateQueue = new PriorityQueue<Candidate>((c1, c2) -> Integer.compare(c1.fivePrimePosition, c2.fivePrimePosition));
+	private int currentReferenceIndex = -1;
+
+	private long duplicates;
+	private long examined;
+
+	public DuplicateFilter(Mode mode, boolean removeDuplicates, int window) {
+		this.mode = mode;
+		this.removeDuplicates = removeDuplicates;
+		this.window = window;
+	}
+
+	/**
+	 * Adds a record to the filter
+	 * @param record Next record of a coordinate sorted stream
+	 * @return Records that can be written, in no particular order
+	 */
+	public List<SAMRecord> add(SAMRecord record) {
+		List<SAMRecord> ready = new ArrayList<SAMRecord>(2);
+		if(record.getReadUnmappedFlag() || record.isSecondaryOrSupplementary()) {
+			ready.add(record);
+			return ready;
+		}
+
+		String umi = null;
+		String cellBarcode = null;
+		if(mode == Mode.UMI) {
+			umi = record.getStringAttribute(UMI_TAG);
+			cellBarcode = record.getStringAttribute(CELL_BARCODE_TAG);
+			if(umi == null) {
+				ready.add(record);
+				return ready;
+			}
+		}
+
+		if(record.getReferenceIndex() != currentReferenceIndex) {
+			flushAll(ready);
+			currentReferenceIndex = record.getReferenceIndex();
+		} else {
+			flushBefore(record.getAlignmentStart() - window, ready);
+		}
+
+		examined++;
+		boolean negativeStrand = record.getReadNegativeStrandFlag();
+		int fivePrimePosition = negativeStrand ? record.getUnclippedEnd() : record.getUnclippedStart();
+		long key = hashKey(fivePrimePosition, negativeStrand, umi, cellBarcode);
+
+		Candidate candidate = candidates.get(key);
+		if(candidate == null) {
+			candidate = new Candidate(fivePrimePosition, key, record);
+			candidates.put(key, candidate);
+			candidateQueue.add(candidate);
+		} else {
+			duplicates++;
+			SAMRecord duplicate = record;
+			if(score(record) > score(candidate.best)) {
+				duplicate = candidate.best;
+				candidate.best = record;
+			}
+			if(!removeDuplicates) {
+				duplicate.setDuplicateReadFlag(true);
+				ready.add(duplicate);
+			}
+		}
+		return ready;
+	}
+
+	/**
+	 * @return The remaining records, to be called once the stream is over
+	 */
+	public List<SAMRecord> flush() {
+		List<SAMRecord> ready = new ArrayList<SAMRecord>(candidates.size());
+		flushAll(ready);
+		return ready;
+	}
+
+	public long getDuplicates() {
+		return duplicates;
+	}
+
+	public long getExamined() {
+		return examined;
+	}
+
+	private void flushBefore(int position, List<SAMRecord> ready) {
+		while(!candidateQueue.isEmpty() && candidateQueue.peek().fivePrimePosition < position) {
+			Candidate candidate = candidateQueue.poll();
+			candidates.remove(candidate.key);
+			ready.add(candidate.best);
+		}
+	}
+
+	private void flushAll(List<SAMRecord> ready) {
+		while(!candidateQueue.isEmpty()) {
+			ready.add(candidateQueue.poll().best);
+		}
+		candidates.clear();
+	}
+
+	private static int score(SAMRecord record) {
+		Integer as = record.getIntegerAttribute("AS");
+		return as == null ? Integer.MIN_VALUE : as;
+	}
+
+	static long hashKey(int position, boolean negativeStrand, String umi, String cellBarcode) {
+		long h = 0xcbf29ce484222325L;
+		h = mix(h, position);
+		h = mix(h, negativeStrand ? 1 : 0);
+		h = mix(h, umi);
+		h = mix(h, cellBarcode);
+		return h;
+	}
+
+	private static long mix(long h, String value) {
+		if(value == null) {
+			return mix(h, -1);
+		}
+		for (byte b : value.getBytes(StandardCharsets.US_ASCII)) {
+			h = (h ^ b) * 0x100000001b3L;
+		}
+		return mix(h, value.length());
+	}
+
+	private static long mix(long h, long value) {
+		h ^= value;
+		h *= 0x9E3779B97F4A7C15L;
+		return h ^ (h >>> 32);
+	}
+
+	private static class Candidate {
+		final int fivePrimePosition;
+		final long key;
+		SAMRecord best;
+
+		Candidate(int fivePrimePosition, long key, SAMRecord best) {
+			this.fivePrimePosition = fivePrimePosition;
+			this.key = key;
+			this.best = best;
+		}
+	}
+
+}
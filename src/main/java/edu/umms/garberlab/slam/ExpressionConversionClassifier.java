@@ -0,0 +1,344 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2022 University of Massachusetts Medical School
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package edu.umms.garberlab.slam;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Conversion classifier defined by a boolean expression over the fragment values, i.e.
+ * <code>Yf &gt;= 2 &amp;&amp; Yf/(Yf+Zf) &gt;= 0.05 &amp;&amp; NH == 1</code>
+ *
+ * Variables are Yf, Zf, NH, AS, NM and spliced (1 or 0). Arithmetic is done in double precision
+ * so Yf/(Yf+Zf) is a rate, a 0/0 division is NaN and fails every comparison. A number used as a condition
+ * is true when it is not 0, so <code>!spliced</code> selects unspliced fragments. Supported operators,
+ * from lowest to highest precedence: ||, &amp;&amp;, !, comparisons (&lt; &lt;= &gt; &gt;= == !=), + -, * /, unary -.
+ *
+ * The expression is parsed once into a tree of small lambdas over primitive values,
+ * constant sub-expressions are folded, so evaluating it does no allocation or lookups.
+ *
+ * @author mgarber
+ *
+ */
+public class ExpressionConversionClassifier implements ConversionClassifier {
+
+	static final int YF = 0;
+	static final int ZF = 1;
+	static final int NH = 2;
+	static final int AS = 3;
+	static final int NM = 4;
+	static final int SPLICED = 5;
+	private static final String [] VARIABLES = {"Yf", "Zf", "NH", "AS", "NM", "spliced"};
+
+	private final String expression;
+	private final Predicate predicate;
+	private final boolean [] usedVariables;
+
+	private ExpressionConversionClassifier(String expression, Predicate predicate, boolean [] usedVariables) {
+		this.expression = expression;
+		this.predicate = predicate;
+		this.usedVariables = usedVariables;
+	}
+
+	public static ExpressionConversionClassifier compile(String expression) {
+		Parser parser = new Parser(expression);
+		Predicate predicate = parser.parse();
+		return new ExpressionConversionClassifier(expression, predicate, parser.usedVariables);
+	}
+
+	@Override
+	public boolean isConverted(int yf, int zf, int nh, int as, int nm, boolean spliced) {
+		return predicate.test(yf, zf, nh, as, nm, spliced ? 1 : 0);
+	}
+
+	@Override
+	public boolean needsAlignmentScores() {
+		return usedVariables[AS] || usedVariables[NM];
+	}
+
+	@Override
+	public String toString() {
+		return expression;
+	}
+
+	@FunctionalInterface
+	interface Numeric {
+		double eval(int yf, int zf, int nh, int as, int nm, int spliced);
+	}
+
+	@FunctionalInterface
+	interface Predicate {
+		boolean test(int yf, int zf, int nh, int as, int nm, int spliced);
+	}
+
+	/**
+	 * Recursive descent parser, each rule returns either a {@link Numeric} or a {@link Predicate}
+	 */
+	private static class Parser {
+		private final String expression;
+		private final List<String> tokens;
+		private int position;
+		final boolean [] usedVariables = new boolean[VARIABLES.length];
+
+		Parser(String expression) {
+			this.expression = expression;
+			this.tokens = tokenize(expression);
+		}
+
+		Predicate parse() {
+			Object result = parseOr();
+			if(position != tokens.size()) {
+				throw error("Unexpected '" + tokens.get(position) + "'");
+			}
+			return asPredicate(result);
+		}
+
+		private Object parseOr() {
+			Object left = parseAnd();
+			while (accept("||")) {
+				final Predicate l = asPredicate(left);
+				final Predicate r = asPredicate(parseAnd());
+				left = (Predicate) (yf, zf, nh, as, nm, sp) -> l.test(yf, zf, nh, as, nm, sp) || r.test(yf, zf, nh, as, nm, sp);
+			}
+			return left;
+		}
+
+		private Object parseAnd() {
+			Object left = parseNot();
+			while (accept("&&")) {
+				final Predicate l = asPredicate(left);
+				final Predicate r = asPredicate(parseNot());
+				left = (Predicate) (yf, zf, nh, as, nm, sp) -> l.test(yf, zf, nh, as, nm, sp) && r.test(yf, zf, nh, as, nm, sp);
+			}
+			return left;
+		}
+
+		private Object parseNot() {
+			if(accept("!")) {
+				final Predicate p = asPredicate(parseNot());
+				return (Predicate) (yf, zf, nh, as, nm, sp) -> !p.test(yf, zf, nh, as, nm, sp);
+			}
+			return parseComparison();
+		}
+
+		private Object parseComparison() {
+			Object left = parseSum();
+			String op = peek();
+			if(op == null || !(op.equals("<") || op.equals("<=") || op.equals(">") || op.equals(">=") || op.equals("==") || op.equals("!="))) {
+				return left;
+			}
+			position++;
+			final Numeric l = asNumeric(left);
+			final Numeric r = asNumeric(parseSum());
+			switch (op) {
+			case "<":
+				return (Predicate) (yf, zf, nh, as, nm, sp) -> l.eval(yf, zf, nh, as, nm, sp) < r.eval(yf, zf, nh, as, nm, sp);
+			case "<=":
+				return (Predicate) (yf, zf, nh, as, nm, sp) -> l.eval(yf, zf, nh, as, nm, sp) <= r.eval(yf, zf, nh, as, nm, sp);
+			case ">":
+				return (Predicate) (yf, zf, nh, as, nm, sp) -> l.eval(yf, zf, nh, as, nm, sp) > r.eval(yf, zf, nh, as, nm, sp);
+			case ">=":
+				return (Predicate) (yf, zf, nh, as, nm, sp) -> l.eval(yf, zf, nh, as, nm, sp) >= r.eval(yf, zf, nh, as, nm, sp);
+			case "==":
+				return (Predicate) (yf, zf, nh, as, nm, sp) -> l.eval(yf, zf, nh, as, nm, sp) == r.eval(yf, zf, nh, as, nm, sp);
+			default:
+				return (Predicate) (yf, zf, nh, as, nm, sp) -> l.eval(yf, zf, nh, as, nm, sp) != r.eval(yf, zf, nh, as, nm, sp);
+			}
+		}
+
+		private Object parseSum() {
+			Object left = parseProduct();
+			String op = peek();
+			while ("+".equals(op) || "-".equals(op)) {
+				position++;
+				final Numeric l = asNumeric(left);
+				final Numeric r = asNumeric(parseProduct());
+				left = "+".equals(op) ?
+						fold(l, r, (Numeric) (yf, zf, nh, as, nm, sp) -> l.eval(yf, zf, nh, as, nm, sp) + r.eval(yf, zf, nh, as, nm, sp)) :
+						fold(l, r, (Numeric) (yf, zf, nh, as, nm, sp) -> l.eval(yf, zf, nh, as, nm, sp) - r.eval(yf, zf, nh, as, nm, sp));
+				op = peek();
+			}
+			return left;
+		}
+
+		private Object parseProduct() {
+			Object left = parseUnary();
+			String op = peek();
+			while ("*".equals(op) || "/".equals(op)) {
+				position++;
+				final Numeric l = asNumeric(left);
+				final Numeric r = asNumeric(parseUnary());
+				left = "*".equals(op) ?
+						fold(l, r, (Numeric) (yf, zf, nh, as, nm, sp) -> l.eval(yf, zf, nh, as, nm, sp) * r.eval(yf, zf, nh, as, nm, sp)) :
+						fold(l, r, (Numeric) (yf, zf, nh, as, nm, sp) -> l.eval(yf, zf, nh, as, nm, sp) / r.eval(yf, zf, nh, as, nm, sp));
+				op = peek();
+			}
+			return left;
+		}
+
+		private Object parseUnary() {
+			if(accept("-")) {
+				final Numeric n = asNumeric(parseUnary());
+				return n instanceof Constant ? new Constant(-((Constant) n).value) : (Numeric) (yf, zf, nh, as, nm, sp) -> -n.eval(yf, zf, nh, as, nm, sp);
+			}
+			return parsePrimary();
+		}
+
+		private Object parsePrimary() {
+			String token = peek();
+			if(token == null) {
+				throw error("Unexpected end of expression");
+			}
+			position++;
+			if(token.equals("(")) {
+				Object inner = parseOr();
+				if(!accept(")")) {
+					throw error("Missing ')'");
+				}
+				return inner;
+			}
+			if(Character.isDigit(token.charAt(0)) || token.charAt(0) == '.') {
+				try {
+					return new Constant(Double.parseDouble(token));
+				} catch (NumberFormatException e) {
+					throw error("Invalid number " + token);
+				}
+			}
+			for (int i = 0; i < VARIABLES.length; i++) {
+				if(VARIABLES[i].equals(token)) {
+					usedVariables[i] = true;
+					return variable(i);
+				}
+			}
+			throw error("Unknown variable '" + token + "', expected one of Yf, Zf, NH, AS, NM or spliced");
+		}
+
+		private static Numeric variable(int index) {
+			switch (index) {
+			case YF:
+				return (yf, zf, nh, as, nm, sp) -> yf;
+			case ZF:
+				return (yf, zf, nh, as, nm, sp) -> zf;
+			case NH:
+				return (yf, zf, nh, as, nm, sp) -> nh;
+			case AS:
+				return (yf, zf, nh, as, nm, sp) -> as;
+			case NM:
+				return (yf, zf, nh, as, nm, sp) -> nm;
+			default:
+				return (yf, zf, nh, as, nm, sp) -> sp;
+			}
+		}
+
+		private static Numeric fold(Numeric l, Numeric r, Numeric combined) {
+			if(l instanceof Constant && r instanceof Constant) {
+				return new Constant(combined.eval(0, 0, 0, 0, 0, 0));
+			}
+			return combined;
+		}
+
+		private Predicate asPredicate(Object node) {
+			if(node instanceof Predicate) {
+				return (Predicate) node;
+			}
+			// Numbers used as conditions are true when not 0, i.e. !spliced
+			final Numeric n = (Numeric) node;
+			return (yf, zf, nh, as, nm, sp) -> n.eval(yf, zf, nh, as, nm, sp) != 0;
+		}
+
+		private Numeric asNumeric(Object node) {
+			if(node instanceof Numeric) {
+				return (Numeric) node;
+			}
+			throw error("Expected an arithmetic expression but found a condition");
+		}
+
+		private String peek() {
+			return position < tokens.size() ? tokens.get(position) : null;
+		}
+
+		private boolean accept(String token) {
+			if(token.equals(peek())) {
+				position++;
+				return true;
+			}
+			return false;
+		}
+
+		private IllegalArgumentException error(String message) {
+			return new IllegalArgumentException(message + " in classifier expression: " + expression);
+		}
+
+		private static List<String> tokenize(String expression) {
+			List<String> tokens = new ArrayList<String>();
+			int i = 0;
+			while (i < expression.length()) {
+				char c = expression.charAt(i);
+				if(Character.isWhitespace(c)) {
+					i++;
+				} else if(Character.isDigit(c) || c == '.') {
+					int start = i;
+					while (i < expression.length() && (Character.isDigit(expression.charAt(i)) || expression.charAt(i) == '.')) {
+						i++;
+					}
+					tokens.add(expression.substring(start, i));
+				} else if(Character.isLetter(c)) {
+					int start = i;
+					while (i < expression.length() && Character.isLetterOrDigit(expression.charAt(i))) {
+						i++;
+					}
+					tokens.add(expression.substring(start, i));
+				} else if(i + 1 < expression.length() && isTwoCharacterOperator(expression.substring(i, i + 2))) {
+					tokens.add(expression.substring(i, i + 2));
+					i += 2;
+				} else if("()+-*/<>!".indexOf(c) >= 0) {
+					tokens.add(String.valueOf(c));
+					i++;
+				} else {
+					throw new IllegalArgumentException("Unexpected character '" + c + "' in classifier expression: " + expression);
+				}
+			}
+			return tokens;
+		}
+
+		private static boolean isTwoCharacterOperator(String s) {
+			return s.equals("&&") || s.equals("||") || s.equals("<=") || s.equals(">=") || s.equals("==") || s.equals("!=");
+		}
+	}
+
+	private static class Constant implements Numeric {
+		final double value;
+
+		Constant(double value) {
+			this.value = value;
+		}
+
+		@Override
+		public double eval(int yf, int zf, int nh, int as, int nm, int spliced) {
+			return value;
+		}
+	}
+
+}
@@ -0,0 +1,248 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2022 University of Massachusetts Medical School
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package edu.umms.garberlab.slam;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SAMUtils;
+import htsjdk.samtools.util.RuntimeIOException;
+import htsjdk.samtools.util.SequenceUtil;
+
+/**
+ * Writes the converted and unconverted reads as FASTQ, in the orientation they were
+ * sequenced in. Reverted bases (see -r) are written reverted.
+ *
+ * Paired-end reads go to <code>_R1</code> and <code>_R2</code> files, or to a single
+ * interleaved file. A read is held until its mate is written so that both files stay
+ * in the same order. Unpaired reads and mates that never come (i.e. outside of the
+ * -regions) are written to a <code>_singletons</code> file. Secondary and supplementary alignments
+ * are skipped.
+ *
+ * Gzipped outputs are BGZF, compressed in parallel on a pool shared by all the files.
+ *
+ * @author mgarber
+ *
+ */
+public class FastqOutputWriter implements Closeable {
+
+	public static class Settings {
+		private final boolean interleaved;
+		private final boolean gzip;
+		private final int threads;
+
+		/**
+		 * @param interleaved Write both mates to the same file
+		 * @param gzip Compress the files
+		 * @param threads Threads compressing the files
+		 */
+		public Settings(boolean interleaved, boolean gzip, int threads) {
+			this.interleaved = interleaved;
+			this.gzip = gzip;
+			this.threads = Math.max(1, threads);
+		}
+
+		public boolean isInterleaved() {
+			return interleaved;
+		}
+
+		public boolean isGzip() {
+			return gzip;
+		}
+
+		public int getThreads() {
+			return threads;
+		}
+	}
+
+	private final File outDirFile;
+	private final String outPrefix;
+	private final boolean pairedEnd;
+	private final Settings settings;
+	private final ExecutorService deflatePool;
+
+	/** Indexed by converted, mate */
+	private final OutputStream [][] outputs = new OutputStream[2][2];
+	private final OutputStream [] singletons = new OutputStream[2];
+	private final Map<String, byte []> [] pendingMates;
+	private final ByteArrayOutputStream recordBuffer = new ByteArrayOutputStream(1024);
+
+	private long reads;
+	private long singletonReads;
+
+	@SuppressWarnings("unchecked")
+	public FastqOutputWriter(File outDirFile, String outPrefix, boolean pairedEnd, Settings settings) throws IOException {
+		this.outDirFile = outDirFile;
+		this.outPrefix = outPrefix;
+		this.pairedEnd = pairedEnd;
+		this.settings = settings;
+		this.deflatePool = settings.isGzip() ? Executors.newFixedThreadPool(settings.getThreads(), r -> {
+			Thread t = new Thread(r, "FastqDeflate");
+			t.setDaemon(true);
+			return t;
+		}) : null;
+		this.pendingMates = new Map[] {new HashMap<String, byte []>(), new HashMap<String, byte []>()};
+		for (int converted = 0; converted < 2; converted++) {
+			if(!pairedEnd || settings.isInterleaved()) {
+				outputs[converted][0] = open(converted == 1, "");
+				outputs[converted][1] = outputs[converted][0];
+			} else {
+				outputs[converted][0] = open(converted == 1, "_R1");
+				outputs[converted][1] = open(converted == 1, "_R2");
+			}
+		}
+	}
+
+	/**
+	 * @return The FASTQ file of the converted or unconverted reads
+	 * @param suffix i.e. _R1 for the first mates of paired-end reads written to separate files
+	 */
+	static File outputFile(File outDirFile, String outPrefix, boolean converted, String suffix, boolean gzip) {
+		return new File(outDirFile.getAbsolutePath() + "/" + outPrefix + (converted ? "_converted" : "_unconverted") + suffix + 
+				(gzip ? ".fastq.gz" : ".fastq"));
+	}
+
+	private OutputStream open(boolean converted, String suffix) throws IOException {
+		FileOutputStream out = new FileOutputStream(outputFile(outDirFile, outPrefix, converted, suffix, settings.isGzip()));
+		if(settings.isGzip()) {
+			return new ParallelBgzfOutputStream(out, deflatePool, 2 * settings.getThreads());
+		}
+		return new BufferedOutputStream(out, ParallelBgzfInputStream.MAX_BLOCK_SIZE);
+	}
+
+	/**
+	 * Writes the read of a record added to the converted or unconverted alignment output
+	 */
+	public void add(SAMRecord record, boolean converted) {
+		if(record.isSecondaryOrSupplementary()) {
+			return;
+		}
+		int output = converted ? 1 : 0;
+		try {
+			if(!pairedEnd) {
+				outputs[output][0].write(format(record));
+				reads++;
+				return;
+			}
+			if(!record.getReadPairedFlag()) {
+				writeSingleton(output, format(record));
+				return;
+			}
+			byte [] mate = pendingMates[output].remove(record.getReadName());
+			if(mate == null) {
+				pendingMates[output].put(record.getReadName(), format(record));
+				return;
+			}
+			byte [] read = format(record);
+			boolean first = record.getFirstOfPairFlag();
+			outputs[output][0].write(first ? read : mate);
+			outputs[output][1].write(first ? mate : read);
+			reads += 2;
+		} catch (IOException e) {
+			throw new RuntimeIOException("Could not write the FASTQ of " + record.getReadName(), e);
+		}
+	}
+
+	private byte [] format(SAMRecord record) {
+		byte [] bases = record.getReadBases().clone();
+		byte [] qualities = record.getBaseQualities().clone();
+		if(record.getReadNegativeStrandFlag()) {
+			SequenceUtil.reverseComplement(bases);
+			SequenceUtil.reverseQualities(qualities);
+		}
+		recordBuffer.reset();
+		recordBuffer.write('@');
+		byte [] name = record.getReadName().getBytes();
+		recordBuffer.write(name, 0, name.length);
+		recordBuffer.write('\n');
+		recordBuffer.write(bases, 0, bases.length);
+		recordBuffer.write('\n');
+		recordBuffer.write('+');
+		recordBuffer.write('\n');
+		if(qualities.length == 0) {
+			// No qualities stored (QUAL is *)
+			for (int i = 0; i < bases.length; i++) {
+				recordBuffer.write('I');
+			}
+		} else {
+			for (byte quality : qualities) {
+				recordBuffer.write(SAMUtils.phredToFastq(quality));
+			}
+		}
+		recordBuffer.write('\n');
+		return recordBuffer.toByteArray();
+	}
+
+	private void writeSingleton(int output, byte [] read) throws IOException {
+		if(singletons[output] == null) {
+			singletons[output] = open(output == 1, "_singletons");
+		}
+		singletons[output].write(read);
+		singletonReads++;
+	}
+
+	public long getReads() {
+		return reads;
+	}
+
+	public long getSingletonReads() {
+		return singletonReads;
+	}
+
+	@Override
+	public void close() throws IOException {
+		try {
+			for (int converted = 0; converted < 2; converted++) {
+				for (byte [] read : pendingMates[converted].values()) {
+					writeSingleton(converted, read);
+				}
+				pendingMates[converted].clear();
+				if(singletons[converted] != null) {
+					singletons[converted].close();
+				}
+				outputs[converted][0].close();
+				if(outputs[converted][1] != outputs[converted][0]) {
+					outputs[converted][1].close();
+				}
+			}
+		} finally {
+			if(deflatePool != null) {
+				deflatePool.shutdown();
+			}
+		}
+	}
+
+}
@@ -0,0 +1,270 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2022 University of Massachusetts Medical School
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package edu.umms.garberlab.slam;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Gene spans fragments are assigned to. Loaded from a BED file (the name column is the
+ * gene) or a GTF file (gene features, or the span of the exons of each gene_id if there
+ * are none).
+ *
+ * @author mgarber
+ *
+ */
+public class GeneAnnotation {
+
+	/** Returned by {@link #geneAt} when the span overlaps no gene */
+	public static final int NO_GENE = -1;
+	/** Returned by {@link #geneAt} when the span overlaps several genes */
+	public static final int AMBIGUOUS = -2;
+
+	private final List<Gene> genes;
+	private final Map<String, ContigGenes> contigs = new HashMap<String, ContigGenes>();
+
+	public static class Gene {
+		final String id;
+		final String name;
+		final String contig;
+		/** 1-based, inclusive */
+		int start;
+		int end;
+		final char strand;
+
+		Gene(String id, String name, String contig, int start, int end, char strand) {
+			this.id = id;
+			this.name = name;
+			this.contig = contig;
+			this.start = start;
+			this.end = end;
+			this.strand = strand;
+		}
+
+		public String getId() {
+			return id;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public String getContig() {
+			return contig;
+		}
+
+		public int getStart() {
+			return start;
+		}
+
+		public int getEnd() {
+			return end;
+		}
+
+		public char getStrand() {
+			return strand;
+		}
+	}
+
+	/** Genes of a contig sorted by start, with the running maximum of their ends */
+	private static class ContigGenes {
+		int [] starts;
+		int [] ends;
+		int [] maxEnds;
+		int [] indices;
+	}
+
+	public GeneAnnotation(List<Gene> genes) {
+		this.genes = genes;
+		Map<String, List<Integer>> byContig = new HashMap<String, List<Integer>>();
+		for (int i = 0; i < genes.size(); i++) {
+			byContig.computeIfAbsent(genes.get(i).contig, c -> new ArrayList<Integer>()).add(i);
+		}
+		for (Map.Entry<String, List<Integer>> entry : byContig.entrySet()) {
+			Integer [] sorted = entry.getValue().toArray(new Integer[0]);
+			Arrays.sort(sorted, (g1, g2) -> Integer.compare(genes.get(g1).start, genes.get(g2).start));
+			ContigGenes contigGenes = new ContigGenes();
+			contigGenes.starts = new int[sorted.length];
+			contigGenes.ends = new int[sorted.length];
+			contigGenes.maxEnds = new int[sorted.length];
+			contigGenes.indices = new int[sorted.length];
+			int maxEnd = 0;
+			for (int i = 0; i < sorted.length; i++) {
+				Gene gene = genes.get(sorted[i]);
+				contigGenes.starts[i] = gene.start;
+				contigGenes.ends[i] = gene.end;
+				maxEnd = Math.max(maxEnd, gene.end);
+				contigGenes.maxEnds[i] = maxEnd;
+				contigGenes.indices[i] = sorted[i];
+			}
+			contigs.put(entry.getKey(), contigGenes);
+		}
+	}
+
+	/**
+	 * Loads a BED or GTF file, by extension (.gtf, .gff or .gtf.gz for GTF)
+	 */
+	public static GeneAnnotation load(File annotationFile) throws IOException {
+		String name = annotationFile.getName().toLowerCase().replaceFirst("\\.gz$", "");
+		return name.endsWith(".gtf") || name.endsWith(".gff") ? fromGtf(annotationFile) : fromBed(annotationFile);
+	}
+
+	/**
+	 * @param bedFile BED file, 0-based half open. The fourth column is the gene, the sixth its strand
+	 */
+	public static GeneAnnotation fromBed(File bedFile) throws IOException {
+		List<Gene> genes = new ArrayList<Gene>();
+		try (BufferedReader br = open(bedFile)) {
+			String line = null;
+			while ((line = br.readLine()) != null) {
+				if(line.isEmpty() || line.startsWith("#") || line.startsWith("track") || line.startsWith("browser")) {
+					continue;
+				}
+				String [] fields = line.split("\t");
+				if(fields.length < 3) {
+					throw new IOException("BED line has fewer than three columns: " + line);
+				}
+				int start = Integer.parseInt(fields[1]) + 1;
+				int end = Integer.parseInt(fields[2]);
+				String id = fields.length > 3 ? fields[3] : fields[0] + ":" + start + "-" + end;
+				char strand = fields.length > 5 && !fields[5].isEmpty() ? fields[5].charAt(0) : '.';
+				genes.add(new Gene(id, id, fields[0], start, end, strand));
+			}
+		}
+		return new GeneAnnotation(genes);
+	}
+
+	/**
+	 * @param gtfFile GTF file, gene features are used if there are any, otherwise the exons of each gene_id
+	 */
+	public static GeneAnnotation fromGtf(File gtfFile) throws IOException {
+		Map<String, Gene> genes = new LinkedHashMap<String, Gene>();
+		Map<String, Gene> exonSpans = new LinkedHashMap<String, Gene>();
+		try (BufferedReader br = open(gtfFile)) {
+			String line = null;
+			while ((line = br.readLine()) != null) {
+				if(line.isEmpty() || line.startsWith("#")) {
+					continue;
+				}
+				String [] fields = line.split("\t");
+				if(fields.length < 9) {
+					throw new IOException("GTF line has fewer than nine columns: " + line);
+				}
+				boolean isGene = "gene".equals(fields[2]);
+				if(!isGene && !"exon".equals(fields[2])) {
+					continue;
+				}
+				String id = attribute(fields[8], "gene_id");
+				if(id == null) {
+					throw new IOException("GTF " + fields[2] + " without gene_id: " + line);
+				}
+				String geneName = attribute(fields[8], "gene_name");
+				int start = Integer.parseInt(fields[3]);
+				int end = Integer.parseInt(fields[4]);
+				Map<String, Gene> target = isGene ? genes : exonSpans;
+				Gene gene = target.get(id);
+				if(gene == null) {
+					target.put(id, new Gene(id, geneName == null ? id : geneName, fields[0], start, end, fields[6].charAt(0)));
+				} else {
+					gene.start = Math.min(gene.start, start);
+					gene.end = Math.max(gene.end, end);
+				}
+			}
+		}
+		return new GeneAnnotation(new ArrayList<Gene>(genes.isEmpty() ? exonSpans.values() : genes.values()));
+	}
+
+	static BufferedReader open(File file) throws IOException {
+		if(file.getName().endsWith(".gz")) {
+			return new BufferedReader(new InputStreamReader(new GZIPInputStream(Files.newInputStream(file.toPath()))));
+		}
+		return Files.newBufferedReader(file.toPath());
+	}
+
+	static String attribute(String attributes, String key) {
+		for (String attribute : attributes.split(";")) {
+			String trimmed = attribute.trim();
+			if(trimmed.startsWith(key + " ")) {
+				return trimmed.substring(key.length() + 1).trim().replace("\"", "");
+			}
+		}
+		return null;
+	}
+
+	public int size() {
+		return genes.size();
+	}
+
+	public Gene getGene(int index) {
+		return genes.get(index);
+	}
+
+	/**
+	 * @param start 1-based start of the span
+	 * @param end 1-based inclusive end of the span
+	 * @return Index of the only gene overlapping the span, {@link #NO_GENE} or {@link #AMBIGUOUS}
+	 */
+	public int geneAt(String contig, int start, int end) {
+		ContigGenes contigGenes = contigs.get(contig);
+		if(contigGenes == null) {
+			return NO_GENE;
+		}
+		// Last gene starting at or before the end of the span
+		int low = 0;
+		int high = contigGenes.starts.length - 1;
+		int candidate = -1;
+		while (low <= high) {
+			int mid = (low + high) >>> 1;
+			if(contigGenes.starts[mid] <= end) {
+				candidate = mid;
+				low = mid + 1;
+			} else {
+				high = mid - 1;
+			}
+		}
+		int gene = NO_GENE;
+		for (int i = candidate; i >= 0 && contigGenes.maxEnds[i] >= start; i--) {
+			if(contigGenes.ends[i] >= start) {
+				if(gene != NO_GENE) {
+					return AMBIGUOUS;
+				}
+				gene = contigGenes.indices[i];
+			}
+		}
+		return gene;
+	}
+
+}
@@ -40,14 +40,26 @@ public class Hisat3nAlignedFragment {
 	private Hisat3nSAMRecord pair2;
 	
 	private int convertedBases;
+	private int unconvertedBases;
+	private boolean snpsMasked;
 	private double libraryFragmentLengthMean;
 	private double libraryFragmentLengthStdDev;
 	
 	public Hisat3nAlignedFragment(Hisat3nSAMRecord hisatRecord, SamReader pairQueryReader) {
+		this(hisatRecord, hisatRecord.getSAMRecord().getMateAlignmentStart() > 0 ? pairQueryReader.queryMate(hisatRecord.getSAMRecord()) : null);
+	}
+	
+	/**
+	 * Same as the SamReader one, with the mate found through the block cache of <code>mateLookupReader</code>
+	 */
+	public Hisat3nAlignedFragment(Hisat3nSAMRecord hisatRecord, MateLookupReader mateLookupReader) {
+		this(hisatRecord, hisatRecord.getSAMRecord().getMateAlignmentStart() > 0 ? mateLookupReader.queryMate(hisatRecord.getSAMRecord()) : null);
+	}
+	
+	private Hisat3nAlignedFragment(Hisat3nSAMRecord hisatRecord, SAMRecord mateSamRecord) {
 		libraryFragmentLengthMean = DEFAULT_FRAGMENT_SIZE;
 		libraryFragmentLengthStdDev = DEFAULT_FRAGMENT_SIZE_SD;
 	 	if(hisatRecord.getSAMRecord().getMateAlignmentStart() > 0) {
-	 		SAMRecord mateSamRecord = pairQueryReader.queryMate(hisatRecord.getSAMRecord());
 	 		if(mateSamRecord == null) {
 	 			System.err.println("ERROR: mate had a non-zero alignment start but queryMate returned null\n" + hisatRecord.getSAMRecord().format());
 	 		}
@@ -60,9 +72,11 @@ public class Hisat3nAlignedFragment {
 	 			pair2 = mate;
 	 		}
 	 		convertedBases = pair1.countConvertedBases()+pair2.countConvertedBases();
+	 		unconvertedBases = pair1.countUnconvertedBases()+pair2.countUnconvertedBases();
 	 	} else {
 	 		pair1 = hisatRecord;
 	 		convertedBases = pair1.countConvertedBases();
+	 		unconvertedBases = pair1.countUnconvertedBases();
 	 	}
 	}
 	
@@ -81,6 +95,7 @@ public class Hisat3nAlignedFragment {
 		}
 		
 		convertedBases = pair1.countConvertedBases()+pair2.countConvertedBases();
+		unconvertedBases = pair1.countUnconvertedBases()+pair2.countUnconvertedBases();
 
 	}
 
@@ -132,6 +147,33 @@ public class Hisat3nAlignedFragment {
 		return convertedBases;
 	}
 	
+	public int getUnconvertedBases() {
+		return unconvertedBases;
+	}
+	
+	/**
+	 * Leaves the bases of both mates at the SNPs out of the conversion counts. Only done
+	 * once, the same fragment is classified again when its downstream mate is written.
+	 */
+	void maskSnps(ConversionSnpMask snpMask) {
+		if(snpsMasked) {
+			return;
+		}
+		snpsMasked = true;
+		snpMask.mask(pair1);
+		convertedBases = pair1.countConvertedBases();
+		unconvertedBases = pair1.countUnconvertedBases();
+		if(pair2 != null) {
+			snpMask.mask(pair2);
+			convertedBases += pair2.countConvertedBases();
+			unconvertedBases += pair2.countUnconvertedBases();
+		}
+	}
+	
+	public float getFractionOfConvertedBases() {
+		return convertedBases > 0 ? convertedBases/(float) (convertedBases + unconvertedBases) : 0;
+	}
+	
 	public boolean isSpliced () {
 		return pair1.isSpliced() || 
 				(pair2 != null && pair2.isSpliced()) ||
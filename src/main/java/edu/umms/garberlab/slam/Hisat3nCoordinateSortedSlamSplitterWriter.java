@@ -27,94 +27,138 @@ package edu.umms.garberlab.slam;
 
 import java.io.File;
 import java.io.Serializable;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 
 import htsjdk.samtools.SAMFileHeader;
-import htsjdk.samtools.SAMFileWriter;
-import htsjdk.samtools.SAMFileWriterFactory;
-import htsjdk.samtools.SAMProgramRecord;
 import htsjdk.samtools.SAMRecord;
 import htsjdk.samtools.SamReader;
 
 public class Hisat3nCoordinateSortedSlamSplitterWriter extends Hisat3nSplitterWriter{
-	private SAMFileWriter unconvertedWriter;
-	private SAMFileWriter convertedWriter;
 	
 	private SamReader pairQueryReader;
-	
-	
-	private String unconvertedFilePath;
-	private String unconvertedFileIdxPath;
-	private String convertedFilePath;
-	private String convertedFileIdxPath;
+	private List<MateLookupReader> mateLookupReaders;
 	
 	//private SAMFileHeader header;
 	private FragmentCache cache;
+	
+	private TargetRegions targetRegions;
+	private DuplicateFilter duplicateFilter;
+	private ScatterGather.Shard shard;
 
 
-	public Hisat3nCoordinateSortedSlamSplitterWriter(File outDirFile, String outPrefix, SamReader reader, boolean asBAM)  {
-		this.unconvertedFilePath = outDirFile.getAbsolutePath() + "/" + outPrefix + "_unconverted.bam";
-		this.unconvertedFileIdxPath = outDirFile.getAbsolutePath() + "/" + outPrefix + "_unconverted.bai";
-		this.convertedFilePath = outDirFile.getAbsolutePath() + "/" + outPrefix + "_converted.bam";
-		this.convertedFileIdxPath = outDirFile.getAbsolutePath()+ "/" + outPrefix + "_converted.bai";
-		
-		SAMFileHeader header = reader.getFileHeader();
+	public Hisat3nCoordinateSortedSlamSplitterWriter(File outDirFile, String outPrefix, SamReader reader, SplitterOutputFormat format, File reference)  {
+		this(outDirFile, outPrefix, reader, format, reference, (PartitionedOutputWriter.Settings) null);
+	}
+	
+	/**
+	 * Paired-end writer
+	 * @param partitioning If not null, the outputs are written per contig and/or read group
+	 */
+	public Hisat3nCoordinateSortedSlamSplitterWriter(File outDirFile, String outPrefix, SamReader reader, SplitterOutputFormat format, File reference, PartitionedOutputWriter.Settings partitioning)  {
 		this.pairQueryReader = reader;
-		
-		SAMProgramRecord pg = new SAMProgramRecord(SlamSplitter.PROGRAM_NAME);
-		header.addProgramRecord(pg);
-		
-		SAMFileWriterFactory factory = new SAMFileWriterFactory();
-		if(asBAM) {
-			unconvertedWriter = factory.makeBAMWriter(header, false, new File(unconvertedFilePath));
-			convertedWriter = factory.makeBAMWriter(header, false, new File(convertedFilePath));
-                    
-		} else {
-			unconvertedWriter = factory.makeSAMWriter(header, false, new File(unconvertedFilePath));
-			convertedWriter = factory.makeSAMWriter(header, false, new File(convertedFilePath));
-		}
+		initializeWriters(outDirFile, outPrefix, reader.getFileHeader(), format, reference, null, partitioning);
 		
 		cache = new FragmentCache();
 			
 	}
 	
-	public Hisat3nCoordinateSortedSlamSplitterWriter(File outDirFile, String outPrefix, SAMFileHeader header, boolean asBAM)  {
-		this.unconvertedFilePath = outDirFile.getAbsolutePath() + "/" + outPrefix + "_unconverted.bam";
-		this.unconvertedFileIdxPath = outDirFile.getAbsolutePath() + "/" + outPrefix + "_unconverted.bai";
-		this.convertedFilePath = outDirFile.getAbsolutePath() + "/" + outPrefix + "_converted.bam";
-		this.convertedFileIdxPath = outDirFile.getAbsolutePath()+ "/" + outPrefix + "_converted.bai";
-		
-		
-		SAMProgramRecord pg = new SAMProgramRecord(SlamSplitter.PROGRAM_NAME);
-		header.addProgramRecord(pg);
-		
-		SAMFileWriterFactory factory = new SAMFileWriterFactory();
-		if(asBAM) {
-			unconvertedWriter = factory.makeBAMWriter(header, false, new File(unconvertedFilePath));
-			convertedWriter = factory.makeBAMWriter(header, false, new File(convertedFilePath));
-                    
-		} else {
-			unconvertedWriter = factory.makeSAMWriter(header, false, new File(unconvertedFilePath));
-			convertedWriter = factory.makeSAMWriter(header, false, new File(convertedFilePath));
-		}
+	/**
+	 * Paired-end writer for several merged inputs (see {@link MergingBamReader}), the mates
+	 * of each record are looked up in the file it comes from
+	 * @param mateLookupReaders One reader per input, in the order of the inputs
+	 */
+	public Hisat3nCoordinateSortedSlamSplitterWriter(File outDirFile, String outPrefix, SAMFileHeader header, List<MateLookupReader> mateLookupReaders, 
+			SplitterOutputFormat format, File reference, PartitionedOutputWriter.Settings partitioning)  {
+		this.mateLookupReaders = mateLookupReaders;
+		initializeWriters(outDirFile, outPrefix, header, format, reference, null, partitioning);
 		
+		cache = new FragmentCache();
+	}
+	
+	public Hisat3nCoordinateSortedSlamSplitterWriter(File outDirFile, String outPrefix, SAMFileHeader header, SplitterOutputFormat format, File reference)  {
+		this(outDirFile, outPrefix, header, format, reference, null, null);
+	}
+	
+	/**
+	 * Single-end writer
+	 * @param sorting If not null the outputs are coordinate sorted, for input that is not
+	 * @param partitioning If not null, the outputs are written per contig and/or read group
+	 */
+	public Hisat3nCoordinateSortedSlamSplitterWriter(File outDirFile, String outPrefix, SAMFileHeader header, SplitterOutputFormat format, File reference, 
+			CoordinateSortingWriter.Settings sorting, PartitionedOutputWriter.Settings partitioning)  {
+		initializeWriters(outDirFile, outPrefix, header, format, reference, sorting, partitioning);
 			
 	}
 	
 	
+	/**
+	 * Tells the writer the input is restricted to these regions, pairs with a mate
+	 * outside of them are written as soon as the mate inside is seen.
+	 */
+	public void setTargetRegions(TargetRegions targetRegions) {
+		this.targetRegions = targetRegions;
+	}
+	
+	/**
+	 * Looks the mates up through this reader and its block cache instead of the SamReader
+	 */
+	public void setMateLookupReader(MateLookupReader mateLookupReader) {
+		this.mateLookupReaders = Collections.singletonList(mateLookupReader);
+	}
+	
+	/**
+	 * Deduplicates the records before they are split. Only for single-end data.
+	 */
+	public void setDuplicateFilter(DuplicateFilter duplicateFilter) {
+		this.duplicateFilter = duplicateFilter;
+	}
+	
+	/**
+	 * Tells the writer it only sees the records of this shard, the mates in
+	 * other shards are written by them.
+	 */
+	public void setShard(ScatterGather.Shard shard) {
+		this.shard = shard;
+	}
+	
 	public void close() {
-		unconvertedWriter.close();
-		convertedWriter.close();
+		if(duplicateFilter != null) {
+			for (SAMRecord record : duplicateFilter.flush()) {
+				writeRecord(record);
+			}
+			getMetrics().countDuplicates(duplicateFilter.getDuplicates(), duplicateFilter.getExamined());
+		}
+		if(mateLookupReaders != null) {
+			for (MateLookupReader mateLookupReader : mateLookupReaders) {
+				getMetrics().countMateLookups(mateLookupReader.getLookups(), mateLookupReader.getPrefetchedLookups(), 
+						mateLookupReader.getBlockHits(), mateLookupReader.getBlockMisses());
+			}
+		}
+		closeWriters();
 		
 	}
 	
 	public void write(SAMRecord samRecord) {
+		if(duplicateFilter != null) {
+			for (SAMRecord record : duplicateFilter.add(samRecord)) {
+				writeRecord(record);
+			}
+		} else {
+			writeRecord(samRecord);
+		}
+	}
+	
+	private void writeRecord(SAMRecord samRecord) {
 		Hisat3nAlignedFragment fragment = null;
 		if(isPairedEnd()) {
 			fragment = cache.getFragment(samRecord.getReadName());
 		}
 		if(fragment == null) {
-			fragment = new Hisat3nAlignedFragment(new Hisat3nSAMRecord(samRecord), pairQueryReader);
+			fragment = mateLookupReaders != null ? 
+				new Hisat3nAlignedFragment(new Hisat3nSAMRecord(samRecord), mateLookupReaders.get(MergingBamReader.sourceOf(samRecord))) :
+				new Hisat3nAlignedFragment(new Hisat3nSAMRecord(samRecord), pairQueryReader);
 		}
 		
 		write(fragment);
@@ -125,36 +169,41 @@ public class Hisat3nCoordinateSortedSlamSplitterWriter extends Hisat3nSplitterWr
 		
 		
 		if(!isPairedEnd() ||  hisatAlignmentFragment.isUnpaired()) {
-			write(hisatAlignmentFragment.getPair1());
+			boolean converted = isConverted(hisatAlignmentFragment);
+			recordFragment(hisatAlignmentFragment, converted);
+			write(hisatAlignmentFragment.getPair1(), converted);
 		} else {
 			Hisat3nSAMRecord upstreamRecord = hisatAlignmentFragment.getUpstreamRecord();
 			Hisat3nSAMRecord downstreamRecord = hisatAlignmentFragment.getDownstreamRecord();
+			boolean converted = isConverted(hisatAlignmentFragment);
 			if(cache.hasFragment(downstreamRecord.getSAMRecord().getReadName())) {
-				write(downstreamRecord, hisatAlignmentFragment.getConvertedBases()>0);
+				write(downstreamRecord, converted);
 				cache.removeFragment(downstreamRecord.getSAMRecord().getReadName());
+			} else if (targetRegions != null && 
+					!(targetRegions.overlaps(upstreamRecord.getSAMRecord()) && targetRegions.overlaps(downstreamRecord.getSAMRecord()))) {
+				// The mate outside the targets will never come through the region query
+				recordFragment(hisatAlignmentFragment, converted);
+				write(upstreamRecord, converted);
+				write(downstreamRecord, converted);
+			} else if (shard != null &&
+					!(shard.contains(upstreamRecord.getSAMRecord()) && shard.contains(downstreamRecord.getSAMRecord()))) {
+				// Each shard writes its own mate, the fragment is counted by the shard of the upstream one
+				if(shard.contains(upstreamRecord.getSAMRecord())) {
+					recordFragment(hisatAlignmentFragment, converted);
+					write(upstreamRecord, converted);
+				} else {
+					annotate(hisatAlignmentFragment);
+					write(downstreamRecord, converted);
+				}
 			} else {
 				cache.addFragment(hisatAlignmentFragment);
-				write(upstreamRecord, hisatAlignmentFragment.getConvertedBases()>0);
+				recordFragment(hisatAlignmentFragment, converted);
+				write(upstreamRecord, converted);
 			}
 		}
 		
 	}
 	
-	private void write(Hisat3nSAMRecord record) { 
-		write (record, record.countConvertedBases()>0);
-	}
-	
-	private void write(Hisat3nSAMRecord record, boolean hasConvertedBases) {
-		if(hasConvertedBases) {
-			if(revertConversion()) {
-				record.revertConvertedBases();
-			}
-			convertedWriter.addAlignment(record.getSAMRecord());
-		} else {
-			unconvertedWriter.addAlignment(record.getSAMRecord());
-		}
-	}
-	
 
 }
 
@@ -3,23 +3,12 @@ package edu.umms.garberlab.slam;
 import java.io.File;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 import htsjdk.samtools.SAMFileHeader;
-import htsjdk.samtools.SAMFileWriter;
-import htsjdk.samtools.SAMFileWriterFactory;
-import htsjdk.samtools.SAMProgramRecord;
 import htsjdk.samtools.SAMRecord;
 import htsjdk.samtools.SamReader;
 
 public class Hisat3nQuerySortedSlamSplitterWritter extends Hisat3nSplitterWriter {
-	private String unconvertedFilePath;
-	private String convertedFilePath;
-	
-	private SAMFileWriter unconvertedWriter;
-	private SAMFileWriter convertedWriter;
-	
 	private List<SAMRecord> currentPairList;
 	
 	//TODO: either makes this configurable or deal with reads where the name of the pairs is not the same.
@@ -28,26 +17,27 @@ public class Hisat3nQuerySortedSlamSplitterWritter extends Hisat3nSplitterWriter
 	//NS500602:968:H7FMMBGXC:1:11101:1041:15222 2:N:0:AAGTCCAA        141     *       0       0       *       *       0       0       NNNNNNNNNNNNNNNNNNNNNNNNNNNNNNNNNNNNNNNNNNNNNNNNNNNNNNNNNNNNNNNNNNNNNNNNNNNNNNNN
 	//
 	
-	public Hisat3nQuerySortedSlamSplitterWritter(File outDirFile, String outPrefix, SamReader reader, boolean asBAM) {
-		this.unconvertedFilePath = outDirFile.getAbsolutePath() + "/" + outPrefix + "_unconverted.bam";
-		this.convertedFilePath = outDirFile.getAbsolutePath() + "/" + outPrefix + "_converted.bam";
-		
+	public Hisat3nQuerySortedSlamSplitterWritter(File outDirFile, String outPrefix, SamReader reader, SplitterOutputFormat format, File reference) {
+		this(outDirFile, outPrefix, reader, format, reference, null, null);
+	}
+	
+	/**
+	 * @param sorting If not null the outputs are coordinate sorted instead of keeping the read name order
+	 * @param partitioning If not null, the outputs are written per contig and/or read group
+	 */
+	public Hisat3nQuerySortedSlamSplitterWritter(File outDirFile, String outPrefix, SamReader reader, SplitterOutputFormat format, File reference, 
+			CoordinateSortingWriter.Settings sorting, PartitionedOutputWriter.Settings partitioning) {
+		this(outDirFile, outPrefix, reader.getFileHeader(), format, reference, sorting, partitioning);
+	}
+	
+	/**
+	 * @param header Header of the input, i.e. the merged header of several inputs
+	 */
+	public Hisat3nQuerySortedSlamSplitterWritter(File outDirFile, String outPrefix, SAMFileHeader header, SplitterOutputFormat format, File reference, 
+			CoordinateSortingWriter.Settings sorting, PartitionedOutputWriter.Settings partitioning) {
 		currentPairList = new ArrayList<SAMRecord>();
 		
-		SAMProgramRecord pg = new SAMProgramRecord(SlamSplitter.PROGRAM_NAME);
-		SAMFileHeader header = reader.getFileHeader();
-		header.addProgramRecord(pg);
-		
-		SAMFileWriterFactory factory = new SAMFileWriterFactory();
-		if(asBAM) {
-			unconvertedWriter = factory.makeBAMWriter(header, false, new File(unconvertedFilePath)); 
-			convertedWriter = factory.makeBAMWriter(header, false, new File(convertedFilePath));
-                    
-		} else {
-			unconvertedWriter = factory.makeSAMWriter(header, false, new File(unconvertedFilePath));
-			convertedWriter = factory.makeSAMWriter(header, false, new File(convertedFilePath));
-		}
-		
+		initializeWriters(outDirFile, outPrefix, header, format, reference, sorting, partitioning);
 		
 	}
 
@@ -56,8 +46,7 @@ public class Hisat3nQuerySortedSlamSplitterWritter extends Hisat3nSplitterWriter
 		if(!currentPairList.isEmpty()) {
 			processPairList();
 		}
-		unconvertedWriter.close();
-		convertedWriter.close();
+		closeWriters();
  
 	}
 
@@ -85,37 +74,26 @@ public class Hisat3nQuerySortedSlamSplitterWritter extends Hisat3nSplitterWriter
 	
 
 	public void write(Hisat3nAlignedFragment hisatAlignmentFragment) {
+		boolean converted = isConverted(hisatAlignmentFragment);
+		recordFragment(hisatAlignmentFragment, converted);
 		if(!isPairedEnd() ||  hisatAlignmentFragment.isUnpaired()) {
-			write(hisatAlignmentFragment.getPair1(), hisatAlignmentFragment.getConvertedBases()>0);
+			write(hisatAlignmentFragment.getPair1(), converted);
 		} else {
-			int convertedBases = hisatAlignmentFragment.getConvertedBases();
 			Hisat3nSAMRecord upstreamRecord = hisatAlignmentFragment.getUpstreamRecord();
-			write(upstreamRecord, convertedBases > 0);
+			write(upstreamRecord, converted);
 			Hisat3nSAMRecord downstreamRecord = hisatAlignmentFragment.getDownstreamRecord();
-			write(downstreamRecord, convertedBases > 0);
+			write(downstreamRecord, converted);
 		}
 
 	}
 	
-	private void write(Hisat3nSAMRecord record, boolean hasConvertedBases) {
-		if(hasConvertedBases) {
-			if(revertConversion()) {
-				record.revertConvertedBases();
-			}
-			convertedWriter.addAlignment(record.getSAMRecord());
-		} else {
-			unconvertedWriter.addAlignment(record.getSAMRecord());
-		}
-	}
-	
 	
 	private void processPairList() {
 		if(currentPairList.size() % 2 != 0) {
-			System.err.println("ERROR: Found a list that is supposed to contain read pairs with odd size: " + currentPairList.size() + " reads: ");
 			for (SAMRecord r : currentPairList) {
 				System.err.println(r.toString());
 			}
-			System.exit(1);
+			throw new IllegalStateException("Found a list that is supposed to contain read pairs with odd size: " + currentPairList.size() + " reads, listed above");
 		}
 		
 		int i = 0;
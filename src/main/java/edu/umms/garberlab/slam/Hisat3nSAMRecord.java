@@ -34,6 +34,7 @@ import java.util.Map;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
+import htsjdk.samtools.AlignmentBlock;
 import htsjdk.samtools.Cigar;
 import htsjdk.samtools.CigarElement;
 import htsjdk.samtools.CigarOperator;
@@ -51,12 +52,18 @@ public class Hisat3nSAMRecord implements Serializable{
 	public final static int MIN_INTRON_LENGTH = 20;
 	public final static int MIN_MATCH_LENTH = 15;
 	
+	/** B:i array of the 1-based reference positions of the conversions, see {@link #tagConversions()}. Lower case, as hisat2 already writes X? tags */
+	public final static String CONVERSION_POSITIONS_TAG = "xp";
+	/** B:S array of the 0-based read offsets of the conversions, in the orientation of the record. Not XO, the gap opens of hisat2 */
+	public final static String CONVERSION_OFFSETS_TAG = "xo";
+	
 	private String mdTag;
 	private int nhTag;
 	private int nmTag;
 	private int asTag;
 	private char yzTag;
 	private int yfTag;
+	private int zfTag;
 	
 	private SAMRecord samRecord;
 	
@@ -64,11 +71,15 @@ public class Hisat3nSAMRecord implements Serializable{
 	private int cigarElementArrayIdx;
 	private int cigarIdx;
 	
-	private Map<Integer, Character> sequenceToReferenceMap ;
+	/** Reference base of each mismatched read offset, 0 where the read matches. Built on first use, splitting alone only needs the tags */
+	private byte [] mismatchBases;
+	
+	/** Set per thread, the jobs of a {@link SplitterServer} can split against different references */
+	private static final ThreadLocal<IndexedFastaReference> mismatchReference = new ThreadLocal<IndexedFastaReference>();
+	private static final ThreadLocal<Boolean> recomputeMD = new ThreadLocal<Boolean>();
 
 	public Hisat3nSAMRecord(SAMRecord samRecord) {
 		this.samRecord = samRecord;
-		sequenceToReferenceMap = new HashMap<Integer, Character> ();
 		if(!samRecord.getReadUnmappedFlag()) {
 	        mdTag = (String) samRecord.getAttribute("MD");
 	        nhTag = (int) samRecord.getAttribute("NH");
@@ -76,7 +87,12 @@ public class Hisat3nSAMRecord implements Serializable{
 	        asTag = (int) samRecord.getAttribute("AS");
 	        yzTag = (char) samRecord.getAttribute("YZ"); 
 	        yfTag = (int) samRecord.getAttribute("Yf");
-	        sequenceToReferenceMap = makeSequenceToReferenceMap(samRecord.getCigar(), mdTag);
+	        Integer zf = samRecord.getIntegerAttribute("Zf");
+	        zfTag = zf == null ? 0 : zf;
+	        if(mdTag == null && mismatchReference.get() == null) {
+	        	throw new IllegalArgumentException("Alignment " + samRecord.getReadName() + " has no MD tag, " +
+	        			"please provide the reference FASTA with -reference to compute the mismatches");
+	        }
 		}
 		//cigarElntIterator = samRecord.getCigar().iterator();
 		cigarElementArrayIdx = 0;
@@ -86,6 +102,17 @@ public class Hisat3nSAMRecord implements Serializable{
 	}
 
 
+	/**
+	 * Mismatches of records without an MD tag, created by the calling thread, are computed against this reference
+	 * @param recompute If true the MD tags are ignored, i.e. stale after a realignment, and
+	 * the mismatches of every record are computed against the reference
+	 */
+	public static void setMismatchReference(IndexedFastaReference reference, boolean recompute) {
+		mismatchReference.set(reference);
+		recomputeMD.set(recompute);
+	}
+
+
 	public String getMdTag() {
 		return mdTag;
 	}
@@ -147,6 +174,16 @@ public class Hisat3nSAMRecord implements Serializable{
 	}
 
 
+	public int getZfTag() {
+		return zfTag;
+	}
+
+
+	public void setZfTag(int zfTag) {
+		this.zfTag = zfTag;
+	}
+
+
 	public boolean isSpliced() {
         Cigar cigar = samRecord.getCigar();	
         List<CigarElement> elements = cigar.getCigarElements();
@@ -198,9 +235,17 @@ public class Hisat3nSAMRecord implements Serializable{
 		return getYfTag();
 	}
 	
+	public int countUnconvertedBases() {
+		return getZfTag();
+	}
+	
+	/**
+	 * @return Yf/(Yf+Zf), the fraction of the bases that could be converted that were
+	 */
 	public float getFractionOfConvertedBases() {
 		int convertedBases = countConvertedBases();
-		return convertedBases > 0 ? convertedBases/getYzTag() : 0;
+		int convertibleBases = convertedBases + countUnconvertedBases();
+		return convertedBases > 0 ? convertedBases/(float) convertibleBases : 0;
 	}
 	
 	public void revertConvertedBases() {
@@ -209,15 +254,7 @@ public class Hisat3nSAMRecord implements Serializable{
 		char convertToBaseType = '+' == strand ? 'T' : 'A';
 		char convertedToBase     = '+' == strand ? 'C' : 'G'; 
 		byte convertedToBaseByte = (byte) convertedToBase;
-		short revertedBases = 0;
-		
-		for(int pos : sequenceToReferenceMap.keySet()) {
-			char mismatchCharacter = sequenceToReferenceMap.get(pos);
-			if(mismatchCharacter == convertToBaseType  && readBases[pos] == convertedToBaseByte) {
-				readBases[pos] = (byte) mismatchCharacter;
-				revertedBases++;
-			}
-		}
+		int revertedBases = BaseScanner.get().revert(readBases, getMismatchBases(), (byte) convertToBaseType, convertedToBaseByte);
 		
 		if(revertedBases != getYfTag()) {			
 			System.err.println("BUG: - reverted bases mismatch\n"+samRecord.format());
@@ -226,6 +263,99 @@ public class Hisat3nSAMRecord implements Serializable{
 	}
 
 
+	/**
+	 * Reference positions of the conversions in the read: T&gt;C for reads aligned to
+	 * the + strand (YZ:A:+), A&gt;G for reads aligned to the - strand. Must be called before
+	 * the conversions are reverted.
+	 * @return 1-based reference positions, in the order of {@link #getConversionReadOffsets()}
+	 */
+	public int [] getConversionReferencePositions() {
+		return getReferencePositions(getConversionReadOffsets());
+	}
+
+	/**
+	 * Read offsets of the conversions, see {@link #getConversionReferencePositions()}
+	 * @return 0-based offsets in the read bases of the record, sorted
+	 */
+	public int [] getConversionReadOffsets() {
+		if(getYfTag() == 0) {
+			return new int[0];
+		}
+		char strand = getYzTag();
+		byte [] readBases = samRecord.getReadBases();
+		char convertToBaseType = '+' == strand ? 'T' : 'A';
+		byte convertedToBaseByte = (byte) ('+' == strand ? 'C' : 'G');
+		int [] offsets = new int[getYfTag()];
+		int found = BaseScanner.get().findConversions(readBases, getMismatchBases(), (byte) convertToBaseType, convertedToBaseByte, offsets);
+		return found == offsets.length ? offsets : Arrays.copyOf(offsets, found);
+	}
+
+	/**
+	 * Writes the conversions as two arrays, so that downstream tools do not need to walk the
+	 * CIGAR and MD tags again: the reference positions ({@value #CONVERSION_POSITIONS_TAG}:B:i)
+	 * and the read offsets ({@value #CONVERSION_OFFSETS_TAG}:B:S). The tags are lower case, which
+	 * SAM leaves to end users, so they do not overwrite the XO:i (gap opens) and other X? tags of
+	 * hisat2. Must be called before the conversions are reverted. Records without conversions
+	 * are left untouched.
+	 */
+	public void tagConversions() {
+		int [] offsets = getConversionReadOffsets();
+		if(offsets.length == 0) {
+			return;
+		}
+		short [] unsignedOffsets = new short[offsets.length];
+		for (int i = 0; i < offsets.length; i++) {
+			unsignedOffsets[i] = (short) offsets[i];
+		}
+		samRecord.setAttribute(CONVERSION_POSITIONS_TAG, getReferencePositions(offsets));
+		samRecord.setUnsignedArrayAttribute(CONVERSION_OFFSETS_TAG, unsignedOffsets);
+	}
+
+	/**
+	 * @param offsets Sorted 0-based read offsets of aligned bases
+	 * @return Their 1-based reference positions, walking the alignment blocks once
+	 */
+	private int [] getReferencePositions(int [] offsets) {
+		int [] positions = new int[offsets.length];
+		List<AlignmentBlock> blocks = samRecord.getAlignmentBlocks();
+		int blockIdx = 0;
+		for (int i = 0; i < offsets.length; i++) {
+			int readPosition = offsets[i] + 1;
+			while (blockIdx < blocks.size() && blocks.get(blockIdx).getReadStart() + blocks.get(blockIdx).getLength() <= readPosition) {
+				blockIdx++;
+			}
+			if(blockIdx < blocks.size() && blocks.get(blockIdx).getReadStart() <= readPosition) {
+				AlignmentBlock block = blocks.get(blockIdx);
+				positions[i] = block.getReferenceStart() + readPosition - block.getReadStart();
+			}
+		}
+		return positions;
+	}
+
+	/**
+	 * @return Reference base of each mismatched read position (0-based), '-' for
+	 * soft clipped and inserted bases, 0 for matches. Empty for unmapped records.
+	 */
+	byte [] getMismatchBases() {
+		if(mismatchBases == null) {
+			if(samRecord.getReadUnmappedFlag()) {
+				mismatchBases = new byte[0];
+			} else if(mismatchReference.get() != null && (mdTag == null || recomputeMD.get())) {
+				mismatchBases = makeMismatchBases(samRecord, mismatchReference.get());
+			} else {
+				mismatchBases = makeMismatchBases(samRecord.getCigar(), mdTag);
+			}
+		}
+		return mismatchBases;
+	}
+
+	/**
+	 * Same as {@link #getMismatchBases()}, keyed by read position
+	 */
+	Map<Integer, Character> getSequenceToReferenceMap() {
+		return toMap(getMismatchBases());
+	}
+
 	public SAMRecord getSAMRecord() {
 		return this.samRecord;
 	}
@@ -235,7 +365,21 @@ public class Hisat3nSAMRecord implements Serializable{
 	}
 	
 	protected static Map<Integer, Character> makeSequenceToReferenceMap (Cigar cigar, String mdTag) {
+		return toMap(makeMismatchBases(cigar, mdTag));
+	}
+	
+	private static Map<Integer, Character> toMap(byte [] mismatchBases) {
 		Map<Integer, Character> queryMismatch = new HashMap<Integer, Character>();
+		for (int i = 0; i < mismatchBases.length; i++) {
+			if(mismatchBases[i] != 0) {
+				queryMismatch.put(i, (char) mismatchBases[i]);
+			}
+		}
+		return queryMismatch;
+	}
+	
+	protected static byte [] makeMismatchBases (Cigar cigar, String mdTag) {
+		byte [] queryMismatch = new byte[cigar.getReadLength()];
 		Iterator<CigarElement>  cigarElmntIt = cigar.iterator();
 		Matcher matcher = MDBlockPattern.matcher(mdTag);
 		//String [] reconstruction = new String[cigar.getReadLength(cigar.getCigarElements())];
@@ -250,7 +394,7 @@ public class Hisat3nSAMRecord implements Serializable{
 			queryIdx =  cigarElement.getLength();
 			cigarCummulativeWalk = cigarElement.getLength();
 			for (int i = 0; i< queryIdx ; i++) {
-				queryMismatch.put(i, '-');
+				queryMismatch[i] = '-';
 			}
 			cigarElement = cigarElmntIt.next();
 		}
@@ -277,10 +421,8 @@ public class Hisat3nSAMRecord implements Serializable{
 				try {
 					blockLength = Integer.parseInt(refInsertionInfo[0]);	
 				} catch (java.lang.NumberFormatException e) {
-					System.err.println("Error parsing md tag.\nMD: "+ mdTag +"\ncigar: " + cigar.toString());
-					e.printStackTrace();
-					System.exit(1)
-;				}
+					throw new IllegalArgumentException("Error parsing md tag. MD: "+ mdTag +" cigar: " + cigar.toString(), e);
+				}
 				//mismatch =  mdElement.charAt(mdElement.length() - 1);
 			} else {
 				mismatch =  mdElement.charAt(mdElement.length() - 1);
@@ -301,7 +443,7 @@ public class Hisat3nSAMRecord implements Serializable{
 					}
 					if(co.equals(CigarOperator.I)) {
 						for (int j = 0; j < cigarElement.getLength(); j++) {
-							queryMismatch.put(queryIdx, '-');
+							queryMismatch[queryIdx] = '-';
 							queryIdx += 1;
 							cigarCummulativeWalk += 1;
 						}
@@ -324,7 +466,7 @@ public class Hisat3nSAMRecord implements Serializable{
 
 				if(co.equals(CigarOperator.I)) {
 					for (int j = 0; j < cigarElement.getLength(); j++) {
-						queryMismatch.put(queryIdx, '-');
+						queryMismatch[queryIdx] = '-';
 						queryIdx += 1;
 						cigarCummulativeWalk += 1;
 					}
@@ -336,7 +478,7 @@ public class Hisat3nSAMRecord implements Serializable{
 				cigarCummulativeWalk += cigarElement.getLength();
 			}
 			if(! ('^' == mismatch || '*' == mismatch) ) {
-				queryMismatch.put(queryIdx, mismatch);
+				queryMismatch[queryIdx] = (byte) mismatch;
 				queryIdx += 1;
 			}
 			// Done updating Cigar position, now lets look at the MD tag
@@ -346,4 +488,42 @@ public class Hisat3nSAMRecord implements Serializable{
 		return queryMismatch;
 	}
 	
+	protected static byte [] makeMismatchBases (SAMRecord samRecord, IndexedFastaReference reference) {
+		IndexedFastaReference.Window window = reference.window(samRecord.getReferenceName(), samRecord.getAlignmentStart(), samRecord.getAlignmentEnd());
+		return makeMismatchBases(samRecord.getCigar(), samRecord.getReadBases(), window, samRecord.getAlignmentStart());
+	}
+	
+	/**
+	 * Same map as the one built from the MD tag, with the reference bases taken from <code>window</code>
+	 * @param alignmentStart 1-based reference position of the first aligned base
+	 */
+	protected static Map<Integer, Character> makeSequenceToReferenceMap (Cigar cigar, byte [] readBases, IndexedFastaReference.Window window, int alignmentStart) {
+		return toMap(makeMismatchBases(cigar, readBases, window, alignmentStart));
+	}
+	
+	/**
+	 * Aligned blocks are compared to the reference in bulk, see {@link BaseScanner#markMismatches}
+	 */
+	protected static byte [] makeMismatchBases (Cigar cigar, byte [] readBases, IndexedFastaReference.Window window, int alignmentStart) {
+		byte [] queryMismatch = new byte[readBases.length];
+		BaseScanner scanner = BaseScanner.get();
+		int queryIdx = 0;
+		int referencePosition = alignmentStart;
+		for (CigarElement element : cigar.getCigarElements()) {
+			CigarOperator co = element.getOperator();
+			int length = element.getLength();
+			if(co.equals(CigarOperator.S) || co.equals(CigarOperator.I)) {
+				Arrays.fill(queryMismatch, queryIdx, queryIdx + length, (byte) '-');
+				queryIdx += length;
+			} else if(co.isAlignment()) {
+				scanner.markMismatches(readBases, queryIdx, window.getBases(), window.index(referencePosition), length, queryMismatch);
+				queryIdx += length;
+				referencePosition += length;
+			} else if(co.consumesReferenceBases()) {
+				referencePosition += length;
+			}
+		}
+		return queryMismatch;
+	}
+	
 }
\ No newline at end of file
@@ -24,9 +24,16 @@
 
 package edu.umms.garberlab.slam;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMFileHeader.SortOrder;
+import htsjdk.samtools.SAMFileWriter;
+import htsjdk.samtools.SAMFileWriterFactory;
+import htsjdk.samtools.SAMProgramRecord;
 import htsjdk.samtools.SAMRecord;
 
 /**
@@ -36,8 +43,26 @@ import htsjdk.samtools.SAMRecord;
  abstract  class Hisat3nSplitterWriter {
 	
 	private boolean revertConversion;
+	private boolean tagConversions;
 	private boolean isPairedEnd;
 	private boolean writeUnmapped;
+	
+	private String unconvertedFilePath;
+	private String convertedFilePath;
+	
+	private SAMFileWriter unconvertedWriter;
+	private SAMFileWriter convertedWriter;
+	
+	private ConversionSidecarWriter sidecarWriter;
+	private ConversionSiteIndexWriter siteIndexWriter;
+	private FastqOutputWriter fastqWriter;
+	private CoverageTracks coverageTracks;
+	private ConversionQC qc;
+	private NewRnaEstimator newRnaEstimator;
+	private AnnotationIndex annotationIndex;
+	private ConversionSnpMask snpMask;
+	private ConversionClassifier classifier = ConversionClassifier.DEFAULT;
+	private final SplitterMetrics metrics = new SplitterMetrics();
 
 	abstract public void close();
 	abstract public void write(SAMRecord samRecord);
@@ -45,7 +70,222 @@ import htsjdk.samtools.SAMRecord;
 	
 	
 	private static final Pattern ReadNameWithSpace = Pattern.compile(" +.*");
+	
+	/**
+	 * Opens the converted and unconverted output files
+	 * @param outDirFile Output directory
+	 * @param outPrefix Prefix for the output files
+	 * @param header Header of the input alignment, the program record is added to it
+	 * @param format Output format
+	 * @param reference Reference FASTA, required only for CRAM output
+	 */
+	protected void initializeWriters(File outDirFile, String outPrefix, SAMFileHeader header, SplitterOutputFormat format, File reference) {
+		initializeWriters(outDirFile, outPrefix, header, format, reference, null, null);
+	}
+	
+	/**
+	 * Opens the converted and unconverted output files
+	 * @param sorting If not null, the outputs are coordinate sorted and BAM/CRAM outputs indexed
+	 * whatever the order of the input
+	 * @param partitioning If not null, each output is written as one file per contig and/or read group
+	 */
+	protected void initializeWriters(File outDirFile, String outPrefix, SAMFileHeader header, SplitterOutputFormat format, File reference, 
+			CoordinateSortingWriter.Settings sorting, PartitionedOutputWriter.Settings partitioning) {
+		this.unconvertedFilePath = outputFile(outDirFile, outPrefix, false, format).getAbsolutePath();
+		this.convertedFilePath = outputFile(outDirFile, outPrefix, true, format).getAbsolutePath();
+		
+		SAMProgramRecord pg = new SAMProgramRecord(SlamSplitter.PROGRAM_NAME);
+		header.addProgramRecord(pg);
+		
+		SAMFileWriterFactory factory = new SAMFileWriterFactory();
+		if(partitioning != null) {
+			if(sorting != null) {
+				throw new IllegalArgumentException("Partitioned outputs cannot be sorted");
+			}
+			// Each output gets half of the open writers
+			PartitionedOutputWriter.Settings perOutput = new PartitionedOutputWriter.Settings(partitioning, Math.max(1, partitioning.getMaxOpenWriters() / 2));
+			unconvertedWriter = new PartitionedOutputWriter(outDirFile, outPrefix, false, header, format, reference, perOutput);
+			convertedWriter = new PartitionedOutputWriter(outDirFile, outPrefix, true, header, format, reference, perOutput);
+		} else if(sorting == null) {
+			unconvertedWriter = format.makeWriter(factory, header, new File(unconvertedFilePath), reference);
+			convertedWriter = format.makeWriter(factory, header, new File(convertedFilePath), reference);
+		} else {
+			SAMFileHeader sortedHeader = header.clone();
+			sortedHeader.setSortOrder(SortOrder.coordinate);
+			factory.setCreateIndex(format != SplitterOutputFormat.SAM);
+			// Each output gets half of the memory
+			unconvertedWriter = new CoordinateSortingWriter(format.makeWriter(factory, sortedHeader, new File(unconvertedFilePath), reference, true), 
+					sorting.getMemoryBytes() / 2, sorting.getTmpDir());
+			convertedWriter = new CoordinateSortingWriter(format.makeWriter(factory, sortedHeader, new File(convertedFilePath), reference, true), 
+					sorting.getMemoryBytes() / 2, sorting.getTmpDir());
+		}
+	}
+	
+	/**
+	 * @return The path of the converted or unconverted output file
+	 */
+	static File outputFile(File outDirFile, String outPrefix, boolean converted, SplitterOutputFormat format) {
+		return new File(outDirFile.getAbsolutePath() + "/" + outPrefix + (converted ? "_converted" : "_unconverted") + format.getExtension());
+	}
+	
+	protected void closeWriters() {
+		unconvertedWriter.close();
+		convertedWriter.close();
+		if(sidecarWriter != null) {
+			try {
+				sidecarWriter.close();
+			} catch (IOException e) {
+				throw new RuntimeException("Could not close the sidecar file", e);
+			}
+		}
+		if(siteIndexWriter != null) {
+			try {
+				siteIndexWriter.close();
+			} catch (IOException e) {
+				throw new RuntimeException("Could not write the conversion site index", e);
+			}
+		}
+		if(fastqWriter != null) {
+			try {
+				fastqWriter.close();
+			} catch (IOException e) {
+				throw new RuntimeException("Could not close the FASTQ files", e);
+			}
+			metrics.countFastqSingletons(fastqWriter.getSingletonReads());
+		}
+		if(coverageTracks != null) {
+			try {
+				coverageTracks.close();
+			} catch (IOException e) {
+				throw new RuntimeException("Could not write the coverage tracks", e);
+			}
+			if(coverageTracks.getOutOfOrder() > 0) {
+				System.err.println("Warning: " + coverageTracks.getOutOfOrder() + " alignments out of coordinate order, i.e. mates outside -regions, are not in the coverage tracks");
+			}
+		}
+	}
+	
+	protected void write(Hisat3nSAMRecord record, boolean hasConvertedBases) {
+		if(qc != null) {
+			qc.add(record);
+		}
+		if(hasConvertedBases && tagConversions) {
+			record.tagConversions();
+		}
+		if(hasConvertedBases && revertConversion()) {
+			record.revertConvertedBases();
+		}
+		addAlignment(record.getSAMRecord(), hasConvertedBases);
+	}
+	
+	/**
+	 * Writes a record of a fragment routed elsewhere, i.e. from a sidecar. It is
+	 * only parsed when its conversions are tagged or reverted.
+	 */
+	protected void route(SAMRecord samRecord, boolean hasConvertedBases) {
+		if(hasConvertedBases && (revertConversion() || tagConversions())) {
+			write(new Hisat3nSAMRecord(samRecord), hasConvertedBases);
+		} else {
+			addAlignment(samRecord, hasConvertedBases);
+		}
+	}
+	
+	protected void addAlignment(SAMRecord samRecord, boolean hasConvertedBases) {
+		if(fastqWriter != null) {
+			fastqWriter.add(samRecord, hasConvertedBases);
+		}
+		if(coverageTracks != null) {
+			try {
+				coverageTracks.add(samRecord, hasConvertedBases);
+			} catch (IOException e) {
+				throw new RuntimeException("Could not write the coverage tracks", e);
+			}
+		}
+		if(hasConvertedBases) {
+			convertedWriter.addAlignment(samRecord);
+		} else {
+			unconvertedWriter.addAlignment(samRecord);
+		}
+	}
+	
+	/**
+	 * Called once per fragment when its routing is decided
+	 */
+	protected void recordFragment(Hisat3nAlignedFragment fragment, boolean converted) {
+		metrics.countFragment(converted, fragment.isMapped(), fragment.isMapped() && fragment.isSpliced());
+		if(annotationIndex != null && fragment.isMapped()) {
+			metrics.countFeature(annotationIndex.annotate(fragment));
+		}
+		if(sidecarWriter != null) {
+			sidecarWriter.add(fragment);
+		}
+		if(siteIndexWriter != null && converted) {
+			siteIndexWriter.add(fragment);
+		}
+		if(newRnaEstimator != null) {
+			newRnaEstimator.add(fragment);
+		}
+	}
+	
+	/**
+	 * Writes a row per fragment to this sidecar, it is closed with the writers.
+	 */
+	public void setSidecarWriter(ConversionSidecarWriter sidecarWriter) {
+		this.sidecarWriter = sidecarWriter;
+	}
 		
+	/**
+	 * Counts the conversions of every converted fragment in this index, it is written when the writers are closed.
+	 */
+	public void setSiteIndexWriter(ConversionSiteIndexWriter siteIndexWriter) {
+		this.siteIndexWriter = siteIndexWriter;
+	}
+	
+	/**
+	 * Also writes the reads of the outputs as FASTQ, it is closed with the writers.
+	 */
+	public void setFastqWriter(FastqOutputWriter fastqWriter) {
+		this.fastqWriter = fastqWriter;
+	}
+	
+	/**
+	 * Adds every record written to the coverage tracks, they are closed with the writers.
+	 */
+	public void setCoverageTracks(CoverageTracks coverageTracks) {
+		this.coverageTracks = coverageTracks;
+	}
+	
+	/**
+	 * Accumulates the labeling QC of every record written, the caller writes the report.
+	 */
+	public void setQC(ConversionQC qc) {
+		this.qc = qc;
+	}
+	
+	/**
+	 * Counts the conversions of every fragment in the histogram of its gene, the caller fits and writes the estimates.
+	 */
+	public void setNewRnaEstimator(NewRnaEstimator newRnaEstimator) {
+		this.newRnaEstimator = newRnaEstimator;
+	}
+	
+	/**
+	 * Finds whether each fragment is exonic, intronic, mixed or intergenic, for the metrics and to
+	 * partition the outputs by feature
+	 */
+	public void setAnnotationIndex(AnnotationIndex annotationIndex) {
+		this.annotationIndex = annotationIndex;
+	}
+	
+	/**
+	 * Sets the feature of a fragment that is written but counted elsewhere, i.e. by another shard
+	 */
+	protected void annotate(Hisat3nAlignedFragment fragment) {
+		if(annotationIndex != null && fragment.isMapped()) {
+			annotationIndex.annotate(fragment);
+		}
+	}
+	
 	public void turnOnConversionReversion() {
 		this.revertConversion = true;
 	}
@@ -58,6 +298,44 @@ import htsjdk.samtools.SAMRecord;
 		return this.revertConversion;
 	}
 	
+	/**
+	 * Writes the positions of the conversions of the converted records as tags,
+	 * see {@link Hisat3nSAMRecord#tagConversions()}
+	 */
+	public void setTagConversions(boolean tagConversions) {
+		this.tagConversions = tagConversions;
+	}
+	
+	protected boolean tagConversions() {
+		return this.tagConversions;
+	}
+	
+	public SplitterMetrics getMetrics() {
+		return metrics;
+	}
+	
+	public void setClassifier(ConversionClassifier classifier) {
+		this.classifier = classifier;
+	}
+	
+	public ConversionClassifier getClassifier() {
+		return classifier;
+	}
+	
+	/**
+	 * Does not count the conversions at these SNPs, the fragments are masked before they are classified
+	 */
+	public void setSnpMask(ConversionSnpMask snpMask) {
+		this.snpMask = snpMask;
+	}
+	
+	protected boolean isConverted(Hisat3nAlignedFragment fragment) {
+		if(snpMask != null) {
+			fragment.maskSnps(snpMask);
+		}
+		return classifier.isConverted(fragment);
+	}
+	
 	public void setPairedEnd(boolean pairedEnd) {
 		this.isPairedEnd = pairedEnd;
 	}
@@ -88,5 +366,24 @@ import htsjdk.samtools.SAMRecord;
 		}
 		return samRecordReadName1.equals(samRecordReadName2);
 	}
+	
+	/**
+	 * 64 bit hash of a read name, like readNamesMatch it ignores anything after the first space
+	 * so that both mates hash to the same value.
+	 */
+	protected static long readNameHash(String readName) {
+		long h = 0xcbf29ce484222325L;
+		for (int i = 0; i < readName.length(); i++) {
+			char c = readName.charAt(i);
+			if(c == ' ') {
+				break;
+			}
+			h = (h ^ c) * 0x100000001b3L;
+		}
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		return h;
+	}
 
 }
@@ -0,0 +1,256 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2022 University of Massachusetts Medical School
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package edu.umms.garberlab.slam;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.Map;
+
+import htsjdk.samtools.BAMRecordCodec;
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.util.RuntimeIOException;
+
+/**
+ * Splits paired-end alignments in no particular order, i.e. straight out of hisat-3n,
+ * without sorting them first.
+ *
+ * Records wait for their mate in a table keyed by read name and the positions of both mates.
+ * Once the table holds its memory budget, records whose mate is not in it are partitioned by
+ * read name hash to temporary bucket files, and so are the records still waiting at the end.
+ * Both mates of a pair land in the same bucket, so each bucket is then paired on its own, and
+ * partitioned again with another hash if it does not fit either.
+ *
+ * @author mgarber
+ *
+ */
+public class Hisat3nUnsortedSlamSplitterWriter extends Hisat3nSplitterWriter {
+
+	public static final int DEFAULT_BUCKETS = 64;
+	/** Approximate heap used by a waiting record and its table entry, on top of its bases and qualities */
+	private static final int RECORD_OVERHEAD = 400;
+	/** Buckets are partitioned again at most this many times, then paired in memory whatever their size */
+	private static final int MAX_DEPTH = 4;
+
+	private final SAMFileHeader header;
+	private final long budget;
+	private final File tmpDir;
+	private final int buckets;
+
+	private final MatePairer pairer;
+	private long spilled;
+	private long orphans;
+	private String orphan;
+
+	/**
+	 * @param pairMemory Bytes of records waiting for their mate before they are written to buckets
+	 * @param tmpDir Directory for the buckets
+	 * @param sorting If not null the outputs are coordinate sorted
+	 * @param partitioning If not null, the outputs are written per contig and/or read group
+	 */
+	public Hisat3nUnsortedSlamSplitterWriter(File outDirFile, String outPrefix, SAMFileHeader header, SplitterOutputFormat format, File reference, 
+			long pairMemory, File tmpDir, CoordinateSortingWriter.Settings sorting, PartitionedOutputWriter.Settings partitioning) {
+		this.header = header;
+		this.budget = pairMemory;
+		this.tmpDir = tmpDir;
+		this.buckets = DEFAULT_BUCKETS;
+		initializeWriters(outDirFile, outPrefix, header, format, reference, sorting, partitioning);
+		pairer = new MatePairer(0);
+	}
+
+	@Override
+	public void close() {
+		try {
+			pairer.finish();
+		} catch (IOException e) {
+			throw new RuntimeIOException("Could not pair the mates partitioned to " + tmpDir, e);
+		} finally {
+			// The pairs already written stay readable whatever happened to the others
+			closeWriters();
+		}
+		getMetrics().countBucketPairedAlignments(spilled);
+		if(orphans > 0) {
+			throw new IllegalStateException(orphans + " paired-end alignments have no mate in the input, i.e. " + orphan);
+		}
+	}
+
+	@Override
+	public void write(SAMRecord samRecord) {
+		if(!isWriteUnmapped() && samRecord.getMateUnmappedFlag() && samRecord.getReadUnmappedFlag()) {
+			return;
+		}
+		if(!samRecord.getReadPairedFlag()) {
+			write(new Hisat3nAlignedFragment(new Hisat3nSAMRecord(samRecord), (MateLookupReader) null));
+		} else {
+			pairer.add(samRecord);
+		}
+	}
+
+	@Override
+	public void write(Hisat3nAlignedFragment hisatAlignmentFragment) {
+		boolean converted = isConverted(hisatAlignmentFragment);
+		recordFragment(hisatAlignmentFragment, converted);
+		if(hisatAlignmentFragment.isUnpaired()) {
+			write(hisatAlignmentFragment.getPair1(), converted);
+		} else {
+			write(hisatAlignmentFragment.getUpstreamRecord(), converted);
+			write(hisatAlignmentFragment.getDownstreamRecord(), converted);
+		}
+	}
+
+	/**
+	 * The same for both mates: the read name up to the first space, then the positions of the first
+	 * and of the second mate, so the alignments of a multi-mapped pair are told apart
+	 */
+	static String pairKey(SAMRecord record) {
+		String name = record.getReadName();
+		int space = name.indexOf(' ');
+		if(space >= 0) {
+			name = name.substring(0, space);
+		}
+		String position = record.getReferenceIndex() + ":" + record.getAlignmentStart();
+		String matePosition = record.getMateReferenceIndex() + ":" + record.getMateAlignmentStart();
+		return record.getFirstOfPairFlag() ? name + "\t" + position + "\t" + matePosition : name + "\t" + matePosition + "\t" + position;
+	}
+
+	/**
+	 * Bucket of a read name, each depth hashes differently so that a bucket is spread again
+	 */
+	static int bucket(String readName, int depth, int buckets) {
+		long h = readNameHash(readName) + depth * 0x9E3779B97F4A7C15L;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return (int) Long.remainderUnsigned(h, buckets);
+	}
+
+	private static long size(SAMRecord record) {
+		return RECORD_OVERHEAD + 2L * (record.getReadLength() + record.getReadName().length());
+	}
+
+	/**
+	 * Pairs the records of the input, or of a bucket, within the budget
+	 */
+	private final class MatePairer {
+		private final int depth;
+		private final Map<String, SAMRecord> waiting = new HashMap<String, SAMRecord>();
+		private long waitingBytes;
+
+		private File [] bucketFiles;
+		private OutputStream [] bucketStreams;
+		private BAMRecordCodec [] encoders;
+
+		MatePairer(int depth) {
+			this.depth = depth;
+		}
+
+		void add(SAMRecord record) {
+			String key = pairKey(record);
+			SAMRecord mate = waiting.remove(key);
+			if(mate != null) {
+				waitingBytes -= size(mate);
+				write(new Hisat3nAlignedFragment(mate, record));
+			} else if(depth < MAX_DEPTH && waitingBytes + size(record) > budget) {
+				spill(record);
+			} else {
+				waiting.put(key, record);
+				waitingBytes += size(record);
+			}
+		}
+
+		/**
+		 * Pairs the buckets one after the other, the records still waiting go to them first as
+		 * their mates may have been spilled
+		 */
+		void finish() throws IOException {
+			if(bucketFiles == null) {
+				if(!waiting.isEmpty()) {
+					orphans += waiting.size();
+					orphan = waiting.values().iterator().next().getReadName();
+				}
+				return;
+			}
+			for (SAMRecord record : waiting.values()) {
+				spill(record);
+			}
+			waiting.clear();
+			waitingBytes = 0;
+			for (OutputStream bucketStream : bucketStreams) {
+				if(bucketStream != null) {
+					bucketStream.close();
+				}
+			}
+			for (File bucketFile : bucketFiles) {
+				if(bucketFile == null) {
+					continue;
+				}
+				MatePairer bucketPairer = new MatePairer(depth + 1);
+				try (InputStream in = new BufferedInputStream(new FileInputStream(bucketFile), 1 << 16)) {
+					BAMRecordCodec decoder = new BAMRecordCodec(header);
+					decoder.setInputStream(in);
+					SAMRecord record = null;
+					while ((record = decoder.decode()) != null) {
+						bucketPairer.add(record);
+					}
+				} finally {
+					bucketFile.delete();
+				}
+				bucketPairer.finish();
+			}
+		}
+
+		private void spill(SAMRecord record) {
+			if(bucketFiles == null) {
+				bucketFiles = new File[buckets];
+				bucketStreams = new OutputStream[buckets];
+				encoders = new BAMRecordCodec[buckets];
+			}
+			int bucket = bucket(record.getReadName(), depth, buckets);
+			try {
+				if(bucketStreams[bucket] == null) {
+					bucketFiles[bucket] = File.createTempFile("slamsplitter", ".pairs", tmpDir);
+					bucketFiles[bucket].deleteOnExit();
+					bucketStreams[bucket] = new BufferedOutputStream(new FileOutputStream(bucketFiles[bucket]), 1 << 16);
+					encoders[bucket] = new BAMRecordCodec(header);
+					encoders[bucket].setOutputStream(bucketStreams[bucket]);
+				}
+			} catch (IOException e) {
+				throw new RuntimeIOException("Could not create a bucket in " + tmpDir, e);
+			}
+			encoders[bucket].encode(record);
+			if(depth == 0) {
+				spilled++;
+			}
+		}
+	}
+
+}
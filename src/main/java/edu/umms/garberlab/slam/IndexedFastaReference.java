@@ -0,0 +1,187 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2022 University of Massachusetts Medical School
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package edu.umms.garberlab.slam;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Uncompressed FASTA file indexed with <code>samtools faidx</code>, memory mapped. Bases are
+ * read through a window of the reference kept by each thread: the records of coordinate
+ * sorted input fall in the same window, so it is only reloaded when the reads move past it.
+ *
+ * @author mgarber
+ *
+ */
+public class IndexedFastaReference {
+
+	static final int WINDOW_BASES = 1 << 16;
+	/** Mappings are limited to 2GB, the file is mapped in segments of this size */
+	private static final long SEGMENT_BYTES = 1L << 30;
+
+	private final File fasta;
+	private final Map<String, Contig> contigs = new HashMap<String, Contig>();
+	private final MappedByteBuffer [] segments;
+	private final ThreadLocal<Window> windows = ThreadLocal.withInitial(Window::new);
+
+	/**
+	 * @param fasta Uncompressed FASTA file, its index must be next to it (<code>fasta</code>.fai)
+	 */
+	public IndexedFastaReference(File fasta) throws IOException {
+		this.fasta = fasta;
+		if(fasta.getName().endsWith(".gz")) {
+			throw new IllegalArgumentException("The reference FASTA must be uncompressed to be memory mapped: " + fasta);
+		}
+		File fai = new File(fasta.getPath() + ".fai");
+		if(!fai.exists()) {
+			throw new IllegalArgumentException("The reference FASTA is not indexed, please run samtools faidx " + fasta);
+		}
+		try (BufferedReader br = Files.newBufferedReader(fai.toPath())) {
+			String line = null;
+			while ((line = br.readLine()) != null) {
+				if(line.isEmpty()) {
+					continue;
+				}
+				String [] fields = line.split("\t");
+				if(fields.length < 5) {
+					throw new IOException("Malformed FASTA index line in " + fai + ": " + line);
+				}
+				contigs.put(fields[0], new Contig(fields[0], Integer.parseInt(fields[1]), Long.parseLong(fields[2]), 
+						Integer.parseInt(fields[3]), Integer.parseInt(fields[4])));
+			}
+		}
+		try (FileChannel channel = FileChannel.open(fasta.toPath(), StandardOpenOption.READ)) {
+			long size = channel.size();
+			segments = new MappedByteBuffer[(int) ((size + SEGMENT_BYTES - 1) / SEGMENT_BYTES)];
+			for (int i = 0; i < segments.length; i++) {
+				long start = i * SEGMENT_BYTES;
+				segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(SEGMENT_BYTES, size - start));
+			}
+		}
+	}
+
+	public boolean hasContig(String name) {
+		return contigs.containsKey(name);
+	}
+
+	/**
+	 * @return The window of the calling thread, moved if it does not cover <code>start</code>
+	 * to <code>end</code> (1-based, inclusive) of <code>contig</code>
+	 */
+	public Window window(String contig, int start, int end) {
+		Window window = windows.get();
+		if(!window.covers(contig, start, end)) {
+			Contig c = contigs.get(contig);
+			if(c == null) {
+				throw new IllegalArgumentException("Contig " + contig + " is not in the reference " + fasta);
+			}
+			window.load(c, start, Math.max(end, start + WINDOW_BASES - 1));
+		}
+		return window;
+	}
+
+	private byte byteAt(long offset) {
+		return segments[(int) (offset / SEGMENT_BYTES)].get((int) (offset % SEGMENT_BYTES));
+	}
+
+	private static class Contig {
+		final String name;
+		final int length;
+		final long offset;
+		final int lineBases;
+		final int lineWidth;
+
+		Contig(String name, int length, long offset, int lineBases, int lineWidth) {
+			this.name = name;
+			this.length = length;
+			this.offset = offset;
+			this.lineBases = lineBases;
+			this.lineWidth = lineWidth;
+		}
+	}
+
+	/**
+	 * Upper case bases of a stretch of a contig
+	 */
+	public class Window {
+		private String contig;
+		private int start;
+		private int end;
+		private byte [] bases = new byte[WINDOW_BASES];
+
+		boolean covers(String contig, int start, int end) {
+			return contig.equals(this.contig) && start >= this.start && end <= this.end;
+		}
+
+		private void load(Contig c, int start, int end) {
+			int length = end - start + 1;
+			if(bases.length < length) {
+				bases = new byte[length];
+			}
+			int last = Math.min(end, c.length);
+			for (int position = start; position <= last; position++) {
+				int base = position - 1;
+				bases[position - start] = (byte) Character.toUpperCase(byteAt(c.offset + (long) (base / c.lineBases) * c.lineWidth + base % c.lineBases));
+			}
+			for (int position = Math.max(start, last + 1); position <= end; position++) {
+				bases[position - start] = 'N';
+			}
+			this.contig = c.name;
+			this.start = start;
+			this.end = end;
+		}
+
+		/**
+		 * @param position 1-based position, N past the end of the contig
+		 */
+		public byte base(int position) {
+			return bases[position - start];
+		}
+
+		/**
+		 * @return The bases of the window, from {@link #index} of its first position
+		 */
+		byte [] getBases() {
+			return bases;
+		}
+
+		/**
+		 * @param position 1-based position
+		 * @return Index of the position in {@link #getBases()}
+		 */
+		int index(int position) {
+			return position - start;
+		}
+	}
+
+}
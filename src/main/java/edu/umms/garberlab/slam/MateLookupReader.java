@@ -0,0 +1,454 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2022 University of Massachusetts Medical School
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package edu.umms.garberlab.slam;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.zip.DataFormatException;
+
+import htsjdk.samtools.BAMFileSpan;
+import htsjdk.samtools.BAMIndex;
+import htsjdk.samtools.BAMRecordCodec;
+import htsjdk.samtools.Chunk;
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMFileSource;
+import htsjdk.samtools.SAMFormatException;
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SamReader;
+import htsjdk.samtools.util.RuntimeIOException;
+
+/**
+ * Finds the mates of coordinate sorted paired-end records through the BAM index, like
+ * {@link SamReader#queryMate(SAMRecord)}, but keeps the last decompressed BGZF blocks in
+ * an LRU cache. Mates are usually close to each other, so the blocks a lookup needs were
+ * most often inflated by the previous ones.
+ *
+ * Lookups can also be started ahead of time on a small pool of threads: wrap the input with
+ * {@link #prefetching(Iterable, int)} and the mates of the records coming next are looked up
+ * while the splitter works on the current one.
+ *
+ * @author mgarber
+ *
+ */
+public class MateLookupReader implements Closeable {
+
+	static final int DEFAULT_CACHE_BLOCKS = 1024;
+	static final int LOOKAHEAD_PER_THREAD = 32;
+
+	private final File bamFile;
+	private final FileChannel channel;
+	private final long fileLength;
+	private final SamReader indexedReader;
+	private final SAMFileHeader header;
+	private final BAMIndex index;
+	private final LinkedHashMap<Long, BgzfBlock> blockCache;
+	private final ExecutorService lookupPool;
+	private final Map<String, Future<SAMRecord>> prefetched = new HashMap<String, Future<SAMRecord>>();
+
+	private final AtomicLong blockHits = new AtomicLong();
+	private final AtomicLong blockMisses = new AtomicLong();
+	private long lookups;
+	private long prefetchedLookups;
+
+	/**
+	 * @param bamFile Coordinate sorted BAM file
+	 * @param indexedReader A reader of the same file with its index, for the header, the index and the unmapped mates
+	 * @param cacheBlocks Number of decompressed BGZF blocks (64KB at most) kept in memory
+	 * @param threads Threads looking mates up ahead of the splitter, 0 to look them up only when needed
+	 */
+	public MateLookupReader(File bamFile, SamReader indexedReader, int cacheBlocks, int threads) throws IOException {
+		if(!indexedReader.hasIndex()) {
+			throw new IllegalArgumentException("Mate lookups need an indexed BAM file: " + bamFile);
+		}
+		this.bamFile = bamFile;
+		this.channel = FileChannel.open(bamFile.toPath(), StandardOpenOption.READ);
+		this.fileLength = channel.size();
+		this.indexedReader = indexedReader;
+		this.header = indexedReader.getFileHeader();
+		this.index = indexedReader.indexing().getIndex();
+		this.blockCache = new LinkedHashMap<Long, BgzfBlock>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Long, BgzfBlock> eldest) {
+				return size() > cacheBlocks;
+			}
+		};
+		this.lookupPool = threads > 0 ? Executors.newFixedThreadPool(threads, r -> {
+			Thread t = new Thread(r, "MateLookup");
+			t.setDaemon(true);
+			return t;
+		}) : null;
+	}
+
+	public SAMFileHeader getFileHeader() {
+		return header;
+	}
+
+	/**
+	 * @return The primary mate of <code>record</code>, null if it is not found. A lookup
+	 * started by {@link #prefetch} is waited for instead of being repeated.
+	 */
+	public SAMRecord queryMate(SAMRecord record) {
+		lookups++;
+		Future<SAMRecord> pending = null;
+		synchronized (prefetched) {
+			pending = prefetched.remove(prefetchKey(record));
+		}
+		if(pending == null) {
+			return findMate(record);
+		}
+		prefetchedLookups++;
+		try {
+			return pending.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeIOException("Interrupted while waiting for the mate of " + record.getReadName(), e);
+		} catch (ExecutionException e) {
+			if(e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+			throw new RuntimeIOException(e.getCause());
+		}
+	}
+
+	/**
+	 * Starts looking up the mate of <code>record</code> on the lookup pool, if the record has
+	 * a mapped mate downstream of it: the mate of the downstream record has been seen already.
+	 */
+	public void prefetch(SAMRecord record) {
+		if(lookupPool == null || !needsLookup(record)) {
+			return;
+		}
+		String key = prefetchKey(record);
+		synchronized (prefetched) {
+			if(!prefetched.containsKey(key)) {
+				prefetched.put(key, lookupPool.submit(() -> findMate(record)));
+			}
+		}
+	}
+
+	/**
+	 * Drops the lookup of a record the splitter is done with, if it was not used
+	 */
+	public void release(SAMRecord record) {
+		Future<SAMRecord> pending = null;
+		synchronized (prefetched) {
+			pending = prefetched.remove(prefetchKey(record));
+		}
+		if(pending != null) {
+			pending.cancel(false);
+		}
+	}
+
+	/**
+	 * @param lookahead Number of records whose mates are looked up ahead of the one being split
+	 * @return The records, which start the lookups of the records ahead as they are iterated
+	 */
+	public Iterable<SAMRecord> prefetching(Iterable<SAMRecord> records, int lookahead) {
+		if(lookupPool == null) {
+			return records;
+		}
+		return prefetching(records, lookahead, record -> this);
+	}
+
+	/**
+	 * Same as {@link #prefetching(Iterable, int)} for records read from several files, i.e. by
+	 * a {@link MergingBamReader}
+	 * @param readerOf The reader of the file each record comes from
+	 */
+	public static Iterable<SAMRecord> prefetching(Iterable<SAMRecord> records, int lookahead, Function<SAMRecord, MateLookupReader> readerOf) {
+		return () -> new Iterator<SAMRecord>() {
+			private final Iterator<SAMRecord> input = records.iterator();
+			private final ArrayDeque<SAMRecord> ahead = new ArrayDeque<SAMRecord>(lookahead + 1);
+			private SAMRecord current;
+
+			@Override
+			public boolean hasNext() {
+				fill();
+				return !ahead.isEmpty();
+			}
+
+			@Override
+			public SAMRecord next() {
+				fill();
+				// The splitter is done with the previous record by now
+				if(current != null) {
+					readerOf.apply(current).release(current);
+				}
+				current = ahead.poll();
+				if(current == null) {
+					throw new java.util.NoSuchElementException();
+				}
+				return current;
+			}
+
+			private void fill() {
+				while (ahead.size() <= lookahead && input.hasNext()) {
+					SAMRecord record = input.next();
+					readerOf.apply(record).prefetch(record);
+					ahead.add(record);
+				}
+			}
+		};
+	}
+
+	private static boolean needsLookup(SAMRecord record) {
+		if(!record.getReadPairedFlag() || record.getMateAlignmentStart() <= 0 || record.getMateReferenceIndex() < 0) {
+			return false;
+		}
+		int reference = record.getReferenceIndex();
+		int mateReference = record.getMateReferenceIndex();
+		return mateReference > reference || (mateReference == reference && record.getMateAlignmentStart() >= record.getAlignmentStart());
+	}
+
+	private static String prefetchKey(SAMRecord record) {
+		return record.getReadName() + (record.getFirstOfPairFlag() ? "/1:" : "/2:") + record.getReferenceIndex() + ":" + record.getAlignmentStart() +
+				":" + record.getFlags();
+	}
+
+	/**
+	 * Same search as htsjdk's queryMate: the primary record of the other mate with the same name
+	 * among the records starting at the mate position.
+	 */
+	private SAMRecord findMate(SAMRecord record) {
+		if(!record.getReadPairedFlag()) {
+			throw new IllegalArgumentException("queryMate called for unpaired read.");
+		}
+		if(record.getFirstOfPairFlag() == record.getSecondOfPairFlag()) {
+			throw new IllegalArgumentException("SAMRecord must be either first and second of pair, but not both.");
+		}
+		if(record.getMateReferenceIndex() < 0) {
+			synchronized (indexedReader) {
+				return indexedReader.queryMate(record);
+			}
+		}
+		int mateReference = record.getMateReferenceIndex();
+		int mateStart = record.getMateAlignmentStart();
+		BAMFileSpan span = null;
+		synchronized (index) {
+			span = index.getSpanOverlapping(mateReference, mateStart, mateStart);
+		}
+		if(span == null) {
+			return null;
+		}
+		SAMRecord mate = null;
+		try {
+			CachedBlockStream stream = new CachedBlockStream();
+			BAMRecordCodec codec = new BAMRecordCodec(header);
+			codec.setInputStream(stream, bamFile.getAbsolutePath());
+			List<Chunk> chunks = span.getChunks();
+			boolean pastMate = false;
+			for (int i = 0; i < chunks.size() && !pastMate; i++) {
+				Chunk chunk = chunks.get(i);
+				stream.seek(chunk.getChunkStart());
+				while (stream.getFilePointer() < chunk.getChunkEnd()) {
+					long start = stream.getFilePointer();
+					SAMRecord next = codec.decode();
+					if(next == null) {
+						break;
+					}
+					int reference = next.getReferenceIndex();
+					if(reference < 0 || reference > mateReference || (reference == mateReference && next.getAlignmentStart() > mateStart)) {
+						pastMate = true;
+						break;
+					}
+					if(reference < mateReference || next.getAlignmentStart() < mateStart) {
+						continue;
+					}
+					if(!next.getReadPairedFlag()) {
+						if(record.getReadName().equals(next.getReadName())) {
+							throw new SAMFormatException("Paired and unpaired reads with same name: " + record.getReadName());
+						}
+						continue;
+					}
+					if(record.getFirstOfPairFlag() ? next.getFirstOfPairFlag() : next.getSecondOfPairFlag()) {
+						continue;
+					}
+					if(next.isSecondaryOrSupplementary() || !record.getReadName().equals(next.getReadName())) {
+						continue;
+					}
+					if(mate != null) {
+						throw new SAMFormatException("Multiple SAMRecord with read name " + record.getReadName() +
+								" for " + (record.getFirstOfPairFlag() ? "second" : "first") + " end.");
+					}
+					next.setFileSource(new SAMFileSource(null, new BAMFileSpan(new Chunk(start, stream.getFilePointer()))));
+					mate = next;
+				}
+			}
+		} catch (IOException e) {
+			throw new RuntimeIOException("Could not look up the mate of " + record.getReadName() + " in " + bamFile, e);
+		}
+		return mate;
+	}
+
+	private BgzfBlock block(long address) throws IOException {
+		synchronized (blockCache) {
+			BgzfBlock block = blockCache.get(address);
+			if(block != null) {
+				blockHits.incrementAndGet();
+				return block;
+			}
+		}
+		blockMisses.incrementAndGet();
+		// Inflated outside of the lock, two threads may inflate the same block
+		BgzfBlock block = readBlock(address);
+		synchronized (blockCache) {
+			blockCache.put(address, block);
+		}
+		return block;
+	}
+
+	private BgzfBlock readBlock(long address) throws IOException {
+		ByteBuffer header = ByteBuffer.allocate(ParallelBgzfInputStream.BLOCK_HEADER_LENGTH);
+		readFully(header, address);
+		byte [] headerBytes = header.array();
+		if(headerBytes[0] != 31 || (headerBytes[1] & 0xff) != 139 || headerBytes[12] != 66 || headerBytes[13] != 67) {
+			throw new IOException("Not a BGZF block at offset " + address + " of " + bamFile);
+		}
+		int blockSize = ((headerBytes[16] & 0xff) | ((headerBytes[17] & 0xff) << 8)) + 1;
+		ByteBuffer compressedBlock = ByteBuffer.allocate(blockSize);
+		compressedBlock.put(headerBytes);
+		readFully(compressedBlock, address + ParallelBgzfInputStream.BLOCK_HEADER_LENGTH);
+		try {
+			return ParallelBgzfInputStream.inflateBlock(address, compressedBlock.array());
+		} catch (DataFormatException e) {
+			throw new IOException("Could not inflate the BGZF block at offset " + address + " of " + bamFile, e);
+		}
+	}
+
+	private void readFully(ByteBuffer buffer, long position) throws IOException {
+		while (buffer.hasRemaining()) {
+			int read = channel.read(buffer, position);
+			if(read < 0) {
+				throw new EOFException("Truncated BGZF block at offset " + position + " of " + bamFile);
+			}
+			position += read;
+		}
+	}
+
+	public long getLookups() {
+		return lookups;
+	}
+
+	public long getPrefetchedLookups() {
+		return prefetchedLookups;
+	}
+
+	public long getBlockHits() {
+		return blockHits.get();
+	}
+
+	public long getBlockMisses() {
+		return blockMisses.get();
+	}
+
+	@Override
+	public void close() throws IOException {
+		if(lookupPool != null) {
+			lookupPool.shutdownNow();
+		}
+		channel.close();
+	}
+
+	/**
+	 * Reads the uncompressed BAM from the block cache, starting at a virtual offset
+	 */
+	private class CachedBlockStream extends InputStream {
+		private BgzfBlock block;
+		private long nextAddress;
+		private int offset;
+
+		void seek(long virtualOffset) throws IOException {
+			block = block(virtualOffset >>> 16);
+			nextAddress = block.address + block.compressedLength;
+			offset = (int) (virtualOffset & 0xffff);
+		}
+
+		long getFilePointer() throws IOException {
+			if(offset == block.length && !advance()) {
+				return nextAddress << 16;
+			}
+			return (block.address << 16) | offset;
+		}
+
+		private boolean advance() throws IOException {
+			while (offset == block.length) {
+				if(nextAddress >= fileLength) {
+					return false;
+				}
+				block = block(nextAddress);
+				nextAddress = block.address + block.compressedLength;
+				offset = 0;
+			}
+			return true;
+		}
+
+		@Override
+		public int read() throws IOException {
+			if(offset == block.length && !advance()) {
+				return -1;
+			}
+			return block.data[offset++] & 0xff;
+		}
+
+		@Override
+		public int read(byte[] buffer, int off, int len) throws IOException {
+			if(len == 0) {
+				return 0;
+			}
+			int read = 0;
+			while (read < len) {
+				if(offset == block.length && !advance()) {
+					break;
+				}
+				int toCopy = Math.min(len - read, block.length - offset);
+				System.arraycopy(block.data, offset, buffer, off + read, toCopy);
+				offset += toCopy;
+				read += toCopy;
+			}
+			return read == 0 ? -1 : read;
+		}
+	}
+
+}
@@ -0,0 +1,280 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2022 University of Massachusetts Medical School
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package edu.umms.garberlab.slam;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMFileHeader.SortOrder;
+import htsjdk.samtools.SAMProgramRecord;
+import htsjdk.samtools.SAMReadGroupRecord;
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SAMRecordCoordinateComparator;
+import htsjdk.samtools.SAMRecordQueryNameComparator;
+import htsjdk.samtools.SamReader;
+import htsjdk.samtools.SamReaderFactory;
+import htsjdk.samtools.util.CloseableIterator;
+
+/**
+ * Streams the records of several alignment files, i.e. one per lane, as if they had been
+ * merged. Coordinate and query name sorted inputs are merged in their sort order with a
+ * heap over the head record of each file, unsorted inputs are read one after the other.
+ *
+ * The inputs must share their sort order and sequence dictionary. The merged header is
+ * the one of the first file with the read groups and program records of the others.
+ * BAM files are inflated on their own threads (see {@link ParallelBamReader}).
+ *
+ * Each record remembers the index of the file it comes from, see {@link #sourceOf(SAMRecord)}.
+ *
+ * @author mgarber
+ *
+ */
+public class MergingBamReader implements Iterable<SAMRecord>, Closeable {
+
+	private static final String SOURCE_KEY = "MergingBamReader.source";
+
+	private final List<File> inputs;
+	private final SAMFileHeader header;
+	private final List<SamReader> readers = new ArrayList<SamReader>();
+	private final List<ParallelBamReader> parallelReaders = new ArrayList<ParallelBamReader>();
+	private final List<Iterator<SAMRecord>> iterators = new ArrayList<Iterator<SAMRecord>>();
+	private final Comparator<SAMRecord> comparator;
+	private final boolean byQueryName;
+	private boolean iteratorCreated;
+
+	/**
+	 * @param inputs Alignment files to merge
+	 * @param readThreads Inflating threads for each BAM file
+	 * @param prefetchDepth Blocks inflated ahead of the merge for each BAM file
+	 */
+	public MergingBamReader(List<File> inputs, SamReaderFactory readerFactory, int readThreads, int prefetchDepth) throws IOException {
+		if(inputs.isEmpty()) {
+			throw new IllegalArgumentException("No input to merge");
+		}
+		this.inputs = inputs;
+		try {
+			for (File input : inputs) {
+				readers.add(readerFactory.open(input));
+			}
+			this.header = mergeHeaders();
+			for (int i = 0; i < inputs.size(); i++) {
+				SamReader reader = readers.get(i);
+				if(reader.type() == SamReader.Type.BAM_TYPE) {
+					ParallelBamReader parallelReader = new ParallelBamReader(inputs.get(i), Math.max(1, readThreads), prefetchDepth);
+					parallelReaders.add(parallelReader);
+					iterators.add(parallelReader.iterator());
+				} else {
+					iterators.add(reader.iterator());
+				}
+			}
+		} catch (IOException | RuntimeException e) {
+			close();
+			throw e;
+		}
+		SortOrder sortOrder = header.getSortOrder();
+		if(SortOrder.coordinate.equals(sortOrder)) {
+			comparator = new SAMRecordCoordinateComparator();
+		} else if(SortOrder.queryname.equals(sortOrder)) {
+			comparator = new SAMRecordQueryNameComparator();
+		} else {
+			comparator = null;
+		}
+		byQueryName = SortOrder.queryname.equals(sortOrder);
+	}
+
+	private SAMFileHeader mergeHeaders() {
+		SAMFileHeader first = readers.get(0).getFileHeader();
+		SAMFileHeader merged = first.clone();
+		for (int i = 1; i < readers.size(); i++) {
+			SAMFileHeader other = readers.get(i).getFileHeader();
+			if(first.getSortOrder() != other.getSortOrder()) {
+				throw new IllegalArgumentException("Inputs to merge must have the same sort order: " + inputs.get(0) + " is " + 
+						first.getSortOrder() + ", " + inputs.get(i) + " is " + other.getSortOrder());
+			}
+			if(!first.getSequenceDictionary().isSameDictionary(other.getSequenceDictionary())) {
+				throw new IllegalArgumentException("Inputs to merge must have the same sequence dictionary: " + inputs.get(0) + " and " + inputs.get(i) + " differ");
+			}
+			for (SAMReadGroupRecord readGroup : other.getReadGroups()) {
+				if(merged.getReadGroup(readGroup.getId()) == null) {
+					merged.addReadGroup(readGroup);
+				}
+			}
+			for (SAMProgramRecord program : other.getProgramRecords()) {
+				if(merged.getProgramRecord(program.getId()) == null) {
+					merged.addProgramRecord(program);
+				}
+			}
+		}
+		return merged;
+	}
+
+	public SAMFileHeader getFileHeader() {
+		return header;
+	}
+
+	public List<File> getInputs() {
+		return inputs;
+	}
+
+	/**
+	 * @return The reader of each input, for their index and type. They are closed with this reader.
+	 */
+	public List<SamReader> getReaders() {
+		return readers;
+	}
+
+	/**
+	 * @return Index in the inputs of the file the record was read from
+	 */
+	public static int sourceOf(SAMRecord record) {
+		Object source = record.getTransientAttribute(SOURCE_KEY);
+		return source == null ? 0 : (Integer) source;
+	}
+
+	@Override
+	public Iterator<SAMRecord> iterator() {
+		if(iteratorCreated) {
+			throw new IllegalStateException("MergingBamReader only supports a single pass over the records");
+		}
+		iteratorCreated = true;
+		return comparator == null ? new ConcatenatingIterator() : new MergingIterator();
+	}
+
+	private SAMRecord next(int source) {
+		Iterator<SAMRecord> iterator = iterators.get(source);
+		if(!iterator.hasNext()) {
+			return null;
+		}
+		SAMRecord record = iterator.next();
+		record.setTransientAttribute(SOURCE_KEY, source);
+		return record;
+	}
+
+	private class MergingIterator implements Iterator<SAMRecord> {
+		/** Head records, ties are broken by input order so the merge is deterministic */
+		private final PriorityQueue<SAMRecord> heads = new PriorityQueue<SAMRecord>(Math.max(1, iterators.size()), (r1, r2) -> {
+			int cmp = comparator.compare(r1, r2);
+			return cmp != 0 ? cmp : Integer.compare(sourceOf(r1), sourceOf(r2));
+		});
+
+		MergingIterator() {
+			for (int i = 0; i < iterators.size(); i++) {
+				SAMRecord head = MergingBamReader.this.next(i);
+				if(head != null) {
+					heads.add(head);
+				}
+			}
+		}
+
+		/**
+		 * Next record of the same input and read name as the last one returned. Query name sorted
+		 * files may use another name order than htsjdk (i.e. samtools natural order), the records
+		 * of a read are kept together whatever the order of the other heads.
+		 */
+		private SAMRecord sameRead;
+
+		@Override
+		public boolean hasNext() {
+			return sameRead != null || !heads.isEmpty();
+		}
+
+		@Override
+		public SAMRecord next() {
+			SAMRecord record = sameRead;
+			sameRead = null;
+			if(record == null) {
+				record = heads.poll();
+			}
+			if(record == null) {
+				throw new NoSuchElementException();
+			}
+			SAMRecord head = MergingBamReader.this.next(sourceOf(record));
+			if(head != null) {
+				if(byQueryName && head.getReadName().equals(record.getReadName())) {
+					sameRead = head;
+				} else {
+					heads.add(head);
+				}
+			}
+			return record;
+		}
+	}
+
+	private class ConcatenatingIterator implements Iterator<SAMRecord> {
+		private int source;
+		private SAMRecord next = advance();
+
+		private SAMRecord advance() {
+			SAMRecord record = null;
+			while (record == null && source < iterators.size()) {
+				record = MergingBamReader.this.next(source);
+				if(record == null) {
+					source++;
+				}
+			}
+			return record;
+		}
+
+		@Override
+		public boolean hasNext() {
+			return next != null;
+		}
+
+		@Override
+		public SAMRecord next() {
+			if(next == null) {
+				throw new NoSuchElementException();
+			}
+			SAMRecord current = next;
+			next = advance();
+			return current;
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		for (Iterator<SAMRecord> iterator : iterators) {
+			if(iterator instanceof CloseableIterator) {
+				((CloseableIterator<SAMRecord>) iterator).close();
+			}
+		}
+		for (ParallelBamReader parallelReader : parallelReaders) {
+			parallelReader.close();
+		}
+		for (SamReader reader : readers) {
+			reader.close();
+		}
+	}
+
+}
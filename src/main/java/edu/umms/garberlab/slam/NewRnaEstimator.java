@@ -0,0 +1,465 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2022 University of Massachusetts Medical School
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package edu.umms.garberlab.slam;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.IntStream;
+
+import htsjdk.samtools.SAMRecord;
+
+/**
+ * Estimates the fraction of new RNA of each gene from the conversions of its fragments.
+ * <p>
+ * While splitting, the conversions (k, the Yf tags) and convertible bases (n, Yf + Zf) of
+ * each uniquely mapped fragment are counted in a histogram of its gene. Once the pass is
+ * over, the conversion rates of old and new RNA (pOld, pNew) are fit on all the fragments
+ * with a binomial mixture, unless given, and the new to total ratio (NTR) of each gene
+ * is the maximum likelihood mixing fraction of its histogram, with a 95% profile likelihood
+ * interval. Genes are fit in parallel, against a table of the log likelihood ratios of
+ * every (n, k).
+ *
+ * @author mgarber
+ *
+ */
+public class NewRnaEstimator {
+
+	public static final String EXTENSION = "_ntr.tsv";
+
+	/** Fragments with more convertible bases are scaled down to this many */
+	static final int MAX_CONVERTIBLE = 200;
+	/** Half of the 95% chi-square quantile with one degree of freedom */
+	private static final double CI_LOG_LIKELIHOOD_DROP = 1.920729;
+	private static final int EM_ITERATIONS = 500;
+	private static final double EM_TOLERANCE = 1e-9;
+	private static final int BISECTIONS = 60;
+
+	private final GeneAnnotation genes;
+	private final Histogram [] histograms;
+	private final Histogram all = new Histogram();
+
+	private long fragmentsWithoutGene;
+	private long ambiguousFragments;
+	private long multimappers;
+
+	private Double fixedPOld;
+	private Double fixedPNew;
+
+	private double pOld;
+	private double pNew;
+	private double [] ntr;
+	private double [] ntrLower;
+	private double [] ntrUpper;
+
+	public NewRnaEstimator(GeneAnnotation genes) {
+		this.genes = genes;
+		this.histograms = new Histogram[genes.size()];
+		for (int i = 0; i < histograms.length; i++) {
+			histograms[i] = new Histogram();
+		}
+	}
+
+	/**
+	 * Uses these conversion rates instead of fitting them, either can be null
+	 */
+	public void setConversionRates(Double pOld, Double pNew) {
+		this.fixedPOld = pOld;
+		this.fixedPNew = pNew;
+	}
+
+	public void add(Hisat3nAlignedFragment fragment) {
+		Hisat3nSAMRecord pair1 = fragment.getPair1();
+		Hisat3nSAMRecord pair2 = fragment.getPair2();
+		if(!fragment.isMapped()) {
+			return;
+		}
+		if((pair1.isMapped() && pair1.getNhTag() > 1) || (pair2 != null && pair2.isMapped() && pair2.getNhTag() > 1)) {
+			multimappers++;
+			return;
+		}
+		SAMRecord first = pair1.isMapped() ? pair1.getSAMRecord() : pair2.getSAMRecord();
+		String contig = first.getReferenceName();
+		int start = first.getAlignmentStart();
+		int end = first.getAlignmentEnd();
+		if(pair2 != null && pair1.isMapped() && pair2.isMapped()) {
+			SAMRecord second = pair2.getSAMRecord();
+			if(!contig.equals(second.getReferenceName())) {
+				ambiguousFragments++;
+				return;
+			}
+			start = Math.min(start, second.getAlignmentStart());
+			end = Math.max(end, second.getAlignmentEnd());
+		}
+		int gene = genes.geneAt(contig, start, end);
+		if(gene == GeneAnnotation.NO_GENE) {
+			fragmentsWithoutGene++;
+		} else if(gene == GeneAnnotation.AMBIGUOUS) {
+			ambiguousFragments++;
+		} else {
+			int k = fragment.getConvertedBases();
+			add(gene, k, k + fragment.getUnconvertedBases());
+		}
+	}
+
+	/**
+	 * Counts a fragment with <code>k</code> conversions out of <code>n</code> convertible bases in this gene
+	 */
+	void add(int gene, int k, int n) {
+		if(n > MAX_CONVERTIBLE) {
+			k = (int) Math.round(k * (double) MAX_CONVERTIBLE / n);
+			n = MAX_CONVERTIBLE;
+		}
+		k = Math.min(k, n);
+		histograms[gene].add(n, k, 1);
+		all.add(n, k, 1);
+	}
+
+	/**
+	 * Fits the conversion rates, then the NTR of every gene on <code>threads</code> threads
+	 */
+	public void fit(int threads) throws InterruptedException, ExecutionException {
+		fitConversionRates();
+		double [][] logRatios = logRatioTable(pOld, pNew);
+		ntr = new double[histograms.length];
+		ntrLower = new double[histograms.length];
+		ntrUpper = new double[histograms.length];
+		ForkJoinPool pool = new ForkJoinPool(Math.max(1, threads));
+		try {
+			pool.submit(() -> IntStream.range(0, histograms.length).parallel().forEach(gene -> fitGene(gene, logRatios))).get();
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	/**
+	 * EM of the binomial mixture over the fragments of all genes, the rates given by the user are kept
+	 */
+	private void fitConversionRates() {
+		pOld = fixedPOld != null ? fixedPOld : 0.001;
+		pNew = fixedPNew != null ? fixedPNew : 0.05;
+		if(fixedPOld != null && fixedPNew != null) {
+			checkRates();
+			return;
+		}
+		double fraction = 0.5;
+		for (int iteration = 0; iteration < EM_ITERATIONS; iteration++) {
+			double logRatioConverted = Math.log(pNew / pOld);
+			double logRatioUnconverted = Math.log((1 - pNew) / (1 - pOld));
+			double logOdds = Math.log(fraction / (1 - fraction));
+			double newFragments = 0, newConversions = 0, newConvertible = 0;
+			double oldFragments = 0, oldConversions = 0, oldConvertible = 0;
+			for (int i = 0; i < all.capacity(); i++) {
+				long count = all.countAt(i);
+				if(count == 0) {
+					continue;
+				}
+				int n = all.nAt(i);
+				int k = all.kAt(i);
+				double responsibility = 1 / (1 + Math.exp(-(logOdds + k * logRatioConverted + (n - k) * logRatioUnconverted)));
+				newFragments += count * responsibility;
+				newConversions += count * responsibility * k;
+				newConvertible += count * responsibility * n;
+				oldFragments += count * (1 - responsibility);
+				oldConversions += count * (1 - responsibility) * k;
+				oldConvertible += count * (1 - responsibility) * n;
+			}
+			if(newFragments + oldFragments == 0) {
+				break;
+			}
+			double previousPOld = pOld, previousPNew = pNew, previousFraction = fraction;
+			fraction = clamp(newFragments / (newFragments + oldFragments));
+			if(fixedPNew == null && newConvertible > 0) {
+				pNew = clamp(newConversions / newConvertible);
+			}
+			if(fixedPOld == null && oldConvertible > 0) {
+				pOld = clamp(oldConversions / oldConvertible);
+			}
+			if(Math.abs(previousPOld - pOld) < EM_TOLERANCE && Math.abs(previousPNew - pNew) < EM_TOLERANCE 
+					&& Math.abs(previousFraction - fraction) < EM_TOLERANCE) {
+				break;
+			}
+		}
+		checkRates();
+	}
+
+	private void checkRates() {
+		if(!(pOld > 0 && pNew < 1 && pOld < pNew)) {
+			throw new IllegalStateException("The conversion rate of new RNA (" + pNew + ") must be above the one of old RNA (" + pOld + "), both between 0 and 1");
+		}
+	}
+
+	private static double clamp(double p) {
+		return Math.min(1 - 1e-9, Math.max(1e-9, p));
+	}
+
+	/**
+	 * @return log(Bin(k; n, pNew) / Bin(k; n, pOld)) for n up to {@link #MAX_CONVERTIBLE}, k up to n
+	 */
+	static double [][] logRatioTable(double pOld, double pNew) {
+		double logRatioConverted = Math.log(pNew / pOld);
+		double logRatioUnconverted = Math.log((1 - pNew) / (1 - pOld));
+		double [][] table = new double[MAX_CONVERTIBLE + 1][];
+		for (int n = 0; n <= MAX_CONVERTIBLE; n++) {
+			table[n] = new double[n + 1];
+			for (int k = 0; k <= n; k++) {
+				table[n][k] = k * logRatioConverted + (n - k) * logRatioUnconverted;
+			}
+		}
+		return table;
+	}
+
+	private void fitGene(int gene, double [][] logRatios) {
+		Histogram histogram = histograms[gene];
+		if(histogram.size() == 0) {
+			ntr[gene] = ntrLower[gene] = ntrUpper[gene] = Double.NaN;
+			return;
+		}
+		// Compact the histogram, it is visited once per likelihood evaluation
+		int [] n = new int[histogram.size()];
+		int [] k = new int[n.length];
+		long [] counts = new long[n.length];
+		int j = 0;
+		for (int i = 0; i < histogram.capacity(); i++) {
+			if(histogram.countAt(i) > 0) {
+				n[j] = histogram.nAt(i);
+				k[j] = histogram.kAt(i);
+				counts[j++] = histogram.countAt(i);
+			}
+		}
+		double [] d = new double[n.length];
+		for (int i = 0; i < d.length; i++) {
+			d[i] = logRatios[n[i]][k[i]];
+		}
+		double mle = maximumLikelihood(d, counts);
+		double maximum = logLikelihood(mle, d, counts);
+		ntr[gene] = mle;
+		ntrLower[gene] = logLikelihood(0, d, counts) >= maximum - CI_LOG_LIKELIHOOD_DROP ? 0 : 
+			crossing(0, mle, maximum - CI_LOG_LIKELIHOOD_DROP, d, counts);
+		ntrUpper[gene] = logLikelihood(1, d, counts) >= maximum - CI_LOG_LIKELIHOOD_DROP ? 1 : 
+			crossing(mle, 1, maximum - CI_LOG_LIKELIHOOD_DROP, d, counts);
+	}
+
+	/**
+	 * The log likelihood is concave in the NTR, the maximum is where its derivative crosses zero
+	 */
+	static double maximumLikelihood(double [] d, long [] counts) {
+		if(score(0, d, counts) <= 0) {
+			return 0;
+		}
+		if(score(1, d, counts) >= 0) {
+			return 1;
+		}
+		double low = 0, high = 1;
+		for (int i = 0; i < BISECTIONS; i++) {
+			double mid = (low + high) / 2;
+			if(score(mid, d, counts) > 0) {
+				low = mid;
+			} else {
+				high = mid;
+			}
+		}
+		return (low + high) / 2;
+	}
+
+	/**
+	 * @return The NTR between <code>from</code> and <code>to</code> where the log likelihood is <code>level</code>,
+	 * it is monotonic there
+	 */
+	private static double crossing(double from, double to, double level, double [] d, long [] counts) {
+		boolean increasing = logLikelihood(from, d, counts) < logLikelihood(to, d, counts);
+		double low = from, high = to;
+		for (int i = 0; i < BISECTIONS; i++) {
+			double mid = (low + high) / 2;
+			if((logLikelihood(mid, d, counts) < level) == increasing) {
+				low = mid;
+			} else {
+				high = mid;
+			}
+		}
+		return (low + high) / 2;
+	}
+
+	/**
+	 * Sum of count * log((1 - ntr) + ntr * e^d), the log likelihood relative to all old RNA
+	 */
+	static double logLikelihood(double ntr, double [] d, long [] counts) {
+		double sum = 0;
+		for (int i = 0; i < d.length; i++) {
+			double term = d[i] > 0 ? d[i] + Math.log(ntr + (1 - ntr) * Math.exp(-d[i])) : Math.log1p(ntr * Math.expm1(d[i]));
+			sum += counts[i] * term;
+		}
+		return sum;
+	}
+
+	/**
+	 * Derivative of {@link #logLikelihood} in the NTR
+	 */
+	private static double score(double ntr, double [] d, long [] counts) {
+		double sum = 0;
+		for (int i = 0; i < d.length; i++) {
+			double term;
+			if(d[i] > 0) {
+				double e = Math.exp(-d[i]);
+				term = (1 - e) / (ntr + (1 - ntr) * e);
+			} else {
+				double e = Math.expm1(d[i]);
+				term = e / (1 + ntr * e);
+			}
+			sum += counts[i] * term;
+		}
+		return sum;
+	}
+
+	public double getPOld() {
+		return pOld;
+	}
+
+	public double getPNew() {
+		return pNew;
+	}
+
+	/**
+	 * @return The NTR of the gene, NaN if it has no fragments. Only after {@link #fit}
+	 */
+	public double getNtr(int gene) {
+		return ntr[gene];
+	}
+
+	public double getNtrLower(int gene) {
+		return ntrLower[gene];
+	}
+
+	public double getNtrUpper(int gene) {
+		return ntrUpper[gene];
+	}
+
+	public void write(File reportFile) throws IOException {
+		try (PrintWriter pw = new PrintWriter(Files.newBufferedWriter(reportFile.toPath()))) {
+			pw.println("#p_old\t" + pOld);
+			pw.println("#p_new\t" + pNew);
+			pw.println("#fragments_without_gene\t" + fragmentsWithoutGene);
+			pw.println("#ambiguous_fragments\t" + ambiguousFragments);
+			pw.println("#multimapping_fragments\t" + multimappers);
+			pw.println("gene\tname\tcontig\tstart\tend\tstrand\tfragments\tconversions\tconvertible\tntr\tntr_lower\tntr_upper");
+			for (int gene = 0; gene < histograms.length; gene++) {
+				GeneAnnotation.Gene annotation = genes.getGene(gene);
+				Histogram histogram = histograms[gene];
+				pw.println(annotation.getId() + "\t" + annotation.getName() + "\t" + annotation.getContig() + "\t" + annotation.getStart() + "\t" + annotation.getEnd() 
+					+ "\t" + annotation.getStrand() + "\t" + histogram.fragments + "\t" + histogram.conversions + "\t" + histogram.convertible 
+					+ "\t" + format(ntr[gene]) + "\t" + format(ntrLower[gene]) + "\t" + format(ntrUpper[gene]));
+			}
+		}
+	}
+
+	private static String format(double value) {
+		return Double.isNaN(value) ? "NA" : String.format("%.6g", value);
+	}
+
+	/**
+	 * Fragment counts by (n, k), open addressing on n * (MAX_CONVERTIBLE + 1) + k.
+	 * Most genes see few distinct pairs.
+	 */
+	private static class Histogram {
+		private int [] keys = new int[8];
+		private long [] counts = new long[8];
+		private int size;
+		long fragments;
+		long conversions;
+		long convertible;
+
+		Histogram() {
+			Arrays.fill(keys, -1);
+		}
+
+		void add(int n, int k, long count) {
+			fragments += count;
+			conversions += count * k;
+			convertible += count * n;
+			if(2 * (size + 1) > keys.length) {
+				grow();
+			}
+			int key = n * (MAX_CONVERTIBLE + 1) + k;
+			int slot = slot(key, keys.length);
+			while (keys[slot] != -1 && keys[slot] != key) {
+				slot = (slot + 1) & (keys.length - 1);
+			}
+			if(keys[slot] == -1) {
+				keys[slot] = key;
+				size++;
+			}
+			counts[slot] += count;
+		}
+
+		private void grow() {
+			int [] oldKeys = keys;
+			long [] oldCounts = counts;
+			keys = new int[oldKeys.length * 2];
+			counts = new long[keys.length];
+			Arrays.fill(keys, -1);
+			for (int i = 0; i < oldKeys.length; i++) {
+				if(oldKeys[i] != -1) {
+					int slot = slot(oldKeys[i], keys.length);
+					while (keys[slot] != -1) {
+						slot = (slot + 1) & (keys.length - 1);
+					}
+					keys[slot] = oldKeys[i];
+					counts[slot] = oldCounts[i];
+				}
+			}
+		}
+
+		private static int slot(int key, int capacity) {
+			int hash = key * 0x9E3779B9;
+			return (hash ^ (hash >>> 16)) & (capacity - 1);
+		}
+
+		int size() {
+			return size;
+		}
+
+		int capacity() {
+			return keys.length;
+		}
+
+		long countAt(int slot) {
+			return keys[slot] == -1 ? 0 : counts[slot];
+		}
+
+		int nAt(int slot) {
+			return keys[slot] / (MAX_CONVERTIBLE + 1);
+		}
+
+		int kAt(int slot) {
+			return keys[slot] % (MAX_CONVERTIBLE + 1);
+		}
+	}
+
+}
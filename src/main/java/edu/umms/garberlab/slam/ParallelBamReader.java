@@ -0,0 +1,189 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2022 University of Massachusetts Medical School
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package edu.umms.garberlab.slam;
+
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import htsjdk.samtools.BAMFileSpan;
+import htsjdk.samtools.BAMRecordCodec;
+import htsjdk.samtools.Chunk;
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMFileSource;
+import htsjdk.samtools.SAMFormatException;
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SAMSequenceRecord;
+import htsjdk.samtools.SAMTextHeaderCodec;
+import htsjdk.samtools.util.BufferedLineReader;
+import htsjdk.samtools.util.RuntimeIOException;
+
+/**
+ * Streams the records of a BAM file in order while its BGZF blocks are inflated
+ * on a pool of threads (see {@link ParallelBgzfInputStream}).
+ *
+ * Only sequential iteration is supported, random access (i.e. queryMate) still
+ * needs a regular {@link htsjdk.samtools.SamReader}.
+ *
+ * @author mgarber
+ *
+ */
+public class ParallelBamReader implements Iterable<SAMRecord>, Closeable {
+
+	private static final byte [] BAM_MAGIC = "BAM\1".getBytes(StandardCharsets.US_ASCII);
+
+	private final ParallelBgzfInputStream bgzfStream;
+	private final ExecutorService inflatePool;
+	private final boolean ownsPool;
+	private final SAMFileHeader header;
+	private final BAMRecordCodec codec;
+	private boolean iteratorCreated;
+
+	/**
+	 * @param bamFile BAM file to read
+	 * @param threads Number of inflating threads
+	 * @param prefetchDepth Maximum number of blocks being inflated ahead of the reader
+	 */
+	public ParallelBamReader(File bamFile, int threads, int prefetchDepth) throws IOException {
+		this(bamFile, Executors.newFixedThreadPool(threads, r -> {
+			Thread t = new Thread(r, "BgzfInflater");
+			t.setDaemon(true);
+			return t;
+		}), prefetchDepth, true);
+	}
+
+	public ParallelBamReader(File bamFile, ExecutorService inflatePool, int prefetchDepth) throws IOException {
+		this(bamFile, inflatePool, prefetchDepth, false);
+	}
+
+	private ParallelBamReader(File bamFile, ExecutorService inflatePool, int prefetchDepth, boolean ownsPool) throws IOException {
+		this.inflatePool = inflatePool;
+		this.ownsPool = ownsPool;
+		this.bgzfStream = new ParallelBgzfInputStream(bamFile, inflatePool, prefetchDepth);
+		this.header = readHeader(bgzfStream, bamFile.getAbsolutePath());
+		this.codec = new BAMRecordCodec(header);
+		codec.setInputStream(bgzfStream, bamFile.getAbsolutePath());
+	}
+
+	public SAMFileHeader getFileHeader() {
+		return header;
+	}
+
+	/**
+	 * @return Virtual offset of the next record
+	 */
+	public long getFilePointer() throws IOException {
+		return bgzfStream.getFilePointer();
+	}
+
+	@Override
+	public Iterator<SAMRecord> iterator() {
+		if(iteratorCreated) {
+			throw new IllegalStateException("ParallelBamReader only supports a single pass over the records");
+		}
+		iteratorCreated = true;
+		return new Iterator<SAMRecord>() {
+			private SAMRecord next = decode();
+
+			@Override
+			public boolean hasNext() {
+				return next != null;
+			}
+
+			@Override
+			public SAMRecord next() {
+				if(next == null) {
+					throw new NoSuchElementException();
+				}
+				SAMRecord current = next;
+				next = decode();
+				return current;
+			}
+		};
+	}
+	
+	/**
+	 * Decodes the next record and attaches its virtual offsets as the record source
+	 */
+	private SAMRecord decode() {
+		try {
+			long start = bgzfStream.getFilePointer();
+			SAMRecord record = codec.decode();
+			if(record != null) {
+				record.setFileSource(new SAMFileSource(null, new BAMFileSpan(new Chunk(start, bgzfStream.getFilePointer()))));
+			}
+			return record;
+		} catch (IOException e) {
+			throw new RuntimeIOException(e);
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		bgzfStream.close();
+		if(ownsPool) {
+			inflatePool.shutdownNow();
+		}
+	}
+
+	static SAMFileHeader readHeader(InputStream uncompressedBam, String source) throws IOException {
+		DataInputStream in = new DataInputStream(uncompressedBam);
+		byte [] magic = new byte[BAM_MAGIC.length];
+		in.readFully(magic);
+		for (int i = 0; i < magic.length; i++) {
+			if(magic[i] != BAM_MAGIC[i]) {
+				throw new SAMFormatException("Invalid BAM file header in " + source);
+			}
+		}
+		byte [] text = new byte[readInt(in)];
+		in.readFully(text);
+		SAMFileHeader header = new SAMTextHeaderCodec().decode(BufferedLineReader.fromString(new String(text, StandardCharsets.ISO_8859_1)), source);
+
+		// The binary reference list is authoritative, use it if the text header has no @SQ lines
+		int referenceCount = readInt(in);
+		boolean addSequences = header.getSequenceDictionary().isEmpty();
+		for (int i = 0; i < referenceCount; i++) {
+			byte [] name = new byte[readInt(in)];
+			in.readFully(name);
+			int length = readInt(in);
+			if(addSequences) {
+				header.addSequence(new SAMSequenceRecord(new String(name, 0, name.length - 1, StandardCharsets.US_ASCII), length));
+			}
+		}
+		return header;
+	}
+
+	private static int readInt(DataInputStream in) throws IOException {
+		return Integer.reverseBytes(in.readInt());
+	}
+
+}
@@ -0,0 +1,232 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2022 University of Massachusetts Medical School
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package edu.umms.garberlab.slam;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayDeque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Reads a BGZF compressed file (i.e. a BAM) inflating its blocks on a pool of threads.
+ *
+ * Compressed blocks are read sequentially ahead of the consumer and handed to the pool,
+ * no more than <code>prefetchDepth</code> blocks are in flight at any time. Inflated blocks
+ * are delivered in file order so the stream reads exactly like the uncompressed file.
+ *
+ * @author mgarber
+ *
+ */
+public class ParallelBgzfInputStream extends InputStream {
+
+	static final int BLOCK_HEADER_LENGTH = 18;
+	static final int MAX_BLOCK_SIZE = 65536;
+
+	private static final ThreadLocal<Inflater> INFLATERS = new ThreadLocal<Inflater>() {
+		@Override
+		protected Inflater initialValue() {
+			return new Inflater(true);
+		}
+	};
+
+	private final InputStream compressedStream;
+	private final ExecutorService inflatePool;
+	private final int prefetchDepth;
+	private final ArrayDeque<Future<BgzfBlock>> inFlight;
+
+	private long nextBlockAddress;
+	private boolean compressedStreamExhausted;
+	private BgzfBlock currentBlock;
+	private int currentOffset;
+
+	public ParallelBgzfInputStream(File bgzfFile, ExecutorService inflatePool, int prefetchDepth) throws IOException {
+		this(new FileInputStream(bgzfFile), inflatePool, prefetchDepth);
+	}
+
+	public ParallelBgzfInputStream(InputStream compressedStream, ExecutorService inflatePool, int prefetchDepth) {
+		this.compressedStream = new BufferedInputStream(compressedStream, MAX_BLOCK_SIZE * 4);
+		this.inflatePool = inflatePool;
+		this.prefetchDepth = Math.max(1, prefetchDepth);
+		this.inFlight = new ArrayDeque<Future<BgzfBlock>>(this.prefetchDepth);
+	}
+
+	/**
+	 * @return The BGZF virtual offset of the next byte to be read
+	 */
+	public long getFilePointer() throws IOException {
+		if(currentBlock == null || currentOffset == currentBlock.length) {
+			if(!advanceBlock()) {
+				return nextBlockAddress << 16;
+			}
+		}
+		return (currentBlock.address << 16) | currentOffset;
+	}
+
+	@Override
+	public int read() throws IOException {
+		if((currentBlock == null || currentOffset == currentBlock.length) && !advanceBlock()) {
+			return -1;
+		}
+		return currentBlock.data[currentOffset++] & 0xff;
+	}
+
+	@Override
+	public int read(byte[] buffer, int off, int len) throws IOException {
+		if(len == 0) {
+			return 0;
+		}
+		int read = 0;
+		while (read < len) {
+			if((currentBlock == null || currentOffset == currentBlock.length) && !advanceBlock()) {
+				break;
+			}
+			int toCopy = Math.min(len - read, currentBlock.length - currentOffset);
+			System.arraycopy(currentBlock.data, currentOffset, buffer, off + read, toCopy);
+			currentOffset += toCopy;
+			read += toCopy;
+		}
+		return read == 0 ? -1 : read;
+	}
+
+	@Override
+	public int available() throws IOException {
+		return currentBlock == null ? 0 : currentBlock.length - currentOffset;
+	}
+
+	@Override
+	public void close() throws IOException {
+		for (Future<BgzfBlock> pending : inFlight) {
+			pending.cancel(false);
+		}
+		inFlight.clear();
+		compressedStream.close();
+	}
+
+	private boolean advanceBlock() throws IOException {
+		do {
+			fillPipeline();
+			if(inFlight.isEmpty()) {
+				currentBlock = null;
+				return false;
+			}
+			try {
+				currentBlock = inFlight.poll().get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("Interrupted while waiting for a BGZF block", e);
+			} catch (ExecutionException e) {
+				throw new IOException("Could not inflate BGZF block", e.getCause());
+			}
+			currentOffset = 0;
+		} while (currentBlock.length == 0); // Skip empty blocks such as the EOF marker
+		fillPipeline();
+		return true;
+	}
+
+	private void fillPipeline() throws IOException {
+		while(!compressedStreamExhausted && inFlight.size() < prefetchDepth) {
+			final long address = nextBlockAddress;
+			final byte [] compressedBlock = readCompressedBlock();
+			if(compressedBlock == null) {
+				compressedStreamExhausted = true;
+			} else {
+				nextBlockAddress += compressedBlock.length;
+				inFlight.add(inflatePool.submit(() -> inflateBlock(address, compressedBlock)));
+			}
+		}
+	}
+
+	private byte [] readCompressedBlock() throws IOException {
+		byte [] header = new byte[BLOCK_HEADER_LENGTH];
+		int headerRead = readFully(header, 0, BLOCK_HEADER_LENGTH);
+		if(headerRead == 0) {
+			return null;
+		}
+		if(headerRead < BLOCK_HEADER_LENGTH || header[0] != 31 || (header[1] & 0xff) != 139 || header[12] != 66 || header[13] != 67) {
+			throw new IOException("Input is not BGZF compressed or is truncated at offset " + nextBlockAddress);
+		}
+		int blockSize = ((header[16] & 0xff) | ((header[17] & 0xff) << 8)) + 1;
+		byte [] block = new byte[blockSize];
+		System.arraycopy(header, 0, block, 0, BLOCK_HEADER_LENGTH);
+		if(readFully(block, BLOCK_HEADER_LENGTH, blockSize - BLOCK_HEADER_LENGTH) < blockSize - BLOCK_HEADER_LENGTH) {
+			throw new EOFException("Truncated BGZF block at offset " + nextBlockAddress);
+		}
+		return block;
+	}
+
+	private int readFully(byte [] buffer, int off, int len) throws IOException {
+		int total = 0;
+		while (total < len) {
+			int n = compressedStream.read(buffer, off + total, len - total);
+			if(n < 0) {
+				break;
+			}
+			total += n;
+		}
+		return total;
+	}
+
+	static BgzfBlock inflateBlock(long address, byte [] compressedBlock) throws DataFormatException {
+		int blockSize = compressedBlock.length;
+		int uncompressedSize = (compressedBlock[blockSize - 4] & 0xff) |
+				((compressedBlock[blockSize - 3] & 0xff) << 8) |
+				((compressedBlock[blockSize - 2] & 0xff) << 16) |
+				((compressedBlock[blockSize - 1] & 0xff) << 24);
+		byte [] data = new byte[uncompressedSize];
+		if(uncompressedSize > 0) {
+			Inflater inflater = INFLATERS.get();
+			inflater.reset();
+			inflater.setInput(compressedBlock, BLOCK_HEADER_LENGTH, blockSize - BLOCK_HEADER_LENGTH - 8);
+			int inflated = inflater.inflate(data, 0, uncompressedSize);
+			if(inflated != uncompressedSize) {
+				throw new DataFormatException("BGZF block at " + address + " inflated to " + inflated + " bytes, expected " + uncompressedSize);
+			}
+		}
+		return new BgzfBlock(address, compressedBlock.length, data);
+	}
+
+}
+
+class BgzfBlock {
+	final long address;
+	final int compressedLength;
+	final byte [] data;
+	final int length;
+
+	BgzfBlock(long address, int compressedLength, byte [] data) {
+		this.address = address;
+		this.compressedLength = compressedLength;
+		this.data = data;
+		this.length = data.length;
+	}
+}
@@ -0,0 +1,207 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2022 University of Massachusetts Medical School
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package edu.umms.garberlab.slam;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Writes a BGZF compressed stream deflating its blocks on a pool of threads. BGZF is
+ * a series of gzip members, so the output can be read by any gzip reader.
+ *
+ * Blocks are filled in the calling thread and handed to the pool, no more than
+ * <code>maxInFlight</code> blocks are waiting to be written at any time. They are
+ * written in the order they were filled.
+ *
+ * @author mgarber
+ *
+ */
+public class ParallelBgzfOutputStream extends OutputStream {
+
+	/** Uncompressed bytes per block, small enough for a stored block to fit in 64KB */
+	static final int BLOCK_DATA_SIZE = 65280;
+	private static final int BLOCK_FOOTER_LENGTH = 8;
+	private static final byte [] EOF_BLOCK = {31, -117, 8, 4, 0, 0, 0, 0, 0, -1, 6, 0, 66, 67, 2, 0, 27, 0, 3, 0, 0, 0, 0, 0, 0, 0, 0, 0};
+
+	private static final ThreadLocal<Deflater> DEFLATERS = new ThreadLocal<Deflater>() {
+		@Override
+		protected Deflater initialValue() {
+			return new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+		}
+	};
+	private static final ThreadLocal<Deflater> STORERS = new ThreadLocal<Deflater>() {
+		@Override
+		protected Deflater initialValue() {
+			return new Deflater(Deflater.NO_COMPRESSION, true);
+		}
+	};
+
+	private final OutputStream compressedStream;
+	private final ExecutorService deflatePool;
+	private final int maxInFlight;
+	private final ArrayDeque<Future<byte []>> inFlight;
+
+	private byte [] block = new byte[BLOCK_DATA_SIZE];
+	private int blockLength;
+
+	public ParallelBgzfOutputStream(OutputStream compressedStream, ExecutorService deflatePool, int maxInFlight) {
+		this.compressedStream = new BufferedOutputStream(compressedStream, ParallelBgzfInputStream.MAX_BLOCK_SIZE * 4);
+		this.deflatePool = deflatePool;
+		this.maxInFlight = Math.max(1, maxInFlight);
+		this.inFlight = new ArrayDeque<Future<byte []>>(this.maxInFlight);
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		block[blockLength++] = (byte) b;
+		if(blockLength == BLOCK_DATA_SIZE) {
+			submitBlock();
+		}
+	}
+
+	@Override
+	public void write(byte[] buffer, int off, int len) throws IOException {
+		while (len > 0) {
+			int toCopy = Math.min(len, BLOCK_DATA_SIZE - blockLength);
+			System.arraycopy(buffer, off, block, blockLength, toCopy);
+			blockLength += toCopy;
+			off += toCopy;
+			len -= toCopy;
+			if(blockLength == BLOCK_DATA_SIZE) {
+				submitBlock();
+			}
+		}
+	}
+
+	/**
+	 * Writes the blocks filled so far, the current one is ended even if not full.
+	 */
+	@Override
+	public void flush() throws IOException {
+		if(blockLength > 0) {
+			submitBlock();
+		}
+		while (!inFlight.isEmpty()) {
+			writeNextBlock();
+		}
+		compressedStream.flush();
+	}
+
+	@Override
+	public void close() throws IOException {
+		try {
+			flush();
+			compressedStream.write(EOF_BLOCK);
+		} finally {
+			for (Future<byte []> pending : inFlight) {
+				pending.cancel(false);
+			}
+			inFlight.clear();
+			compressedStream.close();
+		}
+	}
+
+	private void submitBlock() throws IOException {
+		final byte [] data = block;
+		final int length = blockLength;
+		inFlight.add(deflatePool.submit(() -> deflateBlock(data, length)));
+		block = new byte[BLOCK_DATA_SIZE];
+		blockLength = 0;
+		while (inFlight.size() >= maxInFlight) {
+			writeNextBlock();
+		}
+	}
+
+	private void writeNextBlock() throws IOException {
+		try {
+			compressedStream.write(inFlight.poll().get());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while waiting for a BGZF block", e);
+		} catch (ExecutionException e) {
+			throw new IOException("Could not deflate BGZF block", e.getCause());
+		}
+	}
+
+	static byte [] deflateBlock(byte [] data, int length) {
+		byte [] compressed = new byte[ParallelBgzfInputStream.MAX_BLOCK_SIZE];
+		int maxDeflated = compressed.length - ParallelBgzfInputStream.BLOCK_HEADER_LENGTH - BLOCK_FOOTER_LENGTH;
+		int deflated = deflate(DEFLATERS.get(), data, length, compressed, maxDeflated);
+		if(deflated < 0) {
+			// Incompressible data, a stored block is only a few bytes larger than the input
+			deflated = deflate(STORERS.get(), data, length, compressed, maxDeflated);
+		}
+		int blockSize = ParallelBgzfInputStream.BLOCK_HEADER_LENGTH + deflated + BLOCK_FOOTER_LENGTH;
+
+		compressed[0] = 31;
+		compressed[1] = (byte) 139;
+		compressed[2] = 8;
+		compressed[3] = 4;
+		compressed[9] = (byte) 255;
+		compressed[10] = 6;
+		compressed[12] = 66;
+		compressed[13] = 67;
+		compressed[14] = 2;
+		writeInt16(compressed, 16, blockSize - 1);
+
+		CRC32 crc = new CRC32();
+		crc.update(data, 0, length);
+		int footer = ParallelBgzfInputStream.BLOCK_HEADER_LENGTH + deflated;
+		writeInt32(compressed, footer, (int) crc.getValue());
+		writeInt32(compressed, footer + 4, length);
+		return Arrays.copyOf(compressed, blockSize);
+	}
+
+	/**
+	 * @return The number of deflated bytes, -1 if they do not fit in <code>maxDeflated</code>
+	 */
+	private static int deflate(Deflater deflater, byte [] data, int length, byte [] compressed, int maxDeflated) {
+		deflater.reset();
+		deflater.setInput(data, 0, length);
+		deflater.finish();
+		int deflated = deflater.deflate(compressed, ParallelBgzfInputStream.BLOCK_HEADER_LENGTH, maxDeflated);
+		return deflater.finished() ? deflated : -1;
+	}
+
+	private static void writeInt16(byte [] buffer, int offset, int value) {
+		buffer[offset] = (byte) value;
+		buffer[offset + 1] = (byte) (value >>> 8);
+	}
+
+	private static void writeInt32(byte [] buffer, int offset, int value) {
+		writeInt16(buffer, offset, value);
+		writeInt16(buffer, offset + 2, value >>> 16);
+	}
+
+}
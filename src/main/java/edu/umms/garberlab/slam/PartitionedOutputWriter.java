@@ -0,0 +1,393 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2022 University of Massachusetts Medical School
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package edu.umms.garberlab.slam;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import htsjdk.samtools.MergingSamRecordIterator;
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMFileHeader.SortOrder;
+import htsjdk.samtools.SAMFileWriter;
+import htsjdk.samtools.SAMFileWriterFactory;
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SAMTag;
+import htsjdk.samtools.SamFileHeaderMerger;
+import htsjdk.samtools.SamReader;
+import htsjdk.samtools.SamReaderFactory;
+import htsjdk.samtools.util.CloserUtil;
+import htsjdk.samtools.util.ProgressLoggerInterface;
+
+/**
+ * Writes the converted or the unconverted output as one file per contig, read group and/or
+ * annotation feature, <code>&lt;outPrefix&gt;_&lt;partition&gt;_converted.bam</code>, so downstream jobs
+ * can be run per partition without seeking or splitting again. Records go to the partition of their own
+ * alignment, so mates aligned to different contigs end up in different files. Unmapped
+ * records go to the <code>unmapped</code> partition, records without a read group to <code>noRG</code>.
+ * Characters other than letters, digits, '.', '_' and '-' are replaced by '_' in the file names,
+ * partitions that would then share a file name (i.e. chr1:random and chr1_random) get a _2, _3...
+ * suffix in the order they are first seen.
+ * Features (exonic, intronic, mixed or intergenic) are those of the whole fragment, set by
+ * {@link AnnotationIndex#annotate}, records without one go to <code>unannotated</code>.
+ *
+ * At most {@link Settings#getMaxOpenWriters()} files are open at once. Records of partitions
+ * without an open writer are buffered, and when the buffers are full the largest one is flushed
+ * to a writer, closing the least recently used one. If a closed partition is flushed again it
+ * is written to a new part which is appended (or merged, for sorted outputs) to the first one on
+ * close. Buffering keeps the number of parts low when the input interleaves more partitions than
+ * there are open writers, i.e. query sorted input partitioned by contig.
+ * Each open writer compresses in its own thread. Coordinate sorted input is written as it comes
+ * (see {@link Settings#setCoordinateSortedInput}), otherwise htsjdk sorts each partition.
+ *
+ * @author mgarber
+ *
+ */
+public class PartitionedOutputWriter implements SAMFileWriter {
+
+	static final String UNMAPPED = "unmapped";
+	static final String NO_READ_GROUP = "noRG";
+	static final String UNANNOTATED = "unannotated";
+	static final int BUFFERED_RECORDS = 100000;
+
+	private final File outDir;
+	private final String outPrefix;
+	private final boolean converted;
+	private final SAMFileHeader header;
+	private final SplitterOutputFormat format;
+	private final File reference;
+	private final Settings settings;
+	private final SAMFileWriterFactory factory;
+
+	private final LinkedHashMap<String, SAMFileWriter> openWriters;
+	private final Map<String, List<File>> parts = new LinkedHashMap<String, List<File>>();
+	private final Map<String, List<SAMRecord>> buffers = new HashMap<String, List<SAMRecord>>();
+	private final int bufferLimit;
+	private int bufferedRecords;
+
+	public PartitionedOutputWriter(File outDir, String outPrefix, boolean converted, SAMFileHeader header, SplitterOutputFormat format, File reference, Settings settings) {
+		this(outDir, outPrefix, converted, header, format, reference, settings, BUFFERED_RECORDS);
+	}
+
+	PartitionedOutputWriter(File outDir, String outPrefix, boolean converted, SAMFileHeader header, SplitterOutputFormat format, File reference, Settings settings, int bufferLimit) {
+		this.bufferLimit = bufferLimit;
+		this.outDir = outDir;
+		this.outPrefix = outPrefix;
+		this.converted = converted;
+		this.header = header;
+		this.format = format;
+		this.reference = reference;
+		this.settings = settings;
+		this.factory = new SAMFileWriterFactory().setUseAsyncIo(true);
+		this.openWriters = new LinkedHashMap<String, SAMFileWriter>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, SAMFileWriter> eldest) {
+				if(size() > PartitionedOutputWriter.this.settings.getMaxOpenWriters()) {
+					eldest.getValue().close();
+					return true;
+				}
+				return false;
+			}
+		};
+	}
+
+	@Override
+	public void addAlignment(SAMRecord alignment) {
+		String partition = settings.partition(alignment);
+		SAMFileWriter writer = openWriters.get(partition);
+		if(writer != null) {
+			writer.addAlignment(alignment);
+			return;
+		}
+		if(!parts.containsKey(partition) && !buffers.containsKey(partition) && openWriters.size() < settings.getMaxOpenWriters()) {
+			// A free writer, no need to buffer
+			openWriter(partition).addAlignment(alignment);
+			return;
+		}
+		List<SAMRecord> buffer = buffers.get(partition);
+		if(buffer == null) {
+			buffer = new ArrayList<SAMRecord>();
+			buffers.put(partition, buffer);
+		}
+		buffer.add(alignment);
+		if(++bufferedRecords >= bufferLimit) {
+			flushLargestBuffer();
+		}
+	}
+
+	private void flushLargestBuffer() {
+		String largest = null;
+		for (Map.Entry<String, List<SAMRecord>> buffer : buffers.entrySet()) {
+			if(largest == null || buffer.getValue().size() > buffers.get(largest).size()) {
+				largest = buffer.getKey();
+			}
+		}
+		flush(largest);
+	}
+
+	private void flush(String partition) {
+		List<SAMRecord> buffer = buffers.remove(partition);
+		SAMFileWriter writer = openWriters.get(partition);
+		if(writer == null) {
+			writer = openWriter(partition);
+		}
+		for (SAMRecord record : buffer) {
+			writer.addAlignment(record);
+		}
+		bufferedRecords -= buffer.size();
+	}
+
+	private SAMFileWriter openWriter(String partition) {
+		List<File> partitionParts = parts.get(partition);
+		if(partitionParts == null) {
+			partitionParts = new ArrayList<File>();
+			parts.put(partition, partitionParts);
+		}
+		File partitionFile = partitionFile(partition);
+		File part = partitionParts.isEmpty() ? partitionFile : new File(partitionFile.getAbsolutePath() + ".part" + partitionParts.size());
+		partitionParts.add(part);
+		boolean presorted = settings.isCoordinateSortedInput() && SortOrder.coordinate.equals(header.getSortOrder());
+		SAMFileWriter writer = format.makeWriter(factory, header, part, reference, presorted);
+		openWriters.put(partition, writer);
+		return writer;
+	}
+
+	File partitionFile(String partition) {
+		return Hisat3nSplitterWriter.outputFile(outDir, outPrefix + "_" + settings.fileName(partition), converted, format);
+	}
+
+	/**
+	 * @return The partitions written so far, in the order they were first seen
+	 */
+	public List<String> getPartitions() {
+		return new ArrayList<String>(parts.keySet());
+	}
+
+	@Override
+	public SAMFileHeader getFileHeader() {
+		return header;
+	}
+
+	@Override
+	public void setProgressLogger(ProgressLoggerInterface progress) {
+	}
+
+	@Override
+	public void close() {
+		while (!buffers.isEmpty()) {
+			flushLargestBuffer();
+		}
+		for (SAMFileWriter writer : openWriters.values()) {
+			writer.close();
+		}
+		openWriters.clear();
+		for (Map.Entry<String, List<File>> partition : parts.entrySet()) {
+			if(partition.getValue().size() > 1) {
+				try {
+					joinParts(partitionFile(partition.getKey()), partition.getValue());
+				} catch (IOException e) {
+					throw new RuntimeException("Could not join the parts of partition " + partition.getKey(), e);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Parts hold consecutive stretches of the input so appending them keeps the input order,
+	 * but sorted outputs are merged since the writers sort what they get.
+	 */
+	private void joinParts(File partitionFile, List<File> partitionParts) throws IOException {
+		List<File> renamed = new ArrayList<File>(partitionParts);
+		File first = new File(partitionFile.getAbsolutePath() + ".part0");
+		Files.move(partitionFile.toPath(), first.toPath());
+		renamed.set(0, first);
+
+		SamReaderFactory readerFactory = SamReaderFactory.makeDefault().referenceSequence(reference);
+		List<SamReader> readers = new ArrayList<SamReader>();
+		try {
+			List<SAMFileHeader> headers = new ArrayList<SAMFileHeader>();
+			for (File part : renamed) {
+				SamReader reader = readerFactory.open(part);
+				readers.add(reader);
+				headers.add(reader.getFileHeader());
+			}
+			SortOrder sortOrder = header.getSortOrder();
+			SAMFileWriter writer = format.makeWriter(new SAMFileWriterFactory(), header, partitionFile, reference, true);
+			if(SortOrder.coordinate.equals(sortOrder) || SortOrder.queryname.equals(sortOrder)) {
+				MergingSamRecordIterator merged = new MergingSamRecordIterator(new SamFileHeaderMerger(sortOrder, headers, false), readers, true);
+				while (merged.hasNext()) {
+					writer.addAlignment(merged.next());
+				}
+			} else {
+				for (SamReader reader : readers) {
+					for (SAMRecord record : reader) {
+						writer.addAlignment(record);
+					}
+				}
+			}
+			writer.close();
+		} finally {
+			CloserUtil.close(readers);
+		}
+		for (File part : renamed) {
+			Files.delete(part.toPath());
+		}
+	}
+
+	/**
+	 * How the outputs are partitioned, i.e. <code>contig</code>, <code>readGroup</code>, <code>feature</code> or <code>contig,readGroup</code>
+	 */
+	public static class Settings {
+		private final boolean byContig;
+		private final boolean byReadGroup;
+		private final boolean byFeature;
+		private final int maxOpenWriters;
+		private boolean coordinateSortedInput;
+
+		// Shared by the converted and unconverted writers so a partition has the same file name in both
+		private final Map<String, String> fileNames = new HashMap<String, String>();
+		private final Set<String> usedFileNames = new HashSet<String>();
+
+		public Settings(boolean byContig, boolean byReadGroup, int maxOpenWriters) {
+			this(byContig, byReadGroup, false, maxOpenWriters);
+		}
+
+		public Settings(boolean byContig, boolean byReadGroup, boolean byFeature, int maxOpenWriters) {
+			if(!byContig && !byReadGroup && !byFeature) {
+				throw new IllegalArgumentException("Outputs must be partitioned by contig, read group and/or feature");
+			}
+			if(maxOpenWriters < 1) {
+				throw new IllegalArgumentException("At least one partition writer must be open, got " + maxOpenWriters);
+			}
+			this.byContig = byContig;
+			this.byReadGroup = byReadGroup;
+			this.byFeature = byFeature;
+			this.maxOpenWriters = maxOpenWriters;
+		}
+
+		Settings(Settings settings, int maxOpenWriters) {
+			this(settings.byContig, settings.byReadGroup, settings.byFeature, maxOpenWriters);
+			this.coordinateSortedInput = settings.coordinateSortedInput;
+		}
+
+		/**
+		 * @param partitionBy Comma separated list of contig, readGroup and feature
+		 * @param maxOpenWriters Writers open at once
+		 */
+		public static Settings parse(String partitionBy, int maxOpenWriters) {
+			boolean byContig = false;
+			boolean byReadGroup = false;
+			boolean byFeature = false;
+			for (String key : partitionBy.split(",")) {
+				if("contig".equalsIgnoreCase(key.trim())) {
+					byContig = true;
+				} else if("readGroup".equalsIgnoreCase(key.trim()) || "RG".equalsIgnoreCase(key.trim())) {
+					byReadGroup = true;
+				} else if("feature".equalsIgnoreCase(key.trim())) {
+					byFeature = true;
+				} else {
+					throw new IllegalArgumentException("Unknown partition " + key + ", expected contig, readGroup and/or feature");
+				}
+			}
+			return new Settings(byContig, byReadGroup, byFeature, maxOpenWriters);
+		}
+
+		public int getMaxOpenWriters() {
+			return maxOpenWriters;
+		}
+
+		/**
+		 * Tells the writers the records are added in the coordinate order of the header, so the partitions
+		 * are written as they come instead of being sorted again. Not the case for mates outside -regions
+		 * or the records of a duplicate filter, which come in 5' order.
+		 */
+		public void setCoordinateSortedInput(boolean coordinateSortedInput) {
+			this.coordinateSortedInput = coordinateSortedInput;
+		}
+
+		public boolean isCoordinateSortedInput() {
+			return coordinateSortedInput;
+		}
+
+		/**
+		 * @return Whether the outputs are partitioned by the feature of the fragments, which needs an {@link AnnotationIndex}
+		 */
+		public boolean isByFeature() {
+			return byFeature;
+		}
+
+		String partition(SAMRecord record) {
+			String contig = null;
+			if(byContig) {
+				contig = record.getReadUnmappedFlag() || record.getReferenceIndex() < 0 ? UNMAPPED : record.getReferenceName();
+			}
+			String readGroupId = null;
+			if(byReadGroup) {
+				readGroupId = record.getStringAttribute(SAMTag.RG.name());
+				if(readGroupId == null) {
+					readGroupId = NO_READ_GROUP;
+				}
+			}
+			String feature = null;
+			if(byFeature) {
+				AnnotationIndex.Feature fragmentFeature = (AnnotationIndex.Feature) record.getTransientAttribute(AnnotationIndex.FEATURE_ATTRIBUTE);
+				feature = record.getReadUnmappedFlag() ? UNMAPPED : (fragmentFeature == null ? UNANNOTATED : fragmentFeature.getName());
+			}
+			return join(join(contig, readGroupId), feature);
+		}
+
+		/**
+		 * @return The partition with the characters that do not belong in a file name replaced, and a suffix
+		 * if another partition seen before has the same name. Compared ignoring case, for case insensitive
+		 * file systems.
+		 */
+		synchronized String fileName(String partition) {
+			String fileName = fileNames.get(partition);
+			if(fileName == null) {
+				String sanitized = partition.replaceAll("[^A-Za-z0-9._-]", "_");
+				fileName = sanitized;
+				for (int i = 2; !usedFileNames.add(fileName.toLowerCase()); i++) {
+					fileName = sanitized + "_" + i;
+				}
+				fileNames.put(partition, fileName);
+			}
+			return fileName;
+		}
+
+		private static String join(String partition, String key) {
+			return partition == null ? key : (key == null ? partition : partition + "." + key);
+		}
+	}
+
+}
@@ -0,0 +1,433 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2022 University of Massachusetts Medical School
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package edu.umms.garberlab.slam;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.function.Predicate;
+
+import htsjdk.samtools.AbstractBAMFileIndex;
+import htsjdk.samtools.BAMFileSpan;
+import htsjdk.samtools.BAMIndex;
+import htsjdk.samtools.BAMIndexMetaData;
+import htsjdk.samtools.QueryInterval;
+import htsjdk.samtools.SAMFileHeader.SortOrder;
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SAMSequenceRecord;
+import htsjdk.samtools.SBIIndex;
+import htsjdk.samtools.SamReader;
+
+/**
+ * Estimates the converted, spliced and unmapped fractions of a run from a sample of the input,
+ * without writing any output (-preview).
+ *
+ * The sample depends on the input:
+ * <ul>
+ * <li>Indexed coordinate sorted BAM: up to {@link #CHUNKS} windows evenly spaced in the compressed file,
+ * located with the index and read as target regions so mates outside them are looked up.</li>
+ * <li>Query sorted BAM with an .sbi index: up to {@link #CHUNKS} evenly spaced ranges of virtual offsets
+ * that start and end at read name boundaries.</li>
+ * <li>Anything else: the whole input is read and fragments are kept by a hash of their read name,
+ * so mates are always kept together.</li>
+ * </ul>
+ * Totals are extrapolated with the fraction of the alignments sampled. The 95% confidence intervals
+ * are those of ratio estimators over the chunks (or over consecutive segments of the hashed sample),
+ * so they include the variability between regions of the input.
+ *
+ * @author mgarber
+ *
+ */
+public class Preview {
+
+	static final int CHUNKS = 64;
+	static final int SEGMENT_ALIGNMENTS = 1000;
+	// Resolution of the linear index
+	private static final int WINDOW = 1 << 14;
+	private static final double Z = 1.96;
+
+	private static final int ALIGNMENTS = 0;
+	private static final int FRAGMENTS = 1;
+	private static final int CONVERTED = 2;
+	private static final int SPLICED = 3;
+	private static final int UNMAPPED = 4;
+
+	private final double fraction;
+	private String method;
+	private long inputAlignments = -1;
+	private long readAlignments;
+	private TargetRegions targetRegions;
+
+	private SplitterMetrics metrics;
+	private final List<long []> segments = new ArrayList<long []>();
+	private long [] segmentStart = new long[5];
+
+	/**
+	 * @param fraction Fraction of the input to sample, in (0, 1]
+	 */
+	public Preview(double fraction) {
+		if(!(fraction > 0 && fraction <= 1)) {
+			throw new IllegalArgumentException("The preview fraction must be in (0, 1], got " + fraction);
+		}
+		this.fraction = fraction;
+	}
+
+	/**
+	 * @return true for the fragments of the hashed sample, the same for all the records of a read name
+	 */
+	static boolean keep(String readName, double fraction) {
+		return (Hisat3nSplitterWriter.readNameHash(readName) >>> 11) < fraction * (1L << 53);
+	}
+
+	/**
+	 * Chooses how to sample the input, see the class description
+	 * @param records The records the splitter would read otherwise
+	 * @return The sampled records
+	 */
+	public Iterable<SAMRecord> sample(SamReader reader, File bam, Iterable<SAMRecord> records, SortOrder sortOrder) throws IOException {
+		boolean isBam = reader.type() == SamReader.Type.BAM_TYPE;
+		File sbiFile = new File(bam.getPath() + SBIIndex.FILE_EXTENSION);
+		if(isBam && SortOrder.coordinate.equals(sortOrder) && reader.hasIndex()) {
+			return sampleIndexedChunks(reader);
+		} else if(isBam && !SortOrder.coordinate.equals(sortOrder) && sbiFile.exists()) {
+			return sampleOffsetChunks(reader, bam, SBIIndex.load(sbiFile.toPath()));
+		}
+		method = "read name hash of all the input";
+		return () -> new SegmentIterator(records.iterator(),
+				record -> {
+					readAlignments++;
+					return keep(record.getReadName(), fraction);
+				},
+				record -> metrics.getAlignments() - segmentStart[ALIGNMENTS] >= SEGMENT_ALIGNMENTS);
+	}
+
+	private Iterable<SAMRecord> sampleIndexedChunks(SamReader reader) {
+		BAMIndex index = reader.indexing().getIndex();
+		List<SAMSequenceRecord> contigs = reader.getFileHeader().getSequenceDictionary().getSequences();
+		inputAlignments = 0;
+		// Start of each window in the compressed file
+		List<long []> windows = new ArrayList<long []>();
+		for (SAMSequenceRecord contig : contigs) {
+			BAMIndexMetaData metaData = index.getMetaData(contig.getSequenceIndex());
+			if(metaData == null || metaData.getAlignedRecordCount() + metaData.getUnalignedRecordCount() == 0) {
+				continue;
+			}
+			inputAlignments += metaData.getAlignedRecordCount() + metaData.getUnalignedRecordCount();
+			for (int start = 1; start <= contig.getSequenceLength(); start += WINDOW) {
+				BAMFileSpan span = index.getSpanOverlapping(contig.getSequenceIndex(), start, start + WINDOW - 1);
+				if(span != null && !span.isEmpty()) {
+					windows.add(new long[] {span.getFirstOffset() >>> 16, contig.getSequenceIndex(), start});
+				}
+			}
+		}
+		windows.sort((w1, w2) -> Long.compare(w1[0], w2[0]));
+		long unplaced = index instanceof AbstractBAMFileIndex && ((AbstractBAMFileIndex) index).getNoCoordinateCount() != null ?
+				((AbstractBAMFileIndex) index).getNoCoordinateCount() : 0;
+		int chunkCount = chunkCount(windows.size());
+		method = chunkCount + " chunks of the index" + (unplaced > 0 ? ", the " + unplaced + " unplaced reads are not sampled" : "");
+
+		List<QueryInterval> chunks = new ArrayList<QueryInterval>();
+		if(!windows.isEmpty()) {
+			long first = windows.get(0)[0];
+			long size = windows.get(windows.size() - 1)[0] - first + 1;
+			int w = 0;
+			for (int c = 0; c < chunkCount; c++) {
+				long chunkStart = first + (long) (size * (c + 0.5) / chunkCount);
+				long chunkEnd = chunkStart + Math.max(1, (long) (size * fraction / chunkCount));
+				while (w < windows.size() && windows.get(w)[0] < chunkStart) {
+					w++;
+				}
+				if(w == windows.size()) {
+					break;
+				}
+				int contig = (int) windows.get(w)[1];
+				int start = (int) windows.get(w)[2];
+				int end = start + WINDOW - 1;
+				// At least one window, extended on the same contig up to the end of the chunk
+				while (w + 1 < windows.size() && windows.get(w + 1)[0] < chunkEnd && windows.get(w + 1)[1] == contig) {
+					w++;
+					end = (int) windows.get(w)[2] + WINDOW - 1;
+				}
+				w++;
+				chunks.add(new QueryInterval(contig, start, end));
+			}
+		}
+		final QueryInterval [] intervals = chunks.toArray(new QueryInterval[chunks.size()]);
+		// Offsets follow the coordinates, but not necessarily for windows sharing their first chunk
+		Arrays.sort(intervals);
+		targetRegions = new TargetRegions(intervals);
+		final QueryInterval [] query = targetRegions.getIntervals();
+		return () -> new SegmentIterator(reader.query(query, false), record -> true, new Predicate<SAMRecord>() {
+			private int chunk = 0;
+
+			@Override
+			public boolean test(SAMRecord record) {
+				boolean next = false;
+				while (chunk < intervals.length - 1 && (record.getReferenceIndex() > intervals[chunk].referenceIndex ||
+						(record.getReferenceIndex() == intervals[chunk].referenceIndex && record.getAlignmentStart() > intervals[chunk].end))) {
+					chunk++;
+					next = true;
+				}
+				return next;
+			}
+		});
+	}
+
+	private Iterable<SAMRecord> sampleOffsetChunks(SamReader reader, File bam, SBIIndex sbi) throws IOException {
+		inputAlignments = sbi.getHeader().getTotalNumberOfRecords();
+		int chunkCount = chunkCount(sbi.size());
+		method = chunkCount + " chunks of the .sbi index";
+		List<ScatterGather.Shard> chunks = new ArrayList<ScatterGather.Shard>();
+		long size = bam.length();
+		for (int c = 0; c < chunkCount; c++) {
+			long chunkStart = (long) (size * (c + 0.5) / chunkCount);
+			long chunkEnd = chunkStart + Math.max(1, (long) (size * fraction / chunkCount));
+			List<Long> boundaries = ScatterGather.boundariesFromIndex(bam, sbi, new long[] {chunkStart, chunkEnd});
+			if(boundaries.size() == 2) {
+				chunks.add(ScatterGather.Shard.offsets(boundaries.get(0), boundaries.get(1)));
+			}
+		}
+		return () -> {
+			OffsetChunkIterator records = new OffsetChunkIterator(chunks, reader, bam);
+			return new SegmentIterator(records, record -> true, record -> records.startedChunk());
+		};
+	}
+
+	/**
+	 * Small inputs have few index entries, each chunk reads at least one of them
+	 * @param entries Windows or offsets of the index
+	 */
+	private int chunkCount(long entries) {
+		return (int) Math.max(2, Math.min(CHUNKS, Math.round(entries * fraction)));
+	}
+
+	/**
+	 * @return The chunks of an indexed coordinate sorted input, for the writer to look up mates outside of them. Null otherwise.
+	 */
+	public TargetRegions getTargetRegions() {
+		return targetRegions;
+	}
+
+	/**
+	 * The metrics of the writer the sample goes through, they are read between segments
+	 */
+	public void setMetrics(SplitterMetrics metrics) {
+		this.metrics = metrics;
+	}
+
+	private long [] snapshot() {
+		return new long[] {metrics.getAlignments(), metrics.getFragments(), metrics.getConvertedFragments(),
+				metrics.getSplicedFragments(), metrics.getUnmappedFragments()};
+	}
+
+	private void endSegment() {
+		long [] now = snapshot();
+		long [] segment = new long[now.length];
+		for (int i = 0; i < now.length; i++) {
+			segment[i] = now[i] - segmentStart[i];
+		}
+		if(segment[ALIGNMENTS] > 0) {
+			segments.add(segment);
+		}
+		segmentStart = now;
+	}
+
+	/**
+	 * Prints the estimates, once the sample went through the writer and it is closed
+	 * @param qc Labeling QC of the sample
+	 */
+	public void report(PrintStream out, ConversionQC qc) {
+		endSegment();
+		long [] totals = new long[5];
+		for (long [] segment : segments) {
+			for (int i = 0; i < totals.length; i++) {
+				totals[i] += segment[i];
+			}
+		}
+		long alignments = inputAlignments >= 0 ? inputAlignments : readAlignments;
+		double sampled = alignments == 0 ? 0 : totals[ALIGNMENTS] / (double) alignments;
+		out.println("Preview sampled " + totals[ALIGNMENTS] + " of " + alignments + " alignments (" + percent(sampled) + ") by " + method);
+		if(totals[ALIGNMENTS] == 0) {
+			return;
+		}
+		out.println("\tEstimated totals (95% CI):");
+		double [] perAlignment = ratio(FRAGMENTS, ALIGNMENTS, sampled);
+		out.println("\t\tfragments: " + interval(alignments * perAlignment[0], alignments * perAlignment[1], "%.0f"));
+		for (int i : new int[] {CONVERTED, SPLICED, UNMAPPED}) {
+			double [] perFragment = ratio(i, FRAGMENTS, sampled);
+			double [] total = ratio(i, ALIGNMENTS, sampled);
+			out.println("\t\t" + (i == CONVERTED ? "converted" : i == SPLICED ? "spliced" : "unmapped") + " fragments: " +
+					interval(alignments * total[0], alignments * total[1], "%.0f") + ", fraction " + interval(perFragment[0], perFragment[1], "%.4f"));
+		}
+		if(qc != null) {
+			long convertible = 0;
+			long converted = 0;
+			for (char base : new char[] {'A', 'C', 'G', 'T', 'N'}) {
+				convertible += qc.getBaseCount('+', 'T', base) + qc.getBaseCount('-', 'A', base);
+			}
+			converted = qc.getBaseCount('+', 'T', 'C') + qc.getBaseCount('-', 'A', 'G');
+			out.println("\tConversion rate of the sample: " + String.format("%.5f", convertible == 0 ? 0 : converted / (double) convertible) +
+					" of " + convertible + " convertible bases");
+			long reads = 0;
+			long [] histogram = new long[4];
+			for (int conversions = 0; conversions <= ConversionQC.MAX_CONVERSIONS; conversions++) {
+				long count = qc.getReadsWithConversions(conversions);
+				reads += count;
+				histogram[Math.min(conversions, histogram.length - 1)] += count;
+			}
+			StringBuilder distribution = new StringBuilder("\tReads with 0, 1, 2, 3+ conversions:");
+			for (long count : histogram) {
+				distribution.append(" ").append(percent(reads == 0 ? 0 : count / (double) reads));
+			}
+			out.println(distribution);
+		}
+	}
+
+	/**
+	 * Ratio estimator over the segments
+	 * @return estimate and half width of its 95% confidence interval, NaN if there are fewer than two segments
+	 */
+	private double [] ratio(int numerator, int denominator, double sampled) {
+		long y = 0;
+		long x = 0;
+		for (long [] segment : segments) {
+			y += segment[numerator];
+			x += segment[denominator];
+		}
+		double r = x == 0 ? 0 : y / (double) x;
+		int k = segments.size();
+		if(k < 2 || x == 0) {
+			return new double[] {r, Double.NaN};
+		}
+		double squares = 0;
+		for (long [] segment : segments) {
+			double residual = segment[numerator] - r * segment[denominator];
+			squares += residual * residual;
+		}
+		double meanX = x / (double) k;
+		double variance = (1 - Math.min(1, sampled)) * squares / (k * (k - 1.0) * meanX * meanX);
+		return new double[] {r, Z * Math.sqrt(variance)};
+	}
+
+	private static String interval(double estimate, double halfWidth, String format) {
+		return String.format(format, estimate) + (Double.isNaN(halfWidth) ? " [NA]" :
+			" [" + String.format(format, Math.max(0, estimate - halfWidth)) + ", " + String.format(format, estimate + halfWidth) + "]");
+	}
+
+	private static String percent(double value) {
+		return String.format("%.2f%%", 100 * value);
+	}
+
+	/**
+	 * Reads the offset chunks one after the other
+	 */
+	private static class OffsetChunkIterator implements Iterator<SAMRecord> {
+		private final List<ScatterGather.Shard> chunks;
+		private final SamReader reader;
+		private final File bam;
+		private int chunk = -1;
+		private Iterator<SAMRecord> current;
+		private boolean startedChunk;
+
+		OffsetChunkIterator(List<ScatterGather.Shard> chunks, SamReader reader, File bam) {
+			this.chunks = chunks;
+			this.reader = reader;
+			this.bam = bam;
+		}
+
+		@Override
+		public boolean hasNext() {
+			while ((current == null || !current.hasNext()) && chunk + 1 < chunks.size()) {
+				current = chunks.get(++chunk).records(reader, bam).iterator();
+				startedChunk = true;
+			}
+			return current != null && current.hasNext();
+		}
+
+		@Override
+		public SAMRecord next() {
+			if(!hasNext()) {
+				throw new NoSuchElementException();
+			}
+			return current.next();
+		}
+
+		/**
+		 * @return true once after the first record of a chunk was read
+		 */
+		boolean startedChunk() {
+			boolean started = startedChunk;
+			startedChunk = false;
+			return started;
+		}
+	}
+
+	/**
+	 * Filters the records and ends a segment before the records that start a new one
+	 */
+	private class SegmentIterator implements Iterator<SAMRecord> {
+		private final Iterator<SAMRecord> records;
+		private final Predicate<SAMRecord> keep;
+		private final Predicate<SAMRecord> startsSegment;
+		private SAMRecord next;
+
+		SegmentIterator(Iterator<SAMRecord> records, Predicate<SAMRecord> keep, Predicate<SAMRecord> startsSegment) {
+			this.records = records;
+			this.keep = keep;
+			this.startsSegment = startsSegment;
+		}
+
+		@Override
+		public boolean hasNext() {
+			while (next == null && records.hasNext()) {
+				SAMRecord record = records.next();
+				if(keep.test(record)) {
+					next = record;
+				}
+			}
+			return next != null;
+		}
+
+		@Override
+		public SAMRecord next() {
+			if(!hasNext()) {
+				throw new NoSuchElementException();
+			}
+			// The previous record went through the writer
+			if(startsSegment.test(next)) {
+				endSegment();
+			}
+			SAMRecord record = next;
+			next = null;
+			return record;
+		}
+	}
+
+}
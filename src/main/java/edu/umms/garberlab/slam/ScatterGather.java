@@ -0,0 +1,634 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2022 University of Massachusetts Medical School
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package edu.umms.garberlab.slam;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import htsjdk.samtools.BAMFileSpan;
+import htsjdk.samtools.BAMIndex;
+import htsjdk.samtools.BAMIndexMetaData;
+import htsjdk.samtools.BAMRecordCodec;
+import htsjdk.samtools.BamFileIoUtils;
+import htsjdk.samtools.Chunk;
+import htsjdk.samtools.QueryInterval;
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMFileSource;
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SAMRecordIterator;
+import htsjdk.samtools.SAMSequenceDictionary;
+import htsjdk.samtools.SBIIndex;
+import htsjdk.samtools.SamReader;
+import htsjdk.samtools.util.BlockCompressedInputStream;
+import htsjdk.samtools.util.RuntimeIOException;
+
+/**
+ * Runs the splitter as several local JVMs, each on an independent shard of the input,
+ * and concatenates their outputs in shard order so the result does not depend on
+ * which child finishes first.
+ *
+ * Coordinate sorted input is sharded by ranges of contigs, balanced with the record
+ * counts of the index. A contig with more records than a shard is cut at the positions
+ * of its linear index where the compressed offsets are in proportion, so a few or one
+ * large contig still give as many shards. Any other input is sharded at read name boundaries so that all
+ * the alignments of a read go to the same shard; the boundaries are found from the
+ * .sbi index when there is one, otherwise with a pass that only reads record lengths
+ * and names.
+ *
+ * @author mgarber
+ *
+ */
+public class ScatterGather {
+
+	private static final int NAME_OFFSET = 32;
+	/** Bases per entry of the linear index of a .bai */
+	private static final int LINEAR_INDEX_WINDOW = 1 << 14;
+
+	private final File workDir;
+	private final String outPrefix;
+	private final SplitterOutputFormat format;
+
+	/**
+	 * @param workDir Directory for the shard outputs, it is deleted after a successful gather
+	 * @param outPrefix Prefix of the gathered outputs
+	 * @param format Output format, BAM or SAM
+	 */
+	public ScatterGather(File workDir, String outPrefix, SplitterOutputFormat format) {
+		if(format == SplitterOutputFormat.CRAM) {
+			throw new IllegalArgumentException("CRAM output cannot be gathered, use BAM or SAM with -scatter");
+		}
+		this.workDir = workDir;
+		this.outPrefix = outPrefix;
+		this.format = format;
+	}
+
+	/**
+	 * Splits the contigs of an indexed coordinate sorted BAM in consecutive ranges with
+	 * about the same number of records. The last shard also takes the unplaced reads.
+	 * @param cutContigs Whether a range may start or end inside a contig, not when records
+	 * at both sides of a position must be seen together, i.e. duplicates
+	 */
+	public static List<Shard> planByContigs(SamReader reader, int shards, boolean cutContigs) {
+		if(!reader.hasIndex()) {
+			throw new IllegalArgumentException("Coordinate sorted input must be indexed to be scattered");
+		}
+		BAMIndex index = reader.indexing().getIndex();
+		SAMSequenceDictionary dictionary = reader.getFileHeader().getSequenceDictionary();
+		int contigs = dictionary.size();
+		long [] counts = new long[contigs];
+		long total = 0;
+		for (int i = 0; i < contigs; i++) {
+			BAMIndexMetaData metaData = index.getMetaData(i);
+			counts[i] = metaData == null ? 0 : (long) metaData.getAlignedRecordCount() + metaData.getUnalignedRecordCount();
+			total += counts[i];
+		}
+
+		List<Shard> plan = new ArrayList<Shard>();
+		int firstContig = 0;
+		int firstStart = 1;
+		long cumulative = 0;
+		for (int i = 0; i < contigs && plan.size() < shards - 1; i++) {
+			while (plan.size() < shards - 1 && counts[i] > 0 && (cumulative + counts[i]) * shards >= total * (plan.size() + 1)) {
+				int length = dictionary.getSequence(i).getSequenceLength();
+				int position = cutContigs && length > 0 ? 
+						cutPosition(index, i, length, Math.max(1, total * (plan.size() + 1) / shards - cumulative), counts[i]) : Integer.MAX_VALUE;
+				// The next shard starts at contig:start
+				int contig = position > length ? i + 1 : i;
+				int start = position > length ? 1 : position;
+				if(contig < firstContig || (contig == firstContig && start <= firstStart)) {
+					// Nothing left in this contig for another shard
+					break;
+				}
+				plan.add(start == 1 ? Shard.contigs(firstContig, firstStart, contig - 1, Integer.MAX_VALUE, false) : 
+					Shard.contigs(firstContig, firstStart, contig, start - 1, false));
+				firstContig = contig;
+				firstStart = start;
+			}
+			cumulative += counts[i];
+		}
+		if(firstContig == contigs && !plan.isEmpty()) {
+			// The last contig closed a shard, it also takes the unplaced reads
+			Shard last = plan.remove(plan.size() - 1);
+			plan.add(Shard.contigs(last.firstContig, last.firstStart, last.lastContig, last.lastEnd, true));
+		} else {
+			plan.add(Shard.contigs(firstContig, firstStart, contigs - 1, Integer.MAX_VALUE, true));
+		}
+		return plan;
+	}
+
+	/**
+	 * Records are assumed to be spread evenly over the compressed bytes of the contig
+	 * @param records Records of the contig before the cut
+	 * @return The first position of the linear index window where the compressed offset
+	 * reaches the share of the records, length + 1 if it is past the last one
+	 */
+	private static int cutPosition(BAMIndex index, int contig, int length, long records, long contigRecords) {
+		BAMIndexMetaData metaData = index.getMetaData(contig);
+		long first = metaData.getFirstOffset() >>> 16;
+		long last = metaData.getLastOffset() >>> 16;
+		long wanted = first + (long) ((last - first) * (double) records / contigRecords);
+		int windows = (length - 1) / LINEAR_INDEX_WINDOW + 1;
+		int low = 0;
+		int high = windows;
+		while (low < high) {
+			int middle = (low + high) >>> 1;
+			BAMFileSpan span = index.getSpanOverlapping(contig, middle * LINEAR_INDEX_WINDOW + 1, length);
+			long offset = span == null || span.isEmpty() ? last : span.getFirstOffset() >>> 16;
+			if(offset >= wanted) {
+				high = middle;
+			} else {
+				low = middle + 1;
+			}
+		}
+		return low == windows ? length + 1 : low * LINEAR_INDEX_WINDOW + 1;
+	}
+
+	/**
+	 * Splits the BAM in ranges of virtual offsets of about the same compressed size
+	 * that start at the first record of a read name.
+	 * @param readThreads Threads used to inflate the BAM when there is no .sbi index
+	 */
+	public static List<Shard> planByReadNames(File bam, int shards, int readThreads) throws IOException {
+		long [] targets = new long[shards - 1];
+		for (int i = 0; i < targets.length; i++) {
+			targets[i] = bam.length() * (i + 1) / shards;
+		}
+		File sbiFile = new File(bam.getPath() + SBIIndex.FILE_EXTENSION);
+		List<Long> boundaries = sbiFile.exists() ? boundariesFromIndex(bam, SBIIndex.load(sbiFile.toPath()), targets) : boundariesFromScan(bam, targets, readThreads);
+
+		List<Shard> plan = new ArrayList<Shard>();
+		long start = 0;
+		for (long boundary : boundaries) {
+			plan.add(Shard.offsets(start, boundary));
+			start = boundary;
+		}
+		plan.add(Shard.offsets(start, Long.MAX_VALUE));
+		return plan;
+	}
+
+	/**
+	 * @return The first read name boundary at or after each target compressed offset, targets
+	 * without a boundary after the previous one are skipped
+	 */
+	static List<Long> boundariesFromIndex(File bam, SBIIndex sbi, long [] targets) throws IOException {
+		List<Long> boundaries = new ArrayList<Long>();
+		long [] offsets = sbi.getVirtualOffsets();
+		try (BlockCompressedInputStream in = new BlockCompressedInputStream(bam)) {
+			DataInputStream data = new DataInputStream(in);
+			int o = 0;
+			for (long target : targets) {
+				// The last offset of the index is the end of the file
+				while (o < offsets.length - 1 && (offsets[o] >>> 16) < target) {
+					o++;
+				}
+				if(o == offsets.length - 1 || (!boundaries.isEmpty() && offsets[o] <= boundaries.get(boundaries.size() - 1))) {
+					continue;
+				}
+				in.seek(offsets[o]);
+				String previous = null;
+				while (true) {
+					long pointer = in.getFilePointer();
+					String name = readNextName(data);
+					if(name == null) {
+						break;
+					}
+					if(previous != null && !Hisat3nSplitterWriter.readNamesMatch(previous, name)) {
+						boundaries.add(pointer);
+						break;
+					}
+					previous = name;
+				}
+			}
+		}
+		return boundaries;
+	}
+
+	private static List<Long> boundariesFromScan(File bam, long [] targets, int readThreads) throws IOException {
+		List<Long> boundaries = new ArrayList<Long>();
+		ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, readThreads));
+		try (ParallelBgzfInputStream in = new ParallelBgzfInputStream(bam, pool, 8 * Math.max(1, readThreads))) {
+			ParallelBamReader.readHeader(in, bam.getAbsolutePath());
+			DataInputStream data = new DataInputStream(in);
+			String previous = null;
+			while (boundaries.size() < targets.length) {
+				long pointer = in.getFilePointer();
+				if((pointer >>> 16) < targets[boundaries.size()]) {
+					previous = null;
+					if(!skipRecord(data)) {
+						break;
+					}
+					continue;
+				}
+				String name = readNextName(data);
+				if(name == null) {
+					break;
+				}
+				if(previous != null && !Hisat3nSplitterWriter.readNamesMatch(previous, name)) {
+					boundaries.add(pointer);
+				}
+				previous = name;
+			}
+		} finally {
+			pool.shutdownNow();
+		}
+		return boundaries;
+	}
+
+	private static boolean skipRecord(DataInputStream data) throws IOException {
+		int blockSize;
+		try {
+			blockSize = Integer.reverseBytes(data.readInt());
+		} catch (EOFException e) {
+			return false;
+		}
+		// skipBytes stops at the end of the current BGZF block
+		while (blockSize > 0) {
+			int skipped = data.skipBytes(blockSize);
+			if(skipped <= 0) {
+				throw new EOFException("Truncated BAM record");
+			}
+			blockSize -= skipped;
+		}
+		return true;
+	}
+
+	/**
+	 * Reads a whole record and returns its name, null at the end of the file
+	 */
+	private static String readNextName(DataInputStream data) throws IOException {
+		int blockSize;
+		try {
+			blockSize = Integer.reverseBytes(data.readInt());
+		} catch (EOFException e) {
+			return null;
+		}
+		byte [] record = new byte[blockSize];
+		data.readFully(record);
+		int nameLength = record[8] & 0xff;
+		return new String(record, NAME_OFFSET, nameLength - 1, StandardCharsets.US_ASCII);
+	}
+
+	/**
+	 * Launches one child JVM per shard and gathers their outputs once all are done.
+	 * @param javaOptions Options for the child JVMs, i.e. -Xmx4g
+	 * @param splitterArguments Arguments passed to every child, without output or shard options
+	 * @param sidecar Whether the children write sidecars to concatenate
+	 * @param qc Whether the children write QC reports to merge
+	 * @param conversionSites Sequence dictionary if the children write conversion site indices to merge, null otherwise
+	 * @return The summed metrics of the shards
+	 */
+	public SplitterMetrics run(List<Shard> shards, List<String> javaOptions, List<String> splitterArguments, boolean sidecar, boolean qc, SAMSequenceDictionary conversionSites) throws IOException, InterruptedException {
+		if(!workDir.exists() && !workDir.mkdirs()) {
+			throw new IOException("Could not create the shard directory " + workDir.getAbsolutePath());
+		}
+		String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+		List<Process> processes = new ArrayList<Process>();
+		try {
+			for (int i = 0; i < shards.size(); i++) {
+				List<String> command = new ArrayList<String>();
+				command.add(java);
+				command.addAll(javaOptions);
+				command.add("-cp");
+				command.add(System.getProperty("java.class.path"));
+				command.add(SlamSplitter.class.getName());
+				command.addAll(splitterArguments);
+				command.add("-outDir");
+				command.add(workDir.getAbsolutePath());
+				command.add("-outPrefix");
+				command.add(shardPrefix(i));
+				command.add("-metrics");
+				command.add(metricsFile(i).getAbsolutePath());
+				command.add("-shard");
+				command.add(shards.get(i).toString());
+				processes.add(new ProcessBuilder(command)
+						.redirectErrorStream(true)
+						.redirectOutput(logFile(i))
+						.start());
+			}
+			for (int i = 0; i < processes.size(); i++) {
+				int status = processes.get(i).waitFor();
+				if(status != 0) {
+					throw new IOException("Shard " + i + " (" + shards.get(i) + ") failed with status " + status + ", see " + logFile(i).getAbsolutePath());
+				}
+			}
+		} finally {
+			for (Process process : processes) {
+				process.destroy();
+			}
+		}
+		return gather(shards.size(), sidecar, qc, conversionSites);
+	}
+
+	private SplitterMetrics gather(int shards, boolean sidecar, boolean qc, SAMSequenceDictionary conversionSites) throws IOException {
+		File outDir = workDir.getAbsoluteFile().getParentFile();
+		for (boolean converted : new boolean [] {false, true}) {
+			List<File> parts = new ArrayList<File>();
+			for (int i = 0; i < shards; i++) {
+				parts.add(Hisat3nSplitterWriter.outputFile(workDir, shardPrefix(i), converted, format));
+			}
+			File gathered = Hisat3nSplitterWriter.outputFile(outDir, outPrefix, converted, format);
+			if(format == SplitterOutputFormat.BAM) {
+				BamFileIoUtils.gatherWithBlockCopying(parts, gathered, false, false);
+			} else {
+				gatherSam(parts, gathered);
+			}
+		}
+		if(sidecar) {
+			try (ConversionSidecarWriter sidecarWriter = new ConversionSidecarWriter(new File(outDir, outPrefix + ConversionSidecar.EXTENSION))) {
+				for (int i = 0; i < shards; i++) {
+					try (ConversionSidecar shardSidecar = new ConversionSidecar(new File(workDir, shardPrefix(i) + ConversionSidecar.EXTENSION))) {
+						sidecarWriter.addAll(shardSidecar);
+					}
+				}
+			}
+		}
+		if(conversionSites != null) {
+			try (ConversionSiteIndexWriter siteIndexWriter = new ConversionSiteIndexWriter(new File(outDir, outPrefix + ConversionSiteIndex.EXTENSION), conversionSites)) {
+				for (int i = 0; i < shards; i++) {
+					try (ConversionSiteIndex shardIndex = new ConversionSiteIndex(new File(workDir, shardPrefix(i) + ConversionSiteIndex.EXTENSION))) {
+						siteIndexWriter.addAll(shardIndex);
+					}
+				}
+			}
+		}
+		if(qc) {
+			ConversionQC merged = new ConversionQC();
+			for (int i = 0; i < shards; i++) {
+				merged.merge(ConversionQC.read(new File(workDir, shardPrefix(i) + ConversionQC.EXTENSION)));
+			}
+			merged.write(new File(outDir, outPrefix + ConversionQC.EXTENSION));
+		}
+		SplitterMetrics metrics = new SplitterMetrics();
+		for (int i = 0; i < shards; i++) {
+			metrics.add(SplitterMetrics.read(metricsFile(i)));
+		}
+		for (File file : workDir.listFiles()) {
+			Files.delete(file.toPath());
+		}
+		Files.delete(workDir.toPath());
+		return metrics;
+	}
+
+	/**
+	 * Concatenates SAM files keeping only the header of the first one
+	 */
+	private static void gatherSam(List<File> parts, File gathered) throws IOException {
+		try (BufferedWriter out = Files.newBufferedWriter(gathered.toPath())) {
+			boolean first = true;
+			for (File part : parts) {
+				try (BufferedReader in = Files.newBufferedReader(part.toPath())) {
+					String line = null;
+					while ((line = in.readLine()) != null) {
+						if(first || !line.startsWith("@")) {
+							out.write(line);
+							out.newLine();
+						}
+					}
+				}
+				first = false;
+			}
+		}
+	}
+
+	private String shardPrefix(int shard) {
+		return outPrefix + "_shard" + shard;
+	}
+
+	private File metricsFile(int shard) {
+		return new File(workDir, shardPrefix(shard) + ".metrics");
+	}
+
+	private File logFile(int shard) {
+		return new File(workDir, shardPrefix(shard) + ".log");
+	}
+
+	/**
+	 * Part of the input processed by one child: either a range of contigs or a
+	 * range of virtual offsets. Written on the command line as
+	 * <code>contigs:first-last[+unplaced]</code> or <code>offsets:start-end</code>.
+	 */
+	public static class Shard {
+		private final int firstContig;
+		private final int firstStart;
+		private final int lastContig;
+		private final int lastEnd;
+		private final boolean unplaced;
+		private final long startOffset;
+		private final long endOffset;
+
+		private Shard(int firstContig, int firstStart, int lastContig, int lastEnd, boolean unplaced, long startOffset, long endOffset) {
+			this.firstContig = firstContig;
+			this.firstStart = firstStart;
+			this.lastContig = lastContig;
+			this.lastEnd = lastEnd;
+			this.unplaced = unplaced;
+			this.startOffset = startOffset;
+			this.endOffset = endOffset;
+		}
+
+		static Shard contigs(int firstContig, int lastContig, boolean unplaced) {
+			return contigs(firstContig, 1, lastContig, Integer.MAX_VALUE, unplaced);
+		}
+
+		/**
+		 * Records that start from firstContig:firstStart to lastContig:lastEnd
+		 */
+		static Shard contigs(int firstContig, int firstStart, int lastContig, int lastEnd, boolean unplaced) {
+			return new Shard(firstContig, firstStart, lastContig, lastEnd, unplaced, -1, -1);
+		}
+
+		static Shard offsets(long startOffset, long endOffset) {
+			return new Shard(-1, 1, -1, Integer.MAX_VALUE, false, startOffset, endOffset);
+		}
+
+		public static Shard parse(String shard) {
+			try {
+				if(shard.startsWith("contigs:")) {
+					String range = shard.substring("contigs:".length());
+					boolean unplaced = range.endsWith("+unplaced");
+					String [] ends = range.replace("+unplaced", "").split("-");
+					String [] first = ends[0].split(":");
+					String [] last = ends[1].split(":");
+					return contigs(Integer.parseInt(first[0]), first.length > 1 ? Integer.parseInt(first[1]) : 1, 
+							Integer.parseInt(last[0]), last.length > 1 ? Integer.parseInt(last[1]) : Integer.MAX_VALUE, unplaced);
+				} else if(shard.startsWith("offsets:")) {
+					String [] ends = shard.substring("offsets:".length()).split("-");
+					return offsets(Long.parseLong(ends[0]), Long.parseLong(ends[1]));
+				}
+			} catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+				// Reported below
+			}
+			throw new IllegalArgumentException("Invalid shard " + shard);
+		}
+
+		public boolean isContigRange() {
+			return firstContig >= 0;
+		}
+
+		/**
+		 * @return Whether the record starts in this shard, only for contig ranges
+		 */
+		public boolean contains(SAMRecord record) {
+			int referenceIndex = record.getReferenceIndex();
+			if(referenceIndex < 0) {
+				return unplaced;
+			}
+			int start = record.getAlignmentStart();
+			return referenceIndex >= firstContig && referenceIndex <= lastContig &&
+					(referenceIndex != firstContig || start >= firstStart) && (referenceIndex != lastContig || start <= lastEnd);
+		}
+
+		/**
+		 * Records of the shard: queried from the index for contig ranges, read from the
+		 * start offset for offset ranges
+		 */
+		public Iterable<SAMRecord> records(SamReader reader, File bam) {
+			if(isContigRange()) {
+				return () -> new ContigRangeIterator(reader);
+			}
+			return () -> new OffsetRangeIterator(bam, reader.getFileHeader());
+		}
+
+		@Override
+		public String toString() {
+			return isContigRange() ? "contigs:" + firstContig + (firstStart > 1 ? ":" + firstStart : "") + "-" + lastContig + 
+					(lastEnd < Integer.MAX_VALUE ? ":" + lastEnd : "") + (unplaced ? "+unplaced" : "")
+					: "offsets:" + startOffset + "-" + endOffset;
+		}
+
+		private class ContigRangeIterator implements Iterator<SAMRecord> {
+			private final SamReader reader;
+			private SAMRecordIterator current;
+			private boolean unplacedQueried;
+			private SAMRecord next;
+
+			ContigRangeIterator(SamReader reader) {
+				this.reader = reader;
+				List<QueryInterval> intervals = new ArrayList<QueryInterval>();
+				for (int i = firstContig; i <= lastContig; i++) {
+					intervals.add(new QueryInterval(i, i == firstContig ? firstStart : 1, i == lastContig && lastEnd < Integer.MAX_VALUE ? lastEnd : -1));
+				}
+				current = reader.query(intervals.toArray(new QueryInterval[intervals.size()]), false);
+			}
+
+			@Override
+			public boolean hasNext() {
+				while (next == null) {
+					if(current.hasNext()) {
+						SAMRecord record = current.next();
+						// The query also returns the records that start before and overlap the first position
+						if(contains(record)) {
+							next = record;
+						}
+					} else if(unplaced && !unplacedQueried) {
+						current.close();
+						current = reader.queryUnmapped();
+						unplacedQueried = true;
+					} else {
+						current.close();
+						return false;
+					}
+				}
+				return true;
+			}
+
+			@Override
+			public SAMRecord next() {
+				if(!hasNext()) {
+					throw new NoSuchElementException();
+				}
+				SAMRecord record = next;
+				next = null;
+				return record;
+			}
+		}
+
+		private class OffsetRangeIterator implements Iterator<SAMRecord> {
+			private final BlockCompressedInputStream in;
+			private final BAMRecordCodec codec;
+			private SAMRecord next;
+
+			OffsetRangeIterator(File bam, SAMFileHeader header) {
+				try {
+					in = new BlockCompressedInputStream(bam);
+					if(startOffset > 0) {
+						in.seek(startOffset);
+					} else {
+						ParallelBamReader.readHeader(in, bam.getAbsolutePath());
+					}
+				} catch (IOException e) {
+					throw new RuntimeIOException(e);
+				}
+				codec = new BAMRecordCodec(header);
+				codec.setInputStream((InputStream) in, bam.getAbsolutePath());
+				next = decode();
+			}
+
+			private SAMRecord decode() {
+				try {
+					long start = in.getFilePointer();
+					SAMRecord record = start < endOffset ? codec.decode() : null;
+					if(record == null) {
+						in.close();
+					} else {
+						record.setFileSource(new SAMFileSource(null, new BAMFileSpan(new Chunk(start, in.getFilePointer()))));
+					}
+					return record;
+				} catch (IOException e) {
+					throw new RuntimeIOException(e);
+				}
+			}
+
+			@Override
+			public boolean hasNext() {
+				return next != null;
+			}
+
+			@Override
+			public SAMRecord next() {
+				if(next == null) {
+					throw new NoSuchElementException();
+				}
+				SAMRecord current = next;
+				next = decode();
+				return current;
+			}
+		}
+	}
+
+}
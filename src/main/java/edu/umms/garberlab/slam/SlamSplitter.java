@@ -26,9 +26,15 @@ package edu.umms.garberlab.slam;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Map.Entry;
 import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
 
 import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.CommandLineParser;
@@ -38,12 +44,14 @@ import org.apache.commons.cli.Option;
 import org.apache.commons.cli.Options;
 import org.apache.commons.cli.ParseException;
 
+import htsjdk.samtools.QueryInterval;
 import htsjdk.samtools.SAMFileHeader;
 import htsjdk.samtools.SAMFileHeader.SortOrder;
 import htsjdk.samtools.SAMProgramRecord;
 import htsjdk.samtools.SAMRecord;
 import htsjdk.samtools.SamReader;
 import htsjdk.samtools.SamReaderFactory;
+import htsjdk.samtools.ValidationStringency;
 
 /**
  * This program seeks to sort converted and uncoverted reads from an alignment file 
@@ -58,6 +66,12 @@ import htsjdk.samtools.SamReaderFactory;
  * Zf:i:<N>: Number of un-converted bases are detected in the read. Yf + Zf = total number of bases which can be converted in the read sequence.
  * YZ:A:<A>: The value + or – indicate the read is mapped to REF-3N (+) or REF-RC-3N (-).
  * 
+ * With -conversionTags the converted records get the positions of their conversions:
+ * 
+ * xp:B:i,<N>...: 1-based reference positions of the conversions.
+ * xo:B:S,<N>...: 0-based offsets of the same conversions in the read bases of the record (SEQ).
+ * They are lower case so as not to clash with the X? tags of hisat2, i.e. XO:i (gap opens).
+ * 
  * @author Manuel Garber
  *
  */
@@ -66,21 +80,59 @@ public class SlamSplitter {
 	
 	public static String PROGRAM_NAME = "SlamSlpitter";
 	
+	/** Where the jobs of a server print, they share its standard output and only answer with their metrics */
+	private static final PrintStream SILENT = new PrintStream(new OutputStream() {
+		@Override
+		public void write(int b) {
+		}
+	});
+	
 	
 	public static void main(String[] args) {
+		try {
+			split(args, null);
+		} catch (IllegalArgumentException e) {
+			System.err.println("ERROR: " + e.getMessage());
+			System.exit(1);
+		} catch (IOException e) {
+			System.err.println("ERROR: could not read " + e.getMessage());
+			e.printStackTrace();
+			System.exit(1);
+		} catch (InterruptedException e) {
+			System.err.println("ERROR: interrupted while waiting for the shards");
+			System.exit(1);
+		} catch (ExecutionException e) {
+			System.err.println("ERROR: the new RNA estimates could not be fit: " + e.getCause().getMessage());
+			System.exit(1);
+		} catch (IllegalStateException e) {
+			System.err.println("ERROR: " + e.getMessage());
+			System.exit(1);
+		}
+	}
+	
+	/**
+	 * Runs one split, the command line of {@link #main(String[])} or a job of a {@link SplitterServer}.
+	 * Errors are thrown instead of exiting.
+	 * @param sharedInflatePool If not null, BAM input is decompressed on this pool instead of one
+	 * created for the split, as the jobs of a server do
+	 * @return The metrics of the split, null if only the help was printed or the arguments could not be parsed
+	 */
+	static SplitterMetrics split(String[] args, ExecutorService sharedInflatePool) throws IOException, InterruptedException, ExecutionException {
 		
 		final Options options = new Options(); 
+		final PrintStream log = sharedInflatePool == null ? System.out : SILENT;
 		final Option help = new Option("h","help", false, "print this message");
 		final Option writeSam = new Option("s","sam", false, "Write SAM (BAM is default)"); 
+		final Option writeCram = new Option("c","cram", false, "Write CRAM (BAM is default), requires -reference");
 		final Option pairedEndOp = new Option("p","pairedEnd", false, "Include this flag if the data is paired-end");
 		final Option reverseConversionOp = new Option("r","revertConvertedBases",false,"Add this flag to revert conversions");
 		final Option writeUnmappedReads =  new Option("wum","writeUnmapped",false,"Add this flag to include unmapped reads");
 		
 		final Option inputBamOpt = Option.builder("inputBam")
 				.argName("bam")
-				.hasArg()
+				.hasArgs()
 				.required(false)
-				.desc("Required - Input Bam File")
+				.desc("Required - Input Bam File. Several files with the same sort order and sequences, i.e. one per lane, are merged while splitting")
 				.build();
 		
 		final Option outputDirectoryOpt = Option.builder("outDir")
@@ -103,12 +155,270 @@ public class SlamSplitter {
 				.desc("VCF file containing genotype information to handle T/C variants")
 				.build();
 		
+		final Option maskSnpsOpt = Option.builder("maskSnps")
+				.argName("controlBam")
+				.hasArg()
+				.optionalArg(true)
+				.desc("Without a genotype, find the T/C SNPs as the positions where at least -snpMinFrequency of the reads covering a T (A for - strand reads) are converted, " +
+						"in this unlabeled control or, if none is given, in a first pass over -inputBam. Their conversions are not counted, reverted or tagged. " +
+						"The SNPs are written to <outPrefix>" + ConversionSnpMask.EXTENSION + ". Coordinate sorted control or input only")
+				.build();
+		final Option snpMaskOpt = Option.builder("snpMask")
+				.argName("bed")
+				.hasArg()
+				.desc("Do not count the conversions at the positions of this BED file, i.e. the SNPs found by a previous -maskSnps run. " +
+						"The strand column (+ for T>C, - for A>G) is optional")
+				.build();
+		final Option snpMinCoverageOpt = Option.builder("snpMinCoverage")
+				.argName("reads")
+				.hasArg()
+				.desc("With -maskSnps, fewest reads covering a position to call a SNP. Default " + ConversionSnpMask.DEFAULT_MIN_COVERAGE)
+				.build();
+		final Option snpMinFrequencyOpt = Option.builder("snpMinFrequency")
+				.argName("fraction")
+				.hasArg()
+				.desc("With -maskSnps, smallest fraction of converted reads to call a SNP. Default " + ConversionSnpMask.DEFAULT_MIN_FREQUENCY)
+				.build();
+		
+		final Option referenceOpt = Option.builder("reference")
+				.argName("fasta")
+				.hasArg()
+				.desc("Reference FASTA the reads were aligned to, needed for CRAM output and for alignments without MD tags. It must be uncompressed and indexed (.fai)")
+				.build();
+		final Option recomputeMDOp = new Option("recomputeMD", false, "Ignore the MD tags, i.e. stale after a realignment, and compute the mismatches against -reference");
+		
+		final Option readThreadsOpt = Option.builder("readThreads")
+				.argName("threads")
+				.hasArg()
+				.desc("Number of threads used to decompress the input BAM. Default 1, decompression in the main thread")
+				.build();
+		
+		final Option prefetchOpt = Option.builder("prefetchBlocks")
+				.argName("blocks")
+				.hasArg()
+				.desc("Maximum number of BGZF blocks decompressed ahead of the splitter when -readThreads is above 1. Default 8 per thread")
+				.build();
+		
+		final Option mateCacheOpt = Option.builder("mateCacheBlocks")
+				.argName("blocks")
+				.hasArg()
+				.desc("Number of decompressed BGZF blocks kept in memory to look up the mates of coordinate sorted paired-end BAM input. Default " + MateLookupReader.DEFAULT_CACHE_BLOCKS)
+				.build();
+		final Option mateThreadsOpt = Option.builder("mateLookupThreads")
+				.argName("threads")
+				.hasArg()
+				.desc("Number of threads looking up the mates of coordinate sorted paired-end BAM input ahead of the splitter, 0 to look them up when needed. Default 2")
+				.build();
+		
+		final Option regionsOpt = Option.builder("regions")
+				.argName("bed")
+				.hasArg()
+				.desc("BED file of regions to restrict the splitting to. The input must be coordinate sorted and indexed")
+				.build();
+		
+		final Option dedupOpt = Option.builder("dedup")
+				.argName("umi|position")
+				.hasArg()
+				.desc("Deduplicate single-end coordinate sorted input while splitting. umi uses the 5' position, strand and UB/CB tags, position ignores the tags")
+				.build();
+		final Option markDuplicatesOp = new Option("markDuplicates", false, "With -dedup, flag duplicates instead of removing them");
+		
+		final Option sidecarOp = new Option("sidecar", false, "Write a table with the conversion counts and BAM offsets of each fragment (<outPrefix>.slsc) to re-split without re-parsing");
+		final Option fromSidecarOpt = Option.builder("fromSidecar")
+				.argName("slsc")
+				.hasArg()
+				.desc("Re-split -inputBam using the sidecar table written by a previous -sidecar run instead of parsing the reads")
+				.build();
+		final Option minConversionsOpt = Option.builder("minConversions")
+				.argName("n")
+				.hasArg()
+				.desc("Minimum number of conversions (Yf) for a fragment to be considered converted, short for -classifier \"Yf >= n\". Default 1")
+				.build();
+		final Option classifierOpt = Option.builder("classifier")
+				.argName("expression")
+				.hasArg()
+				.desc("Condition for a fragment to go to the converted file, i.e. \"Yf >= 2 && Yf/(Yf+Zf) >= 0.05 && NH == 1\". " +
+						"Variables: Yf, Zf, NH, AS, NM, spliced. class:<name> loads a ConversionClassifier implementation instead. Default \"Yf > 0\"")
+				.build();
+		
+		final Option metricsOpt = Option.builder("metrics")
+				.argName("file")
+				.hasArg()
+				.desc("Write the alignment, fragment and conversion counts to this tab separated file")
+				.build();
+		final Option scatterOpt = Option.builder("scatter")
+				.argName("processes")
+				.hasArg()
+				.desc("Split the input in this many shards, each processed by its own local JVM, and gather the outputs in order. " +
+						"Coordinate sorted input must be indexed, it is cut between contigs and inside the large ones (between contigs only with -dedup). " + 
+						"BAM input and BAM or SAM output only")
+				.build();
+		final Option scatterJavaOptionsOpt = Option.builder("scatterJavaOptions")
+				.argName("options")
+				.hasArg()
+				.desc("Options for the JVMs launched by -scatter, i.e. \"-Xmx4g\"")
+				.build();
+		final Option shardOpt = Option.builder("shard")
+				.argName("shard")
+				.hasArg()
+				.desc("Internal, part of the input processed by a -scatter child")
+				.build();
+		
+		final Option sortOutputOp = new Option("sortOutput", false, "Coordinate sort (and index if BAM or CRAM) the outputs of input that is not coordinate sorted, i.e. query sorted paired-end data");
+		final Option sortMemoryOpt = Option.builder("sortMemory")
+				.argName("MB")
+				.hasArg()
+				.desc("With -sortOutput, memory used to buffer the records of both outputs before spilling sorted runs to disk. Default 1024")
+				.build();
+		final Option pairMemoryOpt = Option.builder("pairMemory")
+				.argName("MB")
+				.hasArg()
+				.desc("Paired-end input that is not sorted, i.e. straight out of hisat-3n, is paired by read name: memory for the alignments waiting for their mate, " +
+						"beyond it they are partitioned by read name hash to buckets in -tmpDir that are paired one at a time. Default 1024")
+				.build();
+		final Option tmpDirOpt = Option.builder("tmpDir")
+				.argName("dir")
+				.hasArg()
+				.desc("Directory for temporary files. Default java.io.tmpdir")
+				.build();
+		
+		final Option conversionSitesOp = new Option("conversionSites", false, "Write an index of the reference positions where converted fragments are converted and how many (<outPrefix>" + ConversionSiteIndex.EXTENSION + "), see ConversionSiteIndex to query it");
+		final Option partitionByOpt = Option.builder("partitionBy")
+				.argName("keys")
+				.hasArg()
+				.desc("Write one converted and one unconverted file per contig, read group and/or feature: i.e. contig, readGroup, feature or contig,readGroup " +
+						"(<outPrefix>_<partition>_converted.bam). Unmapped reads go to the unmapped partition, reads without RG to noRG. " +
+						"Features (exonic, intronic, mixed, intergenic) need -annotationIndex")
+				.build();
+		final Option annotationIndexOpt = Option.builder("annotationIndex")
+				.argName("index" + AnnotationIndex.EXTENSION)
+				.hasArg()
+				.desc("Count the exonic, intronic, mixed and intergenic fragments against this index, compiled from a GTF with " +
+						"java -cp slamsplitter.jar edu.umms.garberlab.slam.AnnotationIndex <gtf> <index" + AnnotationIndex.EXTENSION + ">")
+				.build();
+		final Option maxOpenPartitionsOpt = Option.builder("maxOpenPartitions")
+				.argName("n")
+				.hasArg()
+				.desc("With -partitionBy, number of partition files open at once, the least recently used is closed beyond that. Default 64")
+				.build();
+		
+		final Option previewOpt = Option.builder("preview")
+				.argName("fraction")
+				.hasArg()
+				.desc("Do not split, estimate the converted, spliced and unmapped fragments and the conversion rate from this fraction of the input, i.e. 0.01. " +
+						"Indexed BAM input is sampled in evenly spaced chunks (.bai for coordinate sorted, .sbi otherwise), other input by read name hash")
+				.build();
+		
+		final Option serverOpt = Option.builder("server")
+				.argName("port")
+				.hasArg()
+				.desc("Stay up and run the splits sent to this loopback port, one line of SlamSplitter arguments per connection, answered with the metrics as JSON. " +
+						"Jobs run concurrently and decompress BAM input on a shared pool of -readThreads threads (default all processors). 0 picks a free port")
+				.build();
+		final Option serverJobsOpt = Option.builder("serverJobs")
+				.argName("jobs")
+				.hasArg()
+				.desc("With -server, number of jobs run at once. Default all processors")
+				.build();
+		
+		final Option statsOnlyOp = new Option("statsOnly", "stats-only", false, "Classify and pair the fragments but write no alignments, only the summary and -metrics. " +
+				"The mismatches are not parsed unless -qc needs them");
+		
+		final Option fastqOp = new Option("fastq", false, "Also write the converted and unconverted reads as FASTQ, in their sequenced orientation " +
+				"(<outPrefix>_converted.fastq, <outPrefix>_converted_R1.fastq and _R2 for paired-end data)");
+		final Option fastqOnlyOp = new Option("fastqOnly", false, "Write the reads as FASTQ instead of alignments");
+		final Option interleavedOp = new Option("interleaved", false, "With -fastq, write both mates of paired-end reads to the same file");
+		final Option fastqGzipOpt = Option.builder("fastqGzip")
+				.argName("threads")
+				.hasArg()
+				.optionalArg(true)
+				.desc("With -fastq, gzip (BGZF) the FASTQ files compressing on this many threads. Default 4")
+				.build();
+		
+		final Option coverageOpt = Option.builder("coverage")
+				.argName("bigwig|bedgraph")
+				.hasArg()
+				.optionalArg(true)
+				.desc("Write the coverage of the converted and of all the alignments per strand (YZ) while splitting: <outPrefix>_converted_plus.bw, " +
+						"_converted_minus.bw, _total_plus.bw and _total_minus.bw. Coordinate sorted input only, not with -fromSidecar or -dedup. Default bigwig")
+				.build();
+		
+		final Option conversionTagsOp = new Option("conversionTags", false, "Write the reference positions (xp:B:i) and read offsets (xo:B:S) of the conversions on the converted records");
+		
+		final Option qcOp = new Option("qc", false, "Write the mismatch spectrum, the conversion rate by read cycle and the conversions per read histogram (<outPrefix>" + ConversionQC.EXTENSION + ")");
+		
+		final Option genesOpt = Option.builder("genes")
+				.argName("bed|gtf")
+				.hasArg()
+				.desc("Estimate the new to total RNA ratio of each gene of this BED or GTF file from the conversions of its uniquely mapped fragments (<outPrefix>" + NewRnaEstimator.EXTENSION + ")")
+				.build();
+		final Option pOldOpt = Option.builder("pOld")
+				.argName("rate")
+				.hasArg()
+				.desc("With -genes, conversion rate of old RNA (background), fit on all the fragments if not given")
+				.build();
+		final Option pNewOpt = Option.builder("pNew")
+				.argName("rate")
+				.hasArg()
+				.desc("With -genes, conversion rate of new RNA, fit on all the fragments if not given")
+				.build();
+		final Option estimatorThreadsOpt = Option.builder("estimatorThreads")
+				.argName("threads")
+				.hasArg()
+				.desc("With -genes, fit the genes on this many threads. Default all processors")
+				.build();
+		
 		options.addOption(inputBamOpt)
 		.addOption(outputDirectoryOpt)
 		.addOption(outputPrefixOpt)
 		.addOption(gentotype)
+		.addOption(referenceOpt)
+		.addOption(recomputeMDOp)
+		.addOption(readThreadsOpt)
+		.addOption(prefetchOpt)
+		.addOption(mateCacheOpt)
+		.addOption(mateThreadsOpt)
+		.addOption(regionsOpt)
+		.addOption(dedupOpt)
+		.addOption(markDuplicatesOp)
+		.addOption(sidecarOp)
+		.addOption(fromSidecarOpt)
+		.addOption(minConversionsOpt)
+		.addOption(classifierOpt)
+		.addOption(metricsOpt)
+		.addOption(scatterOpt)
+		.addOption(scatterJavaOptionsOpt)
+		.addOption(shardOpt)
+		.addOption(sortOutputOp)
+		.addOption(conversionSitesOp)
+		.addOption(qcOp)
+		.addOption(genesOpt)
+		.addOption(pOldOpt)
+		.addOption(pNewOpt)
+		.addOption(estimatorThreadsOpt)
+		.addOption(conversionTagsOp)
+		.addOption(coverageOpt)
+		.addOption(maskSnpsOpt)
+		.addOption(snpMaskOpt)
+		.addOption(snpMinCoverageOpt)
+		.addOption(snpMinFrequencyOpt)
+		.addOption(fastqOp)
+		.addOption(fastqOnlyOp)
+		.addOption(interleavedOp)
+		.addOption(fastqGzipOpt)
+		.addOption(previewOpt)
+		.addOption(statsOnlyOp)
+		.addOption(serverOpt)
+		.addOption(serverJobsOpt)
+		.addOption(partitionByOpt)
+		.addOption(maxOpenPartitionsOpt)
+		.addOption(annotationIndexOpt)
+		.addOption(sortMemoryOpt)
+		.addOption(pairMemoryOpt)
+		.addOption(tmpDirOpt)
 		.addOption(help)
 		.addOption(writeSam)
+		.addOption(writeCram)
 		.addOption(pairedEndOp)
 		.addOption(reverseConversionOp)
 		.addOption(writeUnmappedReads); 
@@ -117,32 +427,62 @@ public class SlamSplitter {
 		CommandLineParser clip = new DefaultParser();
 		HelpFormatter helper = new HelpFormatter();
 		
-		long totalSplicedAlignments = 0;
 		long totalAlignments        = 0;
-		long totalConvertedReads    = 0;
-		long totalUnmapped          = 0;
+		SplitterMetrics metrics = null;
 		SamReader reader = null;
 		SamReader pairQueryReader = null;
+		ParallelBamReader parallelReader = null;
+		List<MateLookupReader> mateLookupReaders = new ArrayList<MateLookupReader>();
+		MergingBamReader mergingReader = null;
 		
 		try {
 			cmd = clip.parse(options, args);
 			if(cmd.hasOption(help)) {
-				helper.printHelp("SlamSplitter", options);
-				System.exit(0);
+				if(sharedInflatePool == null) {
+					helper.printHelp("SlamSplitter", options);
+				}
+				return null;
 			}
 			
+			if(cmd.hasOption(serverOpt)) {
+				if(sharedInflatePool != null) {
+					throw new IllegalArgumentException("a server job cannot start another server");
+				}
+				int processors = Runtime.getRuntime().availableProcessors();
+				try (SplitterServer server = new SplitterServer(Integer.parseInt(cmd.getOptionValue(serverOpt)), 
+						Integer.parseInt(cmd.getOptionValue(serverJobsOpt, String.valueOf(processors))), 
+						Integer.parseInt(cmd.getOptionValue(readThreadsOpt, String.valueOf(processors))))) {
+					System.out.println("Waiting for jobs on " + server.getAddress());
+					server.serve();
+				}
+				return null;
+			}
+			
+			if(sharedInflatePool != null && cmd.hasOption(previewOpt)) {
+				throw new IllegalArgumentException("a server job only answers with its metrics, -preview prints its estimate and cannot be run as one");
+			}
 			
+			if(!cmd.hasOption(inputBamOpt)) {
+				throw new IllegalArgumentException("-inputBam is required");
+			}
 			String inBam = cmd.getOptionValue(inputBamOpt);
 			File inBamFile = new File(inBam);
-			if (!inBamFile.exists()) {
-				System.err.println("The bam file path provided "+inBam+" does not exist");
-				System.exit(1);
+			List<File> inBamFiles = new ArrayList<File>();
+			for (String bam : cmd.getOptionValues(inputBamOpt)) {
+				if (!new File(bam).exists()) {
+					throw new IllegalArgumentException("The bam file path provided "+bam+" does not exist");
+				}
+				inBamFiles.add(new File(bam));
+			}
+			boolean mergeInputs = inBamFiles.size() > 1;
+			if(mergeInputs && (cmd.hasOption(regionsOpt) || cmd.hasOption(scatterOpt) || cmd.hasOption(shardOpt) || cmd.hasOption(previewOpt) || 
+					cmd.hasOption(sidecarOp) || cmd.hasOption(fromSidecarOpt))) {
+				throw new IllegalArgumentException("several -inputBam files cannot be combined with -regions, -scatter, -preview, -sidecar or -fromSidecar");
 			}
 			
 			File outDirFile = new File(cmd.getOptionValue(outputDirectoryOpt, "."));
 			if (!outDirFile.exists()) {
-				System.err.println("The output directory  provided "+outDirFile.getAbsolutePath()+" does not exist");
-				System.exit(1);
+				throw new IllegalArgumentException("The output directory  provided "+outDirFile.getAbsolutePath()+" does not exist");
 			}
 			
 			String [] inBamPathComponents = inBam.split("/");
@@ -153,49 +493,439 @@ public class SlamSplitter {
 			boolean revertConversion = cmd.hasOption(reverseConversionOp);
 			boolean writeUnmapped  = cmd.hasOption(writeUnmappedReads);
 			
-			reader = SamReaderFactory.makeDefault().open(new File(inBam));
+			ConversionClassifier classifier = ConversionClassifier.DEFAULT;
+			if(cmd.hasOption(classifierOpt)) {
+				if(cmd.hasOption(minConversionsOpt)) {
+					throw new IllegalArgumentException("-minConversions and -classifier cannot be used together");
+				}
+				classifier = ConversionClassifier.fromSpecification(cmd.getOptionValue(classifierOpt));
+			} else if(cmd.hasOption(minConversionsOpt)) {
+				classifier = ExpressionConversionClassifier.compile("Yf >= " + Integer.parseInt(cmd.getOptionValue(minConversionsOpt)));
+			}
 			
+			SplitterOutputFormat outputFormat = SplitterOutputFormat.fromOptions(cmd.hasOption(writeSam), cmd.hasOption(writeCram));
+			File referenceFile = null;
+			if(cmd.hasOption(referenceOpt)) {
+				referenceFile = new File(cmd.getOptionValue(referenceOpt));
+				if (!referenceFile.exists()) {
+					throw new IllegalArgumentException("The reference file provided "+referenceFile.getAbsolutePath()+" does not exist");
+				}
+			}
+			if(outputFormat == SplitterOutputFormat.CRAM && referenceFile == null) {
+				throw new IllegalArgumentException("CRAM output requires a reference FASTA, please provide one with -reference");
+			}
+			if(cmd.hasOption(recomputeMDOp) && referenceFile == null) {
+				throw new IllegalArgumentException("-recomputeMD requires the reference FASTA, please provide one with -reference");
+			}
+			if(referenceFile != null) {
+				try {
+					Hisat3nSAMRecord.setMismatchReference(new IndexedFastaReference(referenceFile), cmd.hasOption(recomputeMDOp));
+				} catch (IllegalArgumentException e) {
+					if(cmd.hasOption(recomputeMDOp)) {
+						throw e;
+					}
+					// Enough for CRAM, htsjdk reads the reference its own way
+					System.err.println("Warning: " + e.getMessage() + ". Alignments without MD tags cannot be split");
+				}
+			}
+			
+			FastqOutputWriter.Settings fastqSettings = null;
+			if(cmd.hasOption(fastqGzipOpt) && !cmd.hasOption(fastqOp) && !cmd.hasOption(fastqOnlyOp)) {
+				throw new IllegalArgumentException("-fastqGzip compresses the FASTQ files, it requires -fastq or -fastqOnly");
+			}
+			if(cmd.hasOption(fastqOp) || cmd.hasOption(fastqOnlyOp)) {
+				if(cmd.hasOption(scatterOpt) || cmd.hasOption(previewOpt)) {
+					throw new IllegalArgumentException("-fastq cannot be combined with -scatter or -preview");
+				}
+				fastqSettings = new FastqOutputWriter.Settings(cmd.hasOption(interleavedOp), cmd.hasOption(fastqGzipOpt), 
+						Integer.parseInt(cmd.getOptionValue(fastqGzipOpt, "4")));
+				if(cmd.hasOption(fastqOnlyOp)) {
+					outputFormat = SplitterOutputFormat.NONE;
+				}
+			}
+			
+			boolean statsOnly = cmd.hasOption(statsOnlyOp);
+			if(statsOnly) {
+				if(fastqSettings != null || cmd.hasOption(sidecarOp) || cmd.hasOption(conversionSitesOp) || cmd.hasOption(sortOutputOp) || 
+						cmd.hasOption(partitionByOpt) || cmd.hasOption(scatterOpt) || cmd.hasOption(previewOpt)) {
+					throw new IllegalArgumentException("-statsOnly writes no outputs, it cannot be combined with -fastq, -sidecar, -conversionSites, -sortOutput, -partitionBy, -scatter or -preview");
+				}
+				if(revertConversion || cmd.hasOption(conversionTagsOp)) {
+					System.err.println("Warning: nothing is written with -statsOnly, -r and -conversionTags are ignored");
+					revertConversion = false;
+				}
+				outputFormat = SplitterOutputFormat.NONE;
+			}
 			
-			SAMFileHeader header = reader.getFileHeader();
+			CoverageTracks.Format coverageFormat = null;
+			if(cmd.hasOption(coverageOpt)) {
+				if(statsOnly || cmd.hasOption(scatterOpt) || cmd.hasOption(previewOpt)) {
+					throw new IllegalArgumentException("-coverage cannot be combined with -statsOnly, -scatter or -preview");
+				}
+				if(cmd.hasOption(dedupOpt)) {
+					throw new IllegalArgumentException("-coverage needs the alignments in coordinate order, -dedup releases them by 5' end. It cannot be used with -dedup");
+				}
+				coverageFormat = CoverageTracks.Format.valueOf(cmd.getOptionValue(coverageOpt, "bigwig").toUpperCase());
+			}
+			
+			PartitionedOutputWriter.Settings partitioning = null;
+			if(cmd.hasOption(partitionByOpt)) {
+				if(cmd.hasOption(sortOutputOp) || cmd.hasOption(scatterOpt)) {
+					throw new IllegalArgumentException("-partitionBy cannot be combined with -sortOutput or -scatter");
+				}
+				partitioning = PartitionedOutputWriter.Settings.parse(cmd.getOptionValue(partitionByOpt), 
+						Integer.parseInt(cmd.getOptionValue(maxOpenPartitionsOpt, "64")));
+				if(partitioning.isByFeature() && (!cmd.hasOption(annotationIndexOpt) || cmd.hasOption(fromSidecarOpt))) {
+					throw new IllegalArgumentException("partitioning by feature requires -annotationIndex and cannot be used with -fromSidecar");
+				}
+			}
+			
+			AnnotationIndex annotationIndex = null;
+			if(cmd.hasOption(annotationIndexOpt)) {
+				long loadStart = System.currentTimeMillis();
+				annotationIndex = new AnnotationIndex(new File(cmd.getOptionValue(annotationIndexOpt)));
+				log.println("Annotation index loaded in " + (System.currentTimeMillis() - loadStart) + "ms");
+			}
+			
+			int readThreads = Integer.parseInt(cmd.getOptionValue(readThreadsOpt, "1"));
+			int prefetchBlocks = Integer.parseInt(cmd.getOptionValue(prefetchOpt, String.valueOf(8 * readThreads)));
+			
+			SamReaderFactory readerFactory = SamReaderFactory.makeDefault();
+			if(statsOnly) {
+				// Records are only looked at, not written, no need to validate them on decoding
+				readerFactory.validationStringency(ValidationStringency.SILENT);
+			}
+			if(cmd.hasOption(sidecarOp)) {
+				readerFactory.enable(SamReaderFactory.Option.INCLUDE_SOURCE_IN_RECORDS);
+			}
+			reader = readerFactory.open(new File(inBam));
+			
+			Iterable<SAMRecord> records = reader;
+			if(mergeInputs) {
+				// Each BAM gets its own inflating thread, more if there are enough -readThreads
+				mergingReader = new MergingBamReader(inBamFiles, readerFactory, Math.max(1, readThreads / inBamFiles.size()), prefetchBlocks);
+				records = mergingReader;
+				log.println("Merging " + inBamFiles.size() + " input files");
+			} else if(sharedInflatePool != null && reader.type() == SamReader.Type.BAM_TYPE) {
+				// A server job, the blocks are decompressed on the pool all the jobs share
+				parallelReader = new ParallelBamReader(inBamFile, sharedInflatePool, prefetchBlocks);
+				records = parallelReader;
+			} else if(readThreads > 1) {
+				if(reader.type() == SamReader.Type.BAM_TYPE) {
+					parallelReader = new ParallelBamReader(inBamFile, readThreads, prefetchBlocks);
+					records = parallelReader;
+				} else {
+					System.err.println("Warning: parallel decompression is only available for BAM input, reading "+ reader.type() + " in the main thread");
+				}
+			}
+			
+			
+			SAMFileHeader header = mergeInputs ? mergingReader.getFileHeader() : reader.getFileHeader();
+			if(coverageFormat != null && !SortOrder.coordinate.equals(header.getSortOrder())) {
+				throw new IllegalArgumentException("-coverage requires coordinate sorted alignments, the tracks are written as the input advances");
+			}
+			
+			ConversionSnpMask snpMask = null;
+			File snpMaskFile = null;
+			if(cmd.hasOption(maskSnpsOpt) || cmd.hasOption(snpMaskOpt)) {
+				if(cmd.hasOption(maskSnpsOpt) && cmd.hasOption(snpMaskOpt)) {
+					throw new IllegalArgumentException("-maskSnps and -snpMask cannot be used together");
+				}
+				if(cmd.hasOption(fromSidecarOpt)) {
+					throw new IllegalArgumentException("the sidecar stores the conversion counts, -maskSnps and -snpMask cannot be used with -fromSidecar");
+				}
+				if(cmd.hasOption(snpMaskOpt)) {
+					snpMaskFile = new File(cmd.getOptionValue(snpMaskOpt));
+					if(!snpMaskFile.exists()) {
+						throw new IllegalArgumentException("The SNP mask provided " + snpMaskFile.getAbsolutePath() + " does not exist");
+					}
+					snpMask = ConversionSnpMask.fromBed(snpMaskFile, header.getSequenceDictionary());
+				} else {
+					File snpBam = inBamFile;
+					if(cmd.getOptionValue(maskSnpsOpt) != null) {
+						snpBam = new File(cmd.getOptionValue(maskSnpsOpt));
+						if(!snpBam.exists()) {
+							throw new IllegalArgumentException("The control bam file provided " + snpBam.getAbsolutePath() + " does not exist");
+						}
+					} else if(mergeInputs) {
+						throw new IllegalArgumentException("-maskSnps needs a control BAM when several -inputBam files are merged");
+					}
+					snpMask = ConversionSnpMask.discover(snpBam, readerFactory, header.getSequenceDictionary(), 
+							Integer.parseInt(cmd.getOptionValue(snpMinCoverageOpt, String.valueOf(ConversionSnpMask.DEFAULT_MIN_COVERAGE))), 
+							Double.parseDouble(cmd.getOptionValue(snpMinFrequencyOpt, String.valueOf(ConversionSnpMask.DEFAULT_MIN_FREQUENCY))));
+					snpMaskFile = new File(outDirFile, outPrefix + ConversionSnpMask.EXTENSION);
+					snpMask.write(snpMaskFile);
+				}
+				log.println("SNPs masked: " + snpMask.size() + " positions");
+			}
+			
+			if(cmd.hasOption(fromSidecarOpt)) {
+				if(reader.type() != SamReader.Type.BAM_TYPE) {
+					throw new IllegalArgumentException("-fromSidecar needs the BAM file the sidecar was written from");
+				}
+				if(classifier.needsAlignmentScores()) {
+					throw new IllegalArgumentException("the sidecar does not store AS or NM, the classifier cannot use them: " + classifier);
+				}
+				if(cmd.hasOption(conversionSitesOp) || cmd.hasOption(qcOp) || cmd.hasOption(genesOpt)) {
+					throw new IllegalArgumentException("-conversionSites, -qc and -genes need the reads to be parsed and cannot be used with -fromSidecar");
+				}
+				if(coverageFormat != null) {
+					throw new IllegalArgumentException("-coverage needs the alignments in coordinate order, the sidecar re-split writes both mates of a pair together. It cannot be used with -fromSidecar");
+				}
+				if(cmd.hasOption(previewOpt)) {
+					throw new IllegalArgumentException("-preview samples and parses the reads, it cannot be used with -fromSidecar");
+				}
+				Hisat3nSplitterWriter sidecarWriter = new Hisat3nQuerySortedSlamSplitterWritter(outDirFile, outPrefix, header.clone(), outputFormat, referenceFile, null, partitioning);
+				sidecarWriter.setClassifier(classifier);
+				sidecarWriter.setTagConversions(cmd.hasOption(conversionTagsOp));
+				if(fastqSettings != null) {
+					sidecarWriter.setFastqWriter(new FastqOutputWriter(outDirFile, outPrefix, pairedEnd, fastqSettings));
+				}
+				if(revertConversion) {
+					sidecarWriter.turnOnConversionReversion();
+				}
+				long fragments = 0;
+				try (ConversionSidecarResplitter resplitter = new ConversionSidecarResplitter(inBamFile, header, sidecarWriter);
+						ConversionSidecar sidecar = new ConversionSidecar(new File(cmd.getOptionValue(fromSidecarOpt)))) {
+					fragments = resplitter.resplit(sidecar);
+				}
+				log.println("Fragments re-split from sidecar: " + fragments);
+				if(cmd.hasOption(metricsOpt)) {
+					sidecarWriter.getMetrics().write(new File(cmd.getOptionValue(metricsOpt)));
+				}
+				return sidecarWriter.getMetrics();
+			}
 			
 			Hisat3nSplitterWriter sw = null;
+			ConversionQC qc = null;
+			NewRnaEstimator newRnaEstimator = null;
 			
 			Set<Entry<String, String>> attributes = header.getAttributes();
 			
 			for (Entry<String,String> att : attributes) {
-				System.out.println("Atribute key " + att.getKey() + " and val "+ att.getValue());
+				log.println("Atribute key " + att.getKey() + " and val "+ att.getValue());
 			}
 			
 			List<SAMProgramRecord>programRecords = header.getProgramRecords();
 			boolean isHisat3N = false;
 			for (SAMProgramRecord pgRcrd : programRecords) {
-				System.out.println("Program record id " + pgRcrd.getId() + " and cmd: "+ pgRcrd.getCommandLine());
+				log.println("Program record id " + pgRcrd.getId() + " and cmd: "+ pgRcrd.getCommandLine());
 				isHisat3N = isHisat3N || (pgRcrd.getId().contains("hisat2") && pgRcrd.getProgramVersion().contains("-3n"));  // Kind of an unfortunate hack
 				if(isHisat3N) { break;}
 				
 			}
 			SortOrder sortOrder = header.getSortOrder();
-			if((sortOrder == null || !sortOrder.equals(SortOrder.queryname)) && pairedEnd ) {
-				System.err.println("ERROR: Paired-end alignments must be sorted by queryname in order to run the Splitter. "+ 
-									"The SAM header does not specify a sort order or it specifies an incorrect one: " + sortOrder);
-				System.exit(1);
+			// Paired by read name hash, see Hisat3nUnsortedSlamSplitterWriter
+			boolean unsortedPairs = pairedEnd && (sortOrder == null || !(sortOrder.equals(SortOrder.queryname) || sortOrder.equals(SortOrder.coordinate)));
+			if(unsortedPairs && (cmd.hasOption(scatterOpt) || cmd.hasOption(shardOpt) || cmd.hasOption(previewOpt))) {
+				throw new IllegalArgumentException("Paired-end alignments that are not sorted by queryname or coordinate are paired over the whole input, " + 
+						"they cannot be combined with -scatter, -shard or -preview. The SAM header sort order is " + sortOrder);
+			}
+			if(partitioning != null) {
+				// Mates outside -regions and deduplicated records are not written in the input order
+				partitioning.setCoordinateSortedInput(SortOrder.coordinate.equals(sortOrder) && !cmd.hasOption(regionsOpt) && !cmd.hasOption(dedupOpt));
 			}
 			
-			if(!pairedEnd || sortOrder.equals(SortOrder.coordinate)) {
-				if(pairedEnd) {
-					pairQueryReader = SamReaderFactory.makeDefault().open(new File(inBam));
-					sw = new Hisat3nCoordinateSortedSlamSplitterWriter(outDirFile, outPrefix, pairQueryReader, !cmd.hasOption(writeSam));
+			TargetRegions targetRegions = null;
+			if(cmd.hasOption(regionsOpt)) {
+				if(!SortOrder.coordinate.equals(sortOrder) || !reader.hasIndex()) {
+					throw new IllegalArgumentException("-regions requires a coordinate sorted and indexed alignment file");
+				}
+				targetRegions = TargetRegions.fromBed(new File(cmd.getOptionValue(regionsOpt)), header.getSequenceDictionary());
+				if(parallelReader != null) {
+					System.err.println("Warning: -readThreads is ignored with -regions, only the overlapping chunks are read");
+					parallelReader.close();
+					parallelReader = null;
+				}
+				final QueryInterval [] intervals = targetRegions.getIntervals();
+				final SamReader regionReader = reader;
+				records = () -> regionReader.query(intervals, false);
+			}
+			
+			File tmpDir = new File(cmd.getOptionValue(tmpDirOpt, System.getProperty("java.io.tmpdir")));
+			if(!tmpDir.isDirectory()) {
+				throw new IllegalArgumentException("The temporary directory provided " + tmpDir.getAbsolutePath() + " does not exist");
+			}
+			
+			CoordinateSortingWriter.Settings outputSorting = null;
+			if(cmd.hasOption(sortOutputOp)) {
+				if(SortOrder.coordinate.equals(sortOrder)) {
+					System.err.println("Warning: the input is coordinate sorted, so are the outputs. -sortOutput is ignored");
+				} else if(cmd.hasOption(scatterOpt)) {
+					throw new IllegalArgumentException("-sortOutput cannot be combined with -scatter, the shard outputs are concatenated");
+				} else {
+					outputSorting = new CoordinateSortingWriter.Settings(Long.parseLong(cmd.getOptionValue(sortMemoryOpt, "1024")) << 20, tmpDir);
+				}
+			}
+			
+			if(cmd.hasOption(genesOpt)) {
+				if(cmd.hasOption(scatterOpt) || cmd.hasOption(shardOpt)) {
+					throw new IllegalArgumentException("-genes fits the estimates on all the fragments, it cannot be combined with -scatter or -shard");
+				}
+				newRnaEstimator = new NewRnaEstimator(GeneAnnotation.load(new File(cmd.getOptionValue(genesOpt))));
+				newRnaEstimator.setConversionRates(cmd.hasOption(pOldOpt) ? Double.valueOf(cmd.getOptionValue(pOldOpt)) : null, 
+						cmd.hasOption(pNewOpt) ? Double.valueOf(cmd.getOptionValue(pNewOpt)) : null);
+			}
+			
+			if(cmd.hasOption(scatterOpt)) {
+				if(cmd.hasOption(regionsOpt) || reader.type() != SamReader.Type.BAM_TYPE) {
+					throw new IllegalArgumentException("-scatter requires BAM input and cannot be combined with -regions");
+				}
+				int shards = Integer.parseInt(cmd.getOptionValue(scatterOpt));
+				List<ScatterGather.Shard> plan = SortOrder.coordinate.equals(sortOrder) ? 
+						ScatterGather.planByContigs(reader, shards, !cmd.hasOption(dedupOpt)) : ScatterGather.planByReadNames(inBamFile, shards, readThreads);
+				if(plan.size() < shards) {
+					System.err.println("Warning: the input could only be cut in " + plan.size() + " shards of " + shards + 
+							(cmd.hasOption(dedupOpt) ? ", -dedup keeps each contig in one shard" : ""));
+				}
+				List<String> childArguments = new ArrayList<String>();
+				for (Option option : cmd.getOptions()) {
+					if(option.equals(scatterOpt) || option.equals(scatterJavaOptionsOpt) || option.equals(outputDirectoryOpt) || 
+							option.equals(outputPrefixOpt) || option.equals(metricsOpt) || option.equals(shardOpt) || 
+							option.equals(maskSnpsOpt) || option.equals(snpMaskOpt) || option.equals(snpMinCoverageOpt) || option.equals(snpMinFrequencyOpt)) {
+						continue;
+					}
+					childArguments.add("-" + option.getOpt());
+					// Options with an optional argument, i.e. -fastqGzip, may be given without it
+					if(option.hasArg() && option.getValue() != null) {
+						childArguments.add(option.getValue());
+					}
+				}
+				if(snpMaskFile != null) {
+					// The SNPs are found once, the shards read them
+					childArguments.add("-" + snpMaskOpt.getOpt());
+					childArguments.add(snpMaskFile.getAbsolutePath());
+				}
+				List<String> javaOptions = cmd.hasOption(scatterJavaOptionsOpt) ? 
+						Arrays.asList(cmd.getOptionValue(scatterJavaOptionsOpt).trim().split("\\s+")) : new ArrayList<String>();
+				log.println("Scattering into " + plan.size() + " shards");
+				ScatterGather scatterGather = new ScatterGather(new File(outDirFile, outPrefix + "_shards"), outPrefix, outputFormat);
+				metrics = scatterGather.run(plan, javaOptions, childArguments, cmd.hasOption(sidecarOp), cmd.hasOption(qcOp), 
+						cmd.hasOption(conversionSitesOp) ? header.getSequenceDictionary() : null);
+				totalAlignments = metrics.getAlignments();
+			}
+			
+			ScatterGather.Shard shard = null;
+			if(cmd.hasOption(shardOpt)) {
+				shard = ScatterGather.Shard.parse(cmd.getOptionValue(shardOpt));
+				if(shard.isContigRange() && (!SortOrder.coordinate.equals(sortOrder) || !reader.hasIndex())) {
+					throw new IllegalArgumentException("contig shards require a coordinate sorted and indexed alignment file");
+				}
+				if(parallelReader != null) {
+					parallelReader.close();
+					parallelReader = null;
+				}
+				records = shard.records(reader, inBamFile);
+			}
+			
+			Preview preview = null;
+			if(cmd.hasOption(previewOpt)) {
+				if(cmd.hasOption(scatterOpt) || cmd.hasOption(shardOpt) || cmd.hasOption(regionsOpt) || cmd.hasOption(sortOutputOp) || 
+						cmd.hasOption(partitionByOpt) || cmd.hasOption(sidecarOp) || cmd.hasOption(conversionSitesOp)) {
+					throw new IllegalArgumentException("-preview does not write outputs, it cannot be combined with -scatter, -regions, -sortOutput, -partitionBy, -sidecar or -conversionSites");
+				}
+				preview = new Preview(Double.parseDouble(cmd.getOptionValue(previewOpt)));
+				records = preview.sample(reader, inBamFile, records, sortOrder);
+				if(preview.getTargetRegions() != null) {
+					targetRegions = preview.getTargetRegions();
+					if(parallelReader != null) {
+						parallelReader.close();
+						parallelReader = null;
+					}
+				}
+				outputFormat = SplitterOutputFormat.NONE;
+			}
+			
+			DuplicateFilter duplicateFilter = null;
+			if(cmd.hasOption(dedupOpt)) {
+				if(pairedEnd || !SortOrder.coordinate.equals(sortOrder)) {
+					throw new IllegalArgumentException("-dedup is only supported for single-end coordinate sorted alignments");
+				}
+				DuplicateFilter.Mode dedupMode = DuplicateFilter.Mode.valueOf(cmd.getOptionValue(dedupOpt).toUpperCase());
+				duplicateFilter = new DuplicateFilter(dedupMode, !cmd.hasOption(markDuplicatesOp), DuplicateFilter.DEFAULT_WINDOW);
+			}
+			
+			if(metrics != null) {
+				// Scattered, the shards did the splitting
+			} else if(unsortedPairs) {
+				log.println("The paired-end alignments are not sorted (" + sortOrder + "), pairing the mates by read name");
+				sw = new Hisat3nUnsortedSlamSplitterWriter(outDirFile, outPrefix, header, outputFormat, referenceFile, 
+						Long.parseLong(cmd.getOptionValue(pairMemoryOpt, "1024")) << 20, tmpDir, outputSorting, partitioning);
+			} else if(!pairedEnd || sortOrder.equals(SortOrder.coordinate)) {
+				if(pairedEnd && mergeInputs) {
+					int mateThreads = Integer.parseInt(cmd.getOptionValue(mateThreadsOpt, "2"));
+					for (int i = 0; i < inBamFiles.size(); i++) {
+						SamReader inputReader = mergingReader.getReaders().get(i);
+						if(inputReader.type() != SamReader.Type.BAM_TYPE || !inputReader.hasIndex()) {
+							throw new IllegalArgumentException("merged coordinate sorted paired-end inputs must be indexed BAM files, " + inBamFiles.get(i) + " is not");
+						}
+						mateLookupReaders.add(new MateLookupReader(inBamFiles.get(i), inputReader, 
+								Integer.parseInt(cmd.getOptionValue(mateCacheOpt, String.valueOf(MateLookupReader.DEFAULT_CACHE_BLOCKS))), mateThreads));
+					}
+					final List<MateLookupReader> inputMateReaders = mateLookupReaders;
+					records = MateLookupReader.prefetching(records, mateThreads * MateLookupReader.LOOKAHEAD_PER_THREAD, 
+							record -> inputMateReaders.get(MergingBamReader.sourceOf(record)));
+					sw = new Hisat3nCoordinateSortedSlamSplitterWriter(outDirFile, outPrefix, header, mateLookupReaders, outputFormat, referenceFile, partitioning);
+				} else if(pairedEnd) {
+					pairQueryReader = readerFactory.open(new File(inBam));
+					Hisat3nCoordinateSortedSlamSplitterWriter coordinateWriter = new Hisat3nCoordinateSortedSlamSplitterWriter(outDirFile, outPrefix, pairQueryReader, outputFormat, referenceFile, partitioning);
+					coordinateWriter.setTargetRegions(targetRegions);
+					if(pairQueryReader.type() == SamReader.Type.BAM_TYPE && pairQueryReader.hasIndex()) {
+						int mateThreads = Integer.parseInt(cmd.getOptionValue(mateThreadsOpt, "2"));
+						MateLookupReader mateLookupReader = new MateLookupReader(inBamFile, pairQueryReader, 
+								Integer.parseInt(cmd.getOptionValue(mateCacheOpt, String.valueOf(MateLookupReader.DEFAULT_CACHE_BLOCKS))), mateThreads);
+						mateLookupReaders.add(mateLookupReader);
+						coordinateWriter.setMateLookupReader(mateLookupReader);
+						records = mateLookupReader.prefetching(records, mateThreads * MateLookupReader.LOOKAHEAD_PER_THREAD);
+					}
+					if(shard != null) {
+						coordinateWriter.setShard(shard);
+					}
+					sw = coordinateWriter;
 				} else {
-					sw = new Hisat3nCoordinateSortedSlamSplitterWriter(outDirFile, outPrefix, reader.getFileHeader(), !cmd.hasOption(writeSam));
+					Hisat3nCoordinateSortedSlamSplitterWriter coordinateWriter = new Hisat3nCoordinateSortedSlamSplitterWriter(outDirFile, outPrefix, header, outputFormat, referenceFile, outputSorting, partitioning);
+					if(duplicateFilter != null) {
+						coordinateWriter.setDuplicateFilter(duplicateFilter);
+					}
+					sw = coordinateWriter;
 				}
 			} else if (sortOrder.equals(SortOrder.queryname)) {
-				sw = new Hisat3nQuerySortedSlamSplitterWritter(outDirFile, outPrefix, reader, !cmd.hasOption(writeSam));
+				sw = new Hisat3nQuerySortedSlamSplitterWritter(outDirFile, outPrefix, header, outputFormat, referenceFile, outputSorting, partitioning);
 			} else {
-				System.err.println("ERROR: Alignment must be sorted by coordinate in order to run the Splitter. " + 
+				throw new IllegalArgumentException("Alignment must be sorted by coordinate in order to run the Splitter. " + 
 						" The SAM header indicates it is sorted by "+sortOrder);
-				System.exit(1);	
 			}
 			if(sw != null) {
+				if(cmd.hasOption(sidecarOp)) {
+					sw.setSidecarWriter(new ConversionSidecarWriter(new File(outDirFile, outPrefix + ConversionSidecar.EXTENSION)));
+				}
+				if(fastqSettings != null) {
+					sw.setFastqWriter(new FastqOutputWriter(outDirFile, outPrefix, pairedEnd, fastqSettings));
+				}
+				if(coverageFormat != null) {
+					sw.setCoverageTracks(new CoverageTracks(outDirFile, outPrefix, header.getSequenceDictionary(), coverageFormat));
+				}
+				if(cmd.hasOption(conversionSitesOp)) {
+					sw.setSiteIndexWriter(new ConversionSiteIndexWriter(new File(outDirFile, outPrefix + ConversionSiteIndex.EXTENSION), header.getSequenceDictionary()));
+				}
+				if(cmd.hasOption(qcOp) || preview != null) {
+					qc = new ConversionQC();
+					sw.setQC(qc);
+				}
+				if(newRnaEstimator != null) {
+					sw.setNewRnaEstimator(newRnaEstimator);
+				}
+				if(annotationIndex != null) {
+					sw.setAnnotationIndex(annotationIndex);
+				}
+				if(preview != null) {
+					preview.setMetrics(sw.getMetrics());
+				}
+				if(snpMask != null) {
+					sw.setSnpMask(snpMask);
+				}
+				sw.setClassifier(classifier);
+				sw.setTagConversions(cmd.hasOption(conversionTagsOp) && !statsOnly);
 				if  (revertConversion) {
 					sw.turnOnConversionReversion();
 				} 
@@ -206,24 +936,68 @@ public class SlamSplitter {
 			//if (!isHisat3N) { System.err.println("Warning - this program is meant to get Hisat-3n output. It does not seem that this alignment was generated by it");}
 			
 			
-	        for (final SAMRecord samRecord : reader) {
-	        	sw.write(samRecord);
-	        	totalAlignments++;
-	        	if(totalAlignments % 10000000 == 0) {
-	        		System.out.println(System.currentTimeMillis() + " processed " + totalAlignments);
-	        	}
-	           //samRecord.
-	           
-	        }
-	        
-	        sw.close();
+			if(sw != null) {
+				metrics = sw.getMetrics();
+		        for (final SAMRecord samRecord : records) {
+		        	sw.write(samRecord);
+		        	metrics.countAlignment();
+		        	totalAlignments++;
+		        	if(totalAlignments % 10000000 == 0) {
+		        		log.println(System.currentTimeMillis() + " processed " + totalAlignments);
+		        	}
+		           //samRecord.
+		           
+		        }
+		        
+		        sw.close();
+		        if(cmd.hasOption(qcOp)) {
+		        	qc.write(new File(outDirFile, outPrefix + ConversionQC.EXTENSION));
+		        }
+		        if(newRnaEstimator != null) {
+		        	newRnaEstimator.fit(Integer.parseInt(cmd.getOptionValue(estimatorThreadsOpt, String.valueOf(Runtime.getRuntime().availableProcessors()))));
+		        	newRnaEstimator.write(new File(outDirFile, outPrefix + NewRnaEstimator.EXTENSION));
+		        	log.println("Conversion rates: old RNA " + newRnaEstimator.getPOld() + ", new RNA " + newRnaEstimator.getPNew());
+		        }
+		        if(preview != null) {
+		        	preview.report(log, qc);
+		        }
+			}
+			if(cmd.hasOption(metricsOpt)) {
+				metrics.write(new File(cmd.getOptionValue(metricsOpt)));
+			}
 			
 	        
 		} catch (ParseException e) {
+			if(sharedInflatePool != null) {
+				// Answered to the client instead of the help
+				throw new IllegalArgumentException(e.getMessage(), e);
+			}
             System.out.println(e.getMessage());
             helper.printHelp("", options);
-            System.exit(0);
+            return null;
         } finally {
+        	Hisat3nSAMRecord.setMismatchReference(null, false);
+        	if(parallelReader != null) {
+        		try {
+        			parallelReader.close();
+        		} catch (IOException e) {
+        			e.printStackTrace();
+        		}
+        	}
+        	for (MateLookupReader mateLookupReader : mateLookupReaders) {
+        		try {
+        			mateLookupReader.close();
+        		} catch (IOException e) {
+        			e.printStackTrace();
+        		}
+        	}
+        	if(mergingReader != null) {
+        		try {
+        			mergingReader.close();
+        		} catch (IOException e) {
+        			e.printStackTrace();
+        		}
+        	}
         	if(reader != null) {
         		try {
 					reader.close();
@@ -242,12 +1016,10 @@ public class SlamSplitter {
         	}
 		}
 		
-		System.out.println("Total alignments: " + totalAlignments + 
-				"\n\t\tslpliced: " + totalSplicedAlignments + 
-				"\n\t\ttotal reads with conversion: " + totalConvertedReads +
-				"\n\t\ttotal unmapped reads: " + totalUnmapped);
-		
-		
+		if(metrics != null) {
+			metrics.print(log);
+		}
+		return metrics;
 	}
 
 
@@ -0,0 +1,311 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2022 University of Massachusetts Medical School
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package edu.umms.garberlab.slam;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+
+/**
+ * Counts gathered while splitting. They can be written to a tab separated file
+ * and summed, which is how the shards of a scatter run are reported together.
+ *
+ * @author mgarber
+ *
+ */
+public class SplitterMetrics {
+
+	private long alignments;
+	private long fragments;
+	private long convertedFragments;
+	private long splicedFragments;
+	private long unmappedFragments;
+	private long duplicates;
+	private long duplicatesExamined;
+	private long bucketPairedAlignments;
+	private long fastqSingletons;
+	private long mateLookups;
+	private long prefetchedMateLookups;
+	private long mateBlockHits;
+	private long mateBlockMisses;
+	/** By {@link AnnotationIndex.Feature} */
+	private final long [] featureFragments = new long[AnnotationIndex.Feature.values().length];
+
+	public void countAlignment() {
+		alignments++;
+	}
+
+	public void countFragment(boolean converted, boolean mapped, boolean spliced) {
+		fragments++;
+		if(converted) {
+			convertedFragments++;
+		}
+		if(!mapped) {
+			unmappedFragments++;
+		} else if(spliced) {
+			splicedFragments++;
+		}
+	}
+
+	/**
+	 * @param duplicates Alignments left out as duplicates
+	 * @param examined Alignments the duplicate filter looked at
+	 */
+	public void countDuplicates(long duplicates, long examined) {
+		this.duplicates += duplicates;
+		this.duplicatesExamined += examined;
+	}
+
+	/**
+	 * @param alignments Alignments whose mate was found through the temporary buckets of unsorted input
+	 */
+	public void countBucketPairedAlignments(long alignments) {
+		bucketPairedAlignments += alignments;
+	}
+
+	/**
+	 * @param reads FASTQ reads written to the _singletons files
+	 */
+	public void countFastqSingletons(long reads) {
+		fastqSingletons += reads;
+	}
+
+	/**
+	 * @param lookups Mates looked up through the index
+	 * @param prefetched Lookups that had been started ahead of time
+	 * @param blockHits BGZF blocks found decompressed in the cache
+	 * @param blockMisses BGZF blocks read and decompressed
+	 */
+	public void countMateLookups(long lookups, long prefetched, long blockHits, long blockMisses) {
+		mateLookups += lookups;
+		prefetchedMateLookups += prefetched;
+		mateBlockHits += blockHits;
+		mateBlockMisses += blockMisses;
+	}
+
+	public void countFeature(AnnotationIndex.Feature feature) {
+		featureFragments[feature.ordinal()]++;
+	}
+
+	public long getAlignments() {
+		return alignments;
+	}
+
+	public long getFragments() {
+		return fragments;
+	}
+
+	public long getConvertedFragments() {
+		return convertedFragments;
+	}
+
+	public long getSplicedFragments() {
+		return splicedFragments;
+	}
+
+	public long getUnmappedFragments() {
+		return unmappedFragments;
+	}
+
+	public long getDuplicates() {
+		return duplicates;
+	}
+
+	public long getDuplicatesExamined() {
+		return duplicatesExamined;
+	}
+
+	public long getBucketPairedAlignments() {
+		return bucketPairedAlignments;
+	}
+
+	public long getFastqSingletons() {
+		return fastqSingletons;
+	}
+
+	public long getMateLookups() {
+		return mateLookups;
+	}
+
+	public long getPrefetchedMateLookups() {
+		return prefetchedMateLookups;
+	}
+
+	public long getMateBlockHits() {
+		return mateBlockHits;
+	}
+
+	public long getMateBlockMisses() {
+		return mateBlockMisses;
+	}
+
+	/**
+	 * @return Mapped fragments of this feature, only counted with an {@link AnnotationIndex}
+	 */
+	public long getFeatureFragments(AnnotationIndex.Feature feature) {
+		return featureFragments[feature.ordinal()];
+	}
+
+	/**
+	 * @return Fraction of the BGZF blocks read by the mate lookups that were already decompressed
+	 */
+	public double getMateBlockHitRate() {
+		long blocks = mateBlockHits + mateBlockMisses;
+		return blocks == 0 ? 0 : mateBlockHits / (double) blocks;
+	}
+
+	/**
+	 * Adds the counts of <code>other</code> to these
+	 */
+	public void add(SplitterMetrics other) {
+		alignments += other.alignments;
+		fragments += other.fragments;
+		convertedFragments += other.convertedFragments;
+		splicedFragments += other.splicedFragments;
+		unmappedFragments += other.unmappedFragments;
+		duplicates += other.duplicates;
+		duplicatesExamined += other.duplicatesExamined;
+		bucketPairedAlignments += other.bucketPairedAlignments;
+		fastqSingletons += other.fastqSingletons;
+		mateLookups += other.mateLookups;
+		prefetchedMateLookups += other.prefetchedMateLookups;
+		mateBlockHits += other.mateBlockHits;
+		mateBlockMisses += other.mateBlockMisses;
+		for (int i = 0; i < featureFragments.length; i++) {
+			featureFragments[i] += other.featureFragments[i];
+		}
+	}
+
+	public void print(PrintStream out) {
+		StringBuilder features = new StringBuilder();
+		for (AnnotationIndex.Feature feature : AnnotationIndex.Feature.values()) {
+			if(featureFragments[feature.ordinal()] > 0) {
+				features.append("\n\t\t" + feature.getName() + ": " + featureFragments[feature.ordinal()]);
+			}
+		}
+		out.println("Total alignments: " + alignments +
+				"\n\t\tfragments: " + fragments +
+				"\n\t\tslpliced: " + splicedFragments +
+				"\n\t\ttotal reads with conversion: " + convertedFragments +
+				"\n\t\ttotal unmapped reads: " + unmappedFragments +
+				(duplicatesExamined > 0 ? "\n\t\tduplicates: " + duplicates + " out of " + duplicatesExamined + " alignments examined" : "") +
+				(bucketPairedAlignments > 0 ? "\n\t\tpaired through temporary buckets: " + bucketPairedAlignments : "") +
+				(fastqSingletons > 0 ? "\n\t\tFASTQ reads without a mate: " + fastqSingletons + ", see the _singletons files" : "") +
+				(mateLookups > 0 ? "\n\t\tmate lookups: " + mateLookups + " (" + prefetchedMateLookups + " prefetched)" +
+						"\n\t\tmate lookup block cache hits: " + mateBlockHits + " of " + (mateBlockHits + mateBlockMisses) +
+						String.format(" (%.1f%%)", 100 * getMateBlockHitRate()) : "") +
+				features);
+	}
+
+	public void write(File metricsFile) throws IOException {
+		try (PrintWriter pw = new PrintWriter(Files.newBufferedWriter(metricsFile.toPath()))) {
+			pw.println("#" + SlamSplitter.PROGRAM_NAME + " metrics");
+			for (Entry<String, Long> metric : values().entrySet()) {
+				pw.println(metric.getKey() + "\t" + metric.getValue());
+			}
+		}
+	}
+
+	/**
+	 * @return The counts of {@link #write(File)} as a JSON object, how a {@link SplitterServer} reports them
+	 */
+	public String toJson() {
+		StringBuilder json = new StringBuilder("{");
+		for (Entry<String, Long> metric : values().entrySet()) {
+			if(json.length() > 1) {
+				json.append(',');
+			}
+			json.append('"').append(metric.getKey()).append("\":").append(metric.getValue());
+		}
+		return json.append('}').toString();
+	}
+
+	private Map<String, Long> values() {
+		Map<String, Long> values = new LinkedHashMap<String, Long>();
+		values.put("alignments", alignments);
+		values.put("fragments", fragments);
+		values.put("converted_fragments", convertedFragments);
+		values.put("spliced_fragments", splicedFragments);
+		values.put("unmapped_fragments", unmappedFragments);
+		values.put("duplicates", duplicates);
+		values.put("duplicates_examined", duplicatesExamined);
+		values.put("bucket_paired_alignments", bucketPairedAlignments);
+		values.put("fastq_singletons", fastqSingletons);
+		values.put("mate_lookups", mateLookups);
+		values.put("prefetched_mate_lookups", prefetchedMateLookups);
+		values.put("mate_block_hits", mateBlockHits);
+		values.put("mate_block_misses", mateBlockMisses);
+		for (AnnotationIndex.Feature feature : AnnotationIndex.Feature.values()) {
+			values.put(feature.getName() + "_fragments", featureFragments[feature.ordinal()]);
+		}
+		return values;
+	}
+
+	public static SplitterMetrics read(File metricsFile) throws IOException {
+		SplitterMetrics metrics = new SplitterMetrics();
+		try (BufferedReader br = Files.newBufferedReader(metricsFile.toPath())) {
+			String line = null;
+			while ((line = br.readLine()) != null) {
+				if(line.isEmpty() || line.startsWith("#")) {
+					continue;
+				}
+				String [] fields = line.split("\t");
+				if(fields.length != 2) {
+					throw new IOException("Malformed metrics line in " + metricsFile + ": " + line);
+				}
+				long value = Long.parseLong(fields[1]);
+				switch (fields[0]) {
+				case "alignments": metrics.alignments = value; break;
+				case "fragments": metrics.fragments = value; break;
+				case "converted_fragments": metrics.convertedFragments = value; break;
+				case "spliced_fragments": metrics.splicedFragments = value; break;
+				case "unmapped_fragments": metrics.unmappedFragments = value; break;
+				case "duplicates": metrics.duplicates = value; break;
+				case "duplicates_examined": metrics.duplicatesExamined = value; break;
+				case "bucket_paired_alignments": metrics.bucketPairedAlignments = value; break;
+				case "fastq_singletons": metrics.fastqSingletons = value; break;
+				case "mate_lookups": metrics.mateLookups = value; break;
+				case "prefetched_mate_lookups": metrics.prefetchedMateLookups = value; break;
+				case "mate_block_hits": metrics.mateBlockHits = value; break;
+				case "mate_block_misses": metrics.mateBlockMisses = value; break;
+				case "exonic_fragments": metrics.featureFragments[AnnotationIndex.Feature.EXONIC.ordinal()] = value; break;
+				case "intronic_fragments": metrics.featureFragments[AnnotationIndex.Feature.INTRONIC.ordinal()] = value; break;
+				case "mixed_fragments": metrics.featureFragments[AnnotationIndex.Feature.MIXED.ordinal()] = value; break;
+				case "intergenic_fragments": metrics.featureFragments[AnnotationIndex.Feature.INTERGENIC.ordinal()] = value; break;
+				default:
+					throw new IOException("Unknown metric " + fields[0] + " in " + metricsFile);
+				}
+			}
+		}
+		return metrics;
+	}
+
+}
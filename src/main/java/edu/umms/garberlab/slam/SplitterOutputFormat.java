@@ -0,0 +1,177 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2022 University of Massachusetts Medical School
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package edu.umms.garberlab.slam;
+
+import java.io.File;
+
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMFileWriter;
+import htsjdk.samtools.SAMFileWriterFactory;
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.util.AbstractAsyncWriter;
+import htsjdk.samtools.util.ProgressLoggerInterface;
+
+/**
+ * Alignment formats the splitter can write its converted and unconverted files in.
+ *
+ * CRAM output needs the reference FASTA the reads were aligned to. Reverted reads
+ * (see -r) match the reference at the converted positions so they are stored as plain
+ * matches rather than substitutions, which is where most of the CRAM savings over BAM come from.
+ *
+ * @author mgarber
+ *
+ */
+public enum SplitterOutputFormat {
+	BAM(".bam"),
+	SAM(".sam"),
+	CRAM(".cram"),
+	/** Discards the records, used by -preview, -statsOnly and -fastqOnly */
+	NONE("");
+
+	private final String extension;
+
+	private SplitterOutputFormat(String extension) {
+		this.extension = extension;
+	}
+
+	public String getExtension() {
+		return extension;
+	}
+
+	/**
+	 * Creates a writer for this format
+	 * @param factory Configured writer factory
+	 * @param header Header of the output file
+	 * @param outFile File to write
+	 * @param reference Reference FASTA, only used (and required) for CRAM
+	 * @return A writer, CRAM writers encode their containers in their own thread
+	 */
+	public SAMFileWriter makeWriter(SAMFileWriterFactory factory, SAMFileHeader header, File outFile, File reference) {
+		return makeWriter(factory, header, outFile, reference, false);
+	}
+	
+	/**
+	 * @param presorted Whether records are added in the sort order of the header, otherwise htsjdk sorts them
+	 */
+	public SAMFileWriter makeWriter(SAMFileWriterFactory factory, SAMFileHeader header, File outFile, File reference, boolean presorted) {
+		SAMFileWriter writer = null;
+		switch (this) {
+		case BAM:
+			writer = factory.makeBAMWriter(header, presorted, outFile);
+			break;
+		case SAM:
+			writer = factory.makeSAMWriter(header, presorted, outFile);
+			break;
+		case CRAM:
+			if(reference == null) {
+				throw new IllegalArgumentException("CRAM output requires a reference FASTA file");
+			}
+			// htsjdk does not wrap CRAM writers in its asynchronous writer so we do it here,
+			// this way the converted and unconverted containers are encoded in parallel.
+			writer = new AsyncCramWriter(factory.makeCRAMWriter(header, presorted, outFile, reference));
+			break;
+		case NONE:
+			writer = new NullWriter(header);
+			break;
+		}
+		return writer;
+	}
+
+	static SplitterOutputFormat fromOptions(boolean asSAM, boolean asCRAM) {
+		if(asSAM && asCRAM) {
+			throw new IllegalArgumentException("Only one of SAM or CRAM output can be requested");
+		}
+		return asCRAM ? CRAM : (asSAM ? SAM : BAM);
+	}
+
+}
+
+class NullWriter implements SAMFileWriter {
+
+	private final SAMFileHeader header;
+
+	NullWriter(SAMFileHeader header) {
+		this.header = header;
+	}
+
+	@Override
+	public void addAlignment(SAMRecord alignment) {
+	}
+
+	@Override
+	public SAMFileHeader getFileHeader() {
+		return header;
+	}
+
+	@Override
+	public void setProgressLogger(ProgressLoggerInterface progress) {
+	}
+
+	@Override
+	public void close() {
+	}
+
+}
+
+class AsyncCramWriter extends AbstractAsyncWriter<SAMRecord> implements SAMFileWriter {
+
+	private final SAMFileWriter cramWriter;
+
+	AsyncCramWriter(SAMFileWriter cramWriter) {
+		super(DEFAULT_QUEUE_SIZE);
+		this.cramWriter = cramWriter;
+	}
+
+	@Override
+	public void addAlignment(SAMRecord alignment) {
+		write(alignment);
+	}
+
+	@Override
+	public SAMFileHeader getFileHeader() {
+		return cramWriter.getFileHeader();
+	}
+
+	@Override
+	public void setProgressLogger(ProgressLoggerInterface progress) {
+		cramWriter.setProgressLogger(progress);
+	}
+
+	@Override
+	protected String getThreadNamePrefix() {
+		return "CramWriterThread-";
+	}
+
+	@Override
+	protected void synchronouslyWrite(SAMRecord item) {
+		cramWriter.addAlignment(item);
+	}
+
+	@Override
+	protected void synchronouslyClose() {
+		cramWriter.close();
+	}
+
+}
@@ -0,0 +1,265 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2022 University of Massachusetts Medical School
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package edu.umms.garberlab.slam;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps one JVM up to split many small inputs, i.e. targeted panels, where starting
+ * a JVM and warming its JIT for each of them takes longer than the split itself.
+ *
+ * A client connects to the loopback port and sends one line with the SlamSplitter
+ * arguments of its job, quoting the ones with spaces in " or '. The server answers
+ * with one line once the job is done:
+ *
+ * {"status":"ok","metrics":{"alignments":...}} or {"status":"error","message":"..."}
+ *
+ * i.e. echo '-inputBam /data/panel1.bam -outDir /data/split -p' | nc 127.0.0.1 7000
+ *
+ * Jobs run at once on a fixed pool and decompress their BAM input on a pool shared by
+ * all of them, so the inflating threads and their buffers are reused from job to job.
+ * Relative paths are resolved against the directory the server was started from. The jobs
+ * print nothing, their metrics are in the answer, so -preview cannot be run as a job.
+ * A line with only {@value #SHUTDOWN} stops the server after the running jobs.
+ *
+ * @author mgarber
+ *
+ */
+public class SplitterServer implements Closeable {
+
+	public static final String SHUTDOWN = "shutdown";
+
+	private final ServerSocket serverSocket;
+	private final ExecutorService jobPool;
+	private final ExecutorService inflatePool;
+	private final ExecutorService connectionPool;
+	private volatile boolean stopping;
+
+	/**
+	 * @param port Loopback port to listen to, 0 for any free one
+	 * @param jobs Number of jobs run at once, the others wait
+	 * @param inflateThreads Threads decompressing the BAM input of all the jobs
+	 */
+	public SplitterServer(int port, int jobs, int inflateThreads) throws IOException {
+		if(jobs < 1 || inflateThreads < 1) {
+			throw new IllegalArgumentException("The server needs at least one job and one inflating thread");
+		}
+		this.serverSocket = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+		this.jobPool = Executors.newFixedThreadPool(jobs, r -> {
+			Thread t = new Thread(r, "SplitterJob");
+			t.setDaemon(true);
+			return t;
+		});
+		this.inflatePool = Executors.newFixedThreadPool(inflateThreads, r -> {
+			Thread t = new Thread(r, "BgzfInflater");
+			t.setDaemon(true);
+			return t;
+		});
+		// Only waits for the jobs and answers, the connections of queued jobs are not limited
+		this.connectionPool = Executors.newCachedThreadPool(r -> {
+			Thread t = new Thread(r, "SplitterConnection");
+			t.setDaemon(true);
+			return t;
+		});
+	}
+
+	public InetSocketAddress getAddress() {
+		return (InetSocketAddress) serverSocket.getLocalSocketAddress();
+	}
+
+	/**
+	 * Accepts jobs until one asks for a {@value #SHUTDOWN}, then waits for the running ones
+	 */
+	public void serve() throws IOException, InterruptedException {
+		while(!stopping) {
+			final Socket socket;
+			try {
+				socket = serverSocket.accept();
+			} catch (SocketException e) {
+				if(stopping) {
+					break;
+				}
+				throw e;
+			}
+			connectionPool.execute(() -> answer(socket));
+		}
+		jobPool.shutdown();
+		jobPool.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+		connectionPool.shutdown();
+		connectionPool.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+	}
+
+	private void answer(Socket socket) {
+		try (Socket s = socket;
+				BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream(), StandardCharsets.UTF_8));
+				Writer out = new OutputStreamWriter(s.getOutputStream(), StandardCharsets.UTF_8)) {
+			String line = in.readLine();
+			if(line == null) {
+				return;
+			}
+			String reply;
+			if(SHUTDOWN.equals(line.trim())) {
+				stopping = true;
+				serverSocket.close();
+				reply = "{\"status\":\"ok\"}";
+			} else {
+				reply = run(line);
+			}
+			out.write(reply);
+			out.write('\n');
+			out.flush();
+		} catch (IOException e) {
+			System.err.println("Warning: could not answer a job: " + e.getMessage());
+		}
+	}
+
+	private String run(String line) {
+		try {
+			final String [] arguments = arguments(line);
+			Future<SplitterMetrics> job = jobPool.submit(() -> SlamSplitter.split(arguments, inflatePool));
+			SplitterMetrics metrics = job.get();
+			if(metrics == null) {
+				return error("nothing was split, the arguments could not be parsed or only asked for the help: " + line);
+			}
+			return "{\"status\":\"ok\",\"metrics\":" + metrics.toJson() + "}";
+		} catch (IllegalArgumentException e) {
+			return error(e.getMessage());
+		} catch (RejectedExecutionException e) {
+			// A shutdown came in while the job was waiting for its connection to be answered
+			return error("the server is shutting down, the job was not run");
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if(cause instanceof ExecutionException) {
+				// The new RNA estimates
+				cause = cause.getCause();
+			}
+			return error(cause instanceof IOException ? "could not read " + cause.getMessage() : 
+				cause.getMessage() != null ? cause.getMessage() : cause.toString());
+		} catch (InterruptedException e) {
+			return error("interrupted while waiting for the job");
+		}
+	}
+
+	/**
+	 * Stops accepting jobs, the running ones are not waited for
+	 */
+	public void close() throws IOException {
+		stopping = true;
+		serverSocket.close();
+		jobPool.shutdownNow();
+		inflatePool.shutdownNow();
+		connectionPool.shutdownNow();
+	}
+
+	/**
+	 * Sends one job to a server and waits for its answer
+	 * @param arguments The SlamSplitter arguments in one line, as {@link #arguments(String)} reads them
+	 */
+	public static String submit(InetSocketAddress address, String arguments) throws IOException {
+		try (Socket socket = new Socket(address.getAddress(), address.getPort());
+				Writer out = new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8);
+				BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8))) {
+			out.write(arguments);
+			out.write('\n');
+			out.flush();
+			return in.readLine();
+		}
+	}
+
+	/**
+	 * Splits a job line into arguments at white spaces, except within " or ' quotes
+	 */
+	static String [] arguments(String line) {
+		List<String> arguments = new ArrayList<String>();
+		StringBuilder argument = null;
+		char quote = 0;
+		for (int i = 0; i < line.length(); i++) {
+			char c = line.charAt(i);
+			if(quote != 0) {
+				if(c == quote) {
+					quote = 0;
+				} else {
+					argument.append(c);
+				}
+			} else if(Character.isWhitespace(c)) {
+				if(argument != null) {
+					arguments.add(argument.toString());
+					argument = null;
+				}
+			} else {
+				if(argument == null) {
+					argument = new StringBuilder();
+				}
+				if(c == '"' || c == '\'') {
+					quote = c;
+				} else {
+					argument.append(c);
+				}
+			}
+		}
+		if(quote != 0) {
+			throw new IllegalArgumentException("unbalanced " + quote + " in the job arguments: " + line);
+		}
+		if(argument != null) {
+			arguments.add(argument.toString());
+		}
+		return arguments.toArray(new String[arguments.size()]);
+	}
+
+	static String error(String message) {
+		StringBuilder json = new StringBuilder("{\"status\":\"error\",\"message\":\"");
+		for (int i = 0; i < message.length(); i++) {
+			char c = message.charAt(i);
+			if(c == '"' || c == '\\') {
+				json.append('\\').append(c);
+			} else if(c < 0x20) {
+				json.append(String.format("\\u%04x", (int) c));
+			} else {
+				json.append(c);
+			}
+		}
+		return json.append("\"}").toString();
+	}
+
+}
@@ -0,0 +1,123 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2022 University of Massachusetts Medical School
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package edu.umms.garberlab.slam;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import htsjdk.samtools.QueryInterval;
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SAMSequenceDictionary;
+
+/**
+ * Set of genomic intervals the splitting is restricted to. Overlapping and abutting
+ * intervals are merged so that each alignment is queried from the index only once.
+ *
+ * @author mgarber
+ *
+ */
+public class TargetRegions {
+
+	private final QueryInterval [] intervals;
+
+	public TargetRegions(QueryInterval [] intervals) {
+		this.intervals = QueryInterval.optimizeIntervals(intervals);
+	}
+
+	/**
+	 * Loads a BED file, only the first three columns are used.
+	 * @param bedFile BED file, coordinates are 0-based half open
+	 * @param dictionary Sequence dictionary of the alignment to query
+	 * @return The merged target regions
+	 */
+	public static TargetRegions fromBed(File bedFile, SAMSequenceDictionary dictionary) throws IOException {
+		List<QueryInterval> intervals = new ArrayList<QueryInterval>();
+		int skippedContigs = 0;
+		try (BufferedReader br = Files.newBufferedReader(bedFile.toPath())) {
+			String line = null;
+			while ((line = br.readLine()) != null) {
+				if(line.isEmpty() || line.startsWith("#") || line.startsWith("track") || line.startsWith("browser")) {
+					continue;
+				}
+				String [] fields = line.split("\t");
+				if(fields.length < 3) {
+					throw new IOException("BED line has fewer than three columns: " + line);
+				}
+				int referenceIndex = dictionary.getSequenceIndex(fields[0]);
+				if(referenceIndex < 0) {
+					skippedContigs++;
+					continue;
+				}
+				intervals.add(new QueryInterval(referenceIndex, Integer.parseInt(fields[1]) + 1, Integer.parseInt(fields[2])));
+			}
+		}
+		if(skippedContigs > 0) {
+			System.err.println("Warning: " + skippedContigs + " regions are on contigs absent from the alignment header and were ignored");
+		}
+		return new TargetRegions(intervals.toArray(new QueryInterval[intervals.size()]));
+	}
+
+	public QueryInterval [] getIntervals() {
+		return intervals;
+	}
+
+	public boolean isEmpty() {
+		return intervals.length == 0;
+	}
+
+	/**
+	 * @return true if the alignment overlaps a target, this is the same criterion index queries use
+	 */
+	public boolean overlaps(SAMRecord record) {
+		return !record.getReadUnmappedFlag() && overlaps(record.getReferenceIndex(), record.getAlignmentStart(), record.getAlignmentEnd());
+	}
+
+	public boolean overlaps(int referenceIndex, int start, int end) {
+		int low = 0;
+		int high = intervals.length - 1;
+		int candidate = -1;
+		// Last interval starting at or before the end of the query
+		while (low <= high) {
+			int mid = (low + high) >>> 1;
+			QueryInterval interval = intervals[mid];
+			if(interval.referenceIndex < referenceIndex || (interval.referenceIndex == referenceIndex && interval.start <= end)) {
+				candidate = mid;
+				low = mid + 1;
+			} else {
+				high = mid - 1;
+			}
+		}
+		if(candidate < 0) {
+			return false;
+		}
+		QueryInterval interval = intervals[candidate];
+		return interval.referenceIndex == referenceIndex && (interval.end <= 0 || interval.end >= start);
+	}
+
+}
@@ -0,0 +1,55 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2022 University of Massachusetts Medical School
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package edu.umms.garberlab.slam;
+
+/**
+ * Picks the {@link BaseScanner} implementation on Java 17 and later: the Vector API one if
+ * the jdk.incubator.vector module was added to the JVM, unless -Dslam.vector=false, the
+ * scalar one otherwise.
+ *
+ * @author mgarber
+ *
+ */
+final class BaseScannerFactory {
+
+	static final BaseScanner SCANNER = create();
+
+	private BaseScannerFactory() {
+	}
+
+	private static BaseScanner create() {
+		if(Boolean.parseBoolean(System.getProperty("slam.vector", "true")) && ModuleLayer.boot().findModule("jdk.incubator.vector").isPresent()) {
+			try {
+				// Loaded by name, linking it without the module would fail
+				return (BaseScanner) Class.forName("edu.umms.garberlab.slam.VectorBaseScanner").getDeclaredConstructor().newInstance();
+			} catch (ReflectiveOperationException | LinkageError e) {
+				System.err.println("Warning: could not use the Vector API, scanning bases one at a time: " + e);
+			}
+		}
+		return new BaseScanner();
+	}
+
+}
@@ -0,0 +1,77 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2022 University of Massachusetts Medical School
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package edu.umms.garberlab.slam;
+
+import jdk.incubator.vector.ByteVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * {@link BaseScanner} reverting conversions as many bases at once as the preferred vector
+ * width, the tails one base at a time (masked loads are slower than that on current JDKs),
+ * and writing the reverted bases with masked stores. Marking mismatches and finding the
+ * conversion offsets stay scalar, the vector loops were not faster on short reads.
+ *
+ * @author mgarber
+ *
+ */
+final class VectorBaseScanner extends BaseScanner {
+
+	private static final VectorSpecies<Byte> SPECIES = ByteVector.SPECIES_PREFERRED;
+
+	@Override
+	public int revert(byte [] read, byte [] mismatches, byte referenceBase, byte convertedBase) {
+		int length = Math.min(read.length, mismatches.length);
+		ByteVector reverted = ByteVector.broadcast(SPECIES, referenceBase);
+		int count = 0;
+		int i = 0;
+		for (int bound = SPECIES.loopBound(length); i < bound; i += SPECIES.length()) {
+			VectorMask<Byte> converted = conversions(read, mismatches, referenceBase, convertedBase, i);
+			if(converted.anyTrue()) {
+				reverted.intoArray(read, i, converted);
+				count += converted.trueCount();
+			}
+		}
+		for (; i < length; i++) {
+			if(mismatches[i] == referenceBase && read[i] == convertedBase) {
+				read[i] = referenceBase;
+				count++;
+			}
+		}
+		return count;
+	}
+
+	private static VectorMask<Byte> conversions(byte [] read, byte [] mismatches, byte referenceBase, byte convertedBase, int offset) {
+		return ByteVector.fromArray(SPECIES, mismatches, offset).eq(referenceBase)
+				.and(ByteVector.fromArray(SPECIES, read, offset).eq(convertedBase));
+	}
+
+	@Override
+	public String toString() {
+		return "vector (" + SPECIES.length() + " bases)";
+	}
+
+}
@@ -0,0 +1,72 @@
+package edu.umms.garberlab.slam;
+
+import java.util.Random;
+
+/**
+ * Times each scan on the scalar and the active {@link BaseScanner}, over a set of reads small
+ * enough to stay in cache as the splitter sees them, one at a time. Run it from the test classes:
+ *
+ * <pre>
+ * java --add-modules jdk.incubator.vector -cp build/classes/java/java17:build/classes/java/main:build/classes/java/test:SlamTools.jar \
+ *     edu.umms.garberlab.slam.BaseScannerBenchmark [readLength] [bases]
+ * </pre>
+ */
+class BaseScannerBenchmark {
+
+	public static void main(String[] args) {
+		int readLength = args.length > 0 ? Integer.parseInt(args[0]) : 150;
+		long bases = args.length > 1 ? Long.parseLong(args[1]) : 2000000000L;
+		int reads = 1024;
+		byte [] alphabet = {'A', 'C', 'G', 'T'};
+		Random random = new Random(1);
+		byte [][] referenceBases = new byte[reads][readLength];
+		byte [][] readBases = new byte[reads][];
+		byte [][] mismatches = new byte[reads][readLength];
+		for (int r = 0; r < reads; r++) {
+			for (int i = 0; i < readLength; i++) {
+				referenceBases[r][i] = alphabet[random.nextInt(4)];
+			}
+			readBases[r] = referenceBases[r].clone();
+			for (int i = 0; i < readLength; i++) {
+				if(referenceBases[r][i] == 'T' && random.nextInt(20) == 0) {
+					readBases[r][i] = 'C';
+				}
+			}
+		}
+		BaseScanner [] scanners = BaseScanner.get().getClass() == BaseScanner.class ? new BaseScanner [] {BaseScanner.get()} : new BaseScanner [] {new BaseScanner(), BaseScanner.get()};
+		if(scanners.length == 1) {
+			System.out.println("Only the scalar scanner is available on this JVM");
+		}
+		int [] offsets = new int[readLength];
+		long iterations = bases / readLength;
+		// The first round warms the JIT up
+		for (int round = 0; round < 2; round++) {
+			for (BaseScanner scanner : scanners) {
+				long checksum = 0;
+				long start = System.nanoTime();
+				for (long i = 0; i < iterations; i++) {
+					int r = (int) (i & (reads - 1));
+					checksum += scanner.markMismatches(readBases[r], 0, referenceBases[r], 0, readLength, mismatches[r]);
+				}
+				long marked = System.nanoTime();
+				for (long i = 0; i < iterations; i++) {
+					int r = (int) (i & (reads - 1));
+					checksum += scanner.findConversions(readBases[r], mismatches[r], (byte) 'T', (byte) 'C', offsets);
+				}
+				long found = System.nanoTime();
+				for (long i = 0; i < iterations; i++) {
+					int r = (int) (i & (reads - 1));
+					// Reverts nothing so that every pass scans the same bases
+					checksum += scanner.revert(readBases[r], mismatches[r], (byte) 'T', (byte) 'G');
+				}
+				long reverted = System.nanoTime();
+				if(round > 0) {
+					double perBase = iterations * (double) readLength;
+					System.out.println(String.format("%s: mismatches %.3f, conversions %.3f, reversion %.3f ns/base (checksum %d)", scanner, 
+							(marked - start) / perBase, (found - marked) / perBase, (reverted - found) / perBase, checksum));
+				}
+			}
+		}
+	}
+
+}
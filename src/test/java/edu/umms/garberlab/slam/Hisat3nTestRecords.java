@@ -0,0 +1,92 @@
+package edu.umms.garberlab.slam;
+
+import htsjdk.samtools.CigarElement;
+import htsjdk.samtools.CigarOperator;
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMRecord;
+
+/**
+ * Alignments as hisat-3n writes them, for the tests: NM, Yf and Zf are counted from the
+ * bases, the CIGAR and the MD tag, NH is 1 and AS 0.
+ */
+final class Hisat3nTestRecords {
+
+	private Hisat3nTestRecords() {
+	}
+
+	/**
+	 * @param strand YZ tag, + counts T&gt;C conversions, - A&gt;G
+	 */
+	static SAMRecord alignment(SAMFileHeader header, String name, int contig, int start, String cigar, String bases, String md, char strand) {
+		SAMRecord record = new SAMRecord(header);
+		record.setReadName(name);
+		record.setReferenceIndex(contig);
+		record.setAlignmentStart(start);
+		record.setCigarString(cigar);
+		record.setReadString(bases);
+		record.setBaseQualityString(new String(new char[bases.length()]).replace('\0', 'I'));
+		record.setAttribute("MD", md);
+
+		byte convertible = (byte) ('+' == strand ? 'T' : 'A');
+		byte converted = (byte) ('+' == strand ? 'C' : 'G');
+		byte [] readBases = record.getReadBases();
+		byte [] mismatchBases = Hisat3nSAMRecord.makeMismatchBases(record.getCigar(), md);
+		int nm = 0;
+		int yf = 0;
+		int zf = 0;
+		for (int i = 0; i < readBases.length; i++) {
+			if(mismatchBases[i] == '-') {
+				continue;
+			}
+			nm += mismatchBases[i] != 0 ? 1 : 0;
+			byte reference = mismatchBases[i] != 0 ? mismatchBases[i] : readBases[i];
+			if(reference == convertible) {
+				yf += readBases[i] == converted ? 1 : 0;
+				zf += readBases[i] == convertible ? 1 : 0;
+			}
+		}
+		for (CigarElement element : record.getCigar().getCigarElements()) {
+			if(element.getOperator() == CigarOperator.I || element.getOperator() == CigarOperator.D) {
+				nm += element.getLength();
+			}
+		}
+		record.setAttribute("NH", 1);
+		record.setAttribute("NM", nm);
+		record.setAttribute("AS", 0);
+		record.setAttribute("YZ", strand);
+		record.setAttribute("Yf", yf);
+		record.setAttribute("Zf", zf);
+		return record;
+	}
+
+	/**
+	 * Ungapped alignment
+	 */
+	static SAMRecord alignment(SAMFileHeader header, String name, int contig, int start, String bases, String md, char strand) {
+		return alignment(header, name, contig, start, bases.length() + "M", bases, md, strand);
+	}
+
+	/**
+	 * Alignment of a read of A matching the reference, without conversions
+	 */
+	static SAMRecord matching(SAMFileHeader header, String name, int contig, int start, String cigar, char strand) {
+		SAMRecord record = new SAMRecord(header);
+		record.setCigarString(cigar);
+		int length = record.getCigar().getReadLength();
+		return alignment(header, name, contig, start, cigar, new String(new char[length]).replace('\0', 'A'), String.valueOf(length), strand);
+	}
+
+	/**
+	 * Makes the record one of the mates of a pair
+	 * @return The record
+	 */
+	static SAMRecord paired(SAMRecord record, boolean first, int mateContig, int mateStart) {
+		record.setReadPairedFlag(true);
+		record.setFirstOfPairFlag(first);
+		record.setSecondOfPairFlag(!first);
+		record.setMateReferenceIndex(mateContig);
+		record.setMateAlignmentStart(mateStart);
+		return record;
+	}
+
+}
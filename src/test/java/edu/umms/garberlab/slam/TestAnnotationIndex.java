@@ -0,0 +1,94 @@
+package edu.umms.garberlab.slam;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMSequenceRecord;
+import htsjdk.samtools.SamReader;
+
+class TestAnnotationIndex {
+
+	@Test
+	void testQueriesMatchBruteForce() throws IOException {
+		Random random = new Random(5);
+		List<int []> genes = new ArrayList<int []>();
+		List<int []> exons = new ArrayList<int []>();
+		File gtf = File.createTempFile("genes", ".gtf");
+		gtf.deleteOnExit();
+		try (PrintWriter pw = new PrintWriter(Files.newBufferedWriter(gtf.toPath()))) {
+			for (int g = 0; g < 300; g++) {
+				int start = 1 + random.nextInt(100000);
+				int end = start + random.nextInt(g % 10 == 0 ? 20000 : 2000);
+				genes.add(new int [] {start, end});
+				pw.println("chr1\ttest\tgene\t" + start + "\t" + end + "\t.\t+\t.\tgene_id \"g" + g + "\";");
+				for (int exonStart = start; exonStart < end; exonStart += 300 + random.nextInt(500)) {
+					int exonEnd = Math.min(end, exonStart + random.nextInt(200));
+					exons.add(new int [] {exonStart, exonEnd});
+					pw.println("chr1\ttest\texon\t" + exonStart + "\t" + exonEnd + "\t.\t+\t.\tgene_id \"g" + g + "\"; transcript_id \"t" + g + "\";");
+				}
+			}
+		}
+		File indexFile = File.createTempFile("genes", AnnotationIndex.EXTENSION);
+		indexFile.deleteOnExit();
+		AnnotationIndex.compile(gtf, indexFile);
+		AnnotationIndex index = new AnnotationIndex(indexFile);
+
+		for (int q = 0; q < 2000; q++) {
+			int start = 1 + random.nextInt(125000);
+			int end = start + random.nextInt(400);
+			boolean overlaps = false;
+			for (int [] gene : genes) {
+				overlaps = overlaps || (gene[0] <= end && gene[1] >= start);
+			}
+			int exonic = 0;
+			for (int position = start; position <= end; position++) {
+				for (int [] exon : exons) {
+					if(exon[0] <= position && exon[1] >= position) {
+						exonic++;
+						break;
+					}
+				}
+			}
+			assertEquals(overlaps, index.overlapsGene("chr1", start, end), "Gene overlap of " + start + "-" + end);
+			assertEquals(exonic, index.exonicBases("chr1", start, end), "Exonic bases of " + start + "-" + end);
+		}
+		assertEquals(false, index.overlapsGene("chr2", 1, 1000000));
+	}
+
+	@Test
+	void testClassify() throws IOException {
+		File gtf = File.createTempFile("genes", ".gtf");
+		gtf.deleteOnExit();
+		try (PrintWriter pw = new PrintWriter(Files.newBufferedWriter(gtf.toPath()))) {
+			pw.println("chr1\ttest\texon\t1000\t1099\t.\t+\t.\tgene_id \"g1\"; transcript_id \"t1\";");
+			pw.println("chr1\ttest\texon\t2000\t2099\t.\t+\t.\tgene_id \"g1\"; transcript_id \"t1\";");
+		}
+		File indexFile = File.createTempFile("genes", AnnotationIndex.EXTENSION);
+		indexFile.deleteOnExit();
+		AnnotationIndex.compile(gtf, indexFile);
+		AnnotationIndex index = new AnnotationIndex(indexFile);
+
+		SAMFileHeader header = new SAMFileHeader();
+		header.addSequence(new SAMSequenceRecord("chr1", 10000));
+		assertEquals(AnnotationIndex.Feature.EXONIC, index.classify(fragment(header, 1010, "50M")));
+		assertEquals(AnnotationIndex.Feature.EXONIC, index.classify(fragment(header, 1070, "40M900N10M")));
+		assertEquals(AnnotationIndex.Feature.MIXED, index.classify(fragment(header, 1080, "50M")));
+		assertEquals(AnnotationIndex.Feature.INTRONIC, index.classify(fragment(header, 1500, "50M")));
+		assertEquals(AnnotationIndex.Feature.INTERGENIC, index.classify(fragment(header, 5000, "50M")));
+	}
+
+	private static Hisat3nAlignedFragment fragment(SAMFileHeader header, int start, String cigar) {
+		return new Hisat3nAlignedFragment(new Hisat3nSAMRecord(Hisat3nTestRecords.matching(header, "read", 0, start, cigar, '+')), (SamReader) null);
+	}
+
+}
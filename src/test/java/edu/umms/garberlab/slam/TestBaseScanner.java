@@ -0,0 +1,61 @@
+package edu.umms.garberlab.slam;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+class TestBaseScanner {
+
+	@Test
+	void testOnlyLettersAreUpperCased() {
+		byte [] reference = "ACGTN=.*".getBytes(StandardCharsets.US_ASCII);
+		byte [] mismatches = new byte[reference.length];
+		assertEquals(0, BaseScanner.get().markMismatches("acgtn=.*".getBytes(StandardCharsets.US_ASCII), 0, reference, 0, reference.length, mismatches));
+		// Masking out the case bit would make these match = and .
+		assertEquals(2, BaseScanner.get().markMismatches("acgtn\035\016*".getBytes(StandardCharsets.US_ASCII), 0, reference, 0, reference.length, mismatches));
+		assertArrayEquals(new byte[] {0, 0, 0, 0, 0, '=', '.', 0}, mismatches);
+	}
+
+	@Test
+	void testSameAsScalar() {
+		BaseScanner scalar = new BaseScanner();
+		BaseScanner scanner = BaseScanner.get();
+		byte [] alphabet = {'A', 'C', 'G', 'T', 'N', 'a', 'c', 'g', 't'};
+		Random random = new Random(3);
+		for (int length : new int [] {0, 1, 15, 31, 64, 150, 301}) {
+			byte [] reference = new byte[length + 7];
+			byte [] read = new byte[length + 5];
+			for (int i = 0; i < reference.length; i++) {
+				reference[i] = alphabet[random.nextInt(5)];
+			}
+			for (int i = 0; i < read.length; i++) {
+				read[i] = alphabet[random.nextInt(alphabet.length)];
+			}
+
+			byte [] expectedMismatches = new byte[read.length];
+			byte [] mismatches = new byte[read.length];
+			assertEquals(scalar.markMismatches(read, 5 % (length + 1), reference, 7 % (length + 1), length - 5 % (length + 1), expectedMismatches),
+					scanner.markMismatches(read, 5 % (length + 1), reference, 7 % (length + 1), length - 5 % (length + 1), mismatches), scanner + " mismatch count, length " + length);
+			assertArrayEquals(expectedMismatches, mismatches, scanner + " mismatches, length " + length);
+
+			int [] expectedOffsets = new int[read.length];
+			int [] offsets = new int[read.length];
+			int found = scalar.findConversions(read, mismatches, (byte) 'T', (byte) 'C', expectedOffsets);
+			assertEquals(found, scanner.findConversions(read, mismatches, (byte) 'T', (byte) 'C', offsets));
+			assertArrayEquals(expectedOffsets, offsets, scanner + " conversion offsets, length " + length);
+			if(found > 1) {
+				// Stops when the offsets are full
+				assertEquals(found - 1, scanner.findConversions(read, mismatches, (byte) 'T', (byte) 'C', new int[found - 1]));
+			}
+
+			byte [] expectedRead = read.clone();
+			assertEquals(scalar.revert(expectedRead, mismatches, (byte) 'T', (byte) 'C'), scanner.revert(read, mismatches, (byte) 'T', (byte) 'C'));
+			assertArrayEquals(expectedRead, read, scanner + " reverted read, length " + length);
+		}
+	}
+
+}
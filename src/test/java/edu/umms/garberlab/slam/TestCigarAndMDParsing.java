@@ -2,6 +2,10 @@ package edu.umms.garberlab.slam;
 
 import static org.junit.jupiter.api.Assertions.*;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.file.Files;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
@@ -13,6 +17,9 @@ import org.junit.jupiter.api.Test;
 import htsjdk.samtools.Cigar;
 import htsjdk.samtools.CigarElement;
 import htsjdk.samtools.CigarOperator;
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SAMSequenceRecord;
 
 class TestCigarAndMDParsing {
 	
@@ -50,6 +57,69 @@ class TestCigarAndMDParsing {
 		
 	}
 	
+	@Test
+	void testMismatchesFromReference() throws IOException {
+		String read = "GTTCCCTTAGCAAGGCTGAAAATTTCAGTCTCTGGTATTTGGAATTTAGGCTGCAGTCCTTGTTTTTGGATGGATCACTG";
+		String cigarString = "22M1I27M1I29M";
+		String mdTag       = "20G25G1A29";
+		String reference   = "GTTCCCTTAGCAAGGCTGAAGA-TTCAGTCTCTGGTATTTGGAATTTGGA-TGCAGTCCTTGTTTTTGGATGGATCACTG";
+		
+		// The alignment starts at 11 of a contig wrapped at 30 bases per line
+		String contig = "acgtacgtac" + reference.replace("-", "");
+		int lineBases = 30;
+		File fasta = File.createTempFile("reference", ".fa");
+		fasta.deleteOnExit();
+		File fai = new File(fasta.getPath() + ".fai");
+		fai.deleteOnExit();
+		try (PrintWriter pw = new PrintWriter(Files.newBufferedWriter(fasta.toPath()))) {
+			pw.println(">chrTest");
+			for (int i = 0; i < contig.length(); i += lineBases) {
+				pw.println(contig.substring(i, Math.min(contig.length(), i + lineBases)));
+			}
+		}
+		try (PrintWriter pw = new PrintWriter(Files.newBufferedWriter(fai.toPath()))) {
+			pw.println("chrTest\t" + contig.length() + "\t" + ">chrTest\n".length() + "\t" + lineBases + "\t" + (lineBases + 1));
+		}
+		
+		Cigar cigar = buildCigarFromString(cigarString);
+		IndexedFastaReference fastaReference = new IndexedFastaReference(fasta);
+		IndexedFastaReference.Window window = fastaReference.window("chrTest", 11, 11 + cigar.getReferenceLength() - 1);
+		
+		Map<Integer, Character> fromReference = Hisat3nSAMRecord.makeSequenceToReferenceMap(cigar, read.getBytes(), window, 11);
+		assertEquals(Hisat3nSAMRecord.makeSequenceToReferenceMap(cigar, mdTag), fromReference, "Mismatches from the reference differ from the MD ones");
+		assertEquals('N', (char) window.base(contig.length() + 1), "Positions past the end of the contig should be N");
+	}
+	
+	@Test
+	void testConversionTags() {
+		// Reference ACTGTTTA from 100, T>C at 102 and 105 and an insertion in between
+		SAMFileHeader header = new SAMFileHeader();
+		header.addSequence(new SAMSequenceRecord("chrTest", 1000));
+		SAMRecord record = new SAMRecord(header);
+		record.setReadName("read");
+		record.setReferenceName("chrTest");
+		record.setAlignmentStart(100);
+		record.setCigarString("3M1I5M");
+		record.setReadString("ACCGGTCTA");
+		record.setBaseQualityString("IIIIIIIII");
+		record.setAttribute("MD", "2T2T2");
+		record.setAttribute("NH", 1);
+		record.setAttribute("NM", 3);
+		record.setAttribute("AS", 0);
+		record.setAttribute("YZ", '+');
+		record.setAttribute("Yf", 2);
+		record.setAttribute("Zf", 2);
+		// Gap opens, written by hisat2
+		record.setAttribute("XO", 1);
+		
+		Hisat3nSAMRecord hisatRecord = new Hisat3nSAMRecord(record);
+		assertArrayEquals(new int[] {2, 6}, hisatRecord.getConversionReadOffsets());
+		hisatRecord.tagConversions();
+		assertArrayEquals(new int[] {102, 105}, (int []) record.getAttribute("xp"));
+		assertArrayEquals(new short[] {2, 6}, (short []) record.getAttribute("xo"));
+		assertEquals(1, record.getIntegerAttribute("XO"), "The hisat2 tag was overwritten");
+	}
+	
 	@Test
 	void testMidRefInsertionInMD() {
 
@@ -0,0 +1,49 @@
+package edu.umms.garberlab.slam;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+class TestConversionClassifier {
+
+	@Test
+	void testDefaultClassifier() {
+		assertTrue(ConversionClassifier.DEFAULT.isConverted(1, 10, 1, 0, 0, false));
+		assertFalse(ConversionClassifier.DEFAULT.isConverted(0, 10, 1, 0, 0, false));
+		assertFalse(ConversionClassifier.DEFAULT.needsAlignmentScores(), "The default classifier only needs Yf");
+	}
+
+	@Test
+	void testRateExpression() {
+		ConversionClassifier classifier = ExpressionConversionClassifier.compile("Yf >= 2 && Yf/(Yf+Zf) >= 0.05 && NH == 1");
+
+		assertTrue(classifier.isConverted(2, 20, 1, 0, 0, false), "2 of 22 is above 5%");
+		assertFalse(classifier.isConverted(2, 60, 1, 0, 0, false), "2 of 62 is below 5%");
+		assertFalse(classifier.isConverted(1, 0, 1, 0, 0, false), "A single conversion is not enough");
+		assertFalse(classifier.isConverted(3, 10, 2, 0, 0, false), "Multimappers must not be converted");
+		assertFalse(classifier.isConverted(0, 0, 1, 0, 0, false), "0/0 must not be converted");
+		assertFalse(classifier.needsAlignmentScores());
+	}
+
+	@Test
+	void testPrecedenceAndNegation() {
+		ConversionClassifier classifier = ExpressionConversionClassifier.compile("!spliced && (AS > -10 || NM - Yf <= 1) && 2 * 3 == 6");
+
+		assertTrue(classifier.isConverted(1, 0, 1, -5, 4, false));
+		assertTrue(classifier.isConverted(3, 0, 1, -30, 4, false));
+		assertFalse(classifier.isConverted(1, 0, 1, -30, 4, false));
+		assertFalse(classifier.isConverted(3, 0, 1, -5, 4, true));
+		assertTrue(classifier.needsAlignmentScores());
+	}
+
+	@Test
+	void testInvalidExpressions() {
+		assertThrows(IllegalArgumentException.class, () -> ExpressionConversionClassifier.compile("Yf > > 1"));
+		assertThrows(IllegalArgumentException.class, () -> ExpressionConversionClassifier.compile("Yf > 1 &&"));
+		assertThrows(IllegalArgumentException.class, () -> ExpressionConversionClassifier.compile("XX > 1"));
+		assertThrows(IllegalArgumentException.class, () -> ExpressionConversionClassifier.compile("(Yf > 1"));
+	}
+
+}
@@ -0,0 +1,57 @@
+package edu.umms.garberlab.slam;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.junit.jupiter.api.Test;
+
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SAMSequenceRecord;
+
+class TestConversionQC {
+
+	@Test
+	void testSpectrumMbiasAndMerge() throws IOException {
+		SAMFileHeader header = new SAMFileHeader();
+		header.addSequence(new SAMSequenceRecord("chr1", 1000000));
+
+		ConversionQC qc = new ConversionQC();
+		// Reference TTGTTCGTAC, T>C at the fifth base
+		qc.add(record(header, "TTGTCCGTAC", "4T5", false));
+		// Same read on the reverse strand: the fifth aligned base is the sixth cycle
+		qc.add(record(header, "TTGTCCGTAC", "4T5", true));
+		// Reference TTGTTCGTAC, G>A at the third base, no conversion
+		qc.add(record(header, "TTATTCGTAC", "2G7", false));
+
+		assertEquals(2, qc.getBaseCount('+', 'T', 'C'));
+		assertEquals(1, qc.getBaseCount('+', 'G', 'A'));
+		assertEquals(4 + 4 + 5, qc.getBaseCount('+', 'T', 'T'));
+		assertEquals(0, qc.getBaseCount('-', 'A', 'G'));
+		assertEquals(0.5, qc.getConversionRate(1, 4), 1e-9);
+		assertEquals(1, qc.getConversionRate(1, 5), 1e-9);
+		assertEquals(0, qc.getConversionRate(1, 0), 1e-9);
+		assertTrue(Double.isNaN(qc.getConversionRate(2, 0)));
+		assertEquals(1, qc.getReadsWithConversions(0));
+		assertEquals(2, qc.getReadsWithConversions(1));
+
+		File report = File.createTempFile("report", ConversionQC.EXTENSION);
+		report.deleteOnExit();
+		qc.write(report);
+		ConversionQC merged = ConversionQC.read(report);
+		merged.merge(qc);
+		assertEquals(4, merged.getBaseCount('+', 'T', 'C'));
+		assertEquals(0.5, merged.getConversionRate(1, 4), 1e-9);
+		assertEquals(4, merged.getReadsWithConversions(1));
+	}
+
+	private static Hisat3nSAMRecord record(SAMFileHeader header, String bases, String md, boolean reverse) {
+		SAMRecord record = Hisat3nTestRecords.alignment(header, "read", 0, 100, bases, md, '+');
+		record.setReadNegativeStrandFlag(reverse);
+		return new Hisat3nSAMRecord(record);
+	}
+
+}
@@ -0,0 +1,158 @@
+package edu.umms.garberlab.slam;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMFileHeader.SortOrder;
+import htsjdk.samtools.SAMFileWriter;
+import htsjdk.samtools.SAMFileWriterFactory;
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SAMSequenceRecord;
+import htsjdk.samtools.SamReader;
+import htsjdk.samtools.SamReaderFactory;
+
+class TestConversionSidecarResplitter {
+
+	private static final int READ_LENGTH = 20;
+
+	@Test
+	void testResplitMatchesDirectSplit() throws Exception {
+		for (boolean pairedEnd : new boolean[] {false, true}) {
+			File dir = Files.createTempDirectory("sidecar").toFile();
+			dir.deleteOnExit();
+			File bam = writeBam(dir, pairedEnd);
+			String paired = pairedEnd ? " -p" : "";
+
+			SlamSplitter.split(SplitterServer.arguments("-inputBam '" + bam.getAbsolutePath() + "' -outDir '" + dir.getAbsolutePath() +
+					"' -outPrefix first -sidecar -s" + paired), null);
+			File sidecar = new File(dir, "first" + ConversionSidecar.EXTENSION);
+			sidecar.deleteOnExit();
+			SplitterMetrics resplit = SlamSplitter.split(SplitterServer.arguments("-inputBam '" + bam.getAbsolutePath() + "' -outDir '" + dir.getAbsolutePath() +
+					"' -outPrefix resplit -fromSidecar '" + sidecar.getAbsolutePath() + "' -classifier 'Yf >= 2' -s" + paired), null);
+			SplitterMetrics direct = SlamSplitter.split(SplitterServer.arguments("-inputBam '" + bam.getAbsolutePath() + "' -outDir '" + dir.getAbsolutePath() +
+					"' -outPrefix direct -classifier 'Yf >= 2' -s" + paired), null);
+
+			assertEquals(direct.getFragments(), resplit.getFragments());
+			assertEquals(direct.getConvertedFragments(), resplit.getConvertedFragments());
+			for (boolean converted : new boolean[] {true, false}) {
+				List<String> expected = read(Hisat3nSplitterWriter.outputFile(dir, "direct", converted, SplitterOutputFormat.SAM));
+				assertFalse(expected.isEmpty());
+				assertEquals(expected, read(Hisat3nSplitterWriter.outputFile(dir, "resplit", converted, SplitterOutputFormat.SAM)));
+			}
+			// The first split used another classifier
+			assertNotEquals(read(Hisat3nSplitterWriter.outputFile(dir, "first", true, SplitterOutputFormat.SAM)),
+					read(Hisat3nSplitterWriter.outputFile(dir, "direct", true, SplitterOutputFormat.SAM)));
+		}
+	}
+
+	@Test
+	void testFragmentsWithoutOffsetAreSkipped() throws IOException {
+		File dir = Files.createTempDirectory("sidecar").toFile();
+		dir.deleteOnExit();
+		File bam = writeBam(dir, false);
+		SAMFileHeader header = header();
+
+		// Records that were not read from a file have no virtual offset
+		File sidecarFile = new File(dir, "nooffsets" + ConversionSidecar.EXTENSION);
+		sidecarFile.deleteOnExit();
+		try (ConversionSidecarWriter sidecarWriter = new ConversionSidecarWriter(sidecarFile)) {
+			for (int i = 0; i < 3; i++) {
+				sidecarWriter.add(new Hisat3nAlignedFragment(new Hisat3nSAMRecord(read(header, "read" + i, 100 + i, i)), (SamReader) null));
+			}
+		}
+
+		Hisat3nSplitterWriter writer = new Hisat3nQuerySortedSlamSplitterWritter(dir, "skipped", header, SplitterOutputFormat.SAM, null, null, null);
+		try (ConversionSidecarResplitter resplitter = new ConversionSidecarResplitter(bam, header, writer);
+				ConversionSidecar sidecar = new ConversionSidecar(sidecarFile)) {
+			assertEquals(0, resplitter.resplit(sidecar));
+			assertEquals(3, resplitter.getSkippedFragments());
+		}
+		assertEquals(0, writer.getMetrics().getFragments());
+		assertEquals(Collections.emptyList(), read(Hisat3nSplitterWriter.outputFile(dir, "skipped", true, SplitterOutputFormat.SAM)));
+		assertEquals(Collections.emptyList(), read(Hisat3nSplitterWriter.outputFile(dir, "skipped", false, SplitterOutputFormat.SAM)));
+	}
+
+	private static SAMFileHeader header() {
+		SAMFileHeader header = new SAMFileHeader();
+		header.addSequence(new SAMSequenceRecord("chr1", 100000));
+		header.setSortOrder(SortOrder.coordinate);
+		return header;
+	}
+
+	/**
+	 * Coordinate sorted and indexed, with 0 to 3 conversions per read
+	 */
+	private static File writeBam(File dir, boolean pairedEnd) {
+		SAMFileHeader header = header();
+		File bam = new File(dir, pairedEnd ? "paired.bam" : "single.bam");
+		bam.deleteOnExit();
+		new File(dir, bam.getName().replace(".bam", ".bai")).deleteOnExit();
+		try (SAMFileWriter writer = new SAMFileWriterFactory().setCreateIndex(true).makeBAMWriter(header, false, bam)) {
+			for (int i = 0; i < 40; i++) {
+				int start = 100 + 10 * i;
+				SAMRecord first = read(header, "read" + i, start, i % 4);
+				if(pairedEnd) {
+					int mateStart = start + 50;
+					SAMRecord second = read(header, "read" + i, mateStart, (i / 4) % 2);
+					Hisat3nTestRecords.paired(first, true, 0, mateStart).setProperPairFlag(true);
+					first.setMateNegativeStrandFlag(true);
+					first.setInferredInsertSize(mateStart + READ_LENGTH - start);
+					Hisat3nTestRecords.paired(second, false, 0, start).setProperPairFlag(true);
+					second.setReadNegativeStrandFlag(true);
+					second.setInferredInsertSize(start - mateStart - READ_LENGTH);
+					writer.addAlignment(second);
+				}
+				writer.addAlignment(first);
+			}
+		}
+		return bam;
+	}
+
+	/**
+	 * A read of the all T reference with <code>conversions</code> T&gt;C
+	 */
+	private static SAMRecord read(SAMFileHeader header, String name, int start, int conversions) {
+		StringBuilder bases = new StringBuilder();
+		StringBuilder md = new StringBuilder();
+		int matches = 0;
+		for (int i = 0; i < READ_LENGTH; i++) {
+			if(i % 3 == 1 && i / 3 < conversions) {
+				bases.append('C');
+				md.append(matches).append('T');
+				matches = 0;
+			} else {
+				bases.append('T');
+				matches++;
+			}
+		}
+		md.append(matches);
+		return Hisat3nTestRecords.alignment(header, name, 0, start, bases.toString(), md.toString(), '+');
+	}
+
+	/**
+	 * @return The records of the SAM file, sorted
+	 */
+	private static List<String> read(File sam) throws IOException {
+		sam.deleteOnExit();
+		List<String> records = new ArrayList<String>();
+		try (SamReader reader = SamReaderFactory.makeDefault().open(sam)) {
+			for (SAMRecord record : reader) {
+				records.add(record.getSAMString());
+			}
+		}
+		Collections.sort(records);
+		return records;
+	}
+
+}
@@ -0,0 +1,91 @@
+package edu.umms.garberlab.slam;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SAMSequenceRecord;
+import htsjdk.samtools.SamReader;
+
+class TestConversionSiteIndex {
+
+	@Test
+	void testCountsAndRegionQueries() throws IOException {
+		SAMFileHeader header = new SAMFileHeader();
+		header.addSequence(new SAMSequenceRecord("chr1", 1000000));
+		header.addSequence(new SAMSequenceRecord("chr2", 1000000));
+
+		File indexFile = File.createTempFile("sites", ConversionSiteIndex.EXTENSION);
+		indexFile.deleteOnExit();
+		ConversionSiteIndexWriter writer = new ConversionSiteIndexWriter(indexFile, header.getSequenceDictionary());
+		// Reference TTGTTCGTAC, T>C at the fifth base
+		writer.add(new Hisat3nSAMRecord(Hisat3nTestRecords.alignment(header, "read1", 0, 100, "TTGTCCGTAC", "4T5", '+')));
+		writer.add(new Hisat3nSAMRecord(Hisat3nTestRecords.alignment(header, "read2", 0, 100, "TTGTCCGTAC", "4T5", '+')));
+		// Reference ACGTACGAAC, A>G at the ninth base, in another container
+		writer.add(new Hisat3nSAMRecord(Hisat3nTestRecords.alignment(header, "read3", 0, 70000, "ACGTACGAGC", "8A1", '-')));
+		writer.add(new Hisat3nSAMRecord(Hisat3nTestRecords.alignment(header, "read4", 1, 100, "TTGTCCGTAC", "4T5", '+')));
+		writer.close();
+
+		try (ConversionSiteIndex index = new ConversionSiteIndex(indexFile)) {
+			List<ConversionSiteIndex.Site> sites = index.query("chr1", 1, 1000000);
+			assertEquals(2, sites.size());
+			assertEquals(104, sites.get(0).getPosition());
+			assertEquals('+', sites.get(0).getStrand());
+			assertEquals(2, sites.get(0).getCount());
+			assertEquals(70008, sites.get(1).getPosition());
+			assertEquals('-', sites.get(1).getStrand());
+
+			assertEquals(1, index.query("chr1", 60000, 70008).size());
+			assertTrue(index.query("chr1", 105, 70007).isEmpty());
+			assertEquals(1, index.query("chr2", 104, 104).size());
+			assertTrue(index.query("chrUn", 1, 1000).isEmpty());
+		}
+	}
+
+	@Test
+	void testOnlyConvertedFragmentsAreCountedOnce() throws IOException {
+		SAMFileHeader header = new SAMFileHeader();
+		header.addSequence(new SAMSequenceRecord("chr1", 1000000));
+		File dir = Files.createTempDirectory("sites").toFile();
+		dir.deleteOnExit();
+		File indexFile = new File(dir, "sites" + ConversionSiteIndex.EXTENSION);
+		indexFile.deleteOnExit();
+
+		Hisat3nSplitterWriter writer = new Hisat3nQuerySortedSlamSplitterWritter(dir, "sites", header, SplitterOutputFormat.SAM, null, null, null);
+		writer.setPairedEnd(true);
+		writer.setClassifier(ConversionClassifier.fromSpecification("Yf >= 2"));
+		writer.setSiteIndexWriter(new ConversionSiteIndexWriter(indexFile, header.getSequenceDictionary()));
+		// Reference TTGTTCGTACTTTT, both mates are converted at 104 and the second one at 110 too
+		SAMRecord first = Hisat3nTestRecords.alignment(header, "read1", 0, 100, "TTGTCCGTAC", "4T5", '+');
+		SAMRecord second = Hisat3nTestRecords.alignment(header, "read1", 0, 102, "GTCCGTACCT", "2T5T1", '+');
+		Hisat3nTestRecords.paired(first, true, 0, 102);
+		Hisat3nTestRecords.paired(second, false, 0, 100).setReadNegativeStrandFlag(true);
+		writer.write(new Hisat3nAlignedFragment(first, second));
+		// One conversion, the fragment goes to the unconverted output
+		writer.write(new Hisat3nAlignedFragment(new Hisat3nSAMRecord(
+				Hisat3nTestRecords.alignment(header, "read2", 0, 200, "TTGTCCGTAC", "4T5", '+')), (SamReader) null));
+		writer.close();
+		assertEquals(1, writer.getMetrics().getConvertedFragments());
+		for (boolean converted : new boolean[] {true, false}) {
+			Hisat3nSplitterWriter.outputFile(dir, "sites", converted, SplitterOutputFormat.SAM).deleteOnExit();
+		}
+
+		try (ConversionSiteIndex index = new ConversionSiteIndex(indexFile)) {
+			List<ConversionSiteIndex.Site> sites = index.query("chr1", 1, 1000000);
+			assertEquals(2, sites.size());
+			assertEquals(104, sites.get(0).getPosition());
+			assertEquals(1, sites.get(0).getCount());
+			assertEquals(110, sites.get(1).getPosition());
+			assertEquals(1, sites.get(1).getCount());
+		}
+	}
+
+}
@@ -0,0 +1,68 @@
+package edu.umms.garberlab.slam;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SAMSequenceDictionary;
+import htsjdk.samtools.SAMSequenceRecord;
+import htsjdk.samtools.SamReader;
+
+class TestConversionSnpMask {
+
+	@Test
+	void testSnpsAreFoundAndMasked() throws IOException {
+		SAMFileHeader header = new SAMFileHeader();
+		header.setSequenceDictionary(new SAMSequenceDictionary(Arrays.asList(new SAMSequenceRecord("chr1", 1000))));
+		// The reference is all T at 101-110, every read converts 105 and one of them 107 too
+		List<SAMRecord> records = new ArrayList<SAMRecord>();
+		for (int i = 0; i < 10; i++) {
+			records.add(i == 0 ? Hisat3nTestRecords.alignment(header, "read" + i, 0, 101, "TTTTCTCTTT", "4T1T3", '+') : Hisat3nTestRecords.alignment(header, "read" + i, 0, 101, "TTTTCTTTTT", "4T5", '+'));
+		}
+		// T>C is not a conversion of - strand reads
+		records.add(Hisat3nTestRecords.alignment(header, "minus", 0, 101, "TTTTCTTTTT", "4T5", '-'));
+
+		ConversionSnpMask mask = ConversionSnpMask.discover(records, header.getSequenceDictionary(), 10, 0.8);
+		assertEquals(1, mask.size());
+		assertTrue(mask.contains(0, '+', 105));
+		assertFalse(mask.contains(0, '+', 107));
+		assertFalse(mask.contains(0, '-', 105));
+
+		File bed = File.createTempFile("test", ConversionSnpMask.EXTENSION);
+		bed.deleteOnExit();
+		mask.write(bed);
+		assertEquals(Arrays.asList("chr1\t104\t105\tT>C\t0\t+"), Files.readAllLines(bed.toPath()));
+		mask = ConversionSnpMask.fromBed(bed, header.getSequenceDictionary());
+		assertTrue(mask.contains(0, '+', 105));
+
+		// The SNP conversion is no longer counted, the other one is
+		Hisat3nAlignedFragment fragment = new Hisat3nAlignedFragment(new Hisat3nSAMRecord(Hisat3nTestRecords.alignment(header, "sample", 0, 101, "TTTTCTCTTT", "4T1T3", '+')), (SamReader) null);
+		fragment.maskSnps(mask);
+		assertEquals(1, fragment.getConvertedBases());
+		assertEquals(8, fragment.getUnconvertedBases());
+		assertEquals(1, fragment.getPair1().getSAMRecord().getIntegerAttribute("Yf"));
+		// Masking is done once per fragment
+		fragment.maskSnps(mask);
+		assertEquals(1, fragment.getConvertedBases());
+		fragment.getPair1().revertConvertedBases();
+		assertEquals("TTTTCTTTTT", fragment.getPair1().getSAMRecord().getReadString());
+
+		// An unconverted read at the SNP loses the T from Zf
+		fragment = new Hisat3nAlignedFragment(new Hisat3nSAMRecord(Hisat3nTestRecords.alignment(header, "unconverted", 0, 101, "TTTTTTTTTT", "10", '+')), (SamReader) null);
+		fragment.maskSnps(mask);
+		assertEquals(0, fragment.getConvertedBases());
+		assertEquals(9, fragment.getUnconvertedBases());
+	}
+
+}
@@ -0,0 +1,76 @@
+package edu.umms.garberlab.slam;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMFileHeader.SortOrder;
+import htsjdk.samtools.SAMFileWriter;
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SAMSequenceRecord;
+import htsjdk.samtools.util.ProgressLoggerInterface;
+
+class TestCoordinateSortingWriter {
+
+	@Test
+	void testSortsAcrossSpilledRuns() throws Exception {
+		SAMFileHeader header = new SAMFileHeader();
+		header.addSequence(new SAMSequenceRecord("chr1", 1000000));
+		header.addSequence(new SAMSequenceRecord("chr2", 1000000));
+		header.setSortOrder(SortOrder.coordinate);
+
+		List<SAMRecord> written = new ArrayList<SAMRecord>();
+		SAMFileWriter collector = new SAMFileWriter() {
+			public void addAlignment(SAMRecord alignment) { written.add(alignment); }
+			public SAMFileHeader getFileHeader() { return header; }
+			public void setProgressLogger(ProgressLoggerInterface progress) { }
+			public void close() { }
+		};
+
+		File tmpDir = Files.createTempDirectory("sortruns").toFile();
+		tmpDir.deleteOnExit();
+		// Small enough to spill several runs
+		CoordinateSortingWriter writer = new CoordinateSortingWriter(collector, 20000, tmpDir);
+		Random random = new Random(42);
+		int records = 2000;
+		for (int i = 0; i < records; i++) {
+			SAMRecord record = new SAMRecord(header);
+			record.setReadName("read" + i);
+			if(i % 100 == 0) {
+				record.setReadUnmappedFlag(true);
+			} else {
+				record.setReferenceIndex(random.nextInt(2));
+				record.setAlignmentStart(1 + random.nextInt(5000));
+				record.setCigarString("10M");
+				record.setReadNegativeStrandFlag(random.nextBoolean());
+			}
+			record.setReadString("ACGTACGTAC");
+			record.setBaseQualityString("IIIIIIIIII");
+			writer.addAlignment(record);
+		}
+		writer.close();
+
+		assertEquals(records, written.size());
+		for (int i = 1; i < written.size(); i++) {
+			long previous = CoordinateSortingWriter.sortKey(written.get(i - 1));
+			long current = CoordinateSortingWriter.sortKey(written.get(i));
+			assertTrue(previous <= current, "Records " + (i - 1) + " and " + i + " are out of order");
+			if(previous == current) {
+				// Ties keep the order they were written in
+				int previousIndex = Integer.parseInt(written.get(i - 1).getReadName().substring(4));
+				int currentIndex = Integer.parseInt(written.get(i).getReadName().substring(4));
+				assertTrue(previousIndex < currentIndex, "Tie at record " + i + " is not stable");
+			}
+		}
+		assertEquals(0, tmpDir.listFiles().length, "Runs were not deleted");
+	}
+
+}
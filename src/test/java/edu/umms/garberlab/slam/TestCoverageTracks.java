@@ -0,0 +1,242 @@
+package edu.umms.garberlab.slam;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import org.junit.jupiter.api.Test;
+
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SAMSequenceDictionary;
+import htsjdk.samtools.SAMSequenceRecord;
+
+class TestCoverageTracks {
+
+	@Test
+	void testStrandedCoverage() throws IOException {
+		File outDir = Files.createTempDirectory("coverage").toFile();
+		outDir.deleteOnExit();
+		SAMFileHeader header = new SAMFileHeader();
+		header.setSequenceDictionary(new SAMSequenceDictionary(Arrays.asList(new SAMSequenceRecord("chr1", 1000000), new SAMSequenceRecord("chr2", 1000))));
+
+		try (CoverageTracks tracks = new CoverageTracks(outDir, "test", header.getSequenceDictionary(), CoverageTracks.Format.BEDGRAPH)) {
+			tracks.add(record(header, 0, 101, "10M", '+', false), true);
+			tracks.add(record(header, 0, 106, "10M", '+', false), false);
+			// Spliced, only the blocks are covered
+			tracks.add(record(header, 0, 106, "5M100N5M", '-', false), false);
+			tracks.add(record(header, 0, 106, "10M", '-', true), false);
+			// Far enough to flush the window
+			tracks.add(record(header, 0, 200001, "4M", '+', false), true);
+			tracks.add(record(header, 1, 11, "3M", '+', false), true);
+		}
+
+		assertEquals(Arrays.asList("chr1\t100\t110\t1", "chr1\t200000\t200004\t1", "chr2\t10\t13\t1"), read(outDir, "_converted_plus"));
+		assertEquals(Arrays.asList("chr1\t100\t105\t1", "chr1\t105\t110\t2", "chr1\t110\t115\t1", "chr1\t200000\t200004\t1", "chr2\t10\t13\t1"), read(outDir, "_total_plus"));
+		assertEquals(Arrays.asList("chr1\t105\t110\t1", "chr1\t210\t215\t1"), read(outDir, "_total_minus"));
+		assertEquals(new ArrayList<String>(), read(outDir, "_converted_minus"));
+	}
+
+	@Test
+	void testDedupIsRejected() throws IOException {
+		// The duplicate filter releases the records by 5' end, not in coordinate order
+		File bam = File.createTempFile("input", ".bam");
+		bam.deleteOnExit();
+		assertThrows(IllegalArgumentException.class, () -> SlamSplitter.split(SplitterServer.arguments("-inputBam '" + bam.getAbsolutePath() + 
+				"' -outDir '" + bam.getParent() + "' -coverage -dedup"), null));
+	}
+
+	@Test
+	void testBigWigSections() throws IOException, DataFormatException {
+		File bigWig = File.createTempFile("test", ".bw");
+		bigWig.deleteOnExit();
+		List<String> expected = new ArrayList<String>();
+		try (BigWigWriter writer = new BigWigWriter(bigWig, new String [] {"chr1", "chr2"}, new int [] {100000, 100000})) {
+			for (int contig = 0; contig < 2; contig++) {
+				for (int i = 0; i < 3000; i++) {
+					writer.add(contig, i * 10, i * 10 + 5, i % 7 + 1);
+					expected.add(contig + ":" + i * 10 + "-" + (i * 10 + 5) + "=" + (float) (i % 7 + 1));
+				}
+			}
+		}
+
+		ByteBuffer file = ByteBuffer.wrap(Files.readAllBytes(bigWig.toPath())).order(ByteOrder.LITTLE_ENDIAN);
+		assertEquals(BigWigWriter.MAGIC, file.getInt(0));
+		assertEquals(BigWigWriter.BPT_MAGIC, file.getInt((int) file.getLong(8)));
+		int index = (int) file.getLong(24);
+		assertEquals(BigWigWriter.CIR_TREE_MAGIC, file.getInt(index));
+		// 2 contigs of 3 sections each, a single leaf
+		int sections = (int) file.getLong(index + 8);
+		assertEquals(6, sections);
+		int node = index + 48;
+		assertEquals(1, file.get(node));
+		assertEquals(sections, file.getShort(node + 2));
+
+		List<String> found = new ArrayList<String>();
+		Inflater inflater = new Inflater();
+		for (int s = 0; s < sections; s++) {
+			int item = node + 4 + s * 32;
+			byte [] compressed = new byte[(int) file.getLong(item + 24)];
+			file.position((int) file.getLong(item + 16));
+			file.get(compressed);
+			inflater.reset();
+			inflater.setInput(compressed);
+			byte [] section = new byte[file.getInt(52)];
+			int length = inflater.inflate(section);
+			ByteBuffer items = ByteBuffer.wrap(section, 0, length).order(ByteOrder.LITTLE_ENDIAN);
+			int contig = items.getInt(0);
+			assertEquals(contig, file.getInt(item));
+			for (int i = 0; i < items.getShort(22); i++) {
+				int offset = 24 + i * 12;
+				found.add(contig + ":" + items.getInt(offset) + "-" + items.getInt(offset + 4) + "=" + items.getFloat(offset + 8));
+			}
+		}
+		inflater.end();
+		assertEquals(expected, found);
+	}
+
+	@Test
+	void testBigWigTreesWithSeveralLevels() throws IOException, DataFormatException {
+		File bigWig = File.createTempFile("test", ".bw");
+		bigWig.deleteOnExit();
+		// More contigs and sections than fit in a node of either tree
+		int contigs = 300;
+		String [] names = new String[contigs];
+		int [] lengths = new int[contigs];
+		for (int contig = 0; contig < contigs; contig++) {
+			names[contig] = "chr" + contig;
+			lengths[contig] = 100000;
+		}
+		List<String> expected = new ArrayList<String>();
+		try (BigWigWriter writer = new BigWigWriter(bigWig, names, lengths)) {
+			for (int contig = 0; contig < contigs; contig++) {
+				for (int i = 0; i < BigWigWriter.ITEMS_PER_SECTION + 100; i++) {
+					writer.add(contig, i * 20, i * 20 + 7, contig + i % 5);
+					expected.add(contig + ":" + i * 20 + "-" + (i * 20 + 7) + "=" + (float) (contig + i % 5));
+				}
+			}
+		}
+
+		ByteBuffer file = ByteBuffer.wrap(Files.readAllBytes(bigWig.toPath())).order(ByteOrder.LITTLE_ENDIAN);
+		int chromTree = (int) file.getLong(8);
+		assertEquals(BigWigWriter.BPT_MAGIC, file.getInt(chromTree));
+		int keySize = file.getInt(chromTree + 8);
+		assertEquals(contigs, file.getLong(chromTree + 16));
+		List<String> contigsFound = new ArrayList<String>();
+		assertEquals(2, walkContigTree(file, chromTree + 32, keySize, contigsFound), "The contig tree should have a root and leaves");
+		// Leaves are sorted by name
+		String [] sortedNames = names.clone();
+		Arrays.sort(sortedNames);
+		List<String> contigsExpected = new ArrayList<String>();
+		for (String name : sortedNames) {
+			int contig = Integer.parseInt(name.substring(3));
+			contigsExpected.add(name + "=" + contig + "," + lengths[contig]);
+		}
+		assertEquals(contigsExpected, contigsFound);
+
+		int index = (int) file.getLong(24);
+		assertEquals(BigWigWriter.CIR_TREE_MAGIC, file.getInt(index));
+		assertEquals(2L * contigs, file.getLong(index + 8));
+		List<long []> sections = new ArrayList<long []>();
+		assertEquals(2, walkIndex(file, index + 48, sections), "The index should have a root and leaves");
+		assertEquals(2 * contigs, sections.size());
+
+		List<String> found = new ArrayList<String>();
+		Inflater inflater = new Inflater();
+		byte [] section = new byte[file.getInt(52)];
+		for (long [] leaf : sections) {
+			byte [] compressed = new byte[(int) leaf[5]];
+			file.position((int) leaf[4]);
+			file.get(compressed);
+			inflater.reset();
+			inflater.setInput(compressed);
+			ByteBuffer items = ByteBuffer.wrap(section, 0, inflater.inflate(section)).order(ByteOrder.LITTLE_ENDIAN);
+			int contig = items.getInt(0);
+			assertEquals(leaf[0], contig);
+			assertEquals(leaf[1], items.getInt(4));
+			assertEquals(leaf[3], items.getInt(8));
+			for (int i = 0; i < items.getShort(22); i++) {
+				int offset = 24 + i * 12;
+				found.add(contig + ":" + items.getInt(offset) + "-" + items.getInt(offset + 4) + "=" + items.getFloat(offset + 8));
+			}
+		}
+		inflater.end();
+		assertEquals(expected, found);
+	}
+
+	/**
+	 * Adds the name=id,length of the leaves under the node, in order
+	 * @return Levels from this node down
+	 */
+	private static int walkContigTree(ByteBuffer file, int node, int keySize, List<String> contigs) {
+		boolean leaf = file.get(node) == 1;
+		int count = file.getShort(node + 2);
+		int levels = 0;
+		for (int i = 0; i < count; i++) {
+			int item = node + 4 + i * (keySize + 8);
+			byte [] key = new byte[keySize];
+			file.position(item);
+			file.get(key);
+			String name = new String(key, StandardCharsets.US_ASCII).replace("\0", "");
+			if(leaf) {
+				contigs.add(name + "=" + file.getInt(item + keySize) + "," + file.getInt(item + keySize + 4));
+				levels = 1;
+			} else {
+				int first = contigs.size();
+				levels = 1 + walkContigTree(file, (int) file.getLong(item + keySize), keySize, contigs);
+				assertEquals(name, contigs.get(first).substring(0, contigs.get(first).indexOf('=')), "A node is not keyed by its first contig");
+			}
+		}
+		return levels;
+	}
+
+	/**
+	 * Adds the contig, start, end contig, end, offset and size of the sections under the node, in order
+	 * @return Levels from this node down
+	 */
+	private static int walkIndex(ByteBuffer file, int node, List<long []> sections) {
+		boolean leaf = file.get(node) == 1;
+		int count = file.getShort(node + 2);
+		int levels = 0;
+		for (int i = 0; i < count; i++) {
+			int item = node + 4 + i * (leaf ? 32 : 24);
+			long [] bounds = {file.getInt(item), file.getInt(item + 4), file.getInt(item + 8), file.getInt(item + 12)};
+			if(leaf) {
+				sections.add(new long[] {bounds[0], bounds[1], bounds[2], bounds[3], file.getLong(item + 16), file.getLong(item + 24)});
+				levels = 1;
+			} else {
+				int first = sections.size();
+				levels = 1 + walkIndex(file, (int) file.getLong(item + 16), sections);
+				long [] firstSection = sections.get(first);
+				long [] lastSection = sections.get(sections.size() - 1);
+				assertEquals(Arrays.toString(bounds), Arrays.toString(new long[] {firstSection[0], firstSection[1], lastSection[2], lastSection[3]}), 
+						"A node does not bound the sections under it");
+			}
+		}
+		return levels;
+	}
+
+	private static SAMRecord record(SAMFileHeader header, int contig, int start, String cigar, char strand, boolean secondary) {
+		SAMRecord record = Hisat3nTestRecords.matching(header, "read" + start, contig, start, cigar, strand);
+		record.setSecondaryAlignment(secondary);
+		return record;
+	}
+
+	private static List<String> read(File outDir, String track) throws IOException {
+		File trackFile = CoverageTracks.trackFile(outDir, "test", track, CoverageTracks.Format.BEDGRAPH);
+		trackFile.deleteOnExit();
+		return Files.readAllLines(trackFile.toPath());
+	}
+
+}
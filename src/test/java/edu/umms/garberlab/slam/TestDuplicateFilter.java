@@ -0,0 +1,69 @@
+package edu.umms.garberlab.slam;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SAMSequenceRecord;
+
+class TestDuplicateFilter {
+
+	@Test
+	void testKeepsBestScoringRead() {
+		SAMFileHeader header = new SAMFileHeader();
+		header.addSequence(new SAMSequenceRecord("chr1", 100000));
+
+		DuplicateFilter filter = new DuplicateFilter(DuplicateFilter.Mode.UMI, true, 100);
+		List<SAMRecord> written = new ArrayList<SAMRecord>();
+		written.addAll(filter.add(makeRecord(header, "r1", 1000, "AAAA", -12)));
+		written.addAll(filter.add(makeRecord(header, "r2", 1000, "AAAA", -2)));
+		written.addAll(filter.add(makeRecord(header, "r3", 1000, "CCCC", -20)));
+		written.addAll(filter.add(makeRecord(header, "r4", 5000, "AAAA", -20)));
+		written.addAll(filter.flush());
+
+		List<String> names = new ArrayList<String>();
+		for (SAMRecord r : written) {
+			names.add(r.getReadName());
+		}
+		assertEquals(3, written.size(), "Only one of the two UMI duplicates should be written " + names);
+		assertTrue(names.contains("r2"), "The duplicate with the best AS was not kept " + names);
+		assertTrue(names.contains("r3") && names.contains("r4"), "Reads with a different UMI or position were removed " + names);
+		assertEquals(1, filter.getDuplicates());
+	}
+
+	@Test
+	void testMarkDuplicates() {
+		SAMFileHeader header = new SAMFileHeader();
+		header.addSequence(new SAMSequenceRecord("chr1", 100000));
+
+		DuplicateFilter filter = new DuplicateFilter(DuplicateFilter.Mode.POSITION, false, 100);
+		List<SAMRecord> written = new ArrayList<SAMRecord>();
+		written.addAll(filter.add(makeRecord(header, "r1", 1000, "AAAA", -12)));
+		written.addAll(filter.add(makeRecord(header, "r2", 1000, "CCCC", -2)));
+		written.addAll(filter.flush());
+
+		assertEquals(2, written.size(), "Duplicates must be kept when marking");
+		for (SAMRecord r : written) {
+			assertEquals("r1".equals(r.getReadName()), r.getDuplicateReadFlag(), "Wrong read flagged as duplicate");
+		}
+	}
+
+	private static SAMRecord makeRecord(SAMFileHeader header, String name, int start, String umi, int alignmentScore) {
+		SAMRecord record = new SAMRecord(header);
+		record.setReadName(name);
+		record.setReferenceIndex(0);
+		record.setAlignmentStart(start);
+		record.setCigarString("50M");
+		record.setReadString("ACGTACGTACGTACGTACGTACGTACGTACGTACGTACGTACGTACGTAC");
+		record.setAttribute("UB", umi);
+		record.setAttribute("AS", alignmentScore);
+		return record;
+	}
+
+}
@@ -0,0 +1,76 @@
+package edu.umms.garberlab.slam;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+
+import org.junit.jupiter.api.Test;
+
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SAMSequenceRecord;
+
+class TestFastqOutputWriter {
+
+	@Test
+	void testMatesInOrderAndOrientation() throws IOException {
+		File outDir = Files.createTempDirectory("fastq").toFile();
+		outDir.deleteOnExit();
+		SAMFileHeader header = new SAMFileHeader();
+		header.addSequence(new SAMSequenceRecord("chr1", 1000000));
+
+		// Enough pairs for the gzipped files to span several BGZF blocks
+		int pairs = 5000;
+		try (FastqOutputWriter writer = new FastqOutputWriter(outDir, "test", true, new FastqOutputWriter.Settings(false, true, 3))) {
+			for (int i = 0; i < pairs; i++) {
+				writer.add(record(header, "read" + i, "ACCGTTTA", false, true), i % 2 == 0);
+			}
+			for (int i = pairs - 1; i >= 0; i--) {
+				writer.add(record(header, "read" + i, "GGTACCAA", true, false), i % 2 == 0);
+			}
+			writer.add(record(header, "orphan", "ACGT", false, true), true);
+		}
+
+		List<String> r1 = read(FastqOutputWriter.outputFile(outDir, "test", true, "_R1", true));
+		List<String> r2 = read(FastqOutputWriter.outputFile(outDir, "test", true, "_R2", true));
+		assertEquals(4 * pairs / 2, r1.size(), "Converted first mates were not all written");
+		// Pairs are written when the second mate comes, read0 is the last one
+		assertEquals(Arrays.asList("@read0", "ACCGTTTA", "+", "ABCDEFGH"), r1.subList(r1.size() - 4, r1.size()));
+		// The second mate is on the reverse strand, it is written as sequenced
+		assertEquals(Arrays.asList("@read0", "TTGGTACC", "+", "HGFEDCBA"), r2.subList(r2.size() - 4, r2.size()));
+		for (int i = 0; i < r1.size(); i += 4) {
+			assertEquals(r1.get(i), r2.get(i), "Mates are not in the same order in both files");
+		}
+		assertEquals(Arrays.asList("@orphan", "ACGT", "+", "ABCD"), read(FastqOutputWriter.outputFile(outDir, "test", true, "_singletons", true)));
+		assertEquals(4 * pairs / 2, read(FastqOutputWriter.outputFile(outDir, "test", false, "_R2", true)).size());
+	}
+
+	private static SAMRecord record(SAMFileHeader header, String name, String bases, boolean reverse, boolean first) {
+		SAMRecord record = Hisat3nTestRecords.paired(Hisat3nTestRecords.alignment(header, name, 0, 100, bases, String.valueOf(bases.length()), '+'), first, 0, 100);
+		record.setBaseQualityString("ABCDEFGH".substring(0, bases.length()));
+		record.setReadNegativeStrandFlag(reverse);
+		return record;
+	}
+
+	private static List<String> read(File fastq) throws IOException {
+		fastq.deleteOnExit();
+		List<String> lines = new ArrayList<String>();
+		try (BufferedReader br = new BufferedReader(new InputStreamReader(new GZIPInputStream(new FileInputStream(fastq))))) {
+			String line = null;
+			while ((line = br.readLine()) != null) {
+				lines.add(line);
+			}
+		}
+		return lines;
+	}
+
+}
@@ -0,0 +1,132 @@
+package edu.umms.garberlab.slam;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SAMSequenceDictionary;
+import htsjdk.samtools.SAMSequenceRecord;
+import htsjdk.samtools.SamReader;
+import htsjdk.samtools.SamReaderFactory;
+
+class TestHisat3nUnsortedSlamSplitterWriter {
+
+	@Test
+	void testMatesArePairedThroughBuckets() throws IOException {
+		File outDir = Files.createTempDirectory("unsorted").toFile();
+		outDir.deleteOnExit();
+		SAMFileHeader header = new SAMFileHeader();
+		header.setSequenceDictionary(new SAMSequenceDictionary(Arrays.asList(new SAMSequenceRecord("chr1", 1000000))));
+
+		Random random = new Random(7);
+		List<SAMRecord> records = new ArrayList<SAMRecord>();
+		int pairs = 3000;
+		for (int i = 0; i < pairs; i++) {
+			// Every tenth pair is multi-mapped, its alignments must not be mixed up
+			for (int alignment = 0; alignment < (i % 10 == 0 ? 2 : 1); alignment++) {
+				int start = random.nextInt(900000) + 1;
+				int mateStart = start + random.nextInt(500);
+				boolean converted = i % 3 == 0;
+				records.add(record(header, "read" + i, true, start, mateStart, converted));
+				records.add(record(header, "read" + i, false, mateStart, start, false));
+			}
+		}
+		Collections.shuffle(records, random);
+		assertEquals(Hisat3nUnsortedSlamSplitterWriter.pairKey(records.get(0)), Hisat3nUnsortedSlamSplitterWriter.pairKey(mateOf(records, records.get(0))));
+
+		// Room for about a hundred waiting records, the others go through the buckets
+		Hisat3nUnsortedSlamSplitterWriter writer = new Hisat3nUnsortedSlamSplitterWriter(outDir, "test", header, SplitterOutputFormat.SAM, null, 
+				100 * 500, outDir, null, null);
+		writer.setPairedEnd(true);
+		for (SAMRecord record : records) {
+			writer.write(record);
+		}
+		writer.close();
+
+		List<SAMRecord> converted = read(Hisat3nSplitterWriter.outputFile(outDir, "test", true, SplitterOutputFormat.SAM));
+		List<SAMRecord> unconverted = read(Hisat3nSplitterWriter.outputFile(outDir, "test", false, SplitterOutputFormat.SAM));
+		assertEquals(records.size(), converted.size() + unconverted.size());
+		for (List<SAMRecord> output : Arrays.asList(converted, unconverted)) {
+			for (int i = 0; i < output.size(); i += 2) {
+				SAMRecord upstream = output.get(i);
+				SAMRecord downstream = output.get(i + 1);
+				assertEquals(Hisat3nUnsortedSlamSplitterWriter.pairKey(upstream), Hisat3nUnsortedSlamSplitterWriter.pairKey(downstream), 
+						"Mates are not written together");
+				assertTrue(upstream.getFirstOfPairFlag() != downstream.getFirstOfPairFlag());
+			}
+		}
+		for (SAMRecord record : converted) {
+			assertEquals(0, Integer.parseInt(record.getReadName().substring(4)) % 3);
+		}
+		String [] leftovers = outDir.list((dir, name) -> name.endsWith(".pairs"));
+		assertEquals(0, leftovers.length, "Buckets were not deleted");
+	}
+
+	@Test
+	void testOrphansAreReportedOnceTheOutputsAreClosed() throws IOException {
+		File outDir = Files.createTempDirectory("orphans").toFile();
+		outDir.deleteOnExit();
+		SAMFileHeader header = new SAMFileHeader();
+		header.setSequenceDictionary(new SAMSequenceDictionary(Arrays.asList(new SAMSequenceRecord("chr1", 1000000))));
+
+		Hisat3nUnsortedSlamSplitterWriter writer = new Hisat3nUnsortedSlamSplitterWriter(outDir, "test", header, SplitterOutputFormat.SAM, null, 
+				10 * 500, outDir, null, null);
+		writer.setPairedEnd(true);
+		int pairs = 200;
+		for (int i = 0; i < pairs; i++) {
+			writer.write(record(header, "read" + i, true, 1000 + i, 2000 + i, false));
+		}
+		writer.write(record(header, "orphan", true, 500, 600, false));
+		for (int i = 0; i < pairs; i++) {
+			writer.write(record(header, "read" + i, false, 2000 + i, 1000 + i, false));
+		}
+		IllegalStateException e = assertThrows(IllegalStateException.class, () -> writer.close());
+		assertTrue(e.getMessage().startsWith("1 paired-end alignments have no mate"), e.getMessage());
+		assertTrue(e.getMessage().endsWith("orphan"), e.getMessage());
+
+		assertEquals(2 * pairs, read(Hisat3nSplitterWriter.outputFile(outDir, "test", false, SplitterOutputFormat.SAM)).size());
+		assertTrue(read(Hisat3nSplitterWriter.outputFile(outDir, "test", true, SplitterOutputFormat.SAM)).isEmpty());
+		assertEquals(0, outDir.list((dir, name) -> name.endsWith(".pairs")).length, "Buckets were not deleted");
+	}
+
+	private static SAMRecord mateOf(List<SAMRecord> records, SAMRecord record) {
+		for (SAMRecord candidate : records) {
+			if(candidate.getAlignmentStart() == record.getMateAlignmentStart() && candidate.getMateAlignmentStart() == record.getAlignmentStart() &&
+					candidate.getFirstOfPairFlag() != record.getFirstOfPairFlag() && 
+					Hisat3nSplitterWriter.readNamesMatch(candidate, record)) {
+				return candidate;
+			}
+		}
+		return null;
+	}
+
+	private static SAMRecord record(SAMFileHeader header, String name, boolean first, int start, int mateStart, boolean converted) {
+		SAMRecord record = Hisat3nTestRecords.alignment(header, name, 0, start, converted ? "AAACAAAA" : "AAATAAAA", converted ? "3T4" : "8", '+');
+		return Hisat3nTestRecords.paired(record, first, 0, mateStart);
+	}
+
+	private static List<SAMRecord> read(File sam) throws IOException {
+		sam.deleteOnExit();
+		List<SAMRecord> records = new ArrayList<SAMRecord>();
+		try (SamReader reader = SamReaderFactory.makeDefault().open(sam)) {
+			for (SAMRecord record : reader) {
+				records.add(record);
+			}
+		}
+		return records;
+	}
+
+}
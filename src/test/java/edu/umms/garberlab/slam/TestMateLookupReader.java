@@ -0,0 +1,61 @@
+package edu.umms.garberlab.slam;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SAMRecordIterator;
+import htsjdk.samtools.SamReader;
+import htsjdk.samtools.SamReaderFactory;
+
+class TestMateLookupReader {
+
+	@Test
+	void testSameMatesAsQueryMate() throws IOException, URISyntaxException {
+		URL inputBamResource = this.getClass().getResource("/insertion.bug.reads.bam");
+		assertNotNull(inputBamResource);
+		File bam = new File(inputBamResource.toURI());
+
+		List<SAMRecord> records = new ArrayList<SAMRecord>();
+		List<String> expected = new ArrayList<String>();
+		try (SamReader reader = SamReaderFactory.makeDefault().open(bam); SamReader queryReader = SamReaderFactory.makeDefault().open(bam)) {
+			try (SAMRecordIterator it = reader.iterator()) {
+				while (it.hasNext()) {
+					SAMRecord record = it.next();
+					if(record.getReadPairedFlag() && record.getMateAlignmentStart() > 0) {
+						records.add(record);
+						SAMRecord mate = queryReader.queryMate(record);
+						expected.add(mate == null ? null : mate.getSAMString());
+					}
+				}
+			}
+		}
+
+		for (int threads : new int [] {0, 2}) {
+			List<String> found = new ArrayList<String>();
+			try (SamReader indexedReader = SamReaderFactory.makeDefault().open(bam);
+					MateLookupReader mateReader = new MateLookupReader(bam, indexedReader, 4, threads)) {
+				for (SAMRecord record : mateReader.prefetching(records, 8)) {
+					SAMRecord mate = mateReader.queryMate(record);
+					found.add(mate == null ? null : mate.getSAMString());
+				}
+				assertEquals(records.size(), mateReader.getLookups());
+				if(!records.isEmpty()) {
+					assertTrue(mateReader.getBlockHits() > 0, "Mate lookups never reused a cached block");
+				}
+			}
+			assertEquals(expected, found, "Mates differ from the ones found by htsjdk with " + threads + " lookup threads");
+		}
+	}
+
+}
@@ -0,0 +1,57 @@
+package edu.umms.garberlab.slam;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SamReader;
+import htsjdk.samtools.SamReaderFactory;
+
+class TestMergingBamReader {
+
+	@Test
+	void testMergeKeepsEachInputInOrder() throws IOException, URISyntaxException {
+		URL inputBamResource = this.getClass().getResource("/insertion.bug.reads.bam");
+		assertNotNull(inputBamResource);
+		File bam = new File(inputBamResource.toURI());
+
+		List<String> expected = new ArrayList<String>();
+		try (SamReader reader = SamReaderFactory.makeDefault().open(bam)) {
+			for (SAMRecord r : reader) {
+				expected.add(r.getSAMString());
+			}
+		}
+
+		List<List<String>> perSource = Arrays.asList(new ArrayList<String>(), new ArrayList<String>());
+		int merged = 0;
+		SAMRecord previous = null;
+		try (MergingBamReader reader = new MergingBamReader(Arrays.asList(bam, bam), SamReaderFactory.makeDefault(), 1, 2)) {
+			for (SAMRecord r : reader) {
+				perSource.get(MergingBamReader.sourceOf(r)).add(r.getSAMString());
+				if(previous != null && r.getReferenceIndex() >= 0 && previous.getReferenceIndex() >= 0) {
+					assertTrue(previous.getReferenceIndex() < r.getReferenceIndex() ||
+							(previous.getReferenceIndex().equals(r.getReferenceIndex()) && previous.getAlignmentStart() <= r.getAlignmentStart()),
+							"Merged records are not coordinate sorted at " + r.getReadName());
+				}
+				previous = r;
+				merged++;
+			}
+		}
+
+		assertEquals(2 * expected.size(), merged);
+		assertEquals(expected, perSource.get(0), "Records of the first input are missing or out of order");
+		assertEquals(expected, perSource.get(1), "Records of the second input are missing or out of order");
+	}
+
+}
@@ -0,0 +1,63 @@
+package edu.umms.garberlab.slam;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+
+import org.junit.jupiter.api.Test;
+
+class TestNewRnaEstimator {
+
+	@Test
+	void testGeneAssignment() {
+		GeneAnnotation genes = new GeneAnnotation(Arrays.asList(
+				new GeneAnnotation.Gene("g1", "g1", "chr1", 100, 200, '+'),
+				new GeneAnnotation.Gene("g2", "g2", "chr1", 150, 300, '-'),
+				new GeneAnnotation.Gene("g3", "g3", "chr1", 1000, 5000, '+')));
+		assertEquals(0, genes.geneAt("chr1", 100, 120));
+		assertEquals(GeneAnnotation.AMBIGUOUS, genes.geneAt("chr1", 160, 180));
+		assertEquals(1, genes.geneAt("chr1", 250, 260));
+		assertEquals(2, genes.geneAt("chr1", 4990, 5100));
+		assertEquals(GeneAnnotation.NO_GENE, genes.geneAt("chr1", 500, 600));
+		assertEquals(GeneAnnotation.NO_GENE, genes.geneAt("chr2", 100, 120));
+	}
+
+	@Test
+	void testRecoversRatesAndNtr() throws InterruptedException, ExecutionException {
+		double pOld = 0.002;
+		double pNew = 0.05;
+		double [] ntr = {0.1, 0.5, 0.9};
+		GeneAnnotation genes = new GeneAnnotation(Arrays.asList(
+				new GeneAnnotation.Gene("g1", "g1", "chr1", 100, 200, '+'),
+				new GeneAnnotation.Gene("g2", "g2", "chr1", 1000, 2000, '+'),
+				new GeneAnnotation.Gene("g3", "g3", "chr1", 3000, 4000, '+'),
+				new GeneAnnotation.Gene("empty", "empty", "chr1", 5000, 6000, '+')));
+		NewRnaEstimator estimator = new NewRnaEstimator(genes);
+		Random random = new Random(17);
+		for (int gene = 0; gene < ntr.length; gene++) {
+			for (int i = 0; i < 5000; i++) {
+				int n = 20 + random.nextInt(60);
+				double p = random.nextDouble() < ntr[gene] ? pNew : pOld;
+				int k = 0;
+				for (int base = 0; base < n; base++) {
+					k += random.nextDouble() < p ? 1 : 0;
+				}
+				estimator.add(gene, k, n);
+			}
+		}
+		estimator.fit(2);
+
+		assertEquals(pOld, estimator.getPOld(), 0.001);
+		assertEquals(pNew, estimator.getPNew(), 0.005);
+		for (int gene = 0; gene < ntr.length; gene++) {
+			assertEquals(ntr[gene], estimator.getNtr(gene), 0.05);
+			assertTrue(estimator.getNtrLower(gene) < estimator.getNtr(gene) && estimator.getNtr(gene) < estimator.getNtrUpper(gene));
+			assertTrue(estimator.getNtrUpper(gene) - estimator.getNtrLower(gene) < 0.2, "Interval too wide for 5000 fragments");
+		}
+		assertTrue(Double.isNaN(estimator.getNtr(3)), "A gene without fragments has no estimate");
+	}
+
+}
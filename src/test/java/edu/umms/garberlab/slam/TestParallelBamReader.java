@@ -0,0 +1,46 @@
+package edu.umms.garberlab.slam;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SamReader;
+import htsjdk.samtools.SamReaderFactory;
+
+class TestParallelBamReader {
+
+	@Test
+	void testSameRecordsAsSamReader() throws IOException, URISyntaxException {
+		URL inputBamResource = this.getClass().getResource("/insertion.bug.reads.bam");
+		assertNotNull(inputBamResource);
+		File bam = new File(inputBamResource.toURI());
+
+		List<String> expected = new ArrayList<String>();
+		try (SamReader reader = SamReaderFactory.makeDefault().open(bam)) {
+			for (SAMRecord r : reader) {
+				expected.add(r.getSAMString());
+			}
+		}
+
+		List<String> parallel = new ArrayList<String>();
+		try (ParallelBamReader reader = new ParallelBamReader(bam, 3, 2)) {
+			assertFalse(reader.getFileHeader().getSequenceDictionary().isEmpty(), "Sequence dictionary was not read");
+			for (SAMRecord r : reader) {
+				parallel.add(r.getSAMString());
+			}
+		}
+
+		assertEquals(expected, parallel, "Records read in parallel differ from the ones read by htsjdk");
+	}
+
+}
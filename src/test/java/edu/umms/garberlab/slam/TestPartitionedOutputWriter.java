@@ -0,0 +1,161 @@
+package edu.umms.garberlab.slam;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMFileHeader.SortOrder;
+import htsjdk.samtools.SAMReadGroupRecord;
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SAMSequenceRecord;
+import htsjdk.samtools.SamReader;
+import htsjdk.samtools.SamReaderFactory;
+
+class TestPartitionedOutputWriter {
+
+	@Test
+	void testPartsAreJoinedInOrder() throws IOException {
+		for (SortOrder sortOrder : new SortOrder[] {SortOrder.unsorted, SortOrder.coordinate}) {
+			SAMFileHeader header = header(sortOrder);
+			File outDir = Files.createTempDirectory("partitions").toFile();
+			outDir.deleteOnExit();
+			// One open writer and a tiny buffer: every partition is written in many parts
+			PartitionedOutputWriter.Settings settings = PartitionedOutputWriter.Settings.parse("contig,readGroup", 1);
+			PartitionedOutputWriter writer = new PartitionedOutputWriter(outDir, "test", true, header, SplitterOutputFormat.BAM, null, settings, 3);
+			int records = 200;
+			for (int i = 0; i < records; i++) {
+				SAMRecord record = new SAMRecord(header);
+				record.setReadName(String.format("read%03d", i));
+				if(i % 50 == 0) {
+					record.setReadUnmappedFlag(true);
+				} else {
+					record.setReferenceIndex(i % 3);
+					record.setAlignmentStart(1 + i);
+					record.setCigarString("10M");
+				}
+				if(i % 7 != 0) {
+					record.setAttribute("RG", i % 2 == 0 ? "A" : "B");
+				}
+				record.setReadString("ACGTACGTAC");
+				record.setBaseQualityString("IIIIIIIIII");
+				writer.addAlignment(record);
+			}
+			writer.close();
+
+			int read = 0;
+			for (String partition : writer.getPartitions()) {
+				File partitionFile = writer.partitionFile(partition);
+				assertTrue(partitionFile.getName().startsWith("test_"));
+				assertTrue(partitionFile.getName().endsWith("_converted.bam"));
+				int previous = -1;
+				try (SamReader reader = SamReaderFactory.makeDefault().open(partitionFile)) {
+					for (SAMRecord record : reader) {
+						assertEquals(partition, settings.partition(record));
+						int index = Integer.parseInt(record.getReadName().substring(4));
+						// Both the input order and the coordinate order follow the read index here
+						assertTrue(index > previous, "Out of order in " + partition);
+						previous = index;
+						read++;
+					}
+				}
+			}
+			assertEquals(records, read);
+			// Only the partition files are left
+			assertEquals(writer.getPartitions().size(), outDir.listFiles().length);
+			for (File file : outDir.listFiles()) {
+				file.delete();
+			}
+		}
+	}
+
+	@Test
+	void testCollidingPartitionsGetDistinctFiles() throws IOException {
+		SAMFileHeader header = new SAMFileHeader();
+		header.addSequence(new SAMSequenceRecord("chr1:random", 100000));
+		header.addSequence(new SAMSequenceRecord("chr1_random", 100000));
+		header.addSequence(new SAMSequenceRecord("CHR1_RANDOM", 100000));
+		File outDir = Files.createTempDirectory("partitions").toFile();
+		outDir.deleteOnExit();
+		PartitionedOutputWriter.Settings settings = PartitionedOutputWriter.Settings.parse("contig", 4);
+		PartitionedOutputWriter converted = new PartitionedOutputWriter(outDir, "test", true, header, SplitterOutputFormat.SAM, null, settings);
+		PartitionedOutputWriter unconverted = new PartitionedOutputWriter(outDir, "test", false, header, SplitterOutputFormat.SAM, null, settings);
+		// The unconverted writer sees the contigs in the reverse order
+		for (int i = 0; i < 3; i++) {
+			converted.addAlignment(record(header, i));
+			unconverted.addAlignment(record(header, 2 - i));
+		}
+		converted.close();
+		unconverted.close();
+
+		assertEquals("test_chr1_random_converted.sam", converted.partitionFile("chr1:random").getName());
+		assertEquals("test_chr1_random_2_converted.sam", converted.partitionFile("chr1_random").getName());
+		assertEquals("test_CHR1_RANDOM_3_converted.sam", converted.partitionFile("CHR1_RANDOM").getName());
+		for (PartitionedOutputWriter writer : new PartitionedOutputWriter[] {converted, unconverted}) {
+			for (String partition : writer.getPartitions()) {
+				try (SamReader reader = SamReaderFactory.makeDefault().open(writer.partitionFile(partition))) {
+					int read = 0;
+					for (SAMRecord record : reader) {
+						assertEquals(partition, record.getContig());
+						read++;
+					}
+					assertEquals(1, read);
+				}
+			}
+		}
+		assertEquals(6, outDir.listFiles().length);
+		for (File file : outDir.listFiles()) {
+			file.delete();
+		}
+	}
+
+	private static SAMRecord record(SAMFileHeader header, int referenceIndex) {
+		SAMRecord record = new SAMRecord(header);
+		record.setReadName("read" + referenceIndex);
+		record.setReferenceIndex(referenceIndex);
+		record.setAlignmentStart(1);
+		record.setCigarString("10M");
+		record.setReadString("ACGTACGTAC");
+		record.setBaseQualityString("IIIIIIIIII");
+		return record;
+	}
+
+	@Test
+	void testSettings() {
+		SAMFileHeader header = header(SortOrder.unsorted);
+		SAMRecord record = new SAMRecord(header);
+		record.setReadUnmappedFlag(true);
+		assertEquals(PartitionedOutputWriter.UNMAPPED, PartitionedOutputWriter.Settings.parse("contig", 4).partition(record));
+		assertEquals(PartitionedOutputWriter.NO_READ_GROUP, PartitionedOutputWriter.Settings.parse("readGroup", 4).partition(record));
+		record.setReadUnmappedFlag(false);
+		record.setReferenceIndex(1);
+		record.setAttribute("RG", "A");
+		assertEquals("chr2.A", PartitionedOutputWriter.Settings.parse("contig,RG", 4).partition(record));
+		assertThrows(IllegalArgumentException.class, () -> PartitionedOutputWriter.Settings.parse("sample", 4));
+	}
+
+	private static SAMFileHeader header(SortOrder sortOrder) {
+		SAMFileHeader header = new SAMFileHeader();
+		List<SAMSequenceRecord> contigs = new ArrayList<SAMSequenceRecord>();
+		for (int i = 1; i <= 3; i++) {
+			contigs.add(new SAMSequenceRecord("chr" + i, 100000));
+		}
+		header.getSequenceDictionary().setSequences(contigs);
+		for (String id : new String[] {"A", "B"}) {
+			SAMReadGroupRecord readGroup = new SAMReadGroupRecord(id);
+			readGroup.setSample("sample" + id);
+			header.addReadGroup(readGroup);
+		}
+		header.setSortOrder(sortOrder);
+		return header;
+	}
+
+}
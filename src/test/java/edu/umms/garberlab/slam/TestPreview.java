@@ -0,0 +1,111 @@
+package edu.umms.garberlab.slam;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.junit.jupiter.api.Test;
+
+import htsjdk.samtools.BAMSBIIndexer;
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMFileHeader.SortOrder;
+import htsjdk.samtools.SAMFileWriter;
+import htsjdk.samtools.SAMFileWriterFactory;
+import htsjdk.samtools.SAMSequenceRecord;
+
+class TestPreview {
+
+	@Test
+	void testHashSampleIsDeterministicAndNested() {
+		int reads = 100000;
+		int kept = 0;
+		for (int i = 0; i < reads; i++) {
+			String readName = "SRR000001." + i;
+			boolean keep = Preview.keep(readName, 0.1);
+			assertEquals(keep, Preview.keep(new String(readName.toCharArray()), 0.1));
+			if(keep) {
+				kept++;
+				// A larger sample contains the smaller one
+				assertTrue(Preview.keep(readName, 0.5));
+			}
+			assertTrue(Preview.keep(readName, 1));
+		}
+		assertEquals(0.1, kept / (double) reads, 0.005);
+	}
+
+	@Test
+	void testFraction() {
+		assertThrows(IllegalArgumentException.class, () -> new Preview(0));
+		assertThrows(IllegalArgumentException.class, () -> new Preview(1.5));
+	}
+
+	@Test
+	void testEstimatesOfIndexedInputMatchAFullRun() throws Exception {
+		for (SortOrder sortOrder : new SortOrder[] {SortOrder.coordinate, SortOrder.queryname}) {
+			File dir = Files.createTempDirectory("preview").toFile();
+			dir.deleteOnExit();
+			File bam = writeBam(dir, sortOrder);
+			SplitterMetrics full = SlamSplitter.split(new String[] {"-inputBam", bam.getAbsolutePath(), "-statsOnly"}, null);
+
+			PrintStream stdout = System.out;
+			ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+			try {
+				System.setOut(new PrintStream(buffer, true));
+				SlamSplitter.split(new String[] {"-inputBam", bam.getAbsolutePath(), "-preview", "0.2"}, null);
+			} finally {
+				System.setOut(stdout);
+			}
+			String report = buffer.toString();
+			assertTrue(report.contains(SortOrder.coordinate.equals(sortOrder) ? "chunks of the index" : "chunks of the .sbi index"), report);
+			assertEquals(full.getFragments(), estimate(report, "\tfragments"), 0.1 * full.getFragments(), report);
+			assertEquals(full.getConvertedFragments(), estimate(report, "converted fragments"), 0.1 * full.getConvertedFragments(), report);
+			assertEquals(full.getSplicedFragments(), estimate(report, "spliced fragments"), 0.15 * full.getSplicedFragments(), report);
+		}
+	}
+
+	private static double estimate(String report, String label) {
+		Matcher matcher = Pattern.compile(label + ": (\\d+)").matcher(report);
+		assertTrue(matcher.find(), "No " + label + " estimate in " + report);
+		return Double.parseDouble(matcher.group(1));
+	}
+
+	/**
+	 * Single-end reads over two contigs, a third converted and a fifth spliced, indexed
+	 * with a .bai if coordinate sorted and an .sbi otherwise
+	 */
+	private static File writeBam(File dir, SortOrder sortOrder) throws IOException {
+		SAMFileHeader header = new SAMFileHeader();
+		header.addSequence(new SAMSequenceRecord("chr1", 5000000));
+		header.addSequence(new SAMSequenceRecord("chr2", 5000000));
+		header.setSortOrder(sortOrder);
+		File bam = new File(dir, sortOrder + ".bam");
+		bam.deleteOnExit();
+		Random random = new Random(11);
+		SAMFileWriterFactory factory = new SAMFileWriterFactory().setCreateIndex(SortOrder.coordinate.equals(sortOrder));
+		try (SAMFileWriter writer = factory.makeBAMWriter(header, false, bam)) {
+			for (int i = 0; i < 40000; i++) {
+				boolean converted = random.nextInt(3) == 0;
+				writer.addAlignment(Hisat3nTestRecords.alignment(header, String.format("read%06d", i), random.nextInt(2), 
+						1 + random.nextInt(4990000), random.nextInt(5) == 0 ? "5M1000N5M" : "10M", 
+						converted ? "TTTTCTTTTT" : "TTTTTTTTTT", converted ? "4T5" : "10", '+'));
+			}
+		}
+		if(SortOrder.coordinate.equals(sortOrder)) {
+			new File(dir, sortOrder + ".bai").deleteOnExit();
+		} else {
+			BAMSBIIndexer.createIndex(bam.toPath(), 100);
+			new File(bam.getPath() + ".sbi").deleteOnExit();
+		}
+		return bam;
+	}
+
+}
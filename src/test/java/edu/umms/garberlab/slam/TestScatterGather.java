@@ -0,0 +1,179 @@
+package edu.umms.garberlab.slam;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMFileHeader.SortOrder;
+import htsjdk.samtools.SAMFileWriter;
+import htsjdk.samtools.SAMFileWriterFactory;
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SAMRecordIterator;
+import htsjdk.samtools.SAMSequenceRecord;
+import htsjdk.samtools.SamReader;
+import htsjdk.samtools.SamReaderFactory;
+
+class TestScatterGather {
+
+	@Test
+	void testShardsCoverAllRecords() throws IOException, URISyntaxException {
+		URL inputBamResource = this.getClass().getResource("/insertion.bug.reads.bam");
+		assertNotNull(inputBamResource);
+		File bam = new File(inputBamResource.toURI());
+
+		try (SamReader reader = SamReaderFactory.makeDefault().open(bam)) {
+			List<String> expected = new ArrayList<String>();
+			try (SAMRecordIterator it = reader.iterator()) {
+				while (it.hasNext()) {
+					expected.add(it.next().getSAMString());
+				}
+			}
+
+			for (List<ScatterGather.Shard> plan : new List[] {ScatterGather.planByReadNames(bam, 3, 1), ScatterGather.planByContigs(reader, 3, true)}) {
+				List<String> sharded = new ArrayList<String>();
+				for (ScatterGather.Shard shard : plan) {
+					for (SAMRecord r : ScatterGather.Shard.parse(shard.toString()).records(reader, bam)) {
+						sharded.add(r.getSAMString());
+					}
+				}
+				assertEquals(expected, sharded, "Shards " + plan + " do not add up to the input");
+			}
+		}
+	}
+
+	@Test
+	void testShardSpecification() {
+		ScatterGather.Shard shard = ScatterGather.Shard.parse("contigs:2-4+unplaced");
+		assertTrue(shard.isContigRange());
+		assertEquals("contigs:2-4+unplaced", shard.toString());
+		assertFalse(ScatterGather.Shard.parse("offsets:0-65536").isContigRange());
+		assertThrows(IllegalArgumentException.class, () -> ScatterGather.Shard.parse("contigs:2"));
+
+		shard = ScatterGather.Shard.parse("contigs:0:16385-1:32768");
+		assertEquals("contigs:0:16385-1:32768", shard.toString());
+		SAMFileHeader header = new SAMFileHeader();
+		header.addSequence(new SAMSequenceRecord("chr1", 100000));
+		header.addSequence(new SAMSequenceRecord("chr2", 100000));
+		SAMRecord record = new SAMRecord(header);
+		record.setReferenceIndex(0);
+		record.setAlignmentStart(16384);
+		assertFalse(shard.contains(record));
+		record.setAlignmentStart(16385);
+		assertTrue(shard.contains(record));
+		record.setReferenceIndex(1);
+		record.setAlignmentStart(32768);
+		assertTrue(shard.contains(record));
+		record.setAlignmentStart(32769);
+		assertFalse(shard.contains(record));
+		record.setReferenceIndex(-1);
+		assertFalse(shard.contains(record));
+	}
+
+	@Test
+	void testOneContigIsCutInBalancedShards() throws IOException {
+		SAMFileHeader header = new SAMFileHeader();
+		header.addSequence(new SAMSequenceRecord("chr1", 10000000));
+		header.setSortOrder(SortOrder.coordinate);
+		File dir = Files.createTempDirectory("scatter").toFile();
+		dir.deleteOnExit();
+		File bam = new File(dir, "one.bam");
+		bam.deleteOnExit();
+		new File(dir, "one.bai").deleteOnExit();
+		int records = 40000;
+		Random random = new Random(7);
+		try (SAMFileWriter writer = new SAMFileWriterFactory().setCreateIndex(true).makeBAMWriter(header, true, bam)) {
+			for (int i = 0; i < records; i++) {
+				SAMRecord record = new SAMRecord(header);
+				record.setReadName("read" + i);
+				record.setReferenceIndex(0);
+				// Overlapping reads, some of them span the cuts
+				record.setAlignmentStart(1 + i * 200);
+				record.setCigarString("300M");
+				StringBuilder bases = new StringBuilder();
+				for (int b = 0; b < 300; b++) {
+					bases.append("ACGT".charAt(random.nextInt(4)));
+				}
+				record.setReadString(bases.toString());
+				record.setBaseQualityString(bases.toString().replaceAll(".", "I"));
+				writer.addAlignment(record);
+			}
+			SAMRecord unplaced = new SAMRecord(header);
+			unplaced.setReadName("unplaced");
+			unplaced.setReadUnmappedFlag(true);
+			unplaced.setReadString("ACGT");
+			unplaced.setBaseQualityString("IIII");
+			writer.addAlignment(unplaced);
+		}
+
+		try (SamReader reader = SamReaderFactory.makeDefault().open(bam)) {
+			List<ScatterGather.Shard> plan = ScatterGather.planByContigs(reader, 4, true);
+			assertEquals(4, plan.size(), "Shards " + plan);
+			List<String> sharded = new ArrayList<String>();
+			for (ScatterGather.Shard shard : plan) {
+				int shardRecords = 0;
+				for (SAMRecord r : ScatterGather.Shard.parse(shard.toString()).records(reader, bam)) {
+					assertTrue(shard.contains(r));
+					sharded.add(r.getReadName());
+					shardRecords++;
+				}
+				assertTrue(shardRecords > records / 8 && shardRecords < records / 2, shard + " has " + shardRecords + " records");
+			}
+			assertEquals(records + 1, sharded.size());
+			for (int i = 0; i < records; i++) {
+				assertEquals("read" + i, sharded.get(i));
+			}
+			assertEquals("unplaced", sharded.get(records));
+
+			// Only whole contigs when the cuts are not allowed
+			assertEquals(1, ScatterGather.planByContigs(reader, 4, false).size());
+		}
+	}
+
+	@Test
+	void testMetricsAddUp() throws IOException {
+		SplitterMetrics shard1 = new SplitterMetrics();
+		shard1.countAlignment();
+		shard1.countFragment(true, true, true);
+		shard1.countFeature(AnnotationIndex.Feature.EXONIC);
+		SplitterMetrics shard2 = new SplitterMetrics();
+		shard2.countAlignment();
+		shard2.countFragment(false, false, false);
+		shard2.countDuplicates(3, 10);
+		shard2.countMateLookups(4, 2, 3, 1);
+		shard2.countFeature(AnnotationIndex.Feature.EXONIC);
+		shard2.countFeature(AnnotationIndex.Feature.INTRONIC);
+
+		File metricsFile = File.createTempFile("shard", ".metrics");
+		metricsFile.deleteOnExit();
+		shard2.write(metricsFile);
+		shard1.add(SplitterMetrics.read(metricsFile));
+
+		assertEquals(2, shard1.getAlignments());
+		assertEquals(2, shard1.getFragments());
+		assertEquals(1, shard1.getConvertedFragments());
+		assertEquals(1, shard1.getSplicedFragments());
+		assertEquals(1, shard1.getUnmappedFragments());
+		assertEquals(3, shard1.getDuplicates());
+		assertEquals(10, shard1.getDuplicatesExamined());
+		assertEquals(4, shard1.getMateLookups());
+		assertEquals(2, shard1.getPrefetchedMateLookups());
+		assertEquals(0.75, shard1.getMateBlockHitRate());
+		assertEquals(2, shard1.getFeatureFragments(AnnotationIndex.Feature.EXONIC));
+		assertEquals(1, shard1.getFeatureFragments(AnnotationIndex.Feature.INTRONIC));
+	}
+
+}
@@ -0,0 +1,64 @@
+package edu.umms.garberlab.slam;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.jupiter.api.Test;
+
+class TestSplitterServer {
+
+	@Test
+	void testJobArguments() {
+		assertArrayEquals(new String [] {"-classifier", "Yf >= 2 && NH == 1", "-outDir", "/tmp/a b", "-p"},
+				SplitterServer.arguments("-classifier \"Yf >= 2 && NH == 1\"  -outDir '/tmp/a b'\t-p "));
+		assertArrayEquals(new String [] {"-outPrefix", ""}, SplitterServer.arguments("-outPrefix \"\""));
+		assertThrows(IllegalArgumentException.class, () -> SplitterServer.arguments("-classifier \"Yf > 0"));
+	}
+
+	@Test
+	void testConcurrentJobsReportLikeTheCommandLine() throws Exception {
+		URL inputBamResource = this.getClass().getResource("/insertion.bug.reads.bam");
+		assertNotNull(inputBamResource);
+		String job = "-inputBam '" + new File(inputBamResource.toURI()).getAbsolutePath() + "' -statsOnly";
+		String expected = "{\"status\":\"ok\",\"metrics\":" + SlamSplitter.split(SplitterServer.arguments(job), null).toJson() + "}";
+
+		ExecutorService clients = Executors.newFixedThreadPool(4);
+		try (SplitterServer server = new SplitterServer(0, 2, 2)) {
+			Future<?> serving = clients.submit(() -> {
+				server.serve();
+				return null;
+			});
+			List<Future<String>> replies = new ArrayList<Future<String>>();
+			for (int i = 0; i < 3; i++) {
+				replies.add(clients.submit(() -> SplitterServer.submit(server.getAddress(), job)));
+			}
+			for (Future<String> reply : replies) {
+				assertEquals(expected, reply.get());
+			}
+			String error = SplitterServer.submit(server.getAddress(), "-inputBam /no/such/file.bam -statsOnly");
+			assertTrue(error.startsWith("{\"status\":\"error\""), error);
+			error = SplitterServer.submit(server.getAddress(), "-noSuchOption");
+			assertTrue(error.startsWith("{\"status\":\"error\",\"message\":\"Unrecognized option"), error);
+			error = SplitterServer.submit(server.getAddress(), job.replace("-statsOnly", "-preview 0.1"));
+			assertTrue(error.startsWith("{\"status\":\"error\"") && error.contains("-preview"), error);
+			// A failed job does not stop the server
+			assertEquals(expected, SplitterServer.submit(server.getAddress(), job));
+			assertEquals("{\"status\":\"ok\"}", SplitterServer.submit(server.getAddress(), SplitterServer.SHUTDOWN));
+			serving.get();
+		} finally {
+			clients.shutdown();
+		}
+	}
+
+}